@@ -0,0 +1,409 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.controls.PermissiveModifyControl;
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import org.apache.log4j.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapName;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Adds and removes large numbers of group members, for provisioning syncs.
+ * <p/>
+ * Calling {@link ca.tnt.ldaputils.impl.LdapGroup#addMember(ILdapEntry)}
+ * thousands of times builds one huge modify, which the server rejects
+ * entirely if a single value already exists, or if it is too large.  Instead,
+ * collect the changes here, then {@link #apply()} them:
+ * <ul>
+ * <li>If the server supports the permissive modify control, values that
+ * already exist, or are already gone, are simply ignored by the server.
+ * Otherwise the group's current members are read once, and the changes that
+ * would do nothing are dropped.</li>
+ * <li>Each group's changes are sent in modifies of at most {@link
+ * #setChunkSize(int) chunk size} values, removals first.</li>
+ * <li>Different groups are updated in parallel, on the manager's {@link
+ * LdapManager#getExecutor() executor}, with the manager's {@link
+ * LdapManager#getPriority() priority}.</li>
+ * </ul>
+ * The modifies go through {@link LdapManager}, so its {@link
+ * ModificationListener}s, such as a {@link MembershipIndex}, see them.  A
+ * failure stops the remaining chunks of that group only; chunks already sent
+ * stay applied, and are counted in the {@link Result}.
+ * <p/>
+ * Created :  20/10/26 9:20 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class BulkMembershipUpdate
+{
+    private static final Logger logger = Logger.getLogger(
+        BulkMembershipUpdate.class);
+
+    private static final String MEMBER = "member";
+
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final LdapManager manager;
+    private final Map<LdapName, Set<LdapName>> additions =
+        new LinkedHashMap<LdapName, Set<LdapName>>();
+    private final Map<LdapName, Set<LdapName>> removals =
+        new LinkedHashMap<LdapName, Set<LdapName>>();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * @param manager the manager to apply the changes with
+     */
+    public BulkMembershipUpdate(final LdapManager manager)
+    {
+        this.manager = manager;
+    }
+
+    /**
+     * Adds members to a group, when applied.
+     *
+     * @param group   the group DN
+     * @param members the DNs of the new members
+     *
+     * @return this, for chaining
+     */
+    public synchronized BulkMembershipUpdate addMembers(final LdapName group,
+        final Collection<LdapName> members)
+    {
+        changes(additions, group).addAll(members);
+        changes(removals, group).removeAll(members);
+        return this;
+    }
+
+    /**
+     * Removes members from a group, when applied.
+     *
+     * @param group   the group DN
+     * @param members the DNs of the members to remove
+     *
+     * @return this, for chaining
+     */
+    public synchronized BulkMembershipUpdate removeMembers(
+        final LdapName group, final Collection<LdapName> members)
+    {
+        changes(removals, group).addAll(members);
+        changes(additions, group).removeAll(members);
+        return this;
+    }
+
+    /**
+     * @param chunkSize the most member values sent in a single modify;
+     *                  default 1000
+     */
+    public synchronized void setChunkSize(final int chunkSize)
+    {
+        if (chunkSize < 1)
+        {
+            throw new IllegalArgumentException(
+                "chunk size must be at least 1: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Applies all of the changes, groups in parallel, and waits for them to
+     * finish.  Called on one of the manager's own threads, such as from
+     * {@link LdapManager#saveAsync(ILdapEntry)}, the groups are updated one
+     * after the other on that thread instead.  The changes are cleared, so
+     * this may be reused.
+     *
+     * @return what was done, and what failed
+     *
+     * @throws LdapNamingException if interrupted while waiting
+     */
+    public Result apply()
+    {
+        final Set<LdapName> groups = new LinkedHashSet<LdapName>();
+        final Map<LdapName, Set<LdapName>> toAdd;
+        final Map<LdapName, Set<LdapName>> toRemove;
+        final int size;
+        synchronized (this)
+        {
+            groups.addAll(additions.keySet());
+            groups.addAll(removals.keySet());
+            toAdd = new HashMap<LdapName, Set<LdapName>>(additions);
+            toRemove = new HashMap<LdapName, Set<LdapName>>(removals);
+            additions.clear();
+            removals.clear();
+            size = chunkSize;
+        }
+
+        final boolean permissive = manager.isControlSupported(
+            PermissiveModifyControl.OID);
+        final Result result = new Result();
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
+            groups.size());
+        for (final LdapName group : groups)
+        {
+            tasks.add(new Callable<Object>()
+            {
+                @SuppressWarnings({"CatchGenericClass"})
+                @Override
+                public Object call()
+                {
+                    try
+                    {
+                        applyGroup(group, toAdd.get(group),
+                            toRemove.get(group), permissive, size, result);
+                    }
+                    catch (final Exception exception)
+                    {
+                        logger.error("error updating " + group + ": " +
+                            exception);
+                        result.addFailure(group, exception);
+                    }
+                    return null;
+                }
+            });
+        }
+        // run inline on the manager's own threads, rather than waiting on them
+        manager.invokeAll(tasks);
+        return result;
+    }
+
+    private void applyGroup(final LdapName group, final Set<LdapName> toAdd,
+        final Set<LdapName> toRemove, final boolean permissive,
+        final int size, final Result result) throws NamingException
+    {
+        final List<LdapName> adding = new ArrayList<LdapName>(
+            toAdd != null ? toAdd : Collections.<LdapName>emptySet());
+        final List<LdapName> removing = new ArrayList<LdapName>(
+            toRemove != null ? toRemove : Collections.<LdapName>emptySet());
+        final Control[] controls;
+        if (permissive)
+        {
+            controls = new Control[]{new PermissiveModifyControl()};
+        }
+        else
+        {   // drop what is already done, so the server does not reject it
+            controls = new Control[0];
+            final Set<LdapName> current = getMembers(group);
+            final int requested = adding.size() + removing.size();
+            adding.removeAll(current);
+            removing.retainAll(current);
+            result.addSkipped(requested - adding.size() - removing.size());
+        }
+
+        sendChunks(group, DirContext.REMOVE_ATTRIBUTE, removing, size,
+            controls, result);
+        sendChunks(group, DirContext.ADD_ATTRIBUTE, adding, size, controls,
+            result);
+    }
+
+    /**
+     * Sends the changes a chunk at a time, counting each chunk in the result
+     * once the server has applied it.
+     */
+    private void sendChunks(final LdapName group, final int operation,
+        final List<LdapName> members, final int size, final Control[] controls,
+        final Result result)
+    {
+        for (int start = 0; start < members.size(); start += size)
+        {
+            final Attribute values = new BasicAttribute(MEMBER);
+            for (final LdapName member : members.subList(start,
+                Math.min(members.size(), start + size)))
+            {
+                values.add(member.toString());
+            }
+            manager.modifyAttributes(group, new ModificationItem[]{
+                new ModificationItem(operation, values)}, controls);
+            if (operation == DirContext.ADD_ATTRIBUTE)
+            {
+                result.addAdded(values.size());
+            }
+            else
+            {
+                result.addRemoved(values.size());
+            }
+        }
+    }
+
+    /**
+     * Reads every member of a group, a range at a time if the server insists.
+     */
+    private Set<LdapName> getMembers(final LdapName group)
+        throws NamingException
+    {
+        return getMembers(manager, group, manager.getAttributes(group,
+            new String[]{MEMBER}));
+    }
+
+    /**
+     * Collects the members of a group from attributes already read, fetching
+     * the remaining ranges if the server returned only the first one.
+     *
+     * @param manager    the manager used to read the remaining ranges
+     * @param group      the group
+     * @param attributes the attributes read for the group, containing either
+     *                   member or member;range=..., or null
+     *
+     * @return the members, which may be empty, but never null
+     *
+     * @throws NamingException if the values are not DNs
+     */
+    static Set<LdapName> getMembers(final LdapManager manager,
+        final LdapName group, final Attributes attributes)
+        throws NamingException
+    {
+        final Set<LdapName> members = new HashSet<LdapName>();
+        if (attributes == null)
+        {
+            return members;
+        }
+        Attribute range = attributes.get(MEMBER);
+        if (range == null)
+        {   // either no members, or only the first range
+            final NamingEnumeration<? extends Attribute> all =
+                attributes.getAll();
+            while (all.hasMore() && range == null)
+            {
+                final Attribute attribute = all.next();
+                if (attribute.getID().toLowerCase().startsWith(
+                    MEMBER + ";range="))
+                {
+                    range = attribute;
+                }
+            }
+        }
+
+        while (range != null)
+        {
+            final NamingEnumeration values = range.getAll();
+            while (values.hasMore())
+            {
+                members.add(new LdapName(String.valueOf(values.next())));
+            }
+            final String id = range.getID();
+            final int dash = id.lastIndexOf('-');
+            if (id.indexOf(';') == -1 || "*".equals(id.substring(dash + 1)))
+            {
+                break;
+            }
+            range = manager.getAttributeRange(group, MEMBER,
+                Integer.parseInt(id.substring(dash + 1)) + 1);
+        }
+        return members;
+    }
+
+    private static Set<LdapName> changes(
+        final Map<LdapName, Set<LdapName>> changes, final LdapName group)
+    {
+        Set<LdapName> members = changes.get(group);
+        if (members == null)
+        {
+            members = new LinkedHashSet<LdapName>();
+            changes.put(group, members);
+        }
+        return members;
+    }
+
+    /**
+     * The outcome of {@link BulkMembershipUpdate#apply()}.  With the
+     * permissive modify control, values the server ignored are still counted
+     * as added or removed.
+     */
+    public static class Result
+    {
+        private int added;
+        private int removed;
+        private int skipped;
+        private final Map<LdapName, Throwable> failures =
+            new LinkedHashMap<LdapName, Throwable>();
+
+        synchronized void addAdded(final int count)
+        {
+            added += count;
+        }
+
+        synchronized void addRemoved(final int count)
+        {
+            removed += count;
+        }
+
+        synchronized void addSkipped(final int count)
+        {
+            skipped += count;
+        }
+
+        synchronized void addFailure(final LdapName group,
+            final Throwable cause)
+        {
+            failures.put(group, cause);
+        }
+
+        /**
+         * @return the number of member values added
+         */
+        public synchronized int getAdded()
+        {
+            return added;
+        }
+
+        /**
+         * @return the number of member values removed
+         */
+        public synchronized int getRemoved()
+        {
+            return removed;
+        }
+
+        /**
+         * @return the number of changes dropped because they were already
+         *         done
+         */
+        public synchronized int getSkipped()
+        {
+            return skipped;
+        }
+
+        /**
+         * @return the groups that could not be completely updated, with the
+         *         reason
+         */
+        public synchronized Map<LdapName, Throwable> getFailures()
+        {
+            return new LinkedHashMap<LdapName, Throwable>(failures);
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "Result{added=" + added + ", removed=" + removed +
+                ", skipped=" + skipped + ", failures=" + failures.keySet() +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.DirectoryOverloadedException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of operations in flight toward the directory, so that
+ * when it slows down, application threads wait in a bounded queue, or fail
+ * fast, instead of piling more work onto it.  See {@link
+ * LdapManager#setLimiters(ConcurrencyLimiter, ConcurrencyLimiter)}.
+ * <p/>
+ * When there is no free slot, an operation waits, unless the queue already
+ * holds maxQueued operations, in which case it is refused at once.  It is
+ * also refused if it waits longer than maxWaitMillis.  Refusals throw a
+ * {@link DirectoryOverloadedException}.
+ * <p/>
+ * In {@link #setAdaptive(int, double) adaptive} mode the limit follows the
+ * observed latency: after each window of completions, as many as the limit,
+ * the limit is cut by a fifth if the 90th percentile latency of the window
+ * exceeded the target, and raised by one if it did not and the limit was
+ * reached during the window; it never rises above the limit given when the
+ * limiter was created.
+ * <p/>
+ * Operations are either {@link Priority#INTERACTIVE interactive} or {@link
+ * Priority#BATCH batch}.  Waiting interactive operations always get the next
+ * free slot, and a {@link #setReserve(int) reserve} of slots is kept for
+ * them, so bulk jobs cannot crowd out user facing requests.
+ * <p/>
+ * Created :  26/10/26 7:10 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class ConcurrencyLimiter
+{
+    private static final double DECREASE_FACTOR = 0.8;
+    private static final double ADAPTIVE_PERCENTILE = 90;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final Condition batchAvailable = lock.newCondition();
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+
+    private int limit;
+    private int inFlight;
+    private int queued;
+    private int batchQueued;
+    private int reserve;
+
+    private boolean adaptive;
+    private int minLimit;
+    private double targetMillis;
+    private LatencyStatistics window;
+    private boolean saturated;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyStatistics queueWait = new LatencyStatistics();
+    private final LatencyStatistics batchQueueWait = new LatencyStatistics();
+    private final LatencyStatistics latency = new LatencyStatistics();
+
+    /**
+     * @param limit         the most operations in flight at once
+     * @param maxQueued     the most operations waiting for a slot; 0 to fail
+     *                      at once when there is none
+     * @param maxWaitMillis the longest an operation waits for a slot
+     */
+    public ConcurrencyLimiter(final int limit, final int maxQueued,
+        final long maxWaitMillis)
+    {
+        if (limit < 1)
+        {
+            throw new IllegalArgumentException(
+                "limit must be at least 1: " + limit);
+        }
+        maxLimit = limit;
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Lets the limit move between minLimit and the initial limit, according
+     * to latency.
+     *
+     * @param minLimit     the limit never drops below this
+     * @param targetMillis the 90th percentile latency to stay under
+     */
+    public void setAdaptive(final int minLimit, final double targetMillis)
+    {
+        lock.lock();
+        try
+        {
+            adaptive = true;
+            this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+            this.targetMillis = targetMillis;
+            window = new LatencyStatistics(maxLimit);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a slot for an interactive operation.  Every successful
+     * acquire must be followed by a {@link #release(long)}.
+     *
+     * @param timeLeftMillis the time the operation has left, which bounds the
+     *                       wait further; Long.MAX_VALUE for no bound
+     *
+     * @throws DirectoryOverloadedException if refused
+     */
+    public void acquire(final long timeLeftMillis)
+    {
+        acquire(Priority.INTERACTIVE, timeLeftMillis);
+    }
+
+    /**
+     * Waits for a slot.  Every successful acquire must be followed by a
+     * {@link #release(long)}.  Interactive operations are given free slots
+     * before any batch operation, and batch operations may not use the
+     * {@link #setReserve(int) reserve}.
+     *
+     * @param priority       the class of the operation
+     * @param timeLeftMillis the time the operation has left, which bounds the
+     *                       wait further; Long.MAX_VALUE for no bound
+     *
+     * @throws DirectoryOverloadedException if refused
+     */
+    public void acquire(final Priority priority, final long timeLeftMillis)
+    {
+        final boolean batch = priority == Priority.BATCH;
+        final long start = System.nanoTime();
+        lock.lock();
+        try
+        {
+            if (canTake(batch, true))
+            {
+                take();
+                waitStatistics(batch).record(0);
+                return;
+            }
+            saturated = true;
+            if (queued >= maxQueued)
+            {
+                rejected.incrementAndGet();
+                throw new DirectoryOverloadedException(
+                    "too many directory operations in flight: " + inFlight +
+                        " running, " + queued + " queued");
+            }
+
+            long remaining = TimeUnit.MILLISECONDS.toNanos(Math.min(
+                maxWaitMillis, timeLeftMillis));
+            final Condition turn = batch ? batchAvailable : available;
+            queued++;
+            if (batch)
+            {
+                batchQueued++;
+            }
+            try
+            {
+                while (!canTake(batch, false))
+                {
+                    if (remaining <= 0)
+                    {
+                        rejected.incrementAndGet();
+                        throw new DirectoryOverloadedException(
+                            "timed out waiting for a directory operation " +
+                                "slot: " + inFlight + " running");
+                    }
+                    remaining = turn.awaitNanos(remaining);
+                }
+            }
+            catch (final InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                throw new DirectoryOverloadedException(
+                    "interrupted waiting for a directory operation slot");
+            }
+            finally
+            {
+                queued--;
+                if (batch)
+                {
+                    batchQueued--;
+                }
+                if (!canTake(batch, false))
+                {   // giving up; pass on any wake up that was meant for us
+                    signalNext();
+                }
+            }
+            take();
+            waitStatistics(batch).record(System.nanoTime() - start);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param batch   whether the operation is a batch one
+     * @param arrival whether it has just arrived, so must not jump the queue
+     */
+    private boolean canTake(final boolean batch, final boolean arrival)
+    {
+        final int interactiveQueued = queued - batchQueued;
+        if (!batch)
+        {
+            return inFlight < limit && (!arrival || interactiveQueued == 0);
+        }
+        return inFlight < Math.max(1, limit - reserve) &&
+            interactiveQueued == 0 && (!arrival || batchQueued == 0);
+    }
+
+    private LatencyStatistics waitStatistics(final boolean batch)
+    {
+        return batch ? batchQueueWait : queueWait;
+    }
+
+    /**
+     * Keeps slots free for interactive operations; batch operations are
+     * limited to the limit less the reserve, though always get at least one
+     * slot.
+     *
+     * @param reserve the number of slots batch operations may not use
+     */
+    public void setReserve(final int reserve)
+    {
+        lock.lock();
+        try
+        {
+            this.reserve = Math.max(0, reserve);
+            batchAvailable.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of slots batch operations may not use
+     */
+    public int getReserve()
+    {
+        lock.lock();
+        try
+        {
+            return reserve;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void take()
+    {
+        inFlight++;
+        if (inFlight >= limit)
+        {
+            saturated = true;
+        }
+    }
+
+    /**
+     * Frees a slot taken by {@link #acquire(long)}.
+     *
+     * @param latencyNanos how long the operation took
+     */
+    public void release(final long latencyNanos)
+    {
+        latency.record(latencyNanos);
+        lock.lock();
+        try
+        {
+            inFlight--;
+            if (adaptive)
+            {
+                adapt(latencyNanos);
+            }
+            signalNext();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(final long latencyNanos)
+    {
+        window.record(latencyNanos);
+        if (window.getCount() < limit)
+        {
+            return;
+        }
+        final int previous = limit;
+        if (window.getPercentileMillis(ADAPTIVE_PERCENTILE) > targetMillis)
+        {
+            limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+        }
+        else if (saturated && limit < maxLimit)
+        {
+            limit++;
+        }
+        window.reset();
+        saturated = false;
+        if (limit > previous)
+        {
+            available.signalAll();
+            batchAvailable.signalAll();
+        }
+    }
+
+    /**
+     * Wakes the next waiter for the freed slot, interactive first.
+     */
+    private void signalNext()
+    {
+        if (queued > batchQueued)
+        {
+            available.signal();
+        }
+        else
+        {
+            batchAvailable.signal();
+        }
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int getLimit()
+    {
+        lock.lock();
+        try
+        {
+            return limit;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of operations in flight
+     */
+    public int getInFlight()
+    {
+        lock.lock();
+        try
+        {
+            return inFlight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of operations waiting for a slot
+     */
+    public int getQueued()
+    {
+        lock.lock();
+        try
+        {
+            return queued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of operations refused
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * @return the time interactive operations spent waiting for a slot
+     */
+    public LatencyStatistics getQueueWaitStatistics()
+    {
+        return queueWait;
+    }
+
+    /**
+     * @param priority the class of operation
+     *
+     * @return the time operations of that class spent waiting for a slot
+     */
+    public LatencyStatistics getQueueWaitStatistics(final Priority priority)
+    {
+        return waitStatistics(priority == Priority.BATCH);
+    }
+
+    /**
+     * @param priority the class of operation
+     *
+     * @return the number of operations of that class waiting for a slot
+     */
+    public int getQueued(final Priority priority)
+    {
+        lock.lock();
+        try
+        {
+            return priority == Priority.BATCH ? batchQueued :
+                queued - batchQueued;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the time operations held their slot
+     */
+    public LatencyStatistics getLatencyStatistics()
+    {
+        return latency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ConcurrencyLimiter{limit=" + getLimit() + ", inFlight=" +
+            getInFlight() + ", queued=" + getQueued() + ", rejected=" +
+            getRejectedCount() + ", queueWait=" + queueWait +
+            ", batchQueueWait=" + batchQueueWait + '}';
+    }
+}
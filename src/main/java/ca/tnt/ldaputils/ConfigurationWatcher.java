@@ -0,0 +1,204 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches a properties file, and {@link LdapManager#reload(LdapConfiguration)
+ * reloads} its manager when the file changes.  The file is checked on a
+ * daemon thread every so often, by its modification time and size.  A file
+ * that cannot be loaded, or is missing a required property, is logged and
+ * counted as a failure, and the manager keeps its current configuration.
+ * <p/>
+ * Created :  18/10/26 4:10 PM MST
+ *
+ * @see LdapManager#watchConfiguration(File, long)
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class ConfigurationWatcher
+{
+    private static final Logger logger = Logger.getLogger(
+        ConfigurationWatcher.class);
+
+    private final LdapManager manager;
+    private final File file;
+    private final long intervalMillis;
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long lastModified;
+    private long length;
+    private ScheduledExecutorService checks;
+
+    /**
+     * @param manager        the manager to reload
+     * @param file           the properties file the manager was loaded from
+     * @param intervalMillis how often to check the file
+     */
+    ConfigurationWatcher(final LdapManager manager, final File file,
+        final long intervalMillis)
+    {
+        if (intervalMillis < 1)
+        {
+            throw new IllegalArgumentException(
+                "interval must be at least 1: " + intervalMillis);
+        }
+        this.manager = manager;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        lastModified = file.lastModified();
+        length = file.length();
+    }
+
+    /**
+     * Finds the file a properties resource is loaded from, the way {@link
+     * Property#loadProperties(String)} finds it.
+     *
+     * @param resource the resource, such as /ldap.properties
+     *
+     * @return the file, or null if the resource is in a jar, or missing
+     */
+    static File findFile(final String resource)
+    {
+        final URL url = Property.class.getResource(resource);
+        if (url == null)
+        {
+            final File file = new File(resource);
+            return file.isFile() ? file : null;
+        }
+        if (!"file".equals(url.getProtocol()))
+        {
+            return null;
+        }
+        try
+        {
+            return new File(url.toURI());
+        }
+        catch (final URISyntaxException exception)
+        {
+            return new File(url.getPath());
+        }
+    }
+
+    synchronized void start()
+    {
+        if (checks == null)
+        {
+            checks = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable,
+                        "ConfigurationWatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            checks.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    check();
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops checking the file.
+     */
+    public synchronized void stop()
+    {
+        if (checks != null)
+        {
+            checks.shutdownNow();
+            checks = null;
+        }
+    }
+
+    /**
+     * Checks the file now, reloading the manager if it has changed.
+     *
+     * @return true if the manager was reloaded
+     */
+    @SuppressWarnings({"CatchGenericClass"})
+    synchronized boolean check()
+    {
+        final long modified = file.lastModified();
+        final long size = file.length();
+        if (modified == lastModified && size == length)
+        {
+            return false;
+        }
+        lastModified = modified;
+        length = size;
+        try
+        {
+            manager.reload(LdapConfiguration.load(file));
+            reloads.incrementAndGet();
+            logger.info("reloaded " + file);
+            return true;
+        }
+        catch (final RuntimeException exception)
+        {
+            failures.incrementAndGet();
+            logger.error("unable to reload " + file +
+                ", keeping the current configuration - " +
+                exception.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the file being watched
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return how many times the manager has been reloaded
+     */
+    public long getReloadCount()
+    {
+        return reloads.get();
+    }
+
+    /**
+     * @return how many times the changed file could not be loaded
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.annotations.LdapEntity;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import java.util.*;
+
+/**
+ * An immutable set of {@link LdapEntity} annotated classes, used to map each
+ * entry of a search to the most specific class its objectClasses allow.  See
+ * {@link LdapManager#find(javax.naming.ldap.LdapName, String, String,
+ * String[], EntityRegistry, int, int)}
+ * <p/>
+ * The required objectClasses of a class are those of its own annotation,
+ * plus those of every annotated super class, as they are all validated when
+ * loading.  A class is more specific than another when it requires more
+ * objectClasses, or as many but deeper in the class hierarchy, such as a
+ * subclass of the other; otherwise the class registered first wins.  So with {@link ca.tnt.ldaputils.impl.LdapEntry},
+ * {@link ca.tnt.ldaputils.impl.LdapOrganization} and {@link
+ * ca.tnt.ldaputils.proprietary.LdapBusiness} registered, a tntbusiness is
+ * loaded as an LdapBusiness, any other organization as an LdapOrganization,
+ * and anything else as an LdapEntry.
+ * <p/>
+ * The decision index is built once, when the registry is created.  It maps
+ * each required objectClass to the candidate classes, in order of
+ * specificity, so resolving an entry only looks at the classes that could
+ * possibly match it.
+ * <p/>
+ * Created :  21/10/26 7:40 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class EntityRegistry
+{
+    private static final String OBJECT_CLASS = "objectClass";
+
+    /**
+     * candidates, most specific first
+     */
+    private final Candidate[] candidates;
+
+    /**
+     * lower case objectClass to the candidates requiring it, most specific
+     * first
+     */
+    private final Map<String, Candidate[]> index;
+
+    /**
+     * candidates requiring no objectClasses at all, most specific first
+     */
+    private final Candidate[] unconditional;
+
+    /**
+     * Builds the registry and its decision index.
+     *
+     * @param annotatedClasses the {@link LdapEntity} annotated classes
+     *
+     * @throws IllegalArgumentException if a class is not annotated
+     */
+    public EntityRegistry(final Class... annotatedClasses)
+    {
+        final List<Candidate> sorted = new ArrayList<Candidate>();
+        for (int order = 0; order < annotatedClasses.length; order++)
+        {
+            final Class annotatedClass = annotatedClasses[order];
+            if (!annotatedClass.isAnnotationPresent(LdapEntity.class))
+            {
+                throw new IllegalArgumentException(annotatedClass.getName() +
+                    " is not annotated with @LdapEntity");
+            }
+            sorted.add(new Candidate(annotatedClass, order));
+        }
+        Collections.sort(sorted);
+        candidates = sorted.toArray(new Candidate[sorted.size()]);
+        for (int rank = 0; rank < candidates.length; rank++)
+        {
+            candidates[rank].rank = rank;
+        }
+
+        final Map<String, List<Candidate>> byObjectClass =
+            new HashMap<String, List<Candidate>>();
+        final List<Candidate> noRequirements = new ArrayList<Candidate>();
+        for (final Candidate candidate : candidates)
+        {
+            if (candidate.required.isEmpty())
+            {
+                noRequirements.add(candidate);
+            }
+            for (final String objectClass : candidate.required)
+            {
+                List<Candidate> list = byObjectClass.get(objectClass);
+                if (list == null)
+                {
+                    list = new ArrayList<Candidate>();
+                    byObjectClass.put(objectClass, list);
+                }
+                list.add(candidate);
+            }
+        }
+        index = new HashMap<String, Candidate[]>();
+        for (final Map.Entry<String, List<Candidate>> entry :
+            byObjectClass.entrySet())
+        {
+            index.put(entry.getKey(), entry.getValue().toArray(
+                new Candidate[entry.getValue().size()]));
+        }
+        unconditional = noRequirements.toArray(
+            new Candidate[noRequirements.size()]);
+    }
+
+    /**
+     * Determines the most specific registered class for an entry.
+     *
+     * @param attributes the attributes of the entry, which must include
+     *                   objectClass
+     *
+     * @return the class to load the entry as, or null if none of the
+     *         registered classes support it
+     *
+     * @throws NamingException if the objectClass values cannot be read
+     */
+    public Class resolve(final Attributes attributes) throws NamingException
+    {
+        final Set<String> objectClasses = new HashSet<String>();
+        final Attribute objectClass = attributes.get(OBJECT_CLASS);
+        if (objectClass != null)
+        {
+            final NamingEnumeration values = objectClass.getAll();
+            while (values.hasMore())
+            {
+                objectClasses.add(String.valueOf(values.next()).toLowerCase());
+            }
+        }
+
+        Candidate best = unconditional.length > 0 ? unconditional[0] : null;
+        for (final String value : objectClasses)
+        {
+            final Candidate[] possible = index.get(value);
+            if (possible == null)
+            {
+                continue;
+            }
+            for (final Candidate candidate : possible)
+            {
+                if (best != null && best.rank <= candidate.rank)
+                {   // the rest are less specific
+                    break;
+                }
+                if (objectClasses.containsAll(candidate.required))
+                {
+                    best = candidate;
+                    break;
+                }
+            }
+        }
+        return best != null ? best.annotatedClass : null;
+    }
+
+    /**
+     * @return the registered classes, most specific first
+     */
+    public List<Class> getClasses()
+    {
+        final List<Class> classes = new ArrayList<Class>(candidates.length);
+        for (final Candidate candidate : candidates)
+        {
+            classes.add(candidate.annotatedClass);
+        }
+        return classes;
+    }
+
+    /**
+     * The objectClasses this registry needs returned by a search, in
+     * addition to the requested attributes.
+     *
+     * @param attributes the requested attributes, or null for all
+     *
+     * @return the attributes to request
+     */
+    String[] withObjectClass(final String[] attributes)
+    {
+        if (attributes == null)
+        {
+            return null;
+        }
+        for (final String attribute : attributes)
+        {
+            if (OBJECT_CLASS.equalsIgnoreCase(attribute))
+            {
+                return attributes;
+            }
+        }
+        final String[] withObjectClass = new String[attributes.length + 1];
+        System.arraycopy(attributes, 0, withObjectClass, 0,
+            attributes.length);
+        withObjectClass[attributes.length] = OBJECT_CLASS;
+        return withObjectClass;
+    }
+
+    /**
+     * A registered class, with everything it requires.
+     */
+    private static class Candidate implements Comparable<Candidate>
+    {
+        private final Class annotatedClass;
+        private final Set<String> required = new HashSet<String>();
+        private final int order;
+        private int depth;
+        private int rank;
+
+        private Candidate(final Class annotatedClass, final int order)
+        {
+            this.annotatedClass = annotatedClass;
+            this.order = order;
+            for (Class current = annotatedClass; current != null;
+                 current = current.getSuperclass())
+            {
+                final LdapEntity annotation = (LdapEntity)
+                    current.getAnnotation(LdapEntity.class);
+                if (annotation != null)
+                {
+                    for (final String objectClass :
+                        annotation.requiredObjectClasses())
+                    {
+                        required.add(objectClass.toLowerCase());
+                    }
+                }
+                depth++;
+            }
+        }
+
+        @SuppressWarnings({"SubtractionInCompareTo"})
+        @Override
+        public int compareTo(final Candidate other)
+        {
+            if (required.size() != other.required.size())
+            {
+                return other.required.size() - required.size();
+            }
+            if (depth != other.depth)
+            {   // subclasses before their super classes
+                return other.depth - depth;
+            }
+            return order - other.order;
+        }
+    }
+}
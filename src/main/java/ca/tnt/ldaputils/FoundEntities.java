@@ -0,0 +1,72 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import javax.naming.ldap.LdapName;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The entities loaded by {@link LdapManager#findAll(Class, java.util.Collection)},
+ * keyed by the DNs asked for, in the order they were asked for.  The DNs that
+ * could not be loaded, because they do not exist, cannot be seen with the
+ * bind DN, or do not have the object classes the entity requires, are
+ * available from {@link #getMissing()}.
+ * <p/>
+ * Created :  22/10/26 8:10 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface",
+    "ClassExtendsConcreteCollection"})
+public class FoundEntities extends LinkedHashMap<LdapName, Object>
+{
+    private static final long serialVersionUID = 6520961781318604214L;
+
+    private final Set<LdapName> missing = new LinkedHashSet<LdapName>();
+
+    FoundEntities(final int expected)
+    {
+        super(expected * 2);
+    }
+
+    void addMissing(final LdapName dn)
+    {
+        missing.add(dn);
+    }
+
+    /**
+     * @return the DNs asked for that could not be loaded, in the order they
+     *         were asked for
+     */
+    public Set<LdapName> getMissing()
+    {
+        return Collections.unmodifiableSet(missing);
+    }
+
+    /**
+     * @return whether every DN asked for was loaded
+     */
+    public boolean isComplete()
+    {
+        return missing.isEmpty();
+    }
+}
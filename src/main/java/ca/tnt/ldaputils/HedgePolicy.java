@@ -0,0 +1,175 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When and how often to hedge reads of single entries.  See {@link
+ * LdapManager#setHedgePolicy(HedgePolicy)}.
+ * <p/>
+ * A read that has not answered within the given percentile of recent read
+ * latencies, and never sooner than minDelayMillis, is sent to a second
+ * server as well; whichever answers first wins, and the other is abandoned.
+ * Hedges are capped at maxHedgeRatio of all reads, so that a slow directory
+ * is not sent twice the load, and no read is hedged until twenty reads have
+ * given the percentile something to go on.
+ * <p/>
+ * Created :  28/10/26 9:15 AM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class HedgePolicy
+{
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final double maxHedgeRatio;
+    private final LatencyStatistics latency = new LatencyStatistics();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * @param percentile     the percentile of read latency to wait for before
+     *                       hedging, such as 95
+     * @param minDelayMillis the least time to wait before hedging
+     * @param maxHedgeRatio  the largest fraction of reads to hedge, such as
+     *                       0.05
+     */
+    public HedgePolicy(final double percentile, final long minDelayMillis,
+        final double maxHedgeRatio)
+    {
+        if (percentile <= 0 || percentile > 100)
+        {
+            throw new IllegalArgumentException(
+                "percentile must be between 0 and 100: " + percentile);
+        }
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * @return how long a read waits before it is hedged, in milliseconds
+     */
+    public double getDelayMillis()
+    {
+        return Math.max(minDelayMillis,
+            latency.getPercentileMillis(percentile));
+    }
+
+    /**
+     * Counts a read.
+     */
+    void startRead()
+    {
+        reads.incrementAndGet();
+    }
+
+    /**
+     * @return true, counting the hedge, if a late read may be hedged
+     */
+    boolean tryHedge()
+    {
+        if (latency.getCount() < MIN_SAMPLES)
+        {
+            return false;
+        }
+        while (true)
+        {
+            final long hedged = hedges.get();
+            if (hedged + 1 > maxHedgeRatio * reads.get())
+            {
+                return false;
+            }
+            if (hedges.compareAndSet(hedged, hedged + 1))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param nanos  how long the caller waited for the read
+     * @param hedged whether the hedge answered first
+     */
+    void finishRead(final long nanos, final boolean hedged)
+    {
+        latency.record(nanos);
+        if (hedged)
+        {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the reads done under this policy
+     */
+    public long getReadCount()
+    {
+        return reads.get();
+    }
+
+    /**
+     * @return the reads that were hedged
+     */
+    public long getHedgeCount()
+    {
+        return hedges.get();
+    }
+
+    /**
+     * @return the hedged reads that the hedge answered first
+     */
+    public long getHedgeWinCount()
+    {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the fraction of reads that were hedged
+     */
+    public double getHedgeRate()
+    {
+        final long count = reads.get();
+        return count == 0 ? 0 : hedges.get() / (double) count;
+    }
+
+    /**
+     * @return how long callers waited for reads, hedged or not
+     */
+    public LatencyStatistics getLatencyStatistics()
+    {
+        return latency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HedgePolicy{" +
+            "delayMillis=" + getDelayMillis() +
+            ", reads=" + reads +
+            ", hedges=" + hedges +
+            ", hedgeWins=" + hedgeWins +
+            '}';
+    }
+}
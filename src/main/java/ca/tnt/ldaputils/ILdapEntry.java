@@ -67,6 +67,18 @@ public interface ILdapEntry
      * {@link javax.naming.directory.DirContext#REMOVE_ATTRIBUTE}
      */
     int REMOVE_ATTRIBUTE = 2;
+    /**
+     * Used in setting attributes.  MEANING - add *value*, which must be a
+     * whole number, to the current integer value of the attribute.  An
+     * attribute that does not exist yet is treated as 0.  Several increments
+     * of the same attribute in a batch are summed, and are applied in the
+     * same modify as the rest of the batch.  Concurrent increments by
+     * other clients are never lost; see {@link LdapManager#increment(javax.naming.ldap.LdapName,
+     * String, long)}.
+     * <p/>
+     * The value of this constant is 3
+     */
+    int INCREMENT_ATTRIBUTE = 3;
 
     /**
      * Get's the types of objects this is.
@@ -144,13 +156,14 @@ public interface ILdapEntry
      * IllegalArgumentException, with an appropriate error message.
      *
      * @param operation one of ADD_ATTRIBUTE, REPLACE_ATTRIBUTE,
-     *                  REMOVE_ATTRIBUTE
+     *                  REMOVE_ATTRIBUTE, INCREMENT_ATTRIBUTE
      *
      * @param attribute the name of the attribute
      * @param value     the value of the attribute
      * @see ILdapEntry#ADD_ATTRIBUTE ADD_ATTRIBUTE
      * @see ILdapEntry#REPLACE_ATTRIBUTE REPLACE_ATTRIBUTE
      * @see ILdapEntry#REMOVE_ATTRIBUTE REMOVE_ATTRIBUTE
+     * @see ILdapEntry#INCREMENT_ATTRIBUTE INCREMENT_ATTRIBUTE
      */
     public void modifyBatchAttribute(int operation, String attribute,
         Object value
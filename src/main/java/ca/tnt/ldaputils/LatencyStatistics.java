@@ -0,0 +1,156 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import java.util.Arrays;
+
+/**
+ * Simple thread safe latency recorder.  Keeps a running count, total and
+ * maximum, as well as a fixed size window of the most recent samples, so that
+ * percentiles can be computed cheaply without keeping every sample forever.
+ * <p/>
+ * Created :  18/10/26 9:12 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class LatencyStatistics
+{
+    private static final int DEFAULT_WINDOW = 1024;
+
+    private final long[] window;
+    private int windowPosition;
+    private int windowSize;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Creates a recorder with a window of the last 1024 samples.
+     */
+    public LatencyStatistics()
+    {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a recorder with a window of the last windowSize samples.
+     *
+     * @param windowSize the number of recent samples used for percentiles
+     */
+    public LatencyStatistics(final int windowSize)
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException(
+                "window size must be at least 1: " + windowSize);
+        }
+        window = new long[windowSize];
+    }
+
+    /**
+     * Records a single sample.
+     *
+     * @param nanos the elapsed time in nanoseconds
+     */
+    public synchronized void record(final long nanos)
+    {
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos)
+        {
+            maxNanos = nanos;
+        }
+        window[windowPosition] = nanos;
+        windowPosition = (windowPosition + 1) % window.length;
+        if (windowSize < window.length)
+        {
+            windowSize++;
+        }
+    }
+
+    /**
+     * @return the number of samples recorded since creation or the last {@link
+     *         #reset()}
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the mean of all samples, in milliseconds, or 0 if there are none
+     */
+    public synchronized double getMeanMillis()
+    {
+        return count == 0 ? 0 : totalNanos / (double) count / 1000000.0;
+    }
+
+    /**
+     * @return the largest sample, in milliseconds
+     */
+    public synchronized double getMaxMillis()
+    {
+        return maxNanos / 1000000.0;
+    }
+
+    /**
+     * Computes a percentile over the recent sample window.
+     *
+     * @param percentile a value between 0 and 100, such as 99
+     *
+     * @return the percentile in milliseconds, or 0 if there are no samples
+     */
+    public synchronized double getPercentileMillis(final double percentile)
+    {
+        if (windowSize == 0)
+        {
+            return 0;
+        }
+        final long[] sorted = new long[windowSize];
+        System.arraycopy(window, 0, sorted, 0, windowSize);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * windowSize) - 1;
+        index = Math.max(0, Math.min(windowSize - 1, index));
+        return sorted[index] / 1000000.0;
+    }
+
+    /**
+     * Clears all samples.
+     */
+    public synchronized void reset()
+    {
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        windowPosition = 0;
+        windowSize = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "LatencyStatistics{" +
+            "count=" + count +
+            ", meanMillis=" + getMeanMillis() +
+            ", p99Millis=" + getPercentileMillis(99) +
+            ", maxMillis=" + getMaxMillis() +
+            '}';
+    }
+}
@@ -0,0 +1,372 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The settings a {@link LdapManager} is created with, which never change
+ * once created, so that a manager built from them can be shared by every
+ * thread.  Different credentials or timeouts make a new configuration, with
+ * {@link #withCredentials(String, String)} or {@link #withTimeout(int)}, and
+ * a different server with {@link #withServer(String)}.
+ * <p/>
+ * A configuration is usually loaded from ldap.properties, which must have
+ * LDAP.baseDN, LDAP.managerdn and LDAP.managerpw, and either LDAP.host and
+ * LDAP.port, or LDAP.servers, LDAP.supplier, or both.  The other properties,
+ * such as the limits and routes, and the ${...} references used by
+ * aggregates, are read from it by the manager.
+ * <p/>
+ * Created :  18/10/26 2:20 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public final class LdapConfiguration
+{
+    /**
+     * The properties file loaded by default, from the CLASSPATH
+     */
+    public static final String DEFAULT_PROPERTIES = "/ldap.properties";
+
+    private final Properties properties;
+    private final String url;
+    private final String supplierUrl;
+    private final List<String> serverUrls;
+    private final String bindDN;
+    private final String bindPassword;
+    private final int timeout;
+
+    /**
+     * Uses a single server, without any other settings.
+     *
+     * @param url          the ldap url, such as ldap://localhost:389
+     * @param bindDN       the DN to bind as
+     * @param bindPassword the password of bindDN
+     */
+    public LdapConfiguration(final String url, final String bindDN,
+        final String bindPassword)
+    {
+        this(null, url, null, Collections.<String>emptyList(), bindDN,
+            bindPassword, 0);
+    }
+
+    /**
+     * Reads the configuration from properties, such as those of
+     * ldap.properties, which are copied.
+     *
+     * @param properties the properties
+     *
+     * @throws IllegalArgumentException if a required property is missing
+     */
+    public LdapConfiguration(final Properties properties)
+    {
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+
+        final String host = properties.getProperty("LDAP.host");
+        final String port = properties.getProperty("LDAP.port");
+        supplierUrl = StringUtils.trimToNull(
+            properties.getProperty("LDAP.supplier"));
+        final String[] urls = StringUtils.split(
+            properties.getProperty("LDAP.servers"), " ,");
+        final List<String> consumers = new ArrayList<String>();
+        if (urls != null)
+        {
+            consumers.addAll(Arrays.asList(urls));
+        }
+        else if (host != null && port != null)
+        {
+            consumers.add("ldap://" + host + ':' + port);
+        }
+        if (supplierUrl != null || urls != null && urls.length > 0)
+        {
+            url = supplierUrl != null ? supplierUrl : urls[0];
+            serverUrls = Collections.unmodifiableList(consumers);
+        }
+        else
+        {
+            url = "ldap://" + host + ':' + port;
+            serverUrls = Collections.emptyList();
+        }
+
+        // don't use defaults in code because it could be a security
+        // vulnerability
+        bindDN = properties.getProperty("LDAP.managerdn");
+        bindPassword = properties.getProperty("LDAP.managerpw");
+        timeout = 0;
+
+        if (serverUrls.isEmpty() && (host == null || port == null) ||
+            properties.getProperty("LDAP.baseDN") == null ||
+            bindDN == null || bindPassword == null)
+        {
+            throw new IllegalArgumentException(
+                "please ensure all properties are set in ldap.properties");
+        }
+    }
+
+    /**
+     * Creates a configuration from its parts.  The properties are not
+     * copied, so must not be changed afterwards.
+     */
+    LdapConfiguration(final Properties properties, final String url,
+        final String supplierUrl, final List<String> serverUrls,
+        final String bindDN, final String bindPassword, final int timeout)
+    {
+        this.properties = properties;
+        this.url = url;
+        this.supplierUrl = supplierUrl;
+        this.serverUrls = serverUrls;
+        this.bindDN = bindDN;
+        this.bindPassword = bindPassword;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Loads ldap.properties from the CLASSPATH.
+     *
+     * @return the configuration
+     *
+     * @throws IllegalArgumentException if the file cannot be loaded, or a
+     *                                  required property is missing
+     * @see #load(String)
+     */
+    public static LdapConfiguration load()
+    {
+        return load(DEFAULT_PROPERTIES);
+    }
+
+    /**
+     * Loads a properties file, as {@link Property#loadProperties(String)}
+     * does.
+     *
+     * @param fileName the file, in the CLASSPATH or else the file system
+     *
+     * @return the configuration
+     *
+     * @throws IllegalArgumentException if the file cannot be loaded, or a
+     *                                  required property is missing
+     */
+    public static LdapConfiguration load(final String fileName)
+    {
+        final Properties properties = Property.loadProperties(fileName);
+        if (properties == null)
+        {
+            throw new IllegalArgumentException("unable to load " + fileName +
+                ".  Please ensure that it is located in the CLASSPATH.");
+        }
+        return new LdapConfiguration(properties);
+    }
+
+    /**
+     * Loads a properties file from the file system, such as one being {@link
+     * LdapManager#watchConfiguration(File, long) watched} for changes.
+     *
+     * @param file the file
+     *
+     * @return the configuration
+     *
+     * @throws IllegalArgumentException if the file cannot be read, or a
+     *                                  required property is missing
+     */
+    public static LdapConfiguration load(final File file)
+    {
+        final Properties properties = new Properties();
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = new FileInputStream(file);
+            properties.load(inputStream);
+        }
+        catch (final IOException exception)
+        {
+            throw new IllegalArgumentException("unable to load " + file +
+                ": " + exception.getMessage());
+        }
+        finally
+        {
+            if (inputStream != null)
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch (final IOException ignored)
+                {
+                }
+            }
+        }
+        return new LdapConfiguration(properties);
+    }
+
+    /**
+     * @return this configuration, binding as another DN
+     */
+    public LdapConfiguration withCredentials(final String bindDN,
+        final String bindPassword)
+    {
+        return new LdapConfiguration(properties, url, supplierUrl, serverUrls,
+            bindDN, bindPassword, timeout);
+    }
+
+    /**
+     * @param url the ldap url, such as ldap://localhost:389
+     *
+     * @return this configuration, using only the server at url, rather than
+     *         any supplier or servers it had
+     */
+    public LdapConfiguration withServer(final String url)
+    {
+        return new LdapConfiguration(properties, url, null,
+            Collections.<String>emptyList(), bindDN, bindPassword, timeout);
+    }
+
+    /**
+     * @param timeout the connect timeout in milliseconds, 0 for none
+     *
+     * @return this configuration, with another connect timeout
+     */
+    public LdapConfiguration withTimeout(final int timeout)
+    {
+        return new LdapConfiguration(properties, url, supplierUrl, serverUrls,
+            bindDN, bindPassword, timeout);
+    }
+
+    /**
+     * @return a copy of the properties, or null if the configuration was not
+     *         read from properties
+     */
+    public Properties getProperties()
+    {
+        if (properties == null)
+        {
+            return null;
+        }
+        final Properties copy = new Properties();
+        copy.putAll(properties);
+        return copy;
+    }
+
+    /**
+     * @return the value of a property, or null
+     */
+    public String getProperty(final String name)
+    {
+        return properties != null ? properties.getProperty(name) : null;
+    }
+
+    /**
+     * @return the url of the server, or of the first server if there are
+     *         several
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return the server that takes writes, or null
+     */
+    public String getSupplierUrl()
+    {
+        return supplierUrl;
+    }
+
+    /**
+     * @return the servers to spread reads over, empty if there is only the
+     *         {@link #getUrl() url}
+     */
+    public List<String> getServerUrls()
+    {
+        return serverUrls;
+    }
+
+    public String getBindDN()
+    {
+        return bindDN;
+    }
+
+    public String getBindPassword()
+    {
+        return bindPassword;
+    }
+
+    /**
+     * @return the connect timeout in milliseconds, 0 for none
+     */
+    public int getTimeout()
+    {
+        return timeout;
+    }
+
+    @SuppressWarnings({"OverlyComplexBooleanExpression"})
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof LdapConfiguration))
+        {
+            return false;
+        }
+        final LdapConfiguration that = (LdapConfiguration) o;
+        return timeout == that.timeout &&
+            url.equals(that.url) &&
+            StringUtils.equals(supplierUrl, that.supplierUrl) &&
+            serverUrls.equals(that.serverUrls) &&
+            StringUtils.equals(bindDN, that.bindDN) &&
+            StringUtils.equals(bindPassword, that.bindPassword) &&
+            (properties != null ? properties.equals(that.properties) :
+                that.properties == null);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = url.hashCode();
+        result = 31 * result + serverUrls.hashCode();
+        result = 31 * result + (bindDN != null ? bindDN.hashCode() : 0);
+        result = 31 * result + timeout;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LdapConfiguration{" +
+            "url='" + url + '\'' +
+            ", supplierUrl='" + supplierUrl + '\'' +
+            ", serverUrls=" + serverUrls +
+            ", bindDN='" + bindDN + '\'' +
+            ", timeout=" + timeout +
+            '}';
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The pending result of an asynchronous {@link LdapManager} operation, such as
+ * {@link LdapManager#findAsync(Class, javax.naming.ldap.LdapName)}.
+ * <p/>
+ * Besides the usual {@link java.util.concurrent.Future} methods, callbacks
+ * may be added, which are called once the operation completes, on the thread
+ * that completed it, or immediately if it already has.  Callbacks should be
+ * quick; start another asynchronous operation from one, rather than blocking
+ * in it.  {@link #then(Transform)} chains a transformation of the result,
+ * without blocking.  {@link #join()} waits like {@link #get()}, but throws the
+ * operation's own runtime exception, such as an {@link LdapNamingException},
+ * instead of an {@link ExecutionException}.
+ * <p/>
+ * Created :  23/10/26 7:50 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class LdapFuture<V> extends FutureTask<V>
+{
+    private static final Logger logger = Logger.getLogger(LdapFuture.class);
+
+    private final List<Callback<? super V>> callbacks =
+        new ArrayList<Callback<? super V>>();
+    private boolean completed;
+
+    /**
+     * @param operation the operation to run
+     */
+    public LdapFuture(final Callable<V> operation)
+    {
+        super(operation);
+    }
+
+    /**
+     * Calls callback when the operation completes, or now if it already has.
+     *
+     * @param callback told of the result, or the failure
+     *
+     * @return this, for chaining
+     */
+    public LdapFuture<V> addCallback(final Callback<? super V> callback)
+    {
+        synchronized (callbacks)
+        {
+            if (!completed)
+            {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        notify(callback);
+        return this;
+    }
+
+    /**
+     * Transforms the result once the operation completes, without waiting
+     * for it.  The transformation runs like a callback, on the thread that
+     * completes this operation, so it should be quick.  If this operation
+     * fails, or the transformation throws, the returned future fails with
+     * the same exception.  Cancelling the returned future does not cancel
+     * this one.
+     *
+     * @param transform makes the new result from this one
+     *
+     * @return the pending transformed result
+     */
+    public <T> LdapFuture<T> then(final Transform<? super V, T> transform)
+    {
+        final LdapFuture<T> transformed = new LdapFuture<T>(
+            new Callable<T>()
+            {
+                @Override
+                public T call()
+                {   // never run; completed by the callback below
+                    throw new IllegalStateException("not runnable");
+                }
+            });
+        addCallback(new Callback<V>()
+        {
+            @Override
+            public void succeeded(final V result)
+            {
+                final T value;
+                try
+                {
+                    value = transform.apply(result);
+                }
+                catch (final RuntimeException exception)
+                {
+                    transformed.setException(exception);
+                    return;
+                }
+                transformed.set(value);
+            }
+
+            @Override
+            public void failed(final Throwable cause)
+            {
+                transformed.setException(cause);
+            }
+        });
+        return transformed;
+    }
+
+    /**
+     * Waits for the operation to complete.
+     *
+     * @return the result of the operation
+     *
+     * @throws RuntimeException whatever the operation threw; checked
+     *                          exceptions and interruption are wrapped in an
+     *                          {@link LdapNamingException}
+     */
+    public V join()
+    {
+        try
+        {
+            return get();
+        }
+        catch (final InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            throw new LdapNamingException("interrupted", exception);
+        }
+        catch (final ExecutionException exception)
+        {
+            throw unwrap(exception);
+        }
+    }
+
+    @Override
+    protected void done()
+    {
+        final List<Callback<? super V>> toNotify;
+        synchronized (callbacks)
+        {
+            completed = true;
+            toNotify = new ArrayList<Callback<? super V>>(callbacks);
+            callbacks.clear();
+        }
+        for (final Callback<? super V> callback : toNotify)
+        {
+            notify(callback);
+        }
+    }
+
+    private void notify(final Callback<? super V> callback)
+    {
+        final V result;
+        try
+        {
+            result = get();
+        }
+        catch (final InterruptedException exception)
+        {   // cannot happen, we are done
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (final CancellationException exception)
+        {
+            failed(callback, exception);
+            return;
+        }
+        catch (final ExecutionException exception)
+        {
+            failed(callback, exception.getCause());
+            return;
+        }
+
+        try
+        {
+            callback.succeeded(result);
+        }
+        catch (final RuntimeException exception)
+        {
+            logger.error("callback failed", exception);
+        }
+    }
+
+    private static void failed(final Callback<?> callback,
+        final Throwable cause)
+    {
+        try
+        {
+            callback.failed(cause);
+        }
+        catch (final RuntimeException exception)
+        {
+            logger.error("callback failed", exception);
+        }
+    }
+
+    private static RuntimeException unwrap(
+        final ExecutionException exception)
+    {
+        final Throwable cause = exception.getCause();
+        if (cause instanceof RuntimeException)
+        {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+        return new LdapNamingException(cause);
+    }
+
+    /**
+     * Told when an {@link LdapFuture} completes.
+     */
+    public interface Callback<V>
+    {
+        /**
+         * @param result the result of the operation
+         */
+        void succeeded(V result);
+
+        /**
+         * @param cause what the operation threw, or a {@link
+         *              CancellationException} if it was cancelled
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * Makes a new result from the result of an {@link LdapFuture}; see {@link
+     * LdapFuture#then(Transform)}.
+     */
+    public interface Transform<V, T>
+    {
+        /**
+         * @param result the result of the operation
+         *
+         * @return the transformed result
+         */
+        T apply(V result);
+    }
+}
@@ -24,21 +24,57 @@ import ca.tnt.ldaputils.annotations.LdapEntity;
 import ca.tnt.ldaputils.annotations.processing.AnnotationProcessor;
 import ca.tnt.ldaputils.annotations.processing.LdapEntityBinder;
 import ca.tnt.ldaputils.annotations.processing.LdapEntityLoader;
+import ca.tnt.ldaputils.controls.AssertionControl;
+import ca.tnt.ldaputils.controls.PostReadControl;
+import ca.tnt.ldaputils.exception.DirectoryOverloadedException;
 import ca.tnt.ldaputils.exception.LdapNamingException;
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+import ca.tnt.ldaputils.exception.StaleEntryException;
 import ca.tnt.ldaputils.impl.LdapEntry;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Encapsulates LDAP access in to an easy to use factory object.  The purpose is
@@ -60,90 +96,362 @@ public class LdapManager
     // logging
     private static final Logger logger = Logger.getLogger(LdapManager.class);
 
-    // We set the TIMEOUT to zero so that no changes are made to the timeout.
-    private int timeout = 0;
-
     // internal configuration
-    private final String sLDAPURL;
     private String sLDAPuidAttribute;
-    private String bindDN;
-    private String bindPassword;
+
+    /**
+     * The current settings, replaced as a whole by reloads and setters
+     */
+    private volatile Settings settings;
+
+    /**
+     * The manager this is a view of, or this manager; reloads go to it
+     */
+    private final LdapManager root;
+
+    /**
+     * The views of this manager, when it is the root, so that reloads reach
+     * them.  Weak, as views are often made for a single request.
+     */
+    private final Set<LdapManager> views;
+
+    /**
+     * Whether this is a view binding as someone else, whose credentials are
+     * not changed by reloads
+     */
+    private boolean ownCredentials;
+
+    /**
+     * Reloads this manager when its properties file changes, or null
+     */
+    private ConfigurationWatcher configurationWatcher;
 
     /**
      * Return search results in no particular order.  i.e. the are stored in a
      * non sorted Map.  Probably a Hashtable.
      */
-    private static final int NO_ORDER = 0;
+    public static final int NO_ORDER = 0;
 
     /**
      * Return search results in the order they were found.
      */
-    private static final int SEARCH_ORDER = 1;
+    public static final int SEARCH_ORDER = 1;
 
     /**
      * Return search result in alphanumeric order, sorting by the keyAttribute.
      */
-    static final int SORTED_ORDER = 2;
+    public static final int SORTED_ORDER = 2;
+
+    /**
+     * How many times an increment is retried when the value keeps being
+     * changed underneath it.
+     */
+    private static final int MAX_INCREMENT_ATTEMPTS = 10;
+
+    /**
+     * The most RDNs matched by one filter, when retrieving many entries.
+     */
+    private static final int BATCH_FILTER_SIZE = 100;
+
+    /**
+     * The queue bounds of limiters created from ldap.properties, unless
+     * LDAP.maxQueued and LDAP.maxQueueWaitMillis are set
+     */
+    private static final int DEFAULT_MAX_QUEUED = 100;
+    private static final int DEFAULT_MAX_QUEUE_WAIT = 5000;
+    private static final int DEFAULT_EJECT_MILLIS = 30000;
+    private static final int DEFAULT_READ_YOUR_WRITES = 5000;
+    private static final int DEFAULT_HEDGE_MIN_DELAY = 5;
+    private static final int DEFAULT_HEDGE_MAX_PERCENT = 5;
+
+    /**
+     * The size of the executor, if LDAP.threads is not set
+     */
+    private static final int DEFAULT_THREADS = 8;
+
+    // LDAP result codes that mean an increment lost a race
+    private static final int NO_SUCH_ATTRIBUTE = 16;
+    private static final int CONSTRAINT_VIOLATION = 19;
+    private static final int ATTRIBUTE_OR_VALUE_EXISTS = 20;
+
+
+    /**
+     * When not null, {@link ILdapEntry#save()} queues modifications here
+     * instead of waiting for the directory.
+     */
+    private volatile WriteBehindQueue writeBehindQueue;
+
+    /**
+     * Notified of every change this manager makes to the directory
+     */
+    private List<ModificationListener> modificationListeners =
+        new CopyOnWriteArrayList<ModificationListener>();
+
+    private volatile MembershipIndex membershipIndex;
+
+    /**
+     * Runs work for operations that do several things at once
+     */
+    private ExecutorService executor;
+
+    /**
+     * Single entry reads in flight, shared by identical concurrent reads
+     */
+    private SingleFlight<ReadKey, Attributes> readsInFlight =
+        new SingleFlight<ReadKey, Attributes>()
+        {
+            @Override
+            protected Attributes copy(final Attributes value)
+            {
+                return value != null ? (Attributes) value.clone() : null;
+            }
+        };
+
+    /**
+     * The entries this manager changed lately, whose reads go to the supplier
+     */
+    private RecentWrites recentWrites = new RecentWrites(
+        DEFAULT_READ_YOUR_WRITES);
+
+    /**
+     * The limiter slots held by open connections
+     */
+    private Map<DirContext, Permit> permits =
+        new ConcurrentHashMap<DirContext, Permit>();
+
+    /**
+     * The number of connections the current thread has open from
+     * openConnection, by the limiter they count against, or null for those
+     * with no limiter.  A connection nested in an operation only skips a
+     * limiter the operation already holds a slot from.
+     */
+    private ThreadLocal<Map<ConcurrencyLimiter, int[]>> heldPermits =
+        new ThreadLocal<Map<ConcurrencyLimiter, int[]>>()
+        {
+            @Override
+            protected Map<ConcurrencyLimiter, int[]> initialValue()
+            {
+                return new IdentityHashMap<ConcurrencyLimiter, int[]>();
+            }
+        };
+
+    /**
+     * The priority of this manager's operations
+     */
+    private Priority priority = Priority.INTERACTIVE;
 
+    /**
+     * Asks for no attributes at all, using the special 1.1 attribute (RFC
+     * 4511 section 4.5.1.8)
+     */
+    private static final String[] NO_ATTRIBUTES = {"1.1"};
 
     /**
-     * The properties from the /ldap.properties in the classpath.
+     * The context of the operation the current thread is doing, if it was
+     * started with one
      */
-    private Properties properties;
+    private static final ThreadLocal<OperationContext> currentContext =
+        new ThreadLocal<OperationContext>();
 
     /**
      * Initializes internal data store parameters.  Namely loads the
      * ldap.properties file from the classpath.
+     * <p/>
+     * Every call loads the file again, and creates new pools and threads, so
+     * use {@link LdapManagerRegistry#getDefault()} to share one manager
+     * instead.
      */
-    @SuppressWarnings({"CatchGenericClass"})
     public LdapManager()
     {
-        try
+        this(loadConfiguration());
+        final int reloadMillis = getIntProperty(settings.properties,
+            "LDAP.reloadIntervalMillis", 0);
+        if (reloadMillis > 0)
         {
-            init();
-
-            if (properties == null)
+            final File file = ConfigurationWatcher.findFile(
+                LdapConfiguration.DEFAULT_PROPERTIES);
+            if (file != null)
+            {
+                watchConfiguration(file, reloadMillis);
+            }
+            else
             {
-                throw new NullPointerException("unable to load " +
-                    "ldap.properties.  Please ensure that it is " +
-                    "located in the CLASSPATH.");
+                logger.warn("LDAP.reloadIntervalMillis is set, but " +
+                    LdapConfiguration.DEFAULT_PROPERTIES +
+                    " is not a file that can be watched");
             }
+        }
+    }
 
-            // use defaults for most properties, just in case
-            final String sLDAPHost = properties.getProperty("LDAP.host");
-            final String sLDAPPort = properties.getProperty("LDAP.port");
-            sLDAPURL = "ldap://" + sLDAPHost + ':' + sLDAPPort;
-            final String sLDAPBaseDN = properties.getProperty("LDAP.baseDN");
+    /**
+     * Creates a manager for a configuration.  The manager is thread safe, and
+     * is meant to be shared by the whole application; bind as someone else
+     * with {@link #withCredentials(String, String)}, rather than creating
+     * another manager.
+     *
+     * @param configuration the configuration
+     *
+     * @see LdapManagerRegistry
+     */
+    public LdapManager(final LdapConfiguration configuration)
+    {
+        root = this;
+        views = newViewSet();
+        settings = createSettings(new Settings(), configuration);
+        applySettings(settings);
 
-            // don't use defaults in code because it could be a security
-            // vulnerability
-            bindDN = properties.getProperty("LDAP.managerdn");
-            bindPassword = properties.getProperty("LDAP.managerpw");
+        logger.info("loaded new " + LdapManager.class);
+    }
 
-            if (sLDAPHost == null ||
-                sLDAPPort == null ||
-                sLDAPBaseDN == null ||
-                bindDN == null || bindPassword == null)
-            {
-                throw new NullPointerException(
-                    "please ensure all properties are set in ldap.properties");
-            }
+    private static Set<LdapManager> newViewSet()
+    {
+        return Collections.synchronizedSet(Collections.newSetFromMap(
+            new WeakHashMap<LdapManager, Boolean>()));
+    }
 
-            logger.info("loaded new " + LdapManager.class);
+    private static LdapConfiguration loadConfiguration()
+    {
+        try
+        {
+            return LdapConfiguration.load();
         }
-        catch (final Throwable exception)
+        catch (final IllegalArgumentException exception)
         {
             throw new LdapNamingException("error loading ldap settings",
                 exception);
         }
     }
 
+    /**
+     * @return ldap.properties, on the server at url as bindDN, or just the
+     *         server and credentials if it cannot be loaded
+     */
+    private static LdapConfiguration loadConfiguration(final String url,
+        final String bindDN, final String bindPassword)
+    {
+        try
+        {
+            return LdapConfiguration.load().withServer(url).withCredentials(
+                bindDN, bindPassword);
+        }
+        catch (final IllegalArgumentException exception)
+        {
+            logger.debug("using " + url + " without ldap.properties: " +
+                exception.getMessage());
+            return new LdapConfiguration(url, bindDN, bindPassword);
+        }
+    }
+
     /*
-    * Get all the properties we need from the properties file in ldap.properties
+    * Builds the settings for a configuration, without publishing them.  On a
+    * reload, the servers, limiters, routes and hedge policy are only replaced
+    * if their own properties changed, so that they keep their state.  The
+    * routes are checked before any servers are created.
     */
-    private void init()
+    private Settings createSettings(final Settings old,
+        final LdapConfiguration configuration)
     {
-        properties = Property.loadProperties("/ldap.properties");
+        final Properties properties = configuration.getProperties();
+        final Map<LdapName, String> routeSuffixes = properties != null &&
+            changed(old.properties, properties, "LDAP.route.",
+                "LDAP.serverEjectMillis") ? parseRoutes(properties) : null;
+
+        final Settings next = new Settings(old);
+        next.configuration = configuration;
+        next.url = configuration.getUrl();
+        next.bindDN = configuration.getBindDN();
+        next.bindPassword = configuration.getBindPassword();
+        next.timeout = configuration.getTimeout();
+        next.properties = properties;
+        if (properties != null)
+        {
+            next.versionAttribute = StringUtils.trimToNull(
+                properties.getProperty("LDAP.versionAttribute"));
+            next.coalescingReads = !"false".equalsIgnoreCase(StringUtils.trim(
+                properties.getProperty("LDAP.coalesceReads")));
+            if (changed(old.properties, properties, "LDAP.maxConcurrent",
+                "LDAP.maxQueue", "LDAP.interactiveReserve",
+                "LDAP.adaptiveTargetMillis"))
+            {
+                createLimiters(next);
+            }
+            if (changed(old.properties, properties, "LDAP.hedge"))
+            {
+                final int hedgePercentile = getIntProperty(properties,
+                    "LDAP.hedgePercentile", 0);
+                next.hedgePolicy = hedgePercentile > 0 ? new HedgePolicy(
+                    hedgePercentile, getIntProperty(properties,
+                    "LDAP.hedgeMinDelayMillis", DEFAULT_HEDGE_MIN_DELAY),
+                    getIntProperty(properties, "LDAP.hedgeMaxPercent",
+                        DEFAULT_HEDGE_MAX_PERCENT) / 100.0) : null;
+            }
+        }
+
+        final LdapConfiguration oldConfiguration = old.configuration;
+        if (oldConfiguration == null || !StringUtils.equals(
+            oldConfiguration.getSupplierUrl(),
+            configuration.getSupplierUrl()) ||
+            !oldConfiguration.getServerUrls().equals(
+                configuration.getServerUrls()) ||
+            properties != null && changed(old.properties, properties,
+                "LDAP.serverEjectMillis"))
+        {
+            next.servers = configuration.getSupplierUrl() != null ||
+                !configuration.getServerUrls().isEmpty() ?
+                createServerSet(properties, configuration.getSupplierUrl(),
+                    configuration.getServerUrls()) : null;
+        }
+        if (routeSuffixes != null &&
+            (!old.routes.isEmpty() || !routeSuffixes.isEmpty()))
+        {
+            next.routes = createRoutes(properties, routeSuffixes);
+        }
+        if (next.servers != old.servers || next.routes != old.routes ||
+            !StringUtils.equals(next.url, old.url))
+        {
+            next.supportedControls = new AtomicReference<Set<String>>();
+        }
+        return next;
+    }
+
+    /**
+     * Does what published settings need done outside of them.
+     */
+    private void applySettings(final Settings applied)
+    {
+        if (applied.properties != null)
+        {
+            recentWrites.setWindowMillis(getIntProperty(applied.properties,
+                "LDAP.readYourWritesMillis", DEFAULT_READ_YOUR_WRITES));
+        }
+    }
+
+    /**
+     * @return true if there were no properties before, or any property
+     *         starting with one of the prefixes differs
+     */
+    private static boolean changed(final Properties old,
+        final Properties current, final String... prefixes)
+    {
+        if (old == null)
+        {
+            return true;
+        }
+        final Set<String> names = new HashSet<String>(
+            old.stringPropertyNames());
+        names.addAll(current.stringPropertyNames());
+        for (final String name : names)
+        {
+            for (final String prefix : prefixes)
+            {
+                if (name.startsWith(prefix) && !StringUtils.equals(
+                    old.getProperty(name), current.getProperty(name)))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -160,19 +468,293 @@ public class LdapManager
     public LdapManager(final String sLDAPHost, final String sLDAPPort,
         final String bindDN, final String bindPassword)
     {
-        init();
-        this.bindDN = bindDN;
-        this.bindPassword = bindPassword;
-        sLDAPURL = "ldap://" + sLDAPHost + ':' + sLDAPPort;
+        this("ldap://" + sLDAPHost + ':' + sLDAPPort, bindDN, bindPassword);
     }
 
+    /**
+     * Initialize LdapManager instance with the url, auth dn, and auth password
+     * set, and the other settings of ldap.properties, if it can be loaded.
+     *
+     * @param sLDAPUrl     the ldap url, such as ldap://localhost:389
+     * @param bindDN       the fully qualified DN of the ldap manager account
+     * @param bindPassword the password of the bindDN account.
+     */
     public LdapManager(final String sLDAPUrl, final String bindDN,
         final String bindPassword)
     {
-        init();
-        this.bindDN = bindDN;
-        this.bindPassword = bindPassword;
-        sLDAPURL = sLDAPUrl;
+        this(loadConfiguration(sLDAPUrl, bindDN, bindPassword));
+    }
+
+    /**
+     * Creates a view of parent, sharing its settings, and everything it
+     * holds: executor, limiters, listeners, indexes and queues.
+     */
+    private LdapManager(final LdapManager parent)
+    {
+        root = parent.root;
+        views = null;
+        sLDAPuidAttribute = parent.sLDAPuidAttribute;
+        ownCredentials = parent.ownCredentials;
+        settings = parent.settings;
+        writeBehindQueue = parent.writeBehindQueue;
+        modificationListeners = parent.modificationListeners;
+        membershipIndex = parent.membershipIndex;
+        executor = parent.getExecutor();
+        readsInFlight = parent.readsInFlight;
+        recentWrites = parent.recentWrites;
+        permits = parent.permits;
+        heldPermits = parent.heldPermits;
+        priority = parent.priority;
+        root.views.add(this);
+    }
+
+    /**
+     * Takes the settings a {@link #reload(LdapConfiguration) reload} published,
+     * keeping the credentials if this view has its own.
+     */
+    private synchronized void copySettings(final Settings from)
+    {
+        if (ownCredentials)
+        {
+            final Settings next = new Settings(from);
+            next.bindDN = settings.bindDN;
+            next.bindPassword = settings.bindPassword;
+            settings = next;
+        }
+        else
+        {
+            settings = from;
+        }
+    }
+
+    /**
+     * Takes the servers and routes {@link #publishServers(Settings)}
+     * published, keeping the rest of this view's settings.
+     */
+    private synchronized void copyServers(final Settings from)
+    {
+        final Settings next = new Settings(settings);
+        next.servers = from.servers;
+        next.routes = from.routes;
+        next.supportedControls = from.supportedControls;
+        settings = next;
+    }
+
+    /**
+     * Swaps in a new configuration, without a restart, such as a new password
+     * or replica, or a changed category DN property used by ${...} aggregate
+     * references.  The manager and every view of it use the new settings for
+     * the operations they start from then on; operations already running
+     * finish on the connections they have.  Idle pooled connections made
+     * with the old settings are left to the JNDI pool, which closes them
+     * after com.sun.jndi.ldap.connect.pool.timeout, if that is set.
+     * <p/>
+     * Only what changed is replaced.  Servers and limiters whose properties
+     * are the same are kept, with their health, latency and adaptive limits,
+     * as are the read-your-writes window, membership index and listeners.
+     * When the servers change, reads in flight are no longer joined by new
+     * ones, and the supported controls are read again.  Routes added with
+     * {@link #addRoute(LdapName, String, List)} are replaced by those in the
+     * properties if any LDAP.route property changed.
+     * <p/>
+     * Called on a view, this reloads the manager it was made from.  Views
+     * from {@link #withCredentials(String, String)} keep their credentials.
+     * A manager from {@link LdapManagerRegistry} stays registered under the
+     * configuration it was created with.
+     *
+     * <p/>
+     * The new settings are all built, and checked, before any of them are
+     * used, and then swapped in at once, so an operation never runs with some
+     * of the old settings and some of the new.
+     *
+     * @param configuration the new configuration
+     *
+     * @throws LdapNamingException if a route suffix is not a valid DN, in
+     *                             which case nothing is changed
+     * @see #watchConfiguration(File, long)
+     */
+    public void reload(final LdapConfiguration configuration)
+    {
+        if (root != this)
+        {
+            root.reload(configuration);
+            return;
+        }
+        synchronized (this)
+        {
+            final Settings old = settings;
+            if (configuration.equals(old.configuration))
+            {
+                return;
+            }
+            final Settings next = createSettings(old, configuration);
+            settings = next;
+
+            applySettings(next);
+            if (next.servers != old.servers || next.routes != old.routes ||
+                !StringUtils.equals(next.url, old.url))
+            {
+                readsInFlight.forget(new SingleFlight.KeyMatcher<ReadKey>()
+                {
+                    @Override
+                    public boolean matches(final ReadKey key)
+                    {
+                        return true;
+                    }
+                });
+            }
+            synchronized (views)
+            {
+                for (final LdapManager view : views)
+                {
+                    view.copySettings(next);
+                }
+            }
+            if (next.servers != old.servers && old.servers != null)
+            {
+                old.servers.close();
+            }
+            if (next.routes != old.routes)
+            {
+                for (final ServerSet serverSet : old.routes.values())
+                {
+                    serverSet.close();
+                }
+            }
+            logger.info("reloaded " + LdapManager.class);
+        }
+    }
+
+    /**
+     * Reloads this manager whenever a properties file changes, such as the
+     * ldap.properties it was loaded from.  The default constructor does this
+     * for ldap.properties, if it is a file rather than in a jar, when
+     * LDAP.reloadIntervalMillis is set.  A changed file that cannot be
+     * loaded is logged, and the current configuration is kept.
+     *
+     * @param file           the properties file
+     * @param intervalMillis how often to check it for changes
+     *
+     * @return the watcher, for its metrics
+     *
+     * @see #reload(LdapConfiguration)
+     */
+    public ConfigurationWatcher watchConfiguration(final File file,
+        final long intervalMillis)
+    {
+        if (root != this)
+        {
+            return root.watchConfiguration(file, intervalMillis);
+        }
+        final ConfigurationWatcher watcher = new ConfigurationWatcher(this,
+            file, intervalMillis);
+        synchronized (this)
+        {
+            stopWatchingConfiguration();
+            configurationWatcher = watcher;
+            watcher.start();
+        }
+        return watcher;
+    }
+
+    /**
+     * Stops reloading this manager when its properties file changes.
+     */
+    public void stopWatchingConfiguration()
+    {
+        if (root != this)
+        {
+            root.stopWatchingConfiguration();
+            return;
+        }
+        synchronized (this)
+        {
+            if (configurationWatcher != null)
+            {
+                configurationWatcher.stop();
+                configurationWatcher = null;
+            }
+        }
+    }
+
+    /**
+     * @return what is watching this manager's properties file, or null
+     */
+    public ConfigurationWatcher getConfigurationWatcher()
+    {
+        return root.configurationWatcher;
+    }
+
+    /**
+     * Gets a view of this manager whose operations, including the nested
+     * loads of the entities it finds and the saves of those entities, have
+     * the given priority.  For instance, a nightly job might use
+     * manager.withPriority(Priority.BATCH), so that it queues behind web
+     * requests using the manager itself.
+     * <p/>
+     * The view shares this manager's executor, limiters, listeners and
+     * indexes.  Settings changed on this manager after the view is created,
+     * such as the bind DN, are not seen by the view, so configure it first;
+     * only a {@link #reload(LdapConfiguration) reload} reaches its views.
+     *
+     * @param priority the priority of the view's operations
+     *
+     * @return the view, or this manager if it already has that priority
+     *
+     * @see Priority
+     */
+    public LdapManager withPriority(final Priority priority)
+    {
+        if (priority == this.priority)
+        {
+            return this;
+        }
+        final LdapManager view = new LdapManager(this);
+        view.priority = priority;
+        return view;
+    }
+
+    /**
+     * Gets a view of this manager that binds as another DN, for instance as
+     * the user of a web request.  The view shares everything else with this
+     * manager, including its pools, so one manager can serve every user of
+     * the application.  The entities the view finds save as that DN too.
+     *
+     * @param bindDN       the DN to bind as
+     * @param bindPassword the password of bindDN
+     *
+     * @return the view
+     */
+    public LdapManager withCredentials(final String bindDN,
+        final String bindPassword)
+    {
+        final LdapManager view = new LdapManager(this);
+        view.ownCredentials = true;
+        final Settings next = new Settings(view.settings);
+        next.bindDN = bindDN;
+        next.bindPassword = bindPassword;
+        view.settings = next;
+        return view;
+    }
+
+    /**
+     * @return the configuration this manager was created with, or last
+     *         {@link #reload(LdapConfiguration) reloaded} with.  The bind DN
+     *         and timeout of this manager may differ, if they have been
+     *         changed through the deprecated setters, or this is a view from
+     *         {@link #withCredentials(String, String)}.
+     */
+    public LdapConfiguration getConfiguration()
+    {
+        return settings.configuration;
+    }
+
+    /**
+     * @return the priority of this manager's operations
+     */
+    public Priority getPriority()
+    {
+        return priority;
     }
 
     /**
@@ -227,8 +809,10 @@ public class LdapManager
         final String keyAttribute, final String[] attributes,
         final Class ldapEntryClass, final int sorted, final int searchScope)
     {
+        final Settings current = settings;
         return find(baseDN, searchFilter, keyAttribute, attributes,
-            ldapEntryClass, sorted, searchScope, bindDN, bindPassword);
+            ldapEntryClass, sorted, searchScope, current.bindDN,
+            current.bindPassword);
     }
 
     /**
@@ -236,54 +820,240 @@ public class LdapManager
      * {@link #find(LdapName, String, String, String[], Class, int, int)} for
      * more information
      */
-    @SuppressWarnings(
-        {"unchecked", "ObjectAllocationInLoop", "ChainedMethodCall"})
     public Map find(final LdapName baseDN, final String searchFilter,
         final String keyAttribute, final String[] attributes,
         final Class ldapEntryClass, final int sorted, final int searchScope,
         final String bindDN, final String bindPassword)
     {
-        DirContext ldapContext = null;
-        final SearchControls searchControls;
-        NamingEnumeration<SearchResult> results = null;
-        Attributes entryAttributes;
-        final int scope =
-            searchScope != -1 ? searchScope : SearchControls.SUBTREE_SCOPE;
-
+        return find(baseDN, searchFilter, keyAttribute, attributes,
+            ldapEntryClass, null, sorted, searchScope, bindDN, bindPassword);
+    }
 
-        searchControls = new SearchControls();
-        searchControls.setReturningAttributes(attributes);
-        searchControls.setSearchScope(scope);
+    /**
+     * Searches for entries of mixed types in one pass.  Each entry found is
+     * loaded as the most specific class of the registry that supports its
+     * objectClasses, and entries that no registered class supports are left
+     * out.  See {@link #find(LdapName, String, String, String[], Class, int,
+     * int)} for more information on the other parameters.
+     *
+     * @param registry the classes the entries may be loaded as
+     *
+     * @see EntityRegistry
+     */
+    public Map find(final LdapName baseDN, final String searchFilter,
+        final String keyAttribute, final String[] attributes,
+        final EntityRegistry registry, final int sorted, final int searchScope)
+    {
+        final Settings current = settings;
+        return find(baseDN, searchFilter, keyAttribute,
+            registry.withObjectClass(attributes), null, registry, sorted,
+            searchScope, current.bindDN, current.bindPassword);
+    }
+
+    /**
+     * Does the same search under several bases at once, such as regional
+     * organizational units, and merges the results.  See {@link
+     * #find(Collection, String, String, String[], Class, int, int, boolean)}.
+     */
+    public Map find(final Collection<LdapName> baseDNs,
+        final String searchFilter, final String keyAttribute,
+        final String[] attributes, final Class ldapEntryClass,
+        final int sorted, final int searchScope)
+    {
+        return find(baseDNs, searchFilter, keyAttribute, attributes,
+            ldapEntryClass, sorted, searchScope, false);
+    }
+
+    /**
+     * Does the same search under several bases at once, on the {@link
+     * #getExecutor() executor}, and merges the results into one map, as
+     * though they came from a single {@link #find(LdapName, String, String,
+     * String[], Class, int, int) find}.  An entry found under more than one
+     * base, because the bases overlap, is loaded only once, for the first of
+     * those bases; all the searches finish before any entry is loaded, so
+     * which base that is does not depend on which search finished first.
+     * <p/>
+     * With SEARCH_ORDER, the results of each base follow those of the bases
+     * before it; SORTED_ORDER and NO_ORDER are as for a single search.
+     * <p/>
+     * A huge subtree may be split, so that its first level children are
+     * searched in parallel, each as a subtree, along with the base entry
+     * itself.  This costs a search for the children first, so it only pays
+     * off for large subtrees with several children.
+     *
+     * @param baseDNs        the bases to search under
+     * @param splitSubtrees  whether to split subtree searches into their
+     *                       children
+     *
+     * @return a map of LDAPObjects with the keys being the keyAttribute
+     *         value. An empty map if nothing was found.
+     *
+     * @throws LdapNamingException if any naming problems occur, such as a
+     *                             base that does not exist
+     */
+    public Map find(final Collection<LdapName> baseDNs,
+        final String searchFilter, final String keyAttribute,
+        final String[] attributes, final Class ldapEntryClass,
+        final int sorted, final int searchScope, final boolean splitSubtrees)
+    {
+        final Settings current = settings;
+        final int scope =
+            searchScope != -1 ? searchScope : SearchControls.SUBTREE_SCOPE;
+        final List<SearchBase> bases = new ArrayList<SearchBase>();
+        for (final LdapName baseDN : baseDNs)
+        {
+            if (splitSubtrees && scope == SearchControls.SUBTREE_SCOPE)
+            {
+                bases.add(new SearchBase(baseDN, SearchControls.OBJECT_SCOPE,
+                    false));
+                for (final LdapName child : findDns(baseDN, "(objectClass=*)",
+                    null, SearchControls.ONELEVEL_SCOPE))
+                {
+                    bases.addAll(routedBases(child, scope));
+                }
+            }
+            else
+            {
+                bases.addAll(routedBases(baseDN, scope));
+            }
+        }
+        return find(bases, searchFilter, keyAttribute, attributes,
+            ldapEntryClass, null, sorted, current.bindDN, current.bindPassword);
+    }
+
+    /**
+     * Does the searches in parallel, then loads the entries of each search in
+     * parallel, merging them in the order of the searches.  Entries are
+     * de-duplicated between the searches before any are loaded, in the order
+     * of the searches, so an entry found more than once is loaded once, and
+     * always for the same search.
+     */
+    @SuppressWarnings({"MethodWithTooManyParameters"})
+    private Map find(final List<SearchBase> bases, final String searchFilter,
+        final String keyAttribute, final String[] attributes,
+        final Class ldapEntryClass, final EntityRegistry registry,
+        final int sorted, final String bindDN, final String bindPassword)
+    {
+        final List<Callable<Map>> loads = new ArrayList<Callable<Map>>();
+        for (final List<SearchResult> results : searchAll(bases, searchFilter,
+            null, withVersionAttribute(attributes), false, bindDN,
+            bindPassword))
+        {
+            loads.add(new Callable<Map>()
+            {
+                @Override
+                public Map call()
+                {
+                    final Map entities = newResultMap(sorted);
+                    try
+                    {
+                        for (final SearchResult result : results)
+                        {
+                            putEntity(entities, result, keyAttribute,
+                                ldapEntryClass, registry);
+                        }
+                    }
+                    catch (final NamingException namingException)
+                    {
+                        throw new LdapNamingException(
+                            "an error occurred doing an ldap search",
+                            namingException);
+                    }
+                    return entities;
+                }
+            });
+        }
+        return mergeSearches(loads, sorted);
+    }
+
+    /**
+     * Runs searches in parallel, merging their results in the order of the
+     * searches.
+     */
+    @SuppressWarnings({"unchecked"})
+    private Map mergeSearches(final List<Callable<Map>> searches,
+        final int sorted)
+    {
+        final Map merged = newResultMap(sorted);
+        for (final Map results : invokeAll(searches))
+        {
+            merged.putAll(results);
+        }
+        return merged;
+    }
+
+    /**
+     * Does the search for the find methods, mapping to ldapEntryClass, or to
+     * the class registry resolves if it is not null.
+     */
+    @SuppressWarnings(
+        {"unchecked", "ObjectAllocationInLoop", "ChainedMethodCall",
+            "MethodWithTooManyParameters"})
+    private Map find(final LdapName baseDN, final String searchFilter,
+        final String keyAttribute, final String[] attributes,
+        final Class ldapEntryClass, final EntityRegistry registry,
+        final int sorted, final int searchScope, final String bindDN,
+        final String bindPassword)
+    {
+        final int scope =
+            searchScope != -1 ? searchScope : SearchControls.SUBTREE_SCOPE;
+        final List<SearchBase> bases = routedBases(baseDN, scope);
+        if (bases.size() == 1)
+        {
+            return search(baseDN, searchFilter, keyAttribute, attributes,
+                ldapEntryClass, registry, sorted, scope, bindDN,
+                bindPassword);
+        }
+        // the base and the routed suffixes below it, on their own servers
+        return find(bases, searchFilter, keyAttribute, attributes,
+            ldapEntryClass, registry, sorted, bindDN, bindPassword);
+    }
 
-        final Map sortedLDAPObjects;
-        if (sorted == SORTED_ORDER) sortedLDAPObjects = new TreeMap();
-        else if (sorted == NO_ORDER) sortedLDAPObjects = new HashMap();
+    @SuppressWarnings({"unchecked"})
+    private static Map newResultMap(final int sorted)
+    {
+        if (sorted == SORTED_ORDER) return new TreeMap();
+        else if (sorted == NO_ORDER) return new HashMap();
         else    // assume SEARCH_ORDER
-            sortedLDAPObjects = new LinkedHashMap();
+            return new LinkedHashMap();
+    }
+
+    /**
+     * Does one search for the find methods, on the servers holding baseDN.
+     */
+    @SuppressWarnings(
+        {"unchecked", "ObjectAllocationInLoop", "ChainedMethodCall",
+            "MethodWithTooManyParameters"})
+    private Map search(final LdapName baseDN, final String searchFilter,
+        final String keyAttribute, final String[] attributes,
+        final Class ldapEntryClass, final EntityRegistry registry,
+        final int sorted, final int scope, final String bindDN,
+        final String bindPassword)
+    {
+        DirContext ldapContext = null;
+        final SearchControls searchControls;
+        NamingEnumeration<SearchResult> results = null;
+
+        searchControls = new SearchControls();
+        searchControls.setReturningAttributes(withVersionAttribute(attributes));
+        searchControls.setSearchScope(scope);
+        applyDeadline(searchControls);
+
+        final Map sortedLDAPObjects = newResultMap(sorted);
 
         try
         {
-            ldapContext = getConnection(false, timeout, sLDAPURL, bindDN,
+            ldapContext = openConnection(false, baseDN, false, bindDN,
                 bindPassword);
 
             // perform a search to find the entries
             results = ldapContext.search(baseDN, searchFilter, searchControls);
+            track(results);
 
             while (results.hasMore())
             {
-                final SearchResult entry;
-
-                entry = results.next();
-                entryAttributes = entry.getAttributes();
-
-                logger.debug("keyAttribute: " + keyAttribute);
-                logger.debug("keyAttribute - " + entryAttributes.get(
-                    keyAttribute).get());
-                final String keyValue;
-                keyValue = (String) entryAttributes.get(keyAttribute).get();
-
-                sortedLDAPObjects.put(keyValue, find(ldapEntryClass,
-                    new LdapName(entry.getNameInNamespace()), entryAttributes));
+                putEntity(sortedLDAPObjects, results.next(), keyAttribute,
+                    ldapEntryClass, registry);
             }
         }
         catch (final NamingException namingException)
@@ -299,25 +1069,39 @@ public class LdapManager
 
         finally
         {
-            if (results != null)
-            {
-                try
-                {
-                    results.close();
-                }
-                catch (final NamingException e)
-                {
-                    logger.error(
-                        "error closing results: " + getNamingExceptionMessage(
-                            e));
-                }
-            }
-
+            closeResults(results);
             releaseConnection(ldapContext);
         }
         return sortedLDAPObjects;
     }
 
+    /**
+     * Loads a search result as an entity of ldapEntryClass, or the class the
+     * registry resolves if it is not null, and puts it in the results under
+     * its keyAttribute value.  Entries no class supports are left out.
+     */
+    @SuppressWarnings({"unchecked"})
+    private void putEntity(final Map entities, final SearchResult entry,
+        final String keyAttribute, final Class ldapEntryClass,
+        final EntityRegistry registry) throws NamingException
+    {
+        final Attributes entryAttributes = entry.getAttributes();
+
+        logger.debug("keyAttribute: " + keyAttribute);
+        logger.debug("keyAttribute - " + entryAttributes.get(
+            keyAttribute).get());
+        final String keyValue;
+        keyValue = (String) entryAttributes.get(keyAttribute).get();
+
+        final Class entryClass = registry != null ?
+            registry.resolve(entryAttributes) : ldapEntryClass;
+        if (entryClass != null)
+        {
+            entities.put(keyValue, find(entryClass,
+                new LdapName(entry.getNameInNamespace()), entryAttributes));
+        }
+    }
+
     /**
      * Retrieves the exact LdapEntity POJO you specify, using the dn passed in.
      * You must pass in a fully qualified DN.
@@ -335,8 +1119,9 @@ public class LdapManager
      */
     public Object find(final Class annotatedClass, final LdapName dn)
     {
-        return find(annotatedClass, dn, getAttributes(dn, null, bindDN,
-            bindPassword));
+        final Settings current = settings;
+        return find(annotatedClass, dn, getAttributes(dn, null, current.bindDN,
+            current.bindPassword));
     }
 
     /**
@@ -420,7 +1205,9 @@ public class LdapManager
     public Attributes getAttributes(final LdapName dn,
         final String[] returningAttributes)
     {
-        return getAttributes(dn, returningAttributes, bindDN, bindPassword);
+        final Settings current = settings;
+        return getAttributes(dn, returningAttributes, current.bindDN,
+            current.bindPassword);
     }
 
     /**
@@ -442,6 +1229,32 @@ public class LdapManager
     public Object[] getAttributes(final String baseDN,
         final String searchFilter, final String[] attributes)
     { // BEGIN getAttributes ()
+        final Settings current = settings;
+        final List<SearchBase> bases;
+        try
+        {
+            bases = routedBases(new LdapName(baseDN),
+                SearchControls.SUBTREE_SCOPE);
+        }
+        catch (final InvalidNameException exception)
+        {
+            throw new LdapNamingException(exception);
+        }
+        if (bases.size() > 1)
+        {   // the routed suffixes below it are on other servers
+            final List<Attributes> returnedEntries = new ArrayList<Attributes>();
+            for (final List<SearchResult> results : searchAll(bases,
+                searchFilter, null, attributes, true, current.bindDN,
+                current.bindPassword))
+            {
+                for (final SearchResult result : results)
+                {
+                    returnedEntries.add(result.getAttributes());
+                }
+            }
+            return returnedEntries.toArray();
+        }
+
         DirContext ldapContext = null;
         final SearchControls searchControls;
         final NamingEnumeration<SearchResult> results;
@@ -456,7 +1269,8 @@ public class LdapManager
 
         try
         { // BEGIN LDAP try block
-            ldapContext = getConnection();
+            ldapContext = openConnection(false, new LdapName(baseDN), true,
+                current.bindDN, current.bindPassword);
 
             // perform a search to find the entries
             logger.debug("baseDN: " + baseDN);
@@ -492,46 +1306,2774 @@ public class LdapManager
         }
         catch (final Exception exception)
         {
-            logger.error("getAttributes - ", exception);
-            throw new LdapNamingException(exception);
+            logger.error("getAttributes - ", exception);
+            throw new LdapNamingException(exception);
+        }
+        finally
+        {
+            releaseConnection(ldapContext);
+        }
+
+        return returnedEntries.toArray();
+    } // BEGIN getAttributes ()
+
+    /**
+     * Retrieves the next range of values of a multi valued attribute, for
+     * servers that return very large attributes a range at a time, such as
+     * "member;range=0-1499".
+     *
+     * @param dn        the entry
+     * @param attribute the attribute name, without any range option
+     * @param start     the index of the first value to retrieve
+     *
+     * @return the range of values, with an ID of the form
+     *         attribute;range=start-end, where the end is "*" for the last
+     *         range, or null if the server returned no values
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public Attribute getAttributeRange(final LdapName dn,
+        final String attribute, final int start)
+    {
+        final Settings current = settings;
+        final String rangePrefix = attribute + ";range=";
+        final Attributes returned = getAttributes(dn, new String[]{
+            rangePrefix + start + "-*"}, current.bindDN, current.bindPassword);
+        if (returned == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            final NamingEnumeration<? extends Attribute> all =
+                returned.getAll();
+            while (all.hasMore())
+            {
+                final Attribute range = all.next();
+                if (range.getID().regionMatches(true, 0, rangePrefix, 0,
+                    rangePrefix.length()))
+                {
+                    return range;
+                }
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        return null;
+    }
+
+    /**
+     * Loads many entities by DN in a few round trips, rather than calling
+     * {@link #find(Class, LdapName)} for each.  The DNs are grouped by their
+     * parent entry, as {@link #getAttributes(Collection, String[])} does, and
+     * different parents are fetched concurrently on the {@link #getExecutor()
+     * executor}, each over its own connection.
+     * <p/>
+     * Nothing is thrown for DNs that cannot be loaded; they are reported by
+     * {@link FoundEntities#getMissing()} instead.
+     *
+     * @param annotatedClass the class that has been annotated with ldaputil
+     *                       annotations
+     * @param dns            the fully qualified DNs to load
+     *
+     * @return the entities found, keyed by DN, in the order of dns
+     *
+     * @throws LdapNamingException      if an ldap error occurs
+     * @throws IllegalArgumentException if the annotatedClass is not correctly
+     *                                  annotated in some way
+     */
+    @SuppressWarnings({"ObjectAllocationInLoop"})
+    public FoundEntities findAll(final Class annotatedClass,
+        final Collection<LdapName> dns)
+    {
+        final Map<LdapName, List<LdapName>> byParent =
+            new LinkedHashMap<LdapName, List<LdapName>>();
+        for (final LdapName dn : dns)
+        {
+            final LdapName parent = dn.size() > 0 ?
+                (LdapName) dn.getPrefix(dn.size() - 1) : dn;
+            List<LdapName> children = byParent.get(parent);
+            if (children == null)
+            {
+                children = new ArrayList<LdapName>();
+                byParent.put(parent, children);
+            }
+            children.add(dn);
+        }
+
+        final String[] attributes = withVersionAttribute(null);
+        final List<Callable<Map<LdapName, Attributes>>> tasks =
+            new ArrayList<Callable<Map<LdapName, Attributes>>>();
+        for (final List<LdapName> children : byParent.values())
+        {
+            tasks.add(new Callable<Map<LdapName, Attributes>>()
+            {
+                @Override
+                public Map<LdapName, Attributes> call()
+                {
+                    return getAttributes(children, attributes);
+                }
+            });
+        }
+        final Map<LdapName, Attributes> found =
+            new HashMap<LdapName, Attributes>(dns.size() * 2);
+        for (final Map<LdapName, Attributes> batch : invokeAll(tasks))
+        {
+            found.putAll(batch);
+        }
+
+        final FoundEntities entities = new FoundEntities(dns.size());
+        for (final LdapName dn : dns)
+        {
+            final Attributes entryAttributes = found.get(dn);
+            final Object entity = entryAttributes != null ?
+                find(annotatedClass, dn, entryAttributes) : null;
+            if (entity != null)
+            {
+                entities.put(dn, entity);
+            }
+            else
+            {
+                entities.addMissing(dn);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Retrieves the attributes of many entries in a few round trips.  The DNs
+     * are grouped by their parent entry, and each group is fetched with one
+     * level searches, each matching up to {@value #BATCH_FILTER_SIZE} of the
+     * RDNs in an OR filter.  All of the searches share one connection.
+     * <p/>
+     * Entries that do not exist, or that the bind DN cannot see, are simply
+     * not in the returned map.
+     *
+     * @param dns        the fully qualified DNs to retrieve
+     * @param attributes the attributes to retrieve, or null for all; keep it
+     *                   as small as you can for large batches
+     *
+     * @return the attributes of each entry found, by DN
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public Map<LdapName, Attributes> getAttributes(
+        final Collection<LdapName> dns, final String[] attributes)
+    {
+        return getAttributes(dns, null, attributes);
+    }
+
+    /**
+     * Retrieves the attributes of those of the entries that match a filter,
+     * in a few round trips.  See {@link #getAttributes(Collection,
+     * String[])}.
+     *
+     * @param dns          the fully qualified DNs to retrieve
+     * @param searchFilter only entries matching this filter are returned, or
+     *                     null for all of them
+     * @param attributes   the attributes to retrieve, or null for all
+     *
+     * @return the attributes of each matching entry found, by DN
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    @SuppressWarnings({"ObjectAllocationInLoop"})
+    public Map<LdapName, Attributes> getAttributes(
+        final Collection<LdapName> dns, final String searchFilter,
+        final String[] attributes)
+    {
+        final Settings current = settings;
+        final Map<LdapName, Attributes> found =
+            new HashMap<LdapName, Attributes>(dns.size() * 2);
+        final Map<LdapName, List<LdapName>> byParent =
+            new LinkedHashMap<LdapName, List<LdapName>>();
+        for (final LdapName dn : dns)
+        {
+            if (dn.size() == 0)
+            {   // the root DSE has no parent to search under
+                continue;
+            }
+            final LdapName parent = (LdapName) dn.getPrefix(dn.size() - 1);
+            List<LdapName> children = byParent.get(parent);
+            if (children == null)
+            {
+                children = new ArrayList<LdapName>();
+                byParent.put(parent, children);
+            }
+            children.add(dn);
+        }
+
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        searchControls.setReturningAttributes(attributes);
+        applyDeadline(searchControls);
+
+        // parents held by the same servers share a connection
+        final Map<ServerSet, List<LdapName>> byServers =
+            new LinkedHashMap<ServerSet, List<LdapName>>();
+        for (final LdapName parent : byParent.keySet())
+        {
+            final ServerSet serverSet = serversFor(parent);
+            List<LdapName> parents = byServers.get(serverSet);
+            if (parents == null)
+            {
+                parents = new ArrayList<LdapName>();
+                byServers.put(serverSet, parents);
+            }
+            parents.add(parent);
+        }
+
+        for (final List<LdapName> parents : byServers.values())
+        {
+            LdapName affinity = parents.get(0);
+            for (final LdapName parent : parents)
+            {
+                if (recentWrites.covers(parent))
+                {
+                    affinity = parent;
+                    break;
+                }
+            }
+
+            DirContext ldapContext = null;
+            try
+            {
+                ldapContext = openConnection(false, affinity, false,
+                    current.bindDN, current.bindPassword);
+                for (final LdapName parent : parents)
+                {
+                    final List<LdapName> children = byParent.get(parent);
+                    for (int start = 0; start < children.size();
+                         start += BATCH_FILTER_SIZE)
+                    {
+                        searchChildren(ldapContext, parent,
+                            children.subList(start, Math.min(children.size(),
+                                start + BATCH_FILTER_SIZE)), searchFilter,
+                            searchControls, found);
+                    }
+                }
+            }
+            catch (final NamingException namingException)
+            {
+                throw new LdapNamingException(namingException);
+            }
+            finally
+            {
+                releaseConnection(ldapContext);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the given children of parent with a single one level search, and
+     * adds them to found.  The RDN values are passed as filter arguments, so
+     * JNDI escapes them for us.
+     */
+    private static void searchChildren(final DirContext ldapContext,
+        final LdapName parent, final List<LdapName> children,
+        final String searchFilter, final SearchControls searchControls,
+        final Map<LdapName, Attributes> found) throws NamingException
+    {
+        final StringBuilder filter = new StringBuilder(children.size() * 16);
+        final List<Object> filterArgs = new ArrayList<Object>(
+            children.size());
+        if (searchFilter != null)
+        {
+            filter.append("(&").append(toFilter(searchFilter));
+        }
+        filter.append("(|");
+        for (final LdapName child : children)
+        {
+            final Rdn rdn = child.getRdn(child.size() - 1);
+            final Attributes rdnAttributes = rdn.toAttributes();
+            if (rdnAttributes.size() > 1)
+            {
+                filter.append("(&");
+            }
+            final NamingEnumeration<? extends Attribute> rdnValues =
+                rdnAttributes.getAll();
+            while (rdnValues.hasMore())
+            {
+                final Attribute rdnValue = rdnValues.next();
+                filter.append('(').append(rdnValue.getID()).append("={")
+                    .append(filterArgs.size()).append("})");
+                filterArgs.add(rdnValue.get());
+            }
+            if (rdnAttributes.size() > 1)
+            {
+                filter.append(')');
+            }
+        }
+        filter.append(')');
+        if (searchFilter != null)
+        {
+            filter.append(')');
+        }
+
+        NamingEnumeration<SearchResult> results = null;
+        try
+        {
+            results = ldapContext.search(parent, filter.toString(),
+                filterArgs.toArray(), searchControls);
+            track(results);
+            while (results.hasMore())
+            {
+                final SearchResult entry = results.next();
+                found.put(new LdapName(entry.getNameInNamespace()),
+                    entry.getAttributes());
+            }
+        }
+        catch (final NameNotFoundException exception)
+        {   // none of the children can exist either
+            logger.debug(parent + " does not exist");
+        }
+        finally
+        {
+            closeResults(results);
+        }
+    }
+
+    private Attributes getAttributes(final LdapName dn,
+        final String[] attributes, final String bindDN,
+        final String bindPassword)
+    {   // BEGIN getAttributes(dn)
+        if (!settings.coalescingReads)
+        {
+            return readAttributes(dn, attributes, bindDN, bindPassword);
+        }
+        return readsInFlight.execute(new ReadKey(dn, attributes, bindDN,
+            bindPassword), currentContext.get(), new Callable<Attributes>()
+        {
+            @Override
+            public Attributes call()
+            {
+                return readAttributes(dn, attributes, bindDN, bindPassword);
+            }
+        });
+    }   // END getAttributes(dn)
+
+    private Attributes readAttributes(final LdapName dn,
+        final String[] attributes, final String bindDN,
+        final String bindPassword)
+    {
+        final HedgePolicy policy = settings.hedgePolicy;
+        if (policy != null && serversFor(dn) != null &&
+            heldPermits.get().isEmpty() &&
+            !(Thread.currentThread() instanceof ManagerThread) &&
+            !recentWrites.covers(dn))
+        {
+            return hedgedRead(policy, dn, attributes, bindDN, bindPassword);
+        }
+        return readAttributes(dn, attributes, bindDN, bindPassword, null);
+    }
+
+    /**
+     * @param attempt the hedged read this is part of, or null
+     */
+    private Attributes readAttributes(final LdapName dn,
+        final String[] attributes, final String bindDN,
+        final String bindPassword, final ReadAttempt attempt)
+    {
+        Attributes returnedAttributes = null;
+        DirContext ldapContext = null;
+
+        try
+        { // BEGIN LDAP try block
+            ldapContext = openConnection(false, dn, attempt, false, bindDN,
+                bindPassword);
+            if (attempt != null && !attempt.opened(ldapContext))
+            {   // the other attempt already answered
+                return null;
+            }
+            returnedAttributes = ldapContext.getAttributes(dn,
+                withVersionAttribute(attributes));
+        } // END LDAP try block
+        catch (final NamingException exception)
+        {
+            throw new LdapNamingException(exception);  // propogate
+        }
+        catch (final Exception exception)
+        {
+            throw new LdapNamingException(
+                "unknown exception while retrieving attributes", exception);
+        }
+        finally
+        {
+            releaseConnection(ldapContext);
+        }
+
+        return returnedAttributes;
+    }
+
+    /**
+     * Reads on the executor, and if the read is late, reads from a second
+     * server too, answering with whichever succeeds first.
+     */
+    private Attributes hedgedRead(final HedgePolicy policy,
+        final LdapName dn, final String[] attributes, final String bindDN,
+        final String bindPassword)
+    {
+        policy.startRead();
+        final long start = System.nanoTime();
+        final BlockingQueue<ReadAttempt> finished =
+            new LinkedBlockingQueue<ReadAttempt>();
+        final ReadAttempt primary = startRead(dn, attributes, bindDN,
+            bindPassword, Collections.<ServerSet.Server>emptyList(),
+            finished);
+        ReadAttempt hedge = null;
+        try
+        {
+            ReadAttempt answer = finished.poll(
+                (long) (policy.getDelayMillis() * 1000000),
+                TimeUnit.NANOSECONDS);
+            if (answer == null && policy.tryHedge())
+            {
+                final ServerSet.Server busy = primary.server;
+                hedge = startRead(dn, attributes, bindDN, bindPassword,
+                    busy != null ? Collections.singletonList(busy) :
+                        Collections.<ServerSet.Server>emptyList(), finished);
+            }
+            int pending = hedge != null ? 2 : 1;
+            if (answer == null)
+            {
+                answer = finished.take();
+            }
+            pending--;
+            while (answer.failure != null && pending > 0)
+            {
+                answer = finished.take();
+                pending--;
+            }
+            if (answer.failure != null)
+            {
+                throw primary.failure;
+            }
+            policy.finishRead(System.nanoTime() - start, answer == hedge);
+            return answer.result;
+        }
+        catch (final InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            throw new LdapNamingException("interrupted", exception);
+        }
+        finally
+        {
+            primary.abandon();
+            if (hedge != null)
+            {
+                hedge.abandon();
+            }
+        }
+    }
+
+    private ReadAttempt startRead(final LdapName dn,
+        final String[] attributes, final String bindDN,
+        final String bindPassword, final List<ServerSet.Server> avoid,
+        final BlockingQueue<ReadAttempt> finished)
+    {
+        final OperationContext context = currentContext.get();
+        final ReadAttempt attempt = new ReadAttempt(avoid);
+        final Callable<Attributes> read = new Callable<Attributes>()
+        {
+            @Override
+            public Attributes call()
+            {
+                return readAttributes(dn, attributes, bindDN, bindPassword,
+                    attempt);
+            }
+        };
+        submit(new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                try
+                {
+                    attempt.result = context != null ?
+                        execute(context, read) : readAttributes(dn,
+                        attributes, bindDN, bindPassword, attempt);
+                }
+                catch (final RuntimeException exception)
+                {
+                    attempt.failure = exception;
+                }
+                finally
+                {
+                    finished.add(attempt);
+                }
+                return null;
+            }
+        });
+        return attempt;
+    }
+
+    /**
+     * One of the reads of a hedged read.  The one that does not answer first
+     * is abandoned by closing its connection.
+     */
+    private static final class ReadAttempt
+    {
+        private final List<ServerSet.Server> avoid;
+        private volatile ServerSet.Server server;
+        private volatile Attributes result;
+        private volatile RuntimeException failure;
+        private DirContext context;
+        private boolean abandoned;
+
+        private ReadAttempt(final List<ServerSet.Server> avoid)
+        {
+            this.avoid = avoid;
+        }
+
+        /**
+         * @return false if the attempt was abandoned before it connected
+         */
+        private synchronized boolean opened(final DirContext ldapContext)
+        {
+            context = ldapContext;
+            return !abandoned;
+        }
+
+        private synchronized void abandon()
+        {
+            abandoned = true;
+            if (context != null)
+            {
+                try
+                {
+                    context.close();
+                }
+                catch (final NamingException exception)
+                {
+                    logger.debug("error abandoning read", exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends reads of single entries, as by {@link #find(Class, LdapName)},
+     * that are slow to answer to a second server as well, and answers with
+     * whichever server is first, abandoning the other read.  This cuts the
+     * tail latency caused by one slow replica, at the cost of a few extra
+     * reads, capped by the policy.  Hedging needs {@link #setServers(List)
+     * several servers}, and is skipped for reads nested in another operation
+     * and for reads pinned to the supplier.
+     * <p/>
+     * It may also be configured in ldap.properties, with LDAP.hedgePercentile
+     * for the percentile of read latency to wait for, LDAP.hedgeMinDelayMillis
+     * (default 5) for the least time to wait, and LDAP.hedgeMaxPercent
+     * (default 5) for the most reads to hedge.
+     *
+     * @param hedgePolicy the policy, which also keeps the metrics, or null to
+     *                    not hedge
+     */
+    public synchronized void setHedgePolicy(final HedgePolicy hedgePolicy)
+    {
+        final Settings next = new Settings(settings);
+        next.hedgePolicy = hedgePolicy;
+        settings = next;
+    }
+
+    /**
+     * @return the hedging policy, for its metrics, or null
+     */
+    public HedgePolicy getHedgePolicy()
+    {
+        return settings.hedgePolicy;
+    }
+
+    /**
+     * Turns coalescing of identical concurrent reads on or off.  While on,
+     * which is the default unless LDAP.coalesceReads is false, threads
+     * calling {@link #find(Class, LdapName)} or {@link #getAttributes(LdapName,
+     * String[])} for the same DN, attributes and bind identity at the same
+     * time share a single round trip, each receiving its own copy of the
+     * result.  A read never joins one that started before this manager
+     * changed the entry.
+     *
+     * @param coalescingReads whether to coalesce reads
+     */
+    public synchronized void setCoalescingReads(final boolean coalescingReads)
+    {
+        final Settings next = new Settings(settings);
+        next.coalescingReads = coalescingReads;
+        settings = next;
+    }
+
+    /**
+     * @return whether identical concurrent reads are coalesced
+     *
+     * @see #setCoalescingReads(boolean)
+     */
+    public boolean isCoalescingReads()
+    {
+        return settings.coalescingReads;
+    }
+
+    /**
+     * @return how many reads have been answered by sharing another thread's
+     *         identical read
+     */
+    public long getCoalescedReadCount()
+    {
+        return readsInFlight.getCoalescedCount();
+    }
+
+    /**
+     * Limits the operations in flight toward the directory.  Every operation
+     * that opens a connection takes a slot from the read or the write
+     * limiter, and holds it until the connection is released.  Pass the same
+     * limiter for both to share one limit, or null for no limit.
+     * <p/>
+     * They may also be configured in ldap.properties, with
+     * LDAP.maxConcurrent for a shared limit, or LDAP.maxConcurrentReads and
+     * LDAP.maxConcurrentWrites for separate ones, LDAP.maxQueued (default
+     * 100) and LDAP.maxQueueWaitMillis (default 5000) for the queue,
+     * LDAP.interactiveReserve for the slots kept for interactive operations,
+     * and LDAP.adaptiveTargetMillis to let the limits adapt to latency.
+     *
+     * @param readLimiter  limits reads, or null
+     * @param writeLimiter limits writes, or null
+     *
+     * @see ConcurrencyLimiter
+     */
+    public synchronized void setLimiters(final ConcurrencyLimiter readLimiter,
+        final ConcurrencyLimiter writeLimiter)
+    {
+        final Settings next = new Settings(settings);
+        next.readLimiter = readLimiter;
+        next.writeLimiter = writeLimiter;
+        settings = next;
+    }
+
+    /**
+     * @return the limiter for reads, for its metrics, or null
+     */
+    public ConcurrencyLimiter getReadLimiter()
+    {
+        return settings.readLimiter;
+    }
+
+    /**
+     * @return the limiter for writes, for its metrics, or null
+     */
+    public ConcurrencyLimiter getWriteLimiter()
+    {
+        return settings.writeLimiter;
+    }
+
+    /**
+     * Creates the limiters configured in the properties of settings, if any.
+     */
+    private static void createLimiters(final Settings settings)
+    {
+        final Properties properties = settings.properties;
+        final int shared = getIntProperty(properties, "LDAP.maxConcurrent",
+            0);
+        final int reads = getIntProperty(properties,
+            "LDAP.maxConcurrentReads", shared);
+        final int writes = getIntProperty(properties,
+            "LDAP.maxConcurrentWrites", shared);
+        if (reads > 0 && writes > 0 && reads == shared && writes == shared)
+        {
+            final ConcurrencyLimiter limiter = createLimiter(properties,
+                shared);
+            settings.readLimiter = limiter;
+            settings.writeLimiter = limiter;
+        }
+        else
+        {
+            settings.readLimiter = reads > 0 ?
+                createLimiter(properties, reads) : null;
+            settings.writeLimiter = writes > 0 ?
+                createLimiter(properties, writes) : null;
+        }
+    }
+
+    private static ConcurrencyLimiter createLimiter(
+        final Properties properties, final int limit)
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(limit,
+            getIntProperty(properties, "LDAP.maxQueued", DEFAULT_MAX_QUEUED),
+            getIntProperty(properties, "LDAP.maxQueueWaitMillis",
+                DEFAULT_MAX_QUEUE_WAIT));
+        limiter.setReserve(getIntProperty(properties,
+            "LDAP.interactiveReserve", 0));
+        final int target = getIntProperty(properties,
+            "LDAP.adaptiveTargetMillis", 0);
+        if (target > 0)
+        {
+            limiter.setAdaptive(1, target);
+        }
+        return limiter;
+    }
+
+    /**
+     * Spreads operations over several replicas of the directory, instead of
+     * the single URL this manager was created with.  Reads go to the server
+     * with the fewest operations outstanding, and writes to the first
+     * healthy server.  A server that cannot be connected to is ejected and
+     * probed in the background, binding as this manager, until it is back;
+     * meanwhile operations fail over to the other servers.  Only the
+     * connection is failed over; an operation that was already running when
+     * its server failed is not retried.
+     * <p/>
+     * They may also be configured in ldap.properties, with LDAP.servers
+     * holding the URLs separated by spaces or commas, in which case LDAP.host
+     * and LDAP.port are not needed, and LDAP.serverEjectMillis (default
+     * 30000) for how long a failed server is left alone.
+     *
+     * @param urls the server URLs, such as ldap://ldap1.example.com:389, or
+     *             null to go back to the URL this manager was created with
+     *
+     * @see ServerSet
+     */
+    public void setServers(final List<String> urls)
+    {
+        setServers(null, urls);
+    }
+
+    /**
+     * Sends writes to a writable supplier, and spreads reads over its read
+     * only consumers, as {@link #setServers(List)} does.  Reads of entries
+     * this manager changed within the {@link #setReadYourWritesMillis(long)
+     * read-your-writes window}, or of searches containing them, go to the
+     * supplier, so that they see the change even if the consumers have not
+     * replicated it yet.  When no consumer is healthy, reads go to the
+     * supplier.
+     * <p/>
+     * They may also be configured in ldap.properties, with LDAP.supplier for
+     * the supplier URL, and LDAP.servers, or else LDAP.host and LDAP.port, for
+     * the consumers.
+     * <p/>
+     * The servers are shared with every view of this manager; called on a
+     * view, this changes them for the manager it was made from too.
+     *
+     * @param supplierUrl  the server that takes writes, or null if all of
+     *                     them do
+     * @param consumerUrls the servers that take reads, or null, with a null
+     *                     supplierUrl, to go back to the URL this manager was
+     *                     created with
+     */
+    public void setServers(final String supplierUrl,
+        final List<String> consumerUrls)
+    {
+        if (root != this)
+        {
+            root.setServers(supplierUrl, consumerUrls);
+            return;
+        }
+        synchronized (this)
+        {
+            final Settings next = new Settings(settings);
+            next.servers = supplierUrl != null || consumerUrls != null ?
+                createServerSet(next.properties, supplierUrl, consumerUrls) :
+                null;
+            final ServerSet old = settings.servers;
+            publishServers(next);
+            if (old != null)
+            {
+                old.close();
+            }
+        }
+    }
+
+    /**
+     * Publishes settings with new servers or routes, on this manager and
+     * every view of it, so that none of them is left with a closed {@link
+     * ServerSet}.  The supported controls are read again from the new
+     * servers.
+     */
+    private void publishServers(final Settings next)
+    {
+        next.supportedControls = new AtomicReference<Set<String>>();
+        settings = next;
+        synchronized (views)
+        {
+            for (final LdapManager view : views)
+            {
+                view.copyServers(next);
+            }
+        }
+    }
+
+    /**
+     * @param properties the properties holding LDAP.serverEjectMillis, or
+     *                   null
+     */
+    private ServerSet createServerSet(final Properties properties,
+        final String supplierUrl, final List<String> consumerUrls)
+    {
+        final ServerSet serverSet = new ServerSet(supplierUrl,
+            consumerUrls != null ? consumerUrls :
+                Collections.<String>emptyList(),
+            properties != null ? getIntProperty(properties,
+                "LDAP.serverEjectMillis", DEFAULT_EJECT_MILLIS) :
+                DEFAULT_EJECT_MILLIS);
+        serverSet.setProber(new ServerSet.Prober()
+        {
+            @Override
+            public void probe(final String url) throws Exception
+            {
+                final Settings current = settings;
+                getConnection(false, current.timeout, url, current.bindDN,
+                    current.bindPassword).close();
+            }
+        });
+        return serverSet;
+    }
+
+    /**
+     * Serves the entries under suffix from other servers, such as a separate
+     * directory holding the business categories.  Operations on an entry, and
+     * searches based at or below it, go to the servers of the longest suffix
+     * the entry is under, or to this manager's own servers if it is under
+     * none.  So entities and their aggregates and references may live in
+     * different directories, and be used through one manager.
+     * <p/>
+     * A subtree search based above one or more suffixes is done on each of
+     * their servers, and on the servers of its base, in parallel, and the
+     * results are merged.  If an entry is found under a suffix by both, it is
+     * loaded only once.
+     * <p/>
+     * Routes may also be configured in ldap.properties, numbered from 1, with
+     * LDAP.route.1.suffix, LDAP.route.1.servers and optionally
+     * LDAP.route.1.supplier, with the same meaning as LDAP.servers and
+     * LDAP.supplier.
+     * <p/>
+     * Like the servers, routes are shared with every view of this manager.
+     *
+     * @param suffix       the naming context
+     * @param supplierUrl  the server that takes its writes, or null if all of
+     *                     them do
+     * @param consumerUrls the servers that take its reads
+     *
+     * @see #setServers(String, List)
+     */
+    public void addRoute(final LdapName suffix,
+        final String supplierUrl, final List<String> consumerUrls)
+    {
+        if (root != this)
+        {
+            root.addRoute(suffix, supplierUrl, consumerUrls);
+            return;
+        }
+        synchronized (this)
+        {
+            final Settings next = new Settings(settings);
+            final Map<LdapName, ServerSet> newRoutes =
+                new LinkedHashMap<LdapName, ServerSet>(next.routes);
+            final ServerSet old = newRoutes.put(suffix,
+                createServerSet(next.properties, supplierUrl, consumerUrls));
+            next.routes = Collections.unmodifiableMap(newRoutes);
+            publishServers(next);
+            if (old != null)
+            {
+                old.close();
+            }
+        }
+    }
+
+    /**
+     * Serves the entries under suffix from this manager's own servers again.
+     *
+     * @param suffix the naming context given to {@link #addRoute(LdapName,
+     *               String, List)}
+     */
+    public void removeRoute(final LdapName suffix)
+    {
+        if (root != this)
+        {
+            root.removeRoute(suffix);
+            return;
+        }
+        synchronized (this)
+        {
+            final Settings next = new Settings(settings);
+            final Map<LdapName, ServerSet> newRoutes =
+                new LinkedHashMap<LdapName, ServerSet>(next.routes);
+            final ServerSet old = newRoutes.remove(suffix);
+            next.routes = Collections.unmodifiableMap(newRoutes);
+            publishServers(next);
+            if (old != null)
+            {
+                old.close();
+            }
+        }
+    }
+
+    /**
+     * @return the servers of each routed suffix, for their metrics
+     */
+    public Map<LdapName, ServerSet> getRoutes()
+    {
+        return settings.routes;
+    }
+
+    /**
+     * Gets the servers that hold dn, by the longest routed suffix it is
+     * under.
+     *
+     * @param dn an entry or search base, or null
+     *
+     * @return the servers, or null if there are only the manager's URL
+     */
+    private ServerSet serversFor(final LdapName dn)
+    {
+        return serversFor(settings, dn);
+    }
+
+    /**
+     * @param current the settings of the operation
+     */
+    private static ServerSet serversFor(final Settings current,
+        final LdapName dn)
+    {
+        final Map<LdapName, ServerSet> routes = current.routes;
+        if (dn != null)
+        {
+            LdapName longest = null;
+            for (final LdapName suffix : routes.keySet())
+            {
+                if (dn.startsWith(suffix) &&
+                    (longest == null || suffix.size() > longest.size()))
+                {
+                    longest = suffix;
+                }
+            }
+            if (longest != null)
+            {
+                return routes.get(longest);
+            }
+        }
+        return current.servers;
+    }
+
+    /**
+     * Gets the bases a search must be split into, because it covers routed
+     * suffixes held by other servers.  Every search entry point, find,
+     * findDns, count, exists, getAttributes and findPublisher, goes through
+     * here, so they all see the routed suffixes.
+     *
+     * @return the base itself, followed by the suffixes below it, if any; the
+     *         base is optional when there are suffixes, as its own servers
+     *         need not hold it
+     */
+    List<SearchBase> routedBases(final LdapName baseDN, final int scope)
+    {
+        final List<SearchBase> bases = new ArrayList<SearchBase>();
+        if (scope == SearchControls.SUBTREE_SCOPE)
+        {
+            for (final LdapName suffix : settings.routes.keySet())
+            {
+                if (suffix.size() > baseDN.size() &&
+                    suffix.startsWith(baseDN))
+                {
+                    bases.add(new SearchBase(suffix, scope, false));
+                }
+            }
+        }
+        bases.add(0, new SearchBase(baseDN, scope, !bases.isEmpty()));
+        return bases;
+    }
+
+    /**
+     * One of the searches a search is split into by {@link
+     * #routedBases(LdapName, int)}
+     */
+    static final class SearchBase
+    {
+        final LdapName dn;
+        final int scope;
+        /**
+         * whether the base not existing just means there is nothing under it
+         */
+        final boolean optional;
+
+        SearchBase(final LdapName dn, final int scope, final boolean optional)
+        {
+            this.dn = dn;
+            this.scope = scope;
+            this.optional = optional;
+        }
+    }
+
+    /**
+     * Does the search under each of the bases, in parallel, and keeps the
+     * entries in the order of the bases, without those an earlier base
+     * already found.
+     *
+     * @param filterArgs values for the filter, or null if it has none
+     * @param attributes the attributes to return
+     *
+     * @return the entries found under each base, in the order of bases
+     */
+    private List<List<SearchResult>> searchAll(final List<SearchBase> bases,
+        final String searchFilter, final Object[] filterArgs,
+        final String[] attributes, final boolean isPooled,
+        final String bindDN, final String bindPassword)
+    {
+        final List<Callable<List<SearchResult>>> searches =
+            new ArrayList<Callable<List<SearchResult>>>(bases.size());
+        for (final SearchBase base : bases)
+        {
+            searches.add(new Callable<List<SearchResult>>()
+            {
+                @Override
+                public List<SearchResult> call()
+                {
+                    return searchResults(base, searchFilter, filterArgs,
+                        attributes, isPooled, bindDN, bindPassword);
+                }
+            });
+        }
+
+        final List<List<SearchResult>> found = invokeAll(searches);
+        final Set<LdapName> seen = new HashSet<LdapName>();
+        final List<List<SearchResult>> unique =
+            new ArrayList<List<SearchResult>>(found.size());
+        try
+        {
+            for (final List<SearchResult> results : found)
+            {
+                final List<SearchResult> kept = new ArrayList<SearchResult>(
+                    results.size());
+                for (final SearchResult result : results)
+                {
+                    if (seen.add(new LdapName(result.getNameInNamespace())))
+                    {
+                        kept.add(result);
+                    }
+                }
+                unique.add(kept);
+            }
+        }
+        catch (final InvalidNameException exception)
+        {
+            throw new LdapNamingException(exception);
+        }
+        return unique;
+    }
+
+    /**
+     * Does one search of {@link #searchAll(List, String, Object[], String[],
+     * boolean, String, String)}, on the servers holding its base.
+     */
+    private List<SearchResult> searchResults(final SearchBase base,
+        final String searchFilter, final Object[] filterArgs,
+        final String[] attributes, final boolean isPooled,
+        final String bindDN, final String bindPassword)
+    {
+        DirContext ldapContext = null;
+        NamingEnumeration<SearchResult> results = null;
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setReturningAttributes(attributes);
+        searchControls.setSearchScope(base.scope);
+        applyDeadline(searchControls);
+        final List<SearchResult> found = new ArrayList<SearchResult>();
+
+        try
+        {
+            ldapContext = openConnection(false, base.dn, isPooled, bindDN,
+                bindPassword);
+            results = filterArgs != null ?
+                ldapContext.search(base.dn, searchFilter, filterArgs,
+                    searchControls) :
+                ldapContext.search(base.dn, searchFilter, searchControls);
+            track(results);
+            while (results.hasMore())
+            {
+                found.add(results.next());
+            }
+            return found;
+        }
+        catch (final NameNotFoundException exception)
+        {
+            if (base.optional)
+            {   // only the routed suffixes below it hold entries
+                return found;
+            }
+            throw new LdapNamingException(exception);
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            closeResults(results);
+            releaseConnection(ldapContext);
+        }
+    }
+
+    /**
+     * Reads the routes configured in the properties, without creating their
+     * servers, so that a bad suffix is found before anything changes.
+     *
+     * @return the server property prefix of each route, by suffix
+     *
+     * @throws LdapNamingException if a suffix is not a valid DN
+     */
+    private static Map<LdapName, String> parseRoutes(
+        final Properties properties)
+    {
+        final Map<LdapName, String> suffixes =
+            new LinkedHashMap<LdapName, String>();
+        for (int index = 1; ; index++)
+        {
+            final String prefix = "LDAP.route." + index + '.';
+            final String suffix = StringUtils.trimToNull(
+                properties.getProperty(prefix + "suffix"));
+            if (suffix == null)
+            {
+                break;
+            }
+            try
+            {
+                suffixes.put(new LdapName(suffix), prefix);
+            }
+            catch (final InvalidNameException exception)
+            {
+                throw new LdapNamingException("invalid " + prefix + "suffix",
+                    exception);
+            }
+        }
+        return suffixes;
+    }
+
+    /**
+     * Creates the servers of the routes read by {@link
+     * #parseRoutes(Properties)}.
+     */
+    private Map<LdapName, ServerSet> createRoutes(final Properties properties,
+        final Map<LdapName, String> suffixes)
+    {
+        final Map<LdapName, ServerSet> newRoutes =
+            new LinkedHashMap<LdapName, ServerSet>();
+        for (final Map.Entry<LdapName, String> route : suffixes.entrySet())
+        {
+            final String prefix = route.getValue();
+            final String[] urls = StringUtils.split(
+                properties.getProperty(prefix + "servers"), " ,");
+            newRoutes.put(route.getKey(), createServerSet(properties,
+                StringUtils.trimToNull(properties.getProperty(
+                    prefix + "supplier")),
+                urls != null ? Arrays.asList(urls) : null));
+        }
+        return Collections.unmodifiableMap(newRoutes);
+    }
+
+    /**
+     * @return the servers operations are spread over, for their metrics, or
+     *         null if there is only the one URL
+     */
+    public ServerSet getServerSet()
+    {
+        return settings.servers;
+    }
+
+    /**
+     * Sets how long reads of an entry this manager changed go to the
+     * supplier, which should cover the replication delay of the consumers.
+     * The default is 5 seconds, or LDAP.readYourWritesMillis in
+     * ldap.properties.  Zero sends every read to the consumers.
+     *
+     * @param millis the window in milliseconds
+     *
+     * @see #setServers(String, List)
+     */
+    public void setReadYourWritesMillis(final long millis)
+    {
+        recentWrites.setWindowMillis(millis);
+    }
+
+    /**
+     * @return how long reads of an entry this manager changed go to the
+     *         supplier
+     */
+    public long getReadYourWritesMillis()
+    {
+        return recentWrites.getWindowMillis();
+    }
+
+    /**
+     * Remembers a change, when there is a supplier whose consumers may not
+     * have it yet.
+     */
+    private void rememberWrite(final LdapName dn)
+    {
+        final ServerSet serverSet = serversFor(dn);
+        if (serverSet != null && serverSet.getSupplier() != null)
+        {
+            recentWrites.record(dn);
+        }
+    }
+
+    private static int getIntProperty(final Properties properties,
+        final String name, final int defaultValue)
+    {
+        final String value = StringUtils.trimToNull(
+            properties.getProperty(name));
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Makes later reads of dn start their own round trip, rather than
+     * joining one that may predate a change.
+     */
+    private void forgetReads(final LdapName dn)
+    {
+        readsInFlight.forget(new SingleFlight.KeyMatcher<ReadKey>()
+        {
+            @Override
+            public boolean matches(final ReadKey key)
+            {
+                return key.dn.equals(dn);
+            }
+        });
+    }
+
+    /**
+     * Identifies identical reads: the same entry and attributes, read as the
+     * same user.
+     */
+    private static final class ReadKey
+    {
+        private final LdapName dn;
+        private final Set<String> attributes;
+        private final String bindDN;
+        private final String bindPassword;
+
+        private ReadKey(final LdapName dn, final String[] attributes,
+            final String bindDN, final String bindPassword)
+        {
+            this.dn = dn;
+            if (attributes == null)
+            {
+                this.attributes = null;
+            }
+            else
+            {
+                this.attributes = new HashSet<String>();
+                for (final String attribute : attributes)
+                {
+                    this.attributes.add(attribute.toLowerCase());
+                }
+            }
+            this.bindDN = bindDN;
+            this.bindPassword = bindPassword;
+        }
+
+        @SuppressWarnings({"NonFinalFieldReferenceInEquals"})
+        @Override
+        public boolean equals(final Object object)
+        {
+            if (!(object instanceof ReadKey))
+            {
+                return false;
+            }
+            final ReadKey other = (ReadKey) object;
+            return dn.equals(other.dn) &&
+                (attributes == null ? other.attributes == null :
+                    attributes.equals(other.attributes)) &&
+                StringUtils.equals(bindDN, other.bindDN) &&
+                StringUtils.equals(bindPassword, other.bindPassword);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = dn.hashCode();
+            hash = 31 * hash + (attributes != null ? attributes.hashCode() : 0);
+            hash = 31 * hash + (bindDN != null ? bindDN.hashCode() : 0);
+            return hash;
+        }
+    }
+
+    /**
+     * Checks whether an entry exists, without retrieving any of its
+     * attributes.
+     *
+     * @param dn the LDAP Distinquished Name.
+     *
+     * @return true if the entry exists
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public boolean exists(final LdapName dn)
+    {
+        return exists(dn, "(objectClass=*)", SearchControls.OBJECT_SCOPE);
+    }
+
+    /**
+     * Checks whether any entry under baseDN matches the filter.  The search
+     * asks for no attributes, and is abandoned as soon as the first entry
+     * comes back.
+     *
+     * @param baseDN       the base DN to search on
+     * @param searchFilter the ldap search filter
+     *
+     * @return true if at least one entry matches, false if none do, or baseDN
+     *         does not exist
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public boolean exists(final LdapName baseDN, final String searchFilter)
+    {
+        return exists(baseDN, searchFilter, SearchControls.SUBTREE_SCOPE);
+    }
+
+    private boolean exists(final LdapName baseDN, final String searchFilter,
+        final int searchScope)
+    {
+        for (final SearchBase base : routedBases(baseDN, searchScope))
+        {   // in turn, as the first is usually enough
+            if (existsUnder(base.dn, searchFilter, searchScope))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks a single base, on the servers holding it.
+     */
+    private boolean existsUnder(final LdapName baseDN,
+        final String searchFilter, final int searchScope)
+    {
+        final Settings current = settings;
+        DirContext ldapContext = null;
+        NamingEnumeration<SearchResult> results = null;
+        final SearchControls searchControls = getNoAttributeControls(
+            searchScope);
+        searchControls.setCountLimit(1);
+
+        try
+        {
+            ldapContext = openConnection(false, baseDN, false, current.bindDN,
+                current.bindPassword);
+            results = ldapContext.search(baseDN, searchFilter,
+                searchControls);
+            track(results);
+            return results.hasMore();
+        }
+        catch (final NameNotFoundException exception)
+        {
+            return false;
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            closeResults(results);
+            releaseConnection(ldapContext);
+        }
+    }
+
+    /**
+     * Counts the entries matching the filter.  No attributes are requested, so
+     * only the DNs of the entries come back.  The server's size limit still
+     * applies; counts beyond it fail rather than being silently truncated.
+     *
+     * @param baseDN       the base DN to search on
+     * @param searchFilter the ldap search filter
+     * @param searchScope  One of the scope values in {@link SearchControls},
+     *                     or -1 for subtree
+     *
+     * @return the number of matching entries
+     *
+     * @throws LdapNamingException if baseDN does not exist, or an ldap error
+     *                             occurs
+     */
+    public int count(final LdapName baseDN, final String searchFilter,
+        final int searchScope)
+    {
+        final Settings current = settings;
+        final int scope =
+            searchScope != -1 ? searchScope : SearchControls.SUBTREE_SCOPE;
+        if (routedBases(baseDN, scope).size() > 1)
+        {   // entries on more than one server are only counted once
+            return findDns(baseDN, searchFilter, null, scope).size();
+        }
+
+        DirContext ldapContext = null;
+        NamingEnumeration<SearchResult> results = null;
+        final SearchControls searchControls = getNoAttributeControls(scope);
+
+        try
+        {
+            ldapContext = openConnection(false, baseDN, false, current.bindDN,
+                current.bindPassword);
+            results = ldapContext.search(baseDN, searchFilter,
+                searchControls);
+            track(results);
+            int count = 0;
+            while (results.hasMore())
+            {
+                results.next();
+                count++;
+            }
+            return count;
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            closeResults(results);
+            releaseConnection(ldapContext);
+        }
+    }
+
+    /**
+     * Finds the DNs of the entries matching the filter, without retrieving
+     * any of their attributes.
+     *
+     * @param baseDN       the base DN to search on
+     * @param searchFilter the ldap search filter, which may contain {0} style
+     *                     references to filterArgs
+     * @param filterArgs   values for the filter, which JNDI escapes; may be
+     *                     null
+     * @param searchScope  One of the scope values in {@link SearchControls},
+     *                     or -1 for subtree
+     *
+     * @return the DNs found, in the order the server returned them
+     *
+     * @throws LdapNamingException if baseDN does not exist, or an ldap error
+     *                             occurs
+     */
+    public List<LdapName> findDns(final LdapName baseDN,
+        final String searchFilter, final Object[] filterArgs,
+        final int searchScope)
+    {
+        final Settings current = settings;
+        final int scope =
+            searchScope != -1 ? searchScope : SearchControls.SUBTREE_SCOPE;
+        final List<LdapName> dns = new ArrayList<LdapName>();
+        final List<SearchBase> bases = routedBases(baseDN, scope);
+        if (bases.size() > 1)
+        {   // the routed suffixes below it are on other servers
+            try
+            {
+                for (final List<SearchResult> results : searchAll(bases,
+                    searchFilter, filterArgs, NO_ATTRIBUTES, false,
+                    current.bindDN, current.bindPassword))
+                {
+                    for (final SearchResult result : results)
+                    {
+                        dns.add(new LdapName(result.getNameInNamespace()));
+                    }
+                }
+            }
+            catch (final InvalidNameException exception)
+            {
+                throw new LdapNamingException(exception);
+            }
+            return dns;
+        }
+
+        DirContext ldapContext = null;
+        NamingEnumeration<SearchResult> results = null;
+        final SearchControls searchControls = getNoAttributeControls(scope);
+
+        try
+        {
+            ldapContext = openConnection(false, baseDN, false, current.bindDN,
+                current.bindPassword);
+            results = ldapContext.search(baseDN, searchFilter,
+                filterArgs != null ? filterArgs : new Object[0],
+                searchControls);
+            track(results);
+            while (results.hasMore())
+            {
+                dns.add(new LdapName(results.next().getNameInNamespace()));
+            }
+            return dns;
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            closeResults(results);
+            releaseConnection(ldapContext);
+        }
+    }
+
+    /**
+     * @return the filter, in parentheses if it is not already
+     */
+    private static String toFilter(final String searchFilter)
+    {
+        return searchFilter.startsWith("(") ? searchFilter :
+            '(' + searchFilter + ')';
+    }
+
+    /**
+     * @param searchScope One of the scope values in {@link SearchControls}
+     *
+     * @return search controls requesting no attributes at all, using the
+     *         special 1.1 attribute (RFC 4511 section 4.5.1.8)
+     */
+    private static SearchControls getNoAttributeControls(
+        final int searchScope)
+    {
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(searchScope);
+        searchControls.setReturningAttributes(NO_ATTRIBUTES);
+        applyDeadline(searchControls);
+        return searchControls;
+    }
+
+    /**
+     * Checks whether an entry has the given attribute value, using the manager's
+     * bind DN.  See {@link #compare(LdapName, String, Object, String,
+     * String)}.
+     */
+    public boolean compare(final LdapName dn, final String attribute,
+        final Object value)
+    {
+        final Settings current = settings;
+        return compare(dn, attribute, value, current.bindDN,
+            current.bindPassword);
+    }
+
+    /**
+     * Checks whether an entry has the given attribute value, using the LDAP
+     * compare operation.  Only the answer comes back from the server, so this
+     * is far cheaper than loading the entry when the attribute is large, such
+     * as the member attribute of a big group.  The server does the matching
+     * with the attribute's equality rule, so DNs and case insensitive values
+     * match the way they would in a search filter.
+     * <p/>
+     * JNDI has no compare method; it sends a compare for a base scope search
+     * with a simple equality filter that requests no attributes, which is
+     * what we do.
+     *
+     * @param dn           the entry to check
+     * @param attribute    the attribute name
+     * @param value        the value to look for, a String or byte[]
+     * @param bindDN       the DN to bind as
+     * @param bindPassword the password of bindDN
+     *
+     * @return true if the entry has the value, false if it does not, or does
+     *         not have the attribute at all
+     *
+     * @throws LdapNamingException if the entry does not exist, or an ldap
+     *                             error occurs
+     */
+    public boolean compare(final LdapName dn, final String attribute,
+        final Object value, final String bindDN, final String bindPassword)
+    {
+        DirContext ldapContext = null;
+        NamingEnumeration<SearchResult> results = null;
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        searchControls.setReturningAttributes(new String[0]);
+
+        try
+        {
+            ldapContext = openConnection(false, dn, false, bindDN,
+                bindPassword);
+            results = ldapContext.search(dn, '(' + attribute + "={0})",
+                new Object[]{value}, searchControls);
+            return results.hasMore();
+        }
+        catch (final NoSuchAttributeException exception)
+        {
+            return false;
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            closeResults(results);
+            releaseConnection(ldapContext);
+        }
+    }
+
+    /**
+     * Checks whether memberDn is a direct member of the group, without loading
+     * the group's members.
+     *
+     * @param groupDn  the group, which must have a member attribute
+     * @param memberDn the prospective member
+     *
+     * @return true if memberDn is one of the group's member values
+     *
+     * @throws LdapNamingException if the group does not exist, or an ldap
+     *                             error occurs
+     * @see #compare(LdapName, String, Object)
+     */
+    public boolean isMember(final LdapName groupDn, final LdapName memberDn)
+    {
+        return compare(groupDn, "member", memberDn.toString());
+    }
+
+    /**
+     * Applies the modifications to the entry, in a single modify operation.
+     *
+     * @param dn                the entry to modify
+     * @param modificationItems the modifications to apply
+     * @param bindDN            the DN to bind as
+     * @param bindPassword      the password of bindDN
+     *
+     * @throws LdapNamingException if the directory rejects the modifications
+     */
+    public void modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems, final String bindDN,
+        final String bindPassword)
+    {
+        modifyAttributes(dn, modificationItems, bindDN, bindPassword, null,
+            new Control[0]);
+    }
+
+    /**
+     * Applies the modifications to the entry, in a single modify operation,
+     * but only if the entry's {@link #setVersionAttribute(String) version
+     * attribute} still has the value expectedVersion.  The check is done by
+     * the server, using the RFC 4528 assertion control, so there is no window
+     * between the check and the modify.
+     *
+     * @param dn                the entry to modify
+     * @param modificationItems the modifications to apply
+     * @param bindDN            the DN to bind as
+     * @param bindPassword      the password of bindDN
+     * @param expectedVersion   the version the entry had when it was loaded,
+     *                          or null to modify unconditionally
+     *
+     * @return the version the entry has after the modify, taken from the
+     *         modify's own response with the RFC 4527 post-read control, or
+     *         null if the modify was not conditional or the server does not
+     *         support that control.  Reading the version again afterwards
+     *         instead could pick up someone else's later change.
+     *
+     * @throws StaleEntryException if the entry has changed since it was
+     *                             loaded
+     * @throws LdapNamingException if the directory rejects the modifications
+     */
+    public String modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems, final String bindDN,
+        final String bindPassword, final String expectedVersion)
+    {
+        return modifyAttributes(dn, modificationItems, bindDN, bindPassword,
+            expectedVersion, new Control[0]);
+    }
+
+    /**
+     * Applies the modifications to the entry, in a single modify operation,
+     * sending the given request controls with it.
+     *
+     * @param dn                the entry to modify
+     * @param modificationItems the modifications to apply
+     * @param controls          the request controls
+     *
+     * @throws LdapNamingException if the directory rejects the modifications
+     */
+    public void modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems, final Control[] controls)
+    {
+        final Settings current = settings;
+        modifyAttributes(dn, modificationItems, current.bindDN,
+            current.bindPassword, null, controls);
+    }
+
+    private String modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems, final String bindDN,
+        final String bindPassword, final String expectedVersion,
+        final Control[] controls)
+    {
+        final String assertedAttribute = settings.versionAttribute;
+        final Attributes after = modifyAttributes(dn, modificationItems,
+            Collections.<String, Long>emptyMap(), bindDN, bindPassword,
+            assertedAttribute, expectedVersion, controls);
+        try
+        {
+            return assertedAttribute != null ? getValue(after,
+                assertedAttribute) : null;
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+    }
+
+    /**
+     * Applies modifications and atomic increments to an entry, all in a
+     * single modify operation, so that either all of them are applied or none
+     * are.  See {@link #increment(LdapName, String, long, String, String)} for
+     * how the increments are done.
+     *
+     * @param dn                the entry to modify
+     * @param modificationItems the modifications to apply, which must not
+     *                          touch the incremented attributes
+     * @param increments        the amount to add to each single valued
+     *                          integer attribute, by attribute name
+     * @param bindDN            the DN to bind as
+     * @param bindPassword      the password of bindDN
+     * @param expectedVersion   the version the entry had when it was loaded,
+     *                          or null to modify unconditionally
+     *
+     * @return the attributes as the modify left them: the new value of each
+     *         incremented attribute, and the {@link #setVersionAttribute(String)
+     *         version attribute} if the modify was conditional and the server
+     *         returned it
+     *
+     * @throws StaleEntryException if the entry has changed since it was
+     *                             loaded
+     * @throws LdapNamingException if the directory rejects the modifications,
+     *                             an incremented value is not an integer, or
+     *                             it was changed concurrently too many times
+     *                             in a row
+     * @see #modifyAttributes(LdapName, ModificationItem[], String, String,
+     *      String)
+     */
+    public Attributes modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems,
+        final Map<String, Long> increments, final String bindDN,
+        final String bindPassword, final String expectedVersion)
+    {
+        return modifyAttributes(dn, modificationItems, increments, bindDN,
+            bindPassword, settings.versionAttribute, expectedVersion,
+            new Control[0]);
+    }
+
+    @SuppressWarnings({"ObjectAllocationInLoop", "MethodWithTooManyParameters"})
+    private Attributes modifyAttributes(final LdapName dn,
+        final ModificationItem[] modificationItems,
+        final Map<String, Long> increments, final String bindDN,
+        final String bindPassword, final String assertedAttribute,
+        final String expectedVersion, final Control[] controls)
+    {
+        for (final ModificationItem item : modificationItems)
+        {
+            for (final String attribute : increments.keySet())
+            {
+                if (attribute.equalsIgnoreCase(item.getAttribute().getID()))
+                {
+                    throw new IllegalArgumentException(attribute +
+                        " is both modified and incremented");
+                }
+            }
+        }
+        final boolean asserted = expectedVersion != null &&
+            assertedAttribute != null;
+        final boolean postRead = asserted &&
+            isControlSupported(PostReadControl.OID);
+        final List<Control> requestControls = new ArrayList<Control>(
+            Arrays.asList(controls));
+        if (asserted)
+        {
+            requestControls.add(new AssertionControl(assertedAttribute,
+                expectedVersion));
+        }
+        if (postRead)
+        {
+            requestControls.add(new PostReadControl(assertedAttribute));
+        }
+        final Attributes before = new BasicAttributes(true);
+        final Attributes after = new BasicAttributes(true);
+        ModificationItem[] applied = modificationItems;
+        DirContext ldapContext = null;
+        try
+        {
+            ldapContext = openConnection(true, dn, false, bindDN,
+                bindPassword);
+            for (int attempt = 1; ; attempt++)
+            {
+                if (!increments.isEmpty())
+                {   // the controls are only for the modify
+                    ((LdapContext) ldapContext).setRequestControls(null);
+                    applied = withIncrements(ldapContext, dn,
+                        modificationItems, increments, before, after);
+                }
+                if (!requestControls.isEmpty())
+                {
+                    ((LdapContext) ldapContext).setRequestControls(
+                        requestControls.toArray(
+                            new Control[requestControls.size()]));
+                }
+                try
+                {
+                    ldapContext.modifyAttributes(dn, applied);
+                    break;
+                }
+                catch (final NamingException namingException)
+                {
+                    final int resultCode = getResultCode(namingException);
+                    if (increments.isEmpty() ||
+                        attempt >= MAX_INCREMENT_ATTEMPTS ||
+                        (resultCode != NO_SUCH_ATTRIBUTE &&
+                            resultCode != CONSTRAINT_VIOLATION &&
+                            resultCode != ATTRIBUTE_OR_VALUE_EXISTS))
+                    {
+                        throw namingException;
+                    }
+                    ((LdapContext) ldapContext).setRequestControls(null);
+                    if (!changedSince(ldapContext, dn, increments, before))
+                    {   // the caller's own modifications were rejected
+                        throw namingException;
+                    }
+                    logger.debug("incremented attributes of " + dn +
+                        " changed concurrently, retrying");
+                }
+            }
+            if (postRead)
+            {
+                final String newVersion = getPostReadValue(
+                    ((LdapContext) ldapContext).getResponseControls(),
+                    assertedAttribute);
+                if (newVersion != null)
+                {
+                    after.put(assertedAttribute, newVersion);
+                }
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            if (asserted && getResultCode(namingException) ==
+                AssertionControl.ASSERTION_FAILED)
+            {
+                throw new StaleEntryException(dn, expectedVersion,
+                    namingException);
+            }
+            throw new LdapNamingException(namingException);
+        }
+        catch (final NumberFormatException exception)
+        {
+            throw new LdapNamingException(increments.keySet() + " of " + dn +
+                " are not all integers", exception);
+        }
+        finally
+        {
+            releaseConnection(ldapContext);
+        }
+        fireEntryModified(dn, applied);
+        return after;
+    }
+
+    /**
+     * Reads the current values of the incremented attributes, and turns each
+     * increment into the removal of the current value and the addition of the
+     * new one, so that the modify fails if the value changes in the mean
+     * time.  An attribute that does not exist yet is treated as 0.
+     *
+     * @param before receives the values read
+     * @param after  receives the new values
+     *
+     * @return the modifications, followed by those of the increments
+     */
+    private static ModificationItem[] withIncrements(
+        final DirContext ldapContext, final LdapName dn,
+        final ModificationItem[] modificationItems,
+        final Map<String, Long> increments, final Attributes before,
+        final Attributes after) throws NamingException
+    {
+        final Attributes current = ldapContext.getAttributes(dn,
+            increments.keySet().toArray(new String[increments.size()]));
+        final List<ModificationItem> items = new ArrayList<ModificationItem>(
+            Arrays.asList(modificationItems));
+        for (final Map.Entry<String, Long> increment : increments.entrySet())
+        {
+            final String attribute = increment.getKey();
+            final Attribute currentValue = current.get(attribute);
+            final long newValue;
+            if (currentValue == null || currentValue.size() == 0)
+            {   // first increment creates it
+                before.remove(attribute);
+                newValue = increment.getValue();
+            }
+            else
+            {
+                final String oldValue = currentValue.get().toString();
+                before.put(attribute, oldValue);
+                newValue = Long.parseLong(oldValue.trim()) +
+                    increment.getValue();
+                items.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE,
+                    new BasicAttribute(attribute, oldValue)));
+            }
+            items.add(new ModificationItem(DirContext.ADD_ATTRIBUTE,
+                new BasicAttribute(attribute, String.valueOf(newValue))));
+            after.put(attribute, String.valueOf(newValue));
+        }
+        return items.toArray(new ModificationItem[items.size()]);
+    }
+
+    /**
+     * Reads the incremented attributes again after a failed modify, to tell
+     * whether it failed because someone else changed them, and is worth
+     * retrying, or because of the other modifications.
+     *
+     * @param before the values {@link #withIncrements(DirContext, LdapName,
+     *               ModificationItem[], Map, Attributes, Attributes)} read
+     *
+     * @return true if any incremented value differs from the one read
+     */
+    private static boolean changedSince(final DirContext ldapContext,
+        final LdapName dn, final Map<String, Long> increments,
+        final Attributes before) throws NamingException
+    {
+        final Attributes current = ldapContext.getAttributes(dn,
+            increments.keySet().toArray(new String[increments.size()]));
+        for (final String attribute : increments.keySet())
+        {
+            if (!StringUtils.equals(getValue(before, attribute),
+                getValue(current, attribute)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets a value from the post-read response of an operation.
+     *
+     * @return the value, or null if there is no valid response
+     */
+    private static String getPostReadValue(final Control[] responseControls,
+        final String attributeName) throws NamingException
+    {
+        final Attributes attributes;
+        try
+        {
+            attributes = PostReadControl.getAttributes(responseControls);
+        }
+        catch (final IllegalArgumentException exception)
+        {
+            logger.warn("invalid post-read response: " +
+                exception.getMessage());
+            return null;
+        }
+        return getValue(attributes, attributeName);
+    }
+
+    /**
+     * @return the first value of an attribute, or null if there is none
+     */
+    private static String getValue(final Attributes attributes,
+        final String attributeName) throws NamingException
+    {
+        final Attribute attribute = attributes != null ?
+            attributes.get(attributeName) : null;
+        return attribute != null && attribute.size() > 0 ?
+            String.valueOf(attribute.get()) : null;
+    }
+
+    /**
+     * Atomically adds delta to an integer attribute, using the manager's bind
+     * DN.  See {@link #increment(LdapName, String, long, String, String)}.
+     */
+    public long increment(final LdapName dn, final String attribute,
+        final long delta)
+    {
+        final Settings current = settings;
+        return increment(dn, attribute, delta, current.bindDN,
+            current.bindPassword);
+    }
+
+    /**
+     * Atomically adds delta to an integer attribute, and returns the new
+     * value.  An attribute that does not exist yet is treated as 0.
+     * <p/>
+     * JNDI cannot send the RFC 4525 increment modification, so the old value
+     * is removed and the new one added in a single modify.  If someone else
+     * changed the value in the mean time, the removal fails on the server,
+     * nothing is applied, and we read the value again and retry.  So no
+     * updates are ever lost, at the cost of a read per attempt.  The value
+     * returned is the one that modify wrote, so no post-read control is
+     * needed to learn it, although one could be sent through JNDI.  A
+     * rejected modify is only retried if the value did change.
+     *
+     * @param dn           the entry to modify
+     * @param attribute    the single valued integer attribute
+     * @param delta        the amount to add, which may be negative
+     * @param bindDN       the DN to bind as
+     * @param bindPassword the password of bindDN
+     *
+     * @return the value of the attribute after our increment
+     *
+     * @throws LdapNamingException if the entry does not exist, the value is
+     *                             not an integer, or the value was changed
+     *                             concurrently too many times in a row
+     */
+    public long increment(final LdapName dn, final String attribute,
+        final long delta, final String bindDN, final String bindPassword)
+    {
+        final Attributes after = modifyAttributes(dn, new ModificationItem[0],
+            Collections.singletonMap(attribute, delta), bindDN, bindPassword,
+            null);
+        try
+        {
+            return Long.parseLong(getValue(after, attribute));
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+    }
+
+    /**
+     * Extracts the LDAP result code from a naming exception.  JNDI maps most
+     * result codes to NamingException subclasses, but several codes share a
+     * subclass, and extension result codes are not mapped at all, so we parse
+     * the "[LDAP: error code N - ...]" explanation the provider gives us.
+     *
+     * @param namingException the exception thrown by the JNDI provider
+     *
+     * @return the LDAP result code, or -1 if there is none
+     */
+    public static int getResultCode(final NamingException namingException)
+    {
+        final String marker = "LDAP: error code ";
+        final String explanation = namingException.getExplanation();
+        final int start = explanation == null ? -1 :
+            explanation.indexOf(marker);
+        if (start == -1)
+        {
+            return -1;
+        }
+
+        int end = start + marker.length();
+        while (end < explanation.length() &&
+            Character.isDigit(explanation.charAt(end)))
+        {
+            end++;
+        }
+        try
+        {
+            return Integer.parseInt(explanation.substring(
+                start + marker.length(), end));
+        }
+        catch (final NumberFormatException exception)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the version attribute to a request for all user attributes, as it is
+     * operational, and so is not returned unless asked for by name.
+     *
+     * @param attributes the requested attributes, null meaning all
+     *
+     * @return the attributes to actually request
+     */
+    String[] withVersionAttribute(final String[] attributes)
+    {
+        final String attribute = settings.versionAttribute;
+        if (attributes != null || attribute == null)
+        {
+            return attributes;
+        }
+        return new String[]{"*", attribute};
+    }
+
+    /**
+     * Turns on write behind mode, journaling to the given file, with the
+     * default flush interval and batch size.  See {@link WriteBehindQueue}.
+     *
+     * @param journalFile the append only journal used for crash recovery
+     *
+     * @return the started queue, for access to its metrics
+     */
+    public WriteBehindQueue enableWriteBehind(final File journalFile)
+    {
+        final WriteBehindQueue queue = new WriteBehindQueue(this, journalFile);
+        setWriteBehindQueue(queue);
+        return queue;
+    }
+
+    /**
+     * Turns on write behind mode with a queue you have configured yourself.
+     * The queue is started if it has not been already.
+     *
+     * @param queue the write behind queue, created for this manager
+     */
+    public synchronized void setWriteBehindQueue(final WriteBehindQueue queue)
+    {
+        if (writeBehindQueue != null)
+        {
+            throw new IllegalStateException("write behind already enabled");
+        }
+        if (!queue.isStarted())
+        {
+            queue.start();
+        }
+        writeBehindQueue = queue;
+    }
+
+    /**
+     * Turns off write behind mode; queued modifications are flushed, and the
+     * journal is closed.
+     */
+    public synchronized void disableWriteBehind()
+    {
+        final WriteBehindQueue queue = writeBehindQueue;
+        writeBehindQueue = null;
+        if (queue != null)
+        {
+            queue.close();
+        }
+    }
+
+    /**
+     * @return the write behind queue, or null if write behind is not enabled
+     */
+    public WriteBehindQueue getWriteBehindQueue()
+    {
+        return writeBehindQueue;
+    }
+
+    public boolean isWriteBehind()
+    {
+        return writeBehindQueue != null;
+    }
+
+    /**
+     * Checks whether the server supports a request control, by way of the
+     * supportedControl attribute of its root DSE, which is only read once.
+     *
+     * @param oid the OID of the control
+     *
+     * @return true if the server advertises the control
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public boolean isControlSupported(final String oid)
+    {
+        final AtomicReference<Set<String>> cache = settings.supportedControls;
+        Set<String> controls = cache.get();
+        if (controls == null)
+        {
+            controls = new HashSet<String>();
+            final Attributes rootDse = getAttributes(new LdapName(
+                Collections.<Rdn>emptyList()), new String[]{
+                "supportedControl"});
+            final Attribute supported = rootDse != null ?
+                rootDse.get("supportedControl") : null;
+            if (supported != null)
+            {
+                try
+                {
+                    final NamingEnumeration values = supported.getAll();
+                    while (values.hasMore())
+                    {
+                        controls.add(String.valueOf(values.next()));
+                    }
+                }
+                catch (final NamingException namingException)
+                {
+                    throw new LdapNamingException(namingException);
+                }
+            }
+            cache.set(controls);
+        }
+        return controls.contains(oid);
+    }
+
+    /**
+     * Gets the executor that operations doing several things at once, and
+     * asynchronous operations, run their work on.  Unless one has been {@link
+     * #setExecutor(ExecutorService) set}, a fixed pool of daemon threads is
+     * created on first use, sized by the LDAP.threads property.  Without it,
+     * the pool matches the JNDI connection pool's maximum size, the
+     * com.sun.jndi.ldap.connect.pool.maxsize system property, or is 8 threads
+     * if that is not set either.  It runs queued {@link Priority#INTERACTIVE
+     * interactive} work before batch work.
+     *
+     * @return the executor
+     */
+    public synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            final Properties properties = settings.properties;
+            String threads = properties != null ?
+                StringUtils.trimToNull(properties.getProperty("LDAP.threads")) :
+                null;
+            if (threads == null)
+            {
+                threads = StringUtils.trimToNull(System.getProperty(
+                    "com.sun.jndi.ldap.connect.pool.maxsize"));
+            }
+            final int size = threads != null ? Integer.parseInt(threads) : 0;
+            executor = new PriorityExecutor(size > 0 ? size : DEFAULT_THREADS,
+                new DaemonThreadFactory());
+        }
+        return executor;
+    }
+
+    /**
+     * Uses your own executor, such as one sized to match your connection pool,
+     * or shared with other managers.  You are responsible for shutting it
+     * down.
+     *
+     * @param executor the executor
+     */
+    public synchronized void setExecutor(final ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Asynchronous {@link #find(Class, LdapName)}, run on the {@link
+     * #getExecutor() executor}.
+     *
+     * @return the pending entity, or null if it was not found
+     */
+    public LdapFuture<Object> findAsync(final Class annotatedClass,
+        final LdapName dn)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                return find(annotatedClass, dn);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link #find(LdapName, String, String, String[], Class,
+     * int, int)}, run on the {@link #getExecutor() executor}.
+     *
+     * @return the pending map of entities
+     */
+    @SuppressWarnings({"MethodWithTooManyParameters"})
+    public LdapFuture<Map> findAsync(final LdapName baseDN,
+        final String searchFilter, final String keyAttribute,
+        final String[] attributes, final Class ldapEntryClass,
+        final int sorted, final int searchScope)
+    {
+        return submit(new Callable<Map>()
+        {
+            @Override
+            public Map call()
+            {
+                return find(baseDN, searchFilter, keyAttribute, attributes,
+                    ldapEntryClass, sorted, searchScope);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link #findAll(Class, Collection)}, run on the {@link
+     * #getExecutor() executor}.
+     *
+     * @return the pending entities
+     */
+    public LdapFuture<FoundEntities> findAllAsync(final Class annotatedClass,
+        final Collection<LdapName> dns)
+    {
+        return submit(new Callable<FoundEntities>()
+        {
+            @Override
+            public FoundEntities call()
+            {
+                return findAll(annotatedClass, dns);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link #getAttributes(LdapName, String[])}, run on the
+     * {@link #getExecutor() executor}.
+     *
+     * @return the pending attributes
+     */
+    public LdapFuture<Attributes> getAttributesAsync(final LdapName dn,
+        final String[] returningAttributes)
+    {
+        return submit(new Callable<Attributes>()
+        {
+            @Override
+            public Attributes call()
+            {
+                return getAttributes(dn, returningAttributes);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link ILdapEntry#save()}, run on the {@link #getExecutor()
+     * executor}.  Entities are not thread safe, so leave the entry alone until
+     * the save completes.
+     *
+     * @param ldapEntry the entry to save, which this manager loaded
+     *
+     * @return completes with null once saved
+     */
+    public LdapFuture<Object> saveAsync(final ILdapEntry ldapEntry)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                ldapEntry.save();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Binds the {@link LdapEntity} annotated object to ldap, with all of its
+     * attributes, on the {@link #getExecutor() executor}.  Leave the object
+     * alone until the bind completes.
+     *
+     * @param ldapEntry the {@link LdapEntity} annotated object to bind
+     *
+     * @return completes with null once bound
+     */
+    public LdapFuture<Object> bindAsync(final Object ldapEntry)
+    {
+        return submit(new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                bind(ldapEntry);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Streams the results of a search as entities, only as fast as the
+     * subscriber asks for them, fetching pages of pageSize entries from the
+     * server as demand allows.  Each subscriber gets its own search, which
+     * is abandoned if it cancels.  See {@link SearchPublisher}.
+     *
+     * @param baseDN         the base DN to search on
+     * @param searchFilter   the ldap search filter
+     * @param attributes     the attributes to retrieve, or null for all
+     * @param ldapEntryClass the {@link LdapEntity} annotated class to map
+     *                       each entry to; unsupported entries are skipped
+     * @param searchScope    One of the scope values in {@link SearchControls}
+     * @param pageSize       the number of entries to fetch at a time
+     *
+     * @return the publisher
+     */
+    public SearchPublisher findPublisher(final LdapName baseDN,
+        final String searchFilter, final String[] attributes,
+        final Class ldapEntryClass, final int searchScope, final int pageSize)
+    {
+        return new SearchPublisher(this, baseDN, searchFilter, attributes,
+            ldapEntryClass, searchScope, pageSize);
+    }
+
+    /**
+     * Runs an operation on the executor, with this manager's priority.
+     */
+    <V> LdapFuture<V> submit(final Callable<V> operation)
+    {
+        final LdapFuture<V> future = new LdapFuture<V>(operation);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * Runs work on the executor, with this manager's priority, so that work
+     * for a {@link #withPriority(Priority) batch view} queues behind
+     * interactive work.
+     */
+    void execute(final Runnable work)
+    {
+        final ExecutorService service = getExecutor();
+        if (service instanceof PriorityExecutor)
+        {
+            ((PriorityExecutor) service).execute(work, priority);
+        }
+        else
+        {
+            service.execute(work);
+        }
+    }
+
+    /**
+     * Runs an operation with a deadline and cancel handle, which apply to
+     * every directory request it makes on this thread, including those made
+     * by nested loads of aggregates and references, and to the work it
+     * spreads over the executor.  See {@link OperationContext}.
+     *
+     * @param context   the deadline and cancel handle
+     * @param operation the operation, which uses this manager
+     *
+     * @return the result of the operation
+     *
+     * @throws OperationCancelledException if cancelled, or out of time
+     * @throws LdapNamingException         if the operation fails for another
+     *                                     reason
+     */
+    public <V> V execute(final OperationContext context,
+        final Callable<V> operation)
+    {
+        final OperationContext previous = currentContext.get();
+        currentContext.set(context);
+        try
+        {
+            context.checkpoint();
+            return operation.call();
+        }
+        catch (final OperationCancelledException exception)
+        {
+            throw exception;
+        }
+        catch (final Exception exception)
+        {
+            if (context.isCancelled())
+            {
+                throw new OperationCancelledException("operation cancelled",
+                    false, exception);
+            }
+            if (context.isExpired())
+            {
+                throw new OperationCancelledException(
+                    "operation deadline passed", true, exception);
+            }
+            if (exception instanceof RuntimeException)
+            {
+                throw (RuntimeException) exception;
+            }
+            throw new LdapNamingException(exception);
+        }
+        finally
+        {
+            if (previous != null)
+            {
+                currentContext.set(previous);
+            }
+            else
+            {
+                currentContext.remove();
+            }
+        }
+    }
+
+    /**
+     * {@link #find(Class, LdapName)}, including its aggregate and reference
+     * loads, bounded by an {@link OperationContext}.
+     *
+     * @throws OperationCancelledException if cancelled, or out of time
+     */
+    public Object find(final Class annotatedClass, final LdapName dn,
+        final OperationContext context)
+    {
+        return execute(context, new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                return find(annotatedClass, dn);
+            }
+        });
+    }
+
+    /**
+     * {@link #find(LdapName, String, String, String[], Class, int, int)},
+     * including the aggregate and reference loads of every entry, bounded by
+     * an {@link OperationContext}.
+     *
+     * @throws OperationCancelledException if cancelled, or out of time
+     */
+    @SuppressWarnings({"MethodWithTooManyParameters"})
+    public Map find(final LdapName baseDN, final String searchFilter,
+        final String keyAttribute, final String[] attributes,
+        final Class ldapEntryClass, final int sorted, final int searchScope,
+        final OperationContext context)
+    {
+        return execute(context, new Callable<Map>()
+        {
+            @Override
+            public Map call()
+            {
+                return find(baseDN, searchFilter, keyAttribute, attributes,
+                    ldapEntryClass, sorted, searchScope);
+            }
+        });
+    }
+
+    /**
+     * Limits a search to the time its operation has left, if any.
+     */
+    private static void applyDeadline(final SearchControls searchControls)
+    {
+        final OperationContext context = currentContext.get();
+        if (context != null)
+        {
+            searchControls.setTimeLimit(context.getSearchTimeLimit());
+        }
+    }
+
+    /**
+     * Lets the operation's context abandon a search in progress.
+     */
+    private static void track(final NamingEnumeration results)
+    {
+        final OperationContext context = currentContext.get();
+        if (context != null && results != null)
+        {
+            context.register(results);
+        }
+    }
+
+    /**
+     * Runs independent tasks on the executor, and waits for all of them.  A
+     * single task, or tasks submitted from one of the manager's own threads,
+     * are run on the calling thread instead, so that nested use can never
+     * wait on a pool it is itself occupying.
+     *
+     * @param tasks the tasks to run
+     *
+     * @return the results, in the order of tasks
+     *
+     * @throws LdapNamingException if a task fails, or if interrupted
+     */
+    <T> List<T> invokeAll(final List<? extends Callable<T>> tasks)
+    {
+        final List<T> results = new ArrayList<T>(tasks.size());
+        final OperationContext context = currentContext.get();
+        if (context != null && tasks.size() > 1 &&
+            !(Thread.currentThread() instanceof ManagerThread))
+        {   // the tasks are part of the same operation
+            final List<Callable<T>> inContext =
+                new ArrayList<Callable<T>>(tasks.size());
+            for (final Callable<T> task : tasks)
+            {
+                inContext.add(new Callable<T>()
+                {
+                    @Override
+                    public T call()
+                    {
+                        return execute(context, task);
+                    }
+                });
+            }
+            return invokeAll(inContext, results);
+        }
+        return invokeAll(tasks, results);
+    }
+
+    private <T> List<T> invokeAll(final List<? extends Callable<T>> tasks,
+        final List<T> results)
+    {
+        try
+        {
+            if (tasks.size() < 2 ||
+                Thread.currentThread() instanceof ManagerThread)
+            {
+                for (final Callable<T> task : tasks)
+                {
+                    results.add(task.call());
+                }
+                return results;
+            }
+            final List<LdapFuture<T>> futures =
+                new ArrayList<LdapFuture<T>>(tasks.size());
+            for (final Callable<T> task : tasks)
+            {
+                futures.add(submit(task));
+            }
+            for (final Future<T> future : futures)
+            {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (final InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            throw new LdapNamingException("interrupted", exception);
+        }
+        catch (final ExecutionException exception)
+        {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new LdapNamingException(cause);
+        }
+        catch (final RuntimeException exception)
+        {
+            throw exception;
+        }
+        catch (final Exception exception)
+        {
+            throw new LdapNamingException(exception);
+        }
+    }
+
+    /**
+     * Names the manager's threads, and makes them daemons, so that they never
+     * keep the JVM alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            final Thread thread = new ManagerThread(runnable,
+                "LdapManager-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Marks the threads of the default executor.
+     */
+    private static class ManagerThread extends Thread
+    {
+        private ManagerThread(final Runnable runnable, final String name)
+        {
+            super(runnable, name);
+        }
+    }
+
+    /**
+     * Registers a listener to be told of every change this manager makes to
+     * the directory.
+     *
+     * @param listener the listener
+     */
+    public void addModificationListener(final ModificationListener listener)
+    {
+        modificationListeners.add(listener);
+    }
+
+    public void removeModificationListener(
+        final ModificationListener listener)
+    {
+        modificationListeners.remove(listener);
+    }
+
+    @SuppressWarnings({"CatchGenericClass"})
+    private void fireEntryAdded(final LdapName dn, final Attributes attributes)
+    {
+        forgetReads(dn);
+        rememberWrite(dn);
+        for (final ModificationListener listener : modificationListeners)
+        {
+            try
+            {
+                listener.entryAdded(dn, attributes);
+            }
+            catch (final RuntimeException exception)
+            {
+                logger.error("modification listener failed", exception);
+            }
+        }
+    }
+
+    @SuppressWarnings({"CatchGenericClass"})
+    private void fireEntryModified(final LdapName dn,
+        final ModificationItem[] modificationItems)
+    {
+        forgetReads(dn);
+        rememberWrite(dn);
+        for (final ModificationListener listener : modificationListeners)
+        {
+            try
+            {
+                listener.entryModified(dn, modificationItems);
+            }
+            catch (final RuntimeException exception)
+            {
+                logger.error("modification listener failed", exception);
+            }
+        }
+    }
+
+    @SuppressWarnings({"CatchGenericClass"})
+    private void fireEntryDeleted(final LdapName dn)
+    {
+        forgetReads(dn);
+        rememberWrite(dn);
+        for (final ModificationListener listener : modificationListeners)
+        {
+            try
+            {
+                listener.entryDeleted(dn);
+            }
+            catch (final RuntimeException exception)
+            {
+                logger.error("modification listener failed", exception);
+            }
         }
-        finally
+    }
+
+    /**
+     * Builds a reverse membership index of the groups under the given bases,
+     * and keeps it up to date with the changes made through this manager.
+     * See {@link MembershipIndex}.
+     *
+     * @param groupBases the subtrees containing the groups to index
+     *
+     * @return the index, for calling {@link MembershipIndex#groupsOf(LdapName)}
+     *         on
+     *
+     * @throws LdapNamingException if an ldap error occurs building the index
+     */
+    public synchronized MembershipIndex enableMembershipIndex(
+        final LdapName... groupBases)
+    {
+        if (membershipIndex != null)
         {
-            releaseConnection(ldapContext);
+            throw new IllegalStateException("membership index already enabled");
         }
-
-        return returnedEntries.toArray();
-    } // BEGIN getAttributes ()
-
-    private Attributes getAttributes(final LdapName dn,
-        final String[] attributes, final String bindDN,
-        final String bindPassword)
-    {   // BEGIN getAttributes(dn)
-        Attributes returnedAttributes = null;
-        DirContext ldapContext = null;
-
+        final MembershipIndex index = new MembershipIndex(this, groupBases);
+        addModificationListener(index);
         try
-        { // BEGIN LDAP try block
-            ldapContext = getConnection(false, timeout, sLDAPURL, bindDN,
-                bindPassword);
-            returnedAttributes = ldapContext.getAttributes(dn, attributes);
-        } // END LDAP try block
-        catch (final NamingException exception)
         {
-            throw new LdapNamingException(exception);  // propogate
+            index.rebuild();
         }
-        catch (final Exception exception)
+        catch (final LdapNamingException exception)
         {
-            throw new LdapNamingException(
-                "unknown exception while retrieving attributes", exception);
+            removeModificationListener(index);
+            throw exception;
         }
-        finally
+        membershipIndex = index;
+        return index;
+    }
+
+    /**
+     * Discards the membership index, and stops watching for changes.
+     */
+    public synchronized void disableMembershipIndex()
+    {
+        final MembershipIndex index = membershipIndex;
+        membershipIndex = null;
+        if (index != null)
         {
-            releaseConnection(ldapContext);
+            removeModificationListener(index);
+            index.stopWatching();
         }
+    }
 
-        return returnedAttributes;
-    }   // END getAttributes(dn)
+    /**
+     * @return the membership index, or null if it is not enabled
+     */
+    public MembershipIndex getMembershipIndex()
+    {
+        return membershipIndex;
+    }
 
     /**
      * Gets an LDAP directory context.
@@ -568,6 +4110,17 @@ public class LdapManager
         {
             env.put("com.sun.jndi.ldap.connect.timeout", "" + timeout);
         }
+        final OperationContext context = currentContext.get();
+        if (context != null)
+        {
+            context.checkpoint();
+            final long remaining = context.getRemainingMillis();
+            if (remaining != Long.MAX_VALUE)
+            {
+                env.put("com.sun.jndi.ldap.read.timeout",
+                    "" + Math.max(1, remaining));
+            }
+        }
         env.put(Context.PROVIDER_URL, sLDAPURL);
         env.put(Context.SECURITY_AUTHENTICATION, "simple");
         env.put(Context.SECURITY_PRINCIPAL, sLDAPManagerDN);
@@ -585,15 +4138,352 @@ public class LdapManager
 
     } // END getConnection ()
 
+    /**
+     * Opens a connection that the caller is responsible for closing.  If
+     * there are {@link #setServers(List) servers}, it is to the one that
+     * reads would use.  If there is a {@link #setLimiters(ConcurrencyLimiter,
+     * ConcurrencyLimiter) read limiter}, the connection holds one of its
+     * slots until it is closed, so be sure to close it.
+     *
+     * @param bindDN       the DN to bind as
+     * @param bindPassword the password of bindDN
+     *
+     * @return the new DirContext
+     *
+     * @throws NamingException if a JNDI error occurs.
+     */
     public DirContext getConnection(final String bindDN,
         final String bindPassword) throws NamingException
     {
-        return getConnection(false, timeout, sLDAPURL, bindDN, bindPassword);
+        return getConnection(null, bindDN, bindPassword);
+    }
+
+    /**
+     * Opens a connection that the caller is responsible for closing, to the
+     * servers holding dn.
+     *
+     * @param dn the entry or search base the connection is for, or null
+     */
+    DirContext getConnection(final LdapName dn, final String bindDN,
+        final String bindPassword) throws NamingException
+    {
+        return getConnection(dn, bindDN, bindPassword,
+            new ConcurrencyLimiter[1]);
+    }
+
+    /**
+     * @param slot receives the limiter the connection holds a slot from until
+     *             it is closed, or null if it holds none
+     */
+    DirContext getConnection(final LdapName dn, final String bindDN,
+        final String bindPassword, final ConcurrencyLimiter[] slot)
+        throws NamingException
+    {
+        final Settings current = settings;
+        final ConcurrencyLimiter limiter = current.readLimiter;
+        final ConcurrencyLimiter acquired = limiter == null ||
+            heldPermits.get().containsKey(limiter) ? null : limiter;
+        if (acquired != null)
+        {
+            acquire(acquired);
+        }
+        final long start = System.nanoTime();
+        boolean opened = false;
+        try
+        {
+            final ServerSet serverSet = serversFor(current, dn);
+            final ServerSet.Server[] server = new ServerSet.Server[1];
+            final DirContext ldapContext = connect(current, serverSet, false,
+                false, bindDN, bindPassword,
+                Collections.<ServerSet.Server>emptyList(), server);
+            if (server[0] != null)
+            {   // held for as long as the caller likes, so not outstanding
+                serverSet.release(server[0], 0);
+            }
+            opened = true;
+            slot[0] = acquired;
+            return acquired != null ?
+                releasingOnClose(ldapContext, acquired, start) : ldapContext;
+        }
+        finally
+        {
+            if (!opened && acquired != null)
+            {
+                acquired.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Wraps a connection handed to a caller, so that closing it frees its
+     * limiter slot, on whichever thread closes it.
+     */
+    private static DirContext releasingOnClose(final DirContext ldapContext,
+        final ConcurrencyLimiter limiter, final long start)
+    {
+        final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> type = ldapContext.getClass(); type != null;
+             type = type.getSuperclass())
+        {
+            for (final Class<?> implemented : type.getInterfaces())
+            {
+                if (Modifier.isPublic(implemented.getModifiers()))
+                {
+                    interfaces.add(implemented);
+                }
+            }
+        }
+        return (DirContext) Proxy.newProxyInstance(
+            LdapManager.class.getClassLoader(),
+            interfaces.toArray(new Class<?>[interfaces.size()]),
+            new InvocationHandler()
+            {
+                private final AtomicBoolean released = new AtomicBoolean();
+
+                @Override
+                public Object invoke(final Object proxy, final Method method,
+                    final Object[] args) throws Throwable
+                {
+                    try
+                    {
+                        return method.invoke(ldapContext, args);
+                    }
+                    catch (final InvocationTargetException exception)
+                    {
+                        throw exception.getCause();
+                    }
+                    finally
+                    {
+                        if ("close".equals(method.getName()) &&
+                            method.getParameterTypes().length == 0 &&
+                            released.compareAndSet(false, true))
+                        {
+                            limiter.release(System.nanoTime() - start);
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Waits for a slot from the limiter, for no longer than the current
+     * operation has left.
+     */
+    private void acquire(final ConcurrencyLimiter limiter)
+    {
+        final OperationContext context = currentContext.get();
+        limiter.acquire(priority, context != null ?
+            context.getRemainingMillis() : Long.MAX_VALUE);
+    }
+
+    /**
+     * Connects to the server chosen by the {@link ServerSet}, if any, failing
+     * over to the next one while servers cannot be reached.  The chosen server
+     * is counted as outstanding until released.
+     *
+     * @param current   the settings of the operation
+     * @param serverSet the servers to choose from, or null for the url
+     * @param write     whether the connection must be to the supplier
+     * @param avoid     servers not to use
+     * @param server    receives the chosen server
+     */
+    private DirContext connect(final Settings current,
+        final ServerSet serverSet, final boolean write, final boolean isPooled,
+        final String bindDN, final String bindPassword,
+        final List<ServerSet.Server> avoid, final ServerSet.Server[] server)
+        throws NamingException
+    {
+        if (serverSet == null)
+        {
+            return getConnection(isPooled, current.timeout, current.url,
+                bindDN, bindPassword);
+        }
+
+        final List<ServerSet.Server> tried =
+            new ArrayList<ServerSet.Server>(avoid);
+        NamingException failure = null;
+        ServerSet.Server chosen;
+        while ((chosen = serverSet.choose(write, tried)) != null)
+        {
+            boolean connected = false;
+            try
+            {
+                final DirContext ldapContext = getConnection(isPooled,
+                    current.timeout, chosen.getUrl(), bindDN, bindPassword);
+                connected = true;
+                server[0] = chosen;
+                return ldapContext;
+            }
+            catch (final CommunicationException e)
+            {
+                serverSet.fail(chosen, e);
+                failure = e;
+            }
+            catch (final ServiceUnavailableException e)
+            {
+                serverSet.fail(chosen, e);
+                failure = e;
+            }
+            finally
+            {
+                if (!connected)
+                {
+                    serverSet.release(chosen, 0);
+                }
+            }
+            tried.add(chosen);
+        }
+        if (failure == null)
+        {
+            throw new ServiceUnavailableException("no server left to try");
+        }
+        throw failure;
+    }
+
+    /**
+     * Opens a connection for one operation, first waiting for a slot from the
+     * read or write {@link ConcurrencyLimiter}, if there is one.  The slot is
+     * freed by {@link #releaseConnection(DirContext)}.
+     *
+     * @param write    whether the operation changes the directory
+     * @param dn       the entry, or search base, a read is about, so that it
+     *                 goes to the supplier if this manager changed it lately;
+     *                 null if unknown
+     * @param isPooled whether to use the JNDI connection pool
+     *
+     * @throws DirectoryOverloadedException if the limiter refuses the
+     *                                      operation
+     */
+    private DirContext openConnection(final boolean write, final LdapName dn,
+        final boolean isPooled, final String bindDN, final String bindPassword)
+        throws NamingException
+    {
+        return openConnection(write, dn, null, isPooled, bindDN,
+            bindPassword);
+    }
+
+    /**
+     * @param attempt the hedged read the connection is for, whose server to
+     *                avoid and to record, or null
+     */
+    private DirContext openConnection(final boolean write, final LdapName dn,
+        final ReadAttempt attempt, final boolean isPooled, final String bindDN,
+        final String bindPassword) throws NamingException
+    {
+        final Settings current = settings;
+        final ConcurrencyLimiter limiter = write ? current.writeLimiter :
+            current.readLimiter;
+        final ServerSet serverSet = serversFor(current, dn);
+        if (limiter == null && serverSet == null)
+        {
+            return getConnection(isPooled, current.timeout, current.url,
+                bindDN, bindPassword);
+        }
+
+        // nested loads, such as aggregates, are part of the same operation,
+        // but a write nested in a read still needs a slot for the write
+        final Map<ConcurrencyLimiter, int[]> held = heldPermits.get();
+        final ConcurrencyLimiter acquired = held.containsKey(limiter) ? null :
+            limiter;
+        if (acquired != null)
+        {
+            acquire(acquired);
+        }
+        final long start = System.nanoTime();
+        boolean opened = false;
+        try
+        {
+            final ServerSet.Server[] server = new ServerSet.Server[1];
+            final DirContext ldapContext = connect(current, serverSet, write ||
+                recentWrites.covers(dn), isPooled, bindDN, bindPassword,
+                attempt != null ? attempt.avoid :
+                    Collections.<ServerSet.Server>emptyList(), server);
+            if (attempt != null)
+            {
+                attempt.server = server[0];
+            }
+            permits.put(ldapContext, new Permit(limiter, acquired, serverSet,
+                server[0], start));
+            countHeld(limiter);
+            opened = true;
+            return ldapContext;
+        }
+        finally
+        {
+            if (!opened && acquired != null)
+            {
+                acquired.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Counts a connection against limiter as held by the current thread, so
+     * that connections nested in the same operation do not wait for another
+     * slot from it.  Also used by a {@link SearchPublisher}, whose connection
+     * outlives the thread delivering its entities.
+     *
+     * @param limiter the limiter, or null for connections with none
+     */
+    void countHeld(final ConcurrencyLimiter limiter)
+    {
+        final Map<ConcurrencyLimiter, int[]> held = heldPermits.get();
+        final int[] count = held.get(limiter);
+        if (count != null)
+        {
+            count[0]++;
+        }
+        else
+        {
+            held.put(limiter, new int[]{1});
+        }
+    }
+
+    /**
+     * Undoes {@link #countHeld(ConcurrencyLimiter)}.
+     */
+    void uncountHeld(final ConcurrencyLimiter limiter)
+    {
+        final Map<ConcurrencyLimiter, int[]> held = heldPermits.get();
+        final int[] count = held.get(limiter);
+        if (count != null && --count[0] == 0)
+        {
+            held.remove(limiter);
+        }
+    }
+
+    /**
+     * @return the context of the operation the current thread is doing, or
+     *         null
+     */
+    static OperationContext getCurrentContext()
+    {
+        return currentContext.get();
     }
 
-    private DirContext getConnection() throws NamingException
+    /**
+     * Closes search results, which abandons the search if it has not
+     * finished.
+     *
+     * @param results the results, which may be null
+     */
+    private static void closeResults(final NamingEnumeration results)
     {
-        return getConnection(true, timeout, sLDAPURL, bindDN, bindPassword);
+        if (results == null) return;
+        final OperationContext context = currentContext.get();
+        if (context != null)
+        {
+            context.unregister(results);
+        }
+        try
+        {
+            results.close();
+        }
+        catch (final NamingException e)
+        {
+            logger.error(
+                "error closing results: " + getNamingExceptionMessage(e));
+        }
     }
 
     /**
@@ -601,7 +4491,7 @@ public class LdapManager
      *
      * @param conn LDAP directory context object
      */
-    private static void releaseConnection(final DirContext conn)
+    private void releaseConnection(final DirContext conn)
     {
         if (conn == null) return;
         try
@@ -612,6 +4502,141 @@ public class LdapManager
         {
             logger.error("this error should not occur - " + e.getMessage());
         }
+        finally
+        {
+            final Permit permit = permits.remove(conn);
+            if (permit != null)
+            {
+                uncountHeld(permit.counted);
+                final long nanos = System.nanoTime() - permit.start;
+                if (permit.limiter != null)
+                {
+                    permit.limiter.release(nanos);
+                }
+                if (permit.server != null)
+                {
+                    permit.serverSet.release(permit.server, nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * The settings a {@link #reload(LdapConfiguration) reload} may change.
+     * They are never changed once published, so an operation that reads them
+     * once sees either all of the old settings or all of the new ones; the
+     * setters publish a changed copy instead.  The one exception is the
+     * supported controls cache, which is filled when first needed, and
+     * shared by the copies until the servers change.
+     */
+    private static final class Settings
+    {
+        /**
+         * The configuration last loaded
+         */
+        private LdapConfiguration configuration;
+
+        private String url;
+        private String bindDN;
+        private String bindPassword;
+
+        // We set the TIMEOUT to zero so that no changes are made to the
+        // timeout.
+        private int timeout;
+
+        /**
+         * The properties from the /ldap.properties in the classpath.
+         */
+        private Properties properties;
+
+        /**
+         * The operational attribute used as the entry version for optimistic
+         * concurrency, such as entryCSN or modifyTimestamp.  Null if saves
+         * are not conditional.
+         */
+        private String versionAttribute;
+
+        private boolean coalescingReads = true;
+
+        /**
+         * Limit the operations in flight, when not null; both may be the same
+         */
+        private ConcurrencyLimiter readLimiter;
+        private ConcurrencyLimiter writeLimiter;
+
+        /**
+         * The replicas operations are spread over, or null to use the url
+         */
+        private ServerSet servers;
+
+        /**
+         * The servers of naming contexts held by other directories, by suffix
+         */
+        private Map<LdapName, ServerSet> routes = Collections.emptyMap();
+
+        /**
+         * When to send slow reads to a second server, or null to never do so
+         */
+        private HedgePolicy hedgePolicy;
+
+        /**
+         * The supportedControl values of the root DSE of these servers, read
+         * when first needed.  Copies share the holder, so that views made
+         * before the first read do not each read the root DSE again.
+         */
+        private AtomicReference<Set<String>> supportedControls =
+            new AtomicReference<Set<String>>();
+
+        private Settings()
+        {
+        }
+
+        /**
+         * Copies the settings, to be changed before they are published.
+         */
+        private Settings(final Settings from)
+        {
+            configuration = from.configuration;
+            url = from.url;
+            bindDN = from.bindDN;
+            bindPassword = from.bindPassword;
+            timeout = from.timeout;
+            properties = from.properties;
+            versionAttribute = from.versionAttribute;
+            coalescingReads = from.coalescingReads;
+            readLimiter = from.readLimiter;
+            writeLimiter = from.writeLimiter;
+            servers = from.servers;
+            routes = from.routes;
+            hedgePolicy = from.hedgePolicy;
+            supportedControls = from.supportedControls;
+        }
+    }
+
+    /**
+     * A limiter slot and a server held by an open connection; the limiter is
+     * null for connections nested in an operation that already holds a slot
+     * from it, and the server is null when there is no {@link ServerSet}.
+     * The connection counts as held against the counted limiter either way.
+     */
+    private static final class Permit
+    {
+        private final ConcurrencyLimiter counted;
+        private final ConcurrencyLimiter limiter;
+        private final ServerSet serverSet;
+        private final ServerSet.Server server;
+        private final long start;
+
+        private Permit(final ConcurrencyLimiter counted,
+            final ConcurrencyLimiter limiter, final ServerSet serverSet,
+            final ServerSet.Server server, final long start)
+        {
+            this.counted = counted;
+            this.limiter = limiter;
+            this.serverSet = serverSet;
+            this.server = server;
+            this.start = start;
+        }
     }
 
     public static void logNamingException(final NamingException namingException)
@@ -840,6 +4865,7 @@ public class LdapManager
      */
     void bind(final Object ldapEntry)
     {
+        final Settings current = settings;
         LdapContext ldapContext = null;
         try
         {
@@ -854,7 +4880,6 @@ public class LdapManager
             {
                 throw new LdapNamingException("annotation processing failed");
             }
-            ldapContext = (LdapContext) getConnection();
             final List<Attributes> attributesList =
                 entityBinder.getAttributesList();
             final List<LdapName> dnList = entityBinder.getDnList();
@@ -863,11 +4888,15 @@ public class LdapManager
                 throw new UnsupportedOperationException(
                     "we do not yet support recursive binding");
             }
+            ldapContext = (LdapContext) openConnection(true,
+                dnList.isEmpty() ? null : dnList.get(0), true, current.bindDN,
+                current.bindPassword);
             for (int index = 0; index < attributesList.size(); index++)
             {
                 final LdapName dn = dnList.get(index);
                 final Attributes attributes = attributesList.get(index);
                 ldapContext.bind(dn, null, attributes);
+                fireEntryAdded(dn, attributes);
             }
         }
         catch (final NamingException e)
@@ -883,11 +4912,14 @@ public class LdapManager
 
     private void unbind(final LdapName dn)
     {
+        final Settings current = settings;
         LdapContext ldapContext = null;
         try
         {
-            ldapContext = (LdapContext) getConnection();
+            ldapContext = (LdapContext) openConnection(true, dn, true,
+                current.bindDN, current.bindPassword);
             ldapContext.unbind(dn);
+            fireEntryDeleted(dn);
         }
         catch (final NamingException e)
         {
@@ -907,36 +4939,98 @@ public class LdapManager
 
     public String getProperty(final String propertyName)
     {
-        return properties.getProperty(propertyName);
+        return settings.properties.getProperty(propertyName);
     }
 
-    public void setBindDN(final String bindDN)
+    /**
+     * @deprecated changing the DN of a shared manager changes it for every
+     *             thread; use {@link #withCredentials(String, String)}
+     */
+    @Deprecated
+    public synchronized void setBindDN(final String bindDN)
     {
-        this.bindDN = bindDN;
+        final Settings next = new Settings(settings);
+        next.bindDN = bindDN;
+        settings = next;
     }
 
     public String getBindDN()
     {
-        return bindDN;
+        return settings.bindDN;
     }
 
     public String getBindPassword()
     {
-        return bindPassword;
+        return settings.bindPassword;
+    }
+
+    /**
+     * @deprecated changing the password of a shared manager changes it for
+     *             every thread; use {@link #withCredentials(String, String)}
+     */
+    @Deprecated
+    public synchronized void setBindPassword(final String bindPassword)
+    {
+        final Settings next = new Settings(settings);
+        next.bindPassword = bindPassword;
+        settings = next;
+    }
+
+    /**
+     * @return the operational attribute used as the entry version, or null if
+     *         saves are not conditional
+     */
+    public String getVersionAttribute()
+    {
+        return settings.versionAttribute;
     }
 
-    public void setBindPassword(final String bindPassword)
+    /**
+     * Turns on optimistic concurrency for {@link ILdapEntry#save()}.  Entries
+     * loaded after this is set will remember the value of the version
+     * attribute, and their saves will fail with a {@link StaleEntryException}
+     * if someone else has modified the entry in the mean time.  The directory
+     * must support the assertion control (1.3.6.1.1.12).  An entry saved
+     * more than once without being reloaded needs the version its own save
+     * left, which is taken from the post-read control (1.3.6.1.1.13.2); if
+     * the server does not support that, the later saves fail with a {@link
+     * StaleEntryException} until the entry is reloaded.  Saves queued by
+     * {@link #enableWriteBehind(File) write behind} are never conditional.
+     * <p/>
+     * Defaults to the LDAP.versionAttribute property in ldap.properties.
+     *
+     * @param versionAttribute an operational attribute that changes on every
+     *                         modify, such as entryCSN or modifyTimestamp, or
+     *                         null to turn it off
+     */
+    public synchronized void setVersionAttribute(
+        final String versionAttribute)
     {
-        this.bindPassword = bindPassword;
+        final Settings next = new Settings(settings);
+        next.versionAttribute = versionAttribute;
+        settings = next;
     }
 
     public int getTimeout()
     {
-        return timeout;
+        return settings.timeout;
     }
 
-    public void setTimeout(final int timeout)
+    /**
+     * Sets the connect timeout.  To bound how long operations themselves may
+     * take, run them with an {@link OperationContext}.
+     *
+     * @param timeout the connect timeout in milliseconds, 0 for none
+     *
+     * @deprecated changing the timeout of a shared manager changes it for
+     *             every thread; create the manager with {@link
+     *             LdapConfiguration#withTimeout(int)}
+     */
+    @Deprecated
+    public synchronized void setTimeout(final int timeout)
     {
-        this.timeout = timeout;
+        final Settings next = new Settings(settings);
+        next.timeout = timeout;
+        settings = next;
     }
 }
@@ -0,0 +1,106 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out shared managers, one for each distinct {@link LdapConfiguration},
+ * so that the whole JVM uses the same pools, caches and threads, instead of
+ * every caller doing new LdapManager(), which loads ldap.properties again.
+ * <p/>
+ * The managers are thread safe.  Callers needing other credentials should use
+ * {@link LdapManager#withCredentials(String, String)} on the shared manager,
+ * and must not use its deprecated setters, which would change it for everyone.
+ * <p/>
+ * Created :  18/10/26 2:45 PM MST
+ */
+public final class LdapManagerRegistry
+{
+    private static final Map<LdapConfiguration, LdapManager> managers =
+        new HashMap<LdapConfiguration, LdapManager>();
+
+    private static LdapManager defaultManager;
+
+    private LdapManagerRegistry()
+    {
+    }
+
+    /**
+     * Gets the manager for ldap.properties, creating it the first time.  A
+     * failure to load the file is not remembered, so a later call tries
+     * again.
+     *
+     * @return the shared manager
+     *
+     * @throws ca.tnt.ldaputils.exception.LdapNamingException if ldap.properties
+     *                                                        cannot be loaded
+     */
+    public static synchronized LdapManager getDefault()
+    {
+        if (defaultManager == null)
+        {
+            defaultManager = new LdapManager();
+            managers.put(defaultManager.getConfiguration(), defaultManager);
+        }
+        return defaultManager;
+    }
+
+    /**
+     * Gets the manager for a configuration, creating it the first time.
+     *
+     * @param configuration the configuration
+     *
+     * @return the shared manager
+     */
+    public static synchronized LdapManager get(
+        final LdapConfiguration configuration)
+    {
+        LdapManager manager = managers.get(configuration);
+        if (manager == null)
+        {
+            manager = new LdapManager(configuration);
+            managers.put(configuration, manager);
+        }
+        return manager;
+    }
+
+    /**
+     * Forgets the manager for a configuration, so the next {@link
+     * #get(LdapConfiguration)} creates a new one.  The manager itself is left
+     * as it is, for the callers still holding it.
+     *
+     * @param configuration the configuration
+     *
+     * @return the manager that was forgotten, or null
+     */
+    public static synchronized LdapManager remove(
+        final LdapConfiguration configuration)
+    {
+        final LdapManager manager = managers.remove(configuration);
+        if (manager != null && manager == defaultManager)
+        {
+            defaultManager = null;
+        }
+        return manager;
+    }
+}
@@ -0,0 +1,640 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import org.apache.log4j.Logger;
+
+import javax.naming.Binding;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.event.EventDirContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+import javax.naming.ldap.LdapName;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in memory index from member DN to the DNs of the groups it is a direct
+ * member of, so that "which groups is this person in" does not need to load
+ * every group.
+ * <p/>
+ * The index is built with one search per group base, for entries with a
+ * member attribute, streaming the member values in to the index.  After that
+ * it is kept up to date incrementally, as a {@link ModificationListener} of
+ * the manager, for changes made through the manager, such as saving an
+ * {@link ca.tnt.ldaputils.impl.LdapGroup} after addMember or removeMember.
+ * Changes made by other clients can be followed with {@link
+ * #startWatching()}, if the server supports persistent search, or by calling
+ * {@link #rebuild()} now and then.
+ * <p/>
+ * Member DNs are compared as DNs, so case and spacing differences do not
+ * matter.  Both directions of the membership are kept, so the index uses
+ * roughly two references per membership, plus one LdapName per distinct
+ * member.
+ * <p/>
+ * Created :  19/10/26 10:20 PM MST
+ *
+ * @see LdapManager#enableMembershipIndex(LdapName...)
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class MembershipIndex implements ModificationListener
+{
+    private static final Logger logger = Logger.getLogger(
+        MembershipIndex.class);
+
+    private static final String MEMBER = "member";
+
+    private final LdapManager manager;
+    private final List<LdapName> groupBases;
+
+    /**
+     * Member to groups.  The sets are never modified once they are in the
+     * map, they are replaced, so that readers need no locking.
+     */
+    private volatile Map<LdapName, Set<LdapName>> groupsByMember =
+        new ConcurrentHashMap<LdapName, Set<LdapName>>();
+
+    /**
+     * Group to members; only used while holding the lock on this.
+     */
+    private Map<LdapName, Set<LdapName>> membersByGroup =
+        new HashMap<LdapName, Set<LdapName>>();
+
+    private EventDirContext eventContext;
+
+    /**
+     * Groups changed while a rebuild is searching, which are reloaded once
+     * the new index is in place; null when no rebuild is running.  Guarded by
+     * the lock on this.
+     */
+    private Set<LdapName> changedDuringRebuild;
+
+    /**
+     * Serializes rebuilds, so that each sees every change made during it.
+     */
+    private final Object rebuildLock = new Object();
+
+    /**
+     * Creates an empty index; call {@link #rebuild()} to fill it.
+     *
+     * @param manager    the manager used to search the groups
+     * @param groupBases the subtrees containing the groups to index
+     */
+    public MembershipIndex(final LdapManager manager,
+        final LdapName... groupBases)
+    {
+        this.manager = manager;
+        this.groupBases = Collections.unmodifiableList(
+            new ArrayList<LdapName>(Arrays.asList(groupBases)));
+    }
+
+    /**
+     * Gets the groups an entry is a direct member of, from memory.
+     *
+     * @param member the member DN
+     *
+     * @return the DNs of the groups, which may be empty, but never null
+     */
+    public Set<LdapName> groupsOf(final LdapName member)
+    {
+        final Set<LdapName> groups = groupsByMember.get(member);
+        return groups != null ? groups : Collections.<LdapName>emptySet();
+    }
+
+    /**
+     * @return the number of distinct members in the index
+     */
+    public int getMemberCount()
+    {
+        return groupsByMember.size();
+    }
+
+    /**
+     * @return the number of groups in the index
+     */
+    public synchronized int getGroupCount()
+    {
+        return membersByGroup.size();
+    }
+
+    /**
+     * @return the subtrees whose groups are indexed
+     */
+    public List<LdapName> getGroupBases()
+    {
+        return groupBases;
+    }
+
+    /**
+     * Builds the index from scratch, with one search per group base.  The old
+     * index keeps answering until the new one is complete.  Groups that
+     * change while the search runs are reloaded once the new index is in
+     * place, since the search may have read them before the change.
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public void rebuild()
+    {
+        synchronized (rebuildLock)
+        {
+            final Set<LdapName> changed;
+            synchronized (this)
+            {
+                changedDuringRebuild = new HashSet<LdapName>();
+            }
+            try
+            {
+                rebuildIndex();
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    changed = changedDuringRebuild;
+                    changedDuringRebuild = null;
+                }
+            }
+            for (final LdapName group : changed)
+            {
+                reload(group);
+            }
+        }
+    }
+
+    @SuppressWarnings({"ObjectAllocationInLoop"})
+    private void rebuildIndex()
+    {
+        final Map<LdapName, Set<LdapName>> newMembersByGroup =
+            new HashMap<LdapName, Set<LdapName>>();
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setReturningAttributes(new String[]{MEMBER});
+
+        DirContext ldapContext = null;
+        try
+        {
+            ldapContext = manager.getConnection(manager.getBindDN(),
+                manager.getBindPassword());
+            for (final LdapName groupBase : groupBases)
+            {
+                final NamingEnumeration<SearchResult> results =
+                    ldapContext.search(groupBase, "(member=*)",
+                        searchControls);
+                try
+                {
+                    while (results.hasMore())
+                    {
+                        final SearchResult entry = results.next();
+                        final LdapName group =
+                            new LdapName(entry.getNameInNamespace());
+                        newMembersByGroup.put(group,
+                            BulkMembershipUpdate.getMembers(manager, group,
+                                entry.getAttributes()));
+                    }
+                }
+                finally
+                {
+                    results.close();
+                }
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            if (ldapContext != null)
+            {
+                try
+                {
+                    ldapContext.close();
+                }
+                catch (final NamingException namingException)
+                {
+                    logger.error("error closing connection", namingException);
+                }
+            }
+        }
+
+        final Map<LdapName, Set<LdapName>> newGroupsByMember =
+            new HashMap<LdapName, Set<LdapName>>();
+        for (final Map.Entry<LdapName, Set<LdapName>> group :
+            newMembersByGroup.entrySet())
+        {
+            for (final LdapName member : group.getValue())
+            {
+                Set<LdapName> groups = newGroupsByMember.get(member);
+                if (groups == null)
+                {
+                    groups = new HashSet<LdapName>(4);
+                    newGroupsByMember.put(member, groups);
+                }
+                groups.add(group.getKey());
+            }
+        }
+        final Map<LdapName, Set<LdapName>> published =
+            new ConcurrentHashMap<LdapName, Set<LdapName>>(
+                Math.max(16, newGroupsByMember.size() * 4 / 3));
+        for (final Map.Entry<LdapName, Set<LdapName>> member :
+            newGroupsByMember.entrySet())
+        {
+            published.put(member.getKey(),
+                Collections.unmodifiableSet(member.getValue()));
+        }
+
+        synchronized (this)
+        {
+            membersByGroup = newMembersByGroup;
+            groupsByMember = published;
+        }
+        logger.info("indexed " + newMembersByGroup.size() + " groups with " +
+            published.size() + " members");
+    }
+
+    /**
+     * Follows changes made to the groups by other clients, through JNDI
+     * naming events, which the LDAP provider implements with the persistent
+     * search control.  Each changed group is reloaded.  Stop with {@link
+     * #stopWatching()}.
+     *
+     * @throws LdapNamingException if the server does not support it, or an
+     *                             ldap error occurs
+     */
+    public synchronized void startWatching()
+    {
+        if (eventContext != null)
+        {
+            return;
+        }
+
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        final GroupChangeListener listener = new GroupChangeListener();
+        DirContext ldapContext = null;
+        try
+        {
+            ldapContext = manager.getConnection(manager.getBindDN(),
+                manager.getBindPassword());
+            eventContext = (EventDirContext) ldapContext.lookup("");
+            for (final LdapName groupBase : groupBases)
+            {
+                eventContext.addNamingListener(groupBase, "(objectClass=*)",
+                    searchControls, listener);
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            stopWatching();
+            throw new LdapNamingException(namingException);
+        }
+        finally
+        {
+            if (ldapContext != null)
+            {
+                try
+                {   // the event context has its own reference
+                    ldapContext.close();
+                }
+                catch (final NamingException namingException)
+                {
+                    logger.error("error closing connection", namingException);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops following changes made by other clients.
+     */
+    public synchronized void stopWatching()
+    {
+        if (eventContext == null)
+        {
+            return;
+        }
+        try
+        {
+            eventContext.close();
+        }
+        catch (final NamingException namingException)
+        {
+            logger.error("error closing event context", namingException);
+        }
+        eventContext = null;
+    }
+
+    /**
+     * @return true if changes by other clients are being followed
+     */
+    public synchronized boolean isWatching()
+    {
+        return eventContext != null;
+    }
+
+    @Override
+    public void entryAdded(final LdapName dn, final Attributes attributes)
+    {
+        if (isIndexed(dn) && attributes != null)
+        {
+            final Attribute members = attributes.get(MEMBER);
+            if (members != null)
+            {
+                try
+                {
+                    setMembers(dn, toNames(members));
+                }
+                catch (final NamingException namingException)
+                {
+                    throw new LdapNamingException(namingException);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void entryModified(final LdapName dn,
+        final ModificationItem[] modificationItems)
+    {
+        if (!isIndexed(dn))
+        {
+            return;
+        }
+
+        try
+        {
+            for (final ModificationItem modificationItem : modificationItems)
+            {
+                final Attribute attribute = modificationItem.getAttribute();
+                if (!MEMBER.equalsIgnoreCase(attribute.getID()))
+                {
+                    continue;
+                }
+                final Set<LdapName> values = toNames(attribute);
+                switch (modificationItem.getModificationOp())
+                {
+                    case DirContext.ADD_ATTRIBUTE:
+                        addMembers(dn, values);
+                        break;
+                    case DirContext.REPLACE_ATTRIBUTE:
+                        setMembers(dn, values);
+                        break;
+                    case DirContext.REMOVE_ATTRIBUTE:
+                        if (values.isEmpty())
+                        {
+                            setMembers(dn, values);
+                        }
+                        else
+                        {
+                            removeMembers(dn, values);
+                        }
+                        break;
+                    default:
+                        reload(dn);
+                }
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+    }
+
+    @Override
+    public void entryDeleted(final LdapName dn)
+    {
+        if (isIndexed(dn))
+        {
+            setMembers(dn, Collections.<LdapName>emptySet());
+        }
+    }
+
+    /**
+     * Reloads the members of one group from the directory.
+     *
+     * @param dn the group
+     */
+    protected void reload(final LdapName dn)
+    {
+        try
+        {
+            final Attributes attributes = manager.exists(dn) ?
+                manager.getAttributes(dn, new String[]{MEMBER}) : null;
+            setMembers(dn, BulkMembershipUpdate.getMembers(manager, dn,
+                attributes));
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+    }
+
+    private boolean isIndexed(final LdapName dn)
+    {
+        for (final LdapName groupBase : groupBases)
+        {
+            if (dn.startsWith(groupBase))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void addMembers(final LdapName group,
+        final Set<LdapName> members)
+    {
+        if (changedDuringRebuild != null)
+        {
+            changedDuringRebuild.add(group);
+        }
+        Set<LdapName> current = membersByGroup.get(group);
+        if (current == null)
+        {
+            current = new HashSet<LdapName>(members.size() * 2);
+            membersByGroup.put(group, current);
+        }
+        for (final LdapName member : members)
+        {
+            if (current.add(member))
+            {
+                final Set<LdapName> groups = new HashSet<LdapName>(
+                    groupsOf(member));
+                groups.add(group);
+                groupsByMember.put(member, Collections.unmodifiableSet(groups));
+            }
+        }
+    }
+
+    private synchronized void removeMembers(final LdapName group,
+        final Set<LdapName> members)
+    {
+        if (changedDuringRebuild != null)
+        {
+            changedDuringRebuild.add(group);
+        }
+        final Set<LdapName> current = membersByGroup.get(group);
+        if (current == null)
+        {
+            return;
+        }
+        for (final LdapName member : members)
+        {
+            if (current.remove(member))
+            {
+                final Set<LdapName> groups = new HashSet<LdapName>(
+                    groupsOf(member));
+                groups.remove(group);
+                if (groups.isEmpty())
+                {
+                    groupsByMember.remove(member);
+                }
+                else
+                {
+                    groupsByMember.put(member,
+                        Collections.unmodifiableSet(groups));
+                }
+            }
+        }
+        if (current.isEmpty())
+        {
+            membersByGroup.remove(group);
+        }
+    }
+
+    private synchronized void setMembers(final LdapName group,
+        final Set<LdapName> members)
+    {
+        final Set<LdapName> current = membersByGroup.get(group);
+        if (current != null)
+        {
+            final Set<LdapName> removed = new HashSet<LdapName>(current);
+            removed.removeAll(members);
+            removeMembers(group, removed);
+        }
+        addMembers(group, members);
+        if (members.isEmpty())
+        {
+            membersByGroup.remove(group);
+        }
+    }
+
+    private static Set<LdapName> toNames(final Attribute attribute)
+        throws NamingException
+    {
+        if (attribute == null)
+        {
+            return Collections.emptySet();
+        }
+        final Set<LdapName> names = new HashSet<LdapName>(
+            attribute.size() * 2);
+        final NamingEnumeration values = attribute.getAll();
+        while (values.hasMore())
+        {
+            names.add(new LdapName(String.valueOf(values.next())));
+        }
+        return names;
+    }
+
+    /**
+     * Reloads groups as the directory reports changes to them.
+     */
+    private class GroupChangeListener
+        implements NamespaceChangeListener, ObjectChangeListener
+    {
+        @Override
+        public void objectAdded(final NamingEvent evt)
+        {
+            reload(evt.getNewBinding());
+        }
+
+        @Override
+        public void objectRemoved(final NamingEvent evt)
+        {
+            reload(evt.getOldBinding());
+        }
+
+        @Override
+        public void objectRenamed(final NamingEvent evt)
+        {
+            reload(evt.getOldBinding());
+            reload(evt.getNewBinding());
+        }
+
+        @Override
+        public void objectChanged(final NamingEvent evt)
+        {
+            reload(evt.getNewBinding());
+        }
+
+        @Override
+        public void namingExceptionThrown(final NamingExceptionEvent evt)
+        {
+            logger.error("no longer following group changes; the index " +
+                "may become stale", evt.getException());
+            synchronized (MembershipIndex.this)
+            {
+                eventContext = null;
+            }
+        }
+
+        @SuppressWarnings({"CatchGenericClass"})
+        private void reload(final Binding binding)
+        {
+            if (binding == null)
+            {
+                return;
+            }
+            try
+            {
+                String name;
+                try
+                {
+                    name = binding.getNameInNamespace();
+                }
+                catch (final UnsupportedOperationException exception)
+                {   // relative to the root context we are listening on
+                    name = binding.getName();
+                }
+                final LdapName dn = new LdapName(name);
+                if (isIndexed(dn))
+                {
+                    MembershipIndex.this.reload(dn);
+                }
+            }
+            catch (final Exception exception)
+            {   // this is an event thread; nobody else will see it
+                logger.error("error reloading " + binding.getName(),
+                    exception);
+            }
+        }
+    }
+}
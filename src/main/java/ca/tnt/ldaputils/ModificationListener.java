@@ -0,0 +1,62 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Notified by {@link LdapManager} after each change it successfully makes to
+ * the directory.  Changes made by other clients are not seen.  Listeners are
+ * called on the thread that made the change, so they should be quick, and
+ * anything they throw is logged and ignored.
+ * <p/>
+ * Created :  19/10/26 10:05 PM MST
+ *
+ * @see LdapManager#addModificationListener(ModificationListener)
+ */
+public interface ModificationListener
+{
+    /**
+     * An entry was added.
+     *
+     * @param dn         the new entry
+     * @param attributes the attributes it was added with
+     */
+    public void entryAdded(LdapName dn, Attributes attributes);
+
+    /**
+     * An entry was modified.
+     *
+     * @param dn                the entry
+     * @param modificationItems the modifications that were applied
+     */
+    public void entryModified(LdapName dn,
+        ModificationItem[] modificationItems);
+
+    /**
+     * An entry was deleted.
+     *
+     * @param dn the entry
+     */
+    public void entryDeleted(LdapName dn);
+}
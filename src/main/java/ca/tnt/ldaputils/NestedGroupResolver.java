@@ -0,0 +1,501 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import org.apache.log4j.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapName;
+import java.util.*;
+
+/**
+ * Resolves nested group membership, where the members of a group may
+ * themselves be groups.
+ * <p/>
+ * Groups are expanded a level at a time.  Each level is one batched
+ * retrieval of all of the groups found at the previous level, using {@link
+ * LdapManager#getAttributes(Collection, String, String[])}, rather than a
+ * find per group.  Groups already seen are not expanded again, so cycles,
+ * such as a group that lists itself, end the expansion rather than looping.
+ * <p/>
+ * Results are memoized for a time to live, and are shared between threads.
+ * Each memo holds at most a maximum number of results; once it is full,
+ * expired results are swept out, and if that is not enough, the results
+ * that have been held the longest are dropped.
+ * Register the resolver with {@link LdapManager#addModificationListener(ModificationListener)}
+ * to have the memo cleared whenever the manager changes group membership;
+ * changes made by others are seen once the time to live has passed.
+ * <p/>
+ * If group bases are given, only members under them are considered to be
+ * possible groups, which saves looking up every person in a large group.
+ * {@link #effectiveGroupsOf(LdapName)} needs them, to know where to search.
+ * <p/>
+ * Created :  20/10/26 7:45 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class NestedGroupResolver implements ModificationListener
+{
+    private static final Logger logger = Logger.getLogger(
+        NestedGroupResolver.class);
+
+    private static final String MEMBER = "member";
+
+    /**
+     * The most members matched by one filter when looking for their groups
+     */
+    private static final int MEMBER_FILTER_SIZE = 100;
+
+    /**
+     * The default most results held in each memo
+     */
+    public static final int DEFAULT_MAX_MEMO_SIZE = 10000;
+
+    private final LdapManager manager;
+    private final long timeToLive;
+    private final int maxMemoSize;
+    private final List<LdapName> groupBases;
+
+    /**
+     * Linked so that, when full, the oldest results are dropped first
+     */
+    private final Map<LdapName, Closure> membersMemo =
+        new LinkedHashMap<LdapName, Closure>();
+    private final Map<LdapName, Closure> groupsMemo =
+        new LinkedHashMap<LdapName, Closure>();
+
+    /**
+     * @param manager    the manager to query with
+     * @param timeToLive how long, in milliseconds, to remember a result
+     * @param groupBases the subtrees that contain groups; if none are given,
+     *                   any member may be a group
+     */
+    public NestedGroupResolver(final LdapManager manager,
+        final long timeToLive, final LdapName... groupBases)
+    {
+        this(manager, timeToLive, DEFAULT_MAX_MEMO_SIZE, groupBases);
+    }
+
+    /**
+     * @param manager     the manager to query with
+     * @param timeToLive  how long, in milliseconds, to remember a result
+     * @param maxMemoSize the most results to remember, for each of members
+     *                    and groups
+     * @param groupBases  the subtrees that contain groups; if none are given,
+     *                    any member may be a group
+     */
+    public NestedGroupResolver(final LdapManager manager,
+        final long timeToLive, final int maxMemoSize,
+        final LdapName... groupBases)
+    {
+        if (maxMemoSize < 1)
+        {
+            throw new IllegalArgumentException(
+                "maxMemoSize must be at least 1: " + maxMemoSize);
+        }
+        this.manager = manager;
+        this.timeToLive = timeToLive;
+        this.maxMemoSize = maxMemoSize;
+        this.groupBases = Collections.unmodifiableList(
+            new ArrayList<LdapName>(Arrays.asList(groupBases)));
+    }
+
+    /**
+     * Gets everything that is a member of the group, directly or through
+     * nested groups.  The nested groups themselves are not included; see
+     * {@link #expandGroups(LdapName)}.
+     *
+     * @param group the group DN
+     *
+     * @return the DNs of the members that are not groups
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public Set<LdapName> expandMembers(final LdapName group)
+    {
+        return expand(group).members;
+    }
+
+    /**
+     * Gets the groups nested within the group, at any depth.
+     *
+     * @param group the group DN
+     *
+     * @return the DNs of the nested groups, not including group itself unless
+     *         it is part of a cycle
+     *
+     * @throws LdapNamingException if an ldap error occurs
+     */
+    public Set<LdapName> expandGroups(final LdapName group)
+    {
+        return expand(group).groups;
+    }
+
+    /**
+     * Gets every group the entry is a member of, directly or through nested
+     * groups, by searching the group bases a level at a time.  Uses the
+     * manager's {@link MembershipIndex} for each level, if it has one.
+     *
+     * @param member the member DN
+     *
+     * @return the DNs of all of the groups
+     *
+     * @throws IllegalStateException if there are no group bases to search
+     * @throws LdapNamingException   if an ldap error occurs
+     */
+    public Set<LdapName> effectiveGroupsOf(final LdapName member)
+    {
+        if (groupBases.isEmpty())
+        {
+            throw new IllegalStateException(
+                "group bases are required to find the groups of a member");
+        }
+
+        final Closure memo = recall(groupsMemo, member);
+        if (memo != null)
+        {
+            return memo.groups;
+        }
+
+        final Set<LdapName> groups = new HashSet<LdapName>();
+        Collection<LdapName> level = Collections.singleton(member);
+        while (!level.isEmpty())
+        {
+            final Set<LdapName> nextLevel = new HashSet<LdapName>();
+            for (final LdapName group : findDirectGroups(level))
+            {
+                if (groups.add(group))
+                {
+                    nextLevel.add(group);
+                }
+                else
+                {
+                    logger.debug("already have " + group);
+                }
+            }
+            level = nextLevel;
+        }
+
+        final Closure closure = new Closure(Collections.<LdapName>emptySet(),
+            groups);
+        remember(groupsMemo, member, closure);
+        return closure.groups;
+    }
+
+    /**
+     * Forgets all memoized results.
+     */
+    public void invalidateAll()
+    {
+        synchronized (membersMemo)
+        {
+            membersMemo.clear();
+        }
+        synchronized (groupsMemo)
+        {
+            groupsMemo.clear();
+        }
+    }
+
+    /**
+     * @return the number of results held, expired or not, for testing
+     */
+    int getMemoSize()
+    {
+        synchronized (membersMemo)
+        {
+            synchronized (groupsMemo)
+            {
+                return membersMemo.size() + groupsMemo.size();
+            }
+        }
+    }
+
+    @Override
+    public void entryAdded(final LdapName dn, final Attributes attributes)
+    {
+        if (attributes != null && attributes.get(MEMBER) != null)
+        {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void entryModified(final LdapName dn,
+        final ModificationItem[] modificationItems)
+    {
+        for (final ModificationItem modificationItem : modificationItems)
+        {
+            if (MEMBER.equalsIgnoreCase(
+                modificationItem.getAttribute().getID()))
+            {
+                invalidateAll();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void entryDeleted(final LdapName dn)
+    {
+        final boolean memoized;
+        synchronized (membersMemo)
+        {
+            memoized = membersMemo.containsKey(dn);
+        }
+        if (memoized || isPossibleGroup(dn))
+        {
+            invalidateAll();
+        }
+    }
+
+    @SuppressWarnings({"ObjectAllocationInLoop"})
+    private Closure expand(final LdapName group)
+    {
+        final Closure memo = recall(membersMemo, group);
+        if (memo != null)
+        {
+            return memo;
+        }
+
+        final Set<LdapName> members = new HashSet<LdapName>();
+        final Set<LdapName> groups = new HashSet<LdapName>();
+        final Set<LdapName> seen = new HashSet<LdapName>();
+        seen.add(group);
+        List<LdapName> level = Collections.singletonList(group);
+        while (!level.isEmpty())
+        {
+            final List<LdapName> toRetrieve = new ArrayList<LdapName>();
+            final List<LdapName> nextLevel = new ArrayList<LdapName>();
+            for (final LdapName candidate : level)
+            {   // nested groups expanded recently need not be expanded again
+                final Closure nested = candidate.equals(group) ? null :
+                    recall(membersMemo, candidate);
+                if (nested != null)
+                {
+                    groups.add(candidate);
+                    members.addAll(nested.members);
+                    groups.addAll(nested.groups);
+                    seen.addAll(nested.groups);
+                }
+                else
+                {
+                    toRetrieve.add(candidate);
+                }
+            }
+
+            final Map<LdapName, Attributes> found = manager.getAttributes(
+                toRetrieve, "(member=*)", new String[]{MEMBER});
+            for (final LdapName candidate : toRetrieve)
+            {
+                final Attributes attributes = found.get(candidate);
+                if (attributes == null)
+                {   // not a group, or one with no members
+                    if (!candidate.equals(group))
+                    {
+                        members.add(candidate);
+                    }
+                    continue;
+                }
+                if (!candidate.equals(group))
+                {
+                    groups.add(candidate);
+                }
+                for (final LdapName member : toNames(attributes.get(MEMBER)))
+                {
+                    if (!seen.add(member))
+                    {   // a cycle, or reachable more than one way
+                        if (member.equals(group))
+                        {
+                            groups.add(group);
+                        }
+                        continue;
+                    }
+                    if (isPossibleGroup(member))
+                    {
+                        nextLevel.add(member);
+                    }
+                    else
+                    {
+                        members.add(member);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+
+        final Closure closure = new Closure(members, groups);
+        remember(membersMemo, group, closure);
+        return closure;
+    }
+
+    /**
+     * @return the memoized result, or null if there is none or it has
+     *         expired, in which case it is removed
+     */
+    private static Closure recall(final Map<LdapName, Closure> memo,
+        final LdapName dn)
+    {
+        synchronized (memo)
+        {
+            final Closure closure = memo.get(dn);
+            if (closure == null || !closure.isExpired())
+            {
+                return closure;
+            }
+            memo.remove(dn);
+            return null;
+        }
+    }
+
+    /**
+     * Memoizes a result, making room for it if the memo is full, by
+     * sweeping out expired results, then if need be the oldest.
+     */
+    private void remember(final Map<LdapName, Closure> memo,
+        final LdapName dn, final Closure closure)
+    {
+        synchronized (memo)
+        {
+            memo.remove(dn);    // so it moves to the end, as the newest
+            memo.put(dn, closure);
+            if (memo.size() <= maxMemoSize)
+            {
+                return;
+            }
+            for (final Iterator<Closure> closures = memo.values().iterator();
+                 closures.hasNext();)
+            {
+                if (closures.next().isExpired())
+                {
+                    closures.remove();
+                }
+            }
+            for (final Iterator<Closure> closures = memo.values().iterator();
+                 memo.size() > maxMemoSize && closures.hasNext();)
+            {
+                closures.next();
+                closures.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the groups that directly contain any of the members.
+     */
+    private Set<LdapName> findDirectGroups(final Collection<LdapName> members)
+    {
+        final Set<LdapName> groups = new HashSet<LdapName>();
+        final MembershipIndex index = manager.getMembershipIndex();
+        if (index != null)
+        {
+            for (final LdapName member : members)
+            {
+                groups.addAll(index.groupsOf(member));
+            }
+            return groups;
+        }
+
+        final List<LdapName> memberList = new ArrayList<LdapName>(members);
+        for (int start = 0; start < memberList.size();
+             start += MEMBER_FILTER_SIZE)
+        {
+            final List<LdapName> chunk = memberList.subList(start,
+                Math.min(memberList.size(), start + MEMBER_FILTER_SIZE));
+            final StringBuilder filter = new StringBuilder("(|");
+            final Object[] filterArgs = new Object[chunk.size()];
+            for (int argIndex = 0; argIndex < chunk.size(); argIndex++)
+            {
+                filter.append("(member={").append(argIndex).append("})");
+                filterArgs[argIndex] = chunk.get(argIndex).toString();
+            }
+            filter.append(')');
+            for (final LdapName groupBase : groupBases)
+            {
+                groups.addAll(manager.findDns(groupBase, filter.toString(),
+                    filterArgs, SearchControls.SUBTREE_SCOPE));
+            }
+        }
+        return groups;
+    }
+
+    private boolean isPossibleGroup(final LdapName dn)
+    {
+        if (groupBases.isEmpty())
+        {
+            return true;
+        }
+        for (final LdapName groupBase : groupBases)
+        {
+            if (dn.startsWith(groupBase))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<LdapName> toNames(final Attribute attribute)
+    {
+        final List<LdapName> names = new ArrayList<LdapName>(
+            attribute.size());
+        try
+        {
+            final NamingEnumeration values = attribute.getAll();
+            while (values.hasMore())
+            {
+                names.add(new LdapName(String.valueOf(values.next())));
+            }
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        return names;
+    }
+
+    /**
+     * A memoized result
+     */
+    private class Closure
+    {
+        private final Set<LdapName> members;
+        private final Set<LdapName> groups;
+        private final long expires;
+
+        Closure(final Set<LdapName> members, final Set<LdapName> groups)
+        {
+            this.members = Collections.unmodifiableSet(members);
+            this.groups = Collections.unmodifiableSet(groups);
+            expires = System.currentTimeMillis() + timeToLive;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+import org.apache.log4j.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A deadline and a cancel handle for one call on {@link LdapManager}, and
+ * everything it does, such as the aggregates and references loaded by a
+ * {@link LdapManager#find(Class, javax.naming.ldap.LdapName,
+ * OperationContext)}.
+ * <p/>
+ * While an operation runs with a context:
+ * <ul>
+ * <li>searches are sent with a time limit of the time remaining, so the
+ * server gives up too</li>
+ * <li>connections are opened with a read timeout of the time remaining, so a
+ * server that never answers does not hold the thread, or the
+ * connection</li>
+ * <li>{@link #cancel()}, from any thread, abandons the searches in progress,
+ * and every further request fails before being sent</li>
+ * </ul>
+ * The operation then throws an {@link OperationCancelledException}.  A
+ * context may be shared by several operations, to give them one deadline.
+ * <p/>
+ * Created :  25/10/26 8:05 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class OperationContext
+{
+    private static final Logger logger = Logger.getLogger(
+        OperationContext.class);
+
+    /**
+     * The least time limit that can be sent to the server, which counts in
+     * whole seconds; a limit of 0 would mean none at all
+     */
+    private static final long MIN_TIME_LIMIT = 1000;
+
+    private final long deadline;
+    private volatile boolean cancelled;
+    private final List<NamingEnumeration> searches =
+        new ArrayList<NamingEnumeration>();
+
+    /**
+     * A context with no deadline, which may only be cancelled.
+     */
+    public OperationContext()
+    {
+        deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param timeoutMillis the time the operations have, from now
+     */
+    public OperationContext(final long timeoutMillis)
+    {
+        if (timeoutMillis <= 0)
+        {
+            throw new IllegalArgumentException(
+                "timeout must be positive: " + timeoutMillis);
+        }
+        deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /**
+     * Stops the operations using this context, abandoning their searches.
+     */
+    public void cancel()
+    {
+        final List<NamingEnumeration> inProgress;
+        synchronized (searches)
+        {
+            cancelled = true;
+            inProgress = new ArrayList<NamingEnumeration>(searches);
+            searches.clear();
+        }
+        for (final NamingEnumeration search : inProgress)
+        {
+            try
+            {   // sends an abandon, and wakes the thread reading the results
+                search.close();
+            }
+            catch (final NamingException exception)
+            {
+                logger.debug("error abandoning search", exception);
+            }
+        }
+    }
+
+    /**
+     * @return whether {@link #cancel()} has been called
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return whether the deadline has passed
+     */
+    public boolean isExpired()
+    {
+        return getRemainingMillis() <= 0;
+    }
+
+    /**
+     * @return the milliseconds left before the deadline, which may be
+     *         negative, or Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemainingMillis()
+    {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE :
+            deadline - System.currentTimeMillis();
+    }
+
+    /**
+     * Throws if the operation should go no further.
+     *
+     * @throws OperationCancelledException if cancelled, or out of time
+     */
+    public void checkpoint()
+    {
+        if (cancelled)
+        {
+            throw new OperationCancelledException("operation cancelled",
+                false, null);
+        }
+        if (isExpired())
+        {
+            throw new OperationCancelledException("operation deadline passed",
+                true, null);
+        }
+    }
+
+    /**
+     * @return the time limit for a search, in milliseconds, or 0 for none
+     */
+    int getSearchTimeLimit()
+    {
+        if (deadline == Long.MAX_VALUE)
+        {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE,
+            Math.max(MIN_TIME_LIMIT, getRemainingMillis()));
+    }
+
+    /**
+     * Tracks a search, so that cancelling abandons it.
+     */
+    void register(final NamingEnumeration search)
+    {
+        final boolean abandon;
+        synchronized (searches)
+        {
+            abandon = cancelled;
+            if (!abandon)
+            {
+                searches.add(search);
+            }
+        }
+        if (abandon)
+        {
+            try
+            {
+                search.close();
+            }
+            catch (final NamingException exception)
+            {
+                logger.debug("error abandoning search", exception);
+            }
+        }
+    }
+
+    void unregister(final NamingEnumeration search)
+    {
+        synchronized (searches)
+        {
+            searches.remove(search);
+        }
+    }
+}
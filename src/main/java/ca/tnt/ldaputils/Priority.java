@@ -0,0 +1,43 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+/**
+ * The class of traffic an operation belongs to.  When the manager has a
+ * {@link ConcurrencyLimiter}, interactive operations are given slots ahead of
+ * batch ones, and a reserve of slots batch operations may not use; the
+ * manager's default executor also runs interactive work first.  See {@link
+ * LdapManager#withPriority(Priority)}.
+ * <p/>
+ * Created :  27/10/26 7:15 PM MST
+ */
+public enum Priority
+{
+    /**
+     * User facing requests, whose latency matters; the default
+     */
+    INTERACTIVE,
+
+    /**
+     * Bulk jobs, which can wait
+     */
+    BATCH
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool that runs queued {@link Priority#INTERACTIVE} work before
+ * {@link Priority#BATCH} work, and otherwise in submission order.  Work
+ * submitted without a priority, through the usual {@link
+ * java.util.concurrent.ExecutorService} methods, is interactive.
+ * <p/>
+ * Created :  27/10/26 7:25 PM MST
+ */
+class PriorityExecutor extends ThreadPoolExecutor
+{
+    private final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(final int threads, final ThreadFactory threadFactory)
+    {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Queues work with the given priority.
+     */
+    void execute(final Runnable work, final Priority priority)
+    {
+        super.execute(new PrioritizedWork(work, priority,
+            sequence.getAndIncrement()));
+    }
+
+    @Override
+    public void execute(final Runnable work)
+    {
+        if (work instanceof PrioritizedWork)
+        {
+            super.execute(work);
+        }
+        else
+        {
+            execute(work, Priority.INTERACTIVE);
+        }
+    }
+
+    /**
+     * Orders the queue by priority, then by submission
+     */
+    private static final class PrioritizedWork
+        implements Runnable, Comparable<PrioritizedWork>
+    {
+        private final Runnable work;
+        private final Priority priority;
+        private final long sequence;
+
+        private PrioritizedWork(final Runnable work, final Priority priority,
+            final long sequence)
+        {
+            this.work = work;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            work.run();
+        }
+
+        @Override
+        public int compareTo(final PrioritizedWork other)
+        {
+            if (priority != other.priority)
+            {
+                return priority.compareTo(other.priority);
+            }
+            return sequence < other.sequence ? -1 :
+                sequence == other.sequence ? 0 : 1;
+        }
+    }
+}
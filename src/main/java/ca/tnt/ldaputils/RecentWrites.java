@@ -0,0 +1,136 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import javax.naming.ldap.LdapName;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the entries a manager changed for a while, so that reads of them
+ * can go to the supplier the change was made on, instead of a consumer that
+ * may not have replicated it yet.
+ * <p/>
+ * A change is remembered against the changed entry and each of its
+ * ancestors, so that checking a read, of an entry or of a subtree, is a
+ * single lookup, however many changes there are.  Changes that are too old
+ * are forgotten when they are looked up, and the rest are swept out once a
+ * window, as changes are recorded.
+ * <p/>
+ * Created :  27/10/26 3:40 PM MST
+ */
+class RecentWrites
+{
+    /**
+     * The time of the latest change at or below each DN
+     */
+    private final ConcurrentMap<LdapName, Long> written =
+        new ConcurrentHashMap<LdapName, Long>();
+    private volatile long windowMillis;
+    private volatile long nextSweep;
+
+    /**
+     * @param windowMillis how long a change is remembered; changing it later
+     *                     applies to the changes already remembered too
+     */
+    RecentWrites(final long windowMillis)
+    {
+        this.windowMillis = windowMillis;
+    }
+
+    long getWindowMillis()
+    {
+        return windowMillis;
+    }
+
+    void setWindowMillis(final long windowMillis)
+    {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param dn the entry that was changed
+     */
+    void record(final LdapName dn)
+    {
+        final long window = windowMillis;
+        if (window <= 0)
+        {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (int size = dn.size(); size >= 0; size--)
+        {
+            written.put((LdapName) dn.getPrefix(size), now);
+        }
+        if (now >= nextSweep)
+        {
+            nextSweep = now + window;
+            sweep(now - window);
+        }
+    }
+
+    /**
+     * Whether base, or an entry below it, was changed recently.
+     *
+     * @param base an entry, or the base of a search; null is never covered
+     *
+     * @return true if a read of base should see the supplier
+     */
+    boolean covers(final LdapName base)
+    {
+        if (base == null)
+        {
+            return false;
+        }
+        final Long time = written.get(base);
+        if (time == null)
+        {
+            return false;
+        }
+        if (time > System.currentTimeMillis() - windowMillis)
+        {
+            return true;
+        }
+        written.remove(base, time);
+        return false;
+    }
+
+    /**
+     * @return the number of DNs remembered, for testing
+     */
+    int size()
+    {
+        return written.size();
+    }
+
+    private void sweep(final long oldest)
+    {
+        for (final Map.Entry<LdapName, Long> entry : written.entrySet())
+        {
+            if (entry.getValue() <= oldest)
+            {   // unless it was changed again meanwhile
+                written.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.flow.Publisher;
+import ca.tnt.ldaputils.flow.Subscriber;
+import ca.tnt.ldaputils.flow.Subscription;
+import org.apache.log4j.Logger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the entities of a search to a {@link Subscriber}, only as fast as it
+ * asks for them.  See {@link LdapManager#findPublisher(LdapName, String,
+ * String[], Class, int, int)}.
+ * <p/>
+ * Each subscription runs its own search, when the first item is requested,
+ * using the paged results control.  An entity is only mapped, through {@link
+ * LdapManager#find(Class, LdapName, javax.naming.directory.Attributes)}, when
+ * the subscriber has asked for it, and the next page is only requested from
+ * the server once the current one has been delivered and there is still
+ * demand.  Entries the entity class does not support are skipped.
+ * <p/>
+ * The work is done on the manager's {@link LdapManager#getExecutor()
+ * executor}, with the manager's {@link LdapManager#getPriority() priority},
+ * never on the subscriber's thread.  Cancelling abandons the
+ * search, ends the paged results on the server, and closes the connection;
+ * if a page is being read at the time, that happens once it has arrived.
+ * A subtree search that covers suffixes {@link LdapManager#addRoute(LdapName,
+ * String, List) routed} to other servers is done as one search per server,
+ * the base first, then each suffix, and an entry found by more than one of
+ * them is only delivered once.
+ * <p/>
+ * The connection holds a slot from the manager's read {@link
+ * ConcurrencyLimiter}, if it has one, from the first request until the
+ * subscription completes or is cancelled.  The entities are mapped within
+ * that slot, so loading their aggregates does not wait for another.  If the
+ * publisher was created within an {@link OperationContext}, its deadline and
+ * cancellation apply to the searches and to the mapping, as they would to a
+ * find.
+ * <p/>
+ * Created :  24/10/26 7:45 PM MST
+ */
+public class SearchPublisher implements Publisher<Object>
+{
+    private static final Logger logger = Logger.getLogger(
+        SearchPublisher.class);
+
+    private final LdapManager manager;
+    private final LdapName baseDN;
+    private final String searchFilter;
+    private final String[] attributes;
+    private final Class ldapEntryClass;
+    private final int searchScope;
+    private final int pageSize;
+    private final OperationContext context;
+
+    SearchPublisher(final LdapManager manager, final LdapName baseDN,
+        final String searchFilter, final String[] attributes,
+        final Class ldapEntryClass, final int searchScope, final int pageSize)
+    {
+        if (pageSize < 1)
+        {
+            throw new IllegalArgumentException(
+                "page size must be at least 1: " + pageSize);
+        }
+        this.manager = manager;
+        this.baseDN = baseDN;
+        this.searchFilter = searchFilter;
+        this.attributes = manager.withVersionAttribute(attributes);
+        this.ldapEntryClass = ldapEntryClass;
+        this.searchScope = searchScope;
+        this.pageSize = pageSize;
+        context = LdapManager.getCurrentContext();
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super Object> subscriber)
+    {
+        final SearchSubscription subscription = new SearchSubscription(
+            subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * One search, delivering to one subscriber.  Only the thread that wins
+     * {@link #pending} touches the search and the subscriber, so the
+     * subscriber is called serially, and the connection is only ever used by
+     * one thread at a time.
+     */
+    private class SearchSubscription implements Subscription, Runnable
+    {
+        private final Subscriber<? super Object> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;
+        private boolean finished;
+
+        /**
+         * The searches to do, one after the other, and the one in progress
+         */
+        private List<LdapManager.SearchBase> bases;
+        private int baseIndex;
+        /**
+         * The DNs delivered so far, if there is more than one base
+         */
+        private Set<LdapName> seen;
+
+        private LdapContext ldapContext;
+        /**
+         * The limiter the connection holds a slot from, or null, and whether
+         * the thread delivering counts it as held
+         */
+        private ConcurrencyLimiter slot;
+        private boolean slotCounted;
+        /**
+         * The same for every page, and for the request abandoning the search,
+         * which must match the search it ends
+         */
+        private SearchControls searchControls;
+        private NamingEnumeration<SearchResult> results;
+        private byte[] cookie;
+
+        private SearchSubscription(final Subscriber<? super Object> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n)
+        {
+            if (n <= 0)
+            {
+                badRequest = new IllegalArgumentException(
+                    "must request a positive number of items: " + n);
+            }
+            else
+            {
+                long current;
+                long next;
+                do
+                {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }
+                while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule()
+        {
+            if (pending.getAndIncrement() == 0)
+            {
+                manager.execute(this);
+            }
+        }
+
+        /**
+         * Delivers as much as is asked for, until no more requests or
+         * cancellations are pending.
+         */
+        @Override
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                if (!finished)
+                {
+                    deliver();
+                }
+                missed = pending.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        @SuppressWarnings({"CatchGenericClass"})
+        private void deliver()
+        {
+            try
+            {
+                countSlot();
+                if (context != null)
+                {
+                    manager.execute(context, new Callable<Object>()
+                    {
+                        @Override
+                        public Object call() throws Exception
+                        {
+                            deliverInContext();
+                            return null;
+                        }
+                    });
+                }
+                else
+                {
+                    deliverInContext();
+                }
+            }
+            catch (final Throwable throwable)
+            {
+                finish();
+                if (!cancelled)
+                {
+                    subscriber.onError(throwable);
+                }
+            }
+            finally
+            {
+                uncountSlot();
+            }
+        }
+
+        /**
+         * Delivers as much as is asked for, within the caller's context, if any.
+         */
+        private void deliverInContext() throws NamingException, IOException
+        {
+            while (!cancelled && badRequest == null && demand.get() > 0)
+            {
+                final Object entity = next();
+                if (entity == null)
+                {
+                    finish();
+                    if (!cancelled)
+                    {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (demand.get() != Long.MAX_VALUE)
+                {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext(entity);
+            }
+            if (cancelled)
+            {
+                finish();
+            }
+            else if (badRequest != null)
+            {
+                finish();
+                subscriber.onError(badRequest);
+            }
+        }
+
+        /**
+         * Counts the connection's slot as held by this thread, while it
+         * delivers.
+         */
+        private void countSlot()
+        {
+            if (slot != null && !slotCounted)
+            {
+                manager.countHeld(slot);
+                slotCounted = true;
+            }
+        }
+
+        private void uncountSlot()
+        {
+            if (slotCounted)
+            {
+                manager.uncountHeld(slot);
+                slotCounted = false;
+            }
+        }
+
+        /**
+         * @return the next supported entity, or null if there are no more
+         */
+        private Object next() throws NamingException, IOException
+        {
+            while (true)
+            {
+                if (results == null && !startPage())
+                {   // an optional base that does not exist
+                    if (!nextBase())
+                    {
+                        return null;
+                    }
+                    continue;
+                }
+                if (cancelled)
+                {
+                    return null;
+                }
+                if (hasMore())
+                {
+                    final SearchResult entry = results.next();
+                    final LdapName dn = new LdapName(
+                        entry.getNameInNamespace());
+                    if (seen != null && !seen.add(dn))
+                    {   // an earlier base delivered it
+                        continue;
+                    }
+                    final Object entity = manager.find(ldapEntryClass, dn,
+                        entry.getAttributes());
+                    if (entity != null)
+                    {
+                        return entity;
+                    }
+                }
+                else
+                {
+                    closeResults();
+                    cookie = getCookie();
+                    if (cookie == null && !nextBase())
+                    {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return whether the page has another entry; false at the end of
+         *         an optional base that does not exist
+         */
+        private boolean hasMore() throws NamingException
+        {
+            try
+            {
+                return results.hasMore();
+            }
+            catch (final NameNotFoundException exception)
+            {
+                if (!bases.get(baseIndex).optional)
+                {
+                    throw exception;
+                }
+                cookie = null;
+                return false;
+            }
+        }
+
+        /**
+         * Sends the search for the next page of the current base, connecting
+         * to the servers holding it first, if it is just starting.
+         *
+         * @return false if the base is optional and does not exist
+         */
+        private boolean startPage() throws NamingException, IOException
+        {
+            if (bases == null)
+            {
+                bases = manager.routedBases(baseDN, searchScope);
+                seen = bases.size() > 1 ? new HashSet<LdapName>() : null;
+            }
+            final LdapManager.SearchBase base = bases.get(baseIndex);
+            if (ldapContext == null)
+            {
+                final ConcurrencyLimiter[] acquired = new ConcurrencyLimiter[1];
+                ldapContext = (LdapContext) manager.getConnection(base.dn,
+                    manager.getBindDN(), manager.getBindPassword(), acquired);
+                slot = acquired[0];
+                countSlot();
+                searchControls = new SearchControls();
+                searchControls.setReturningAttributes(attributes);
+                searchControls.setSearchScope(base.scope);
+                if (context != null)
+                {   // the same for every page, which must not differ
+                    searchControls.setTimeLimit(context.getSearchTimeLimit());
+                }
+            }
+            ldapContext.setRequestControls(new Control[]{
+                new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+            try
+            {
+                results = ldapContext.search(base.dn, searchFilter,
+                    searchControls);
+                if (context != null)
+                {
+                    context.register(results);
+                }
+            }
+            catch (final NameNotFoundException exception)
+            {
+                if (!base.optional)
+                {
+                    throw exception;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Moves on to the next base, which gets its own connection.
+         *
+         * @return false if there are no more bases
+         */
+        private boolean nextBase()
+        {
+            closeConnection();
+            cookie = null;
+            baseIndex++;
+            return baseIndex < bases.size();
+        }
+
+        private byte[] getCookie() throws NamingException
+        {
+            final Control[] controls = ldapContext.getResponseControls();
+            if (controls != null)
+            {
+                for (final Control control : controls)
+                {
+                    if (control instanceof PagedResultsResponseControl)
+                    {
+                        final byte[] next =
+                            ((PagedResultsResponseControl) control)
+                                .getCookie();
+                        return next != null && next.length > 0 ? next : null;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Releases the search, abandoning it if it is not complete.
+         */
+        private void finish()
+        {
+            finished = true;
+            try
+            {
+                if (results != null)
+                {   // closing a search in progress abandons it
+                    closeResults();
+                }
+                else if (cookie != null && ldapContext != null)
+                {   // between pages; the same search with a size of 0 ends it
+                    ldapContext.setRequestControls(new Control[]{
+                        new PagedResultsControl(0, cookie, Control.CRITICAL)});
+                    ldapContext.search(bases.get(baseIndex).dn, searchFilter,
+                        searchControls).close();
+                }
+            }
+            catch (final Exception exception)
+            {   // the server keeps the paged search until it gives up on it
+                logger.warn("error abandoning the search of " + baseDN +
+                    ": " + exception);
+            }
+            finally
+            {
+                results = null;
+                cookie = null;
+                closeConnection();
+            }
+        }
+
+        private void closeResults() throws NamingException
+        {
+            if (context != null)
+            {
+                context.unregister(results);
+            }
+            final NamingEnumeration<SearchResult> closing = results;
+            results = null;
+            closing.close();
+        }
+
+        private void closeConnection()
+        {
+            uncountSlot();
+            slot = null;
+            if (ldapContext != null)
+            {
+                try
+                {
+                    ldapContext.close();
+                }
+                catch (final NamingException exception)
+                {
+                    logger.error("error closing connection", exception);
+                }
+                ldapContext = null;
+            }
+        }
+    }
+}
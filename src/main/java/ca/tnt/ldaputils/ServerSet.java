@@ -0,0 +1,437 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The directory servers, replicas of one another, that a manager spreads its
+ * operations over.  See {@link LdapManager#setServers(List)}.
+ * <p/>
+ * Reads go to the healthy server with the fewest operations outstanding, and
+ * writes to the first healthy server in the list.  If there is a supplier,
+ * writes only ever go to it, and reads go to the consumers, or to the
+ * supplier when no consumer is healthy.  A server that cannot be
+ * connected to is ejected for ejectMillis, and the operation fails over to
+ * the next server.  If there is a {@link Prober}, an ejected server is probed
+ * in the background once its ejection runs out, again after twice as long
+ * each time, up to eight times ejectMillis, and is not used again until a
+ * probe succeeds, however long that takes; otherwise it is simply tried
+ * again once its ejection runs out.  When every
+ * server is ejected, they are tried anyway, soonest to return first.
+ * <p/>
+ * Each server has its own connections, and so its own JNDI connection pool,
+ * as the pool is kept per URL.
+ * <p/>
+ * Created :  27/10/26 10:05 AM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class ServerSet
+{
+    private static final Logger logger = Logger.getLogger(ServerSet.class);
+    private static final long DEFAULT_EJECT_MILLIS = 30000;
+    private static final int MAX_BACKOFF = 8;
+
+    private final List<Server> servers;
+    private final Server supplier;
+    private final long ejectMillis;
+    private final AtomicInteger nextRead = new AtomicInteger();
+    private volatile Prober prober;
+    private ScheduledExecutorService probes;
+
+    /**
+     * Checks whether an ejected server is back.
+     */
+    public interface Prober
+    {
+        /**
+         * @param url the server's URL
+         *
+         * @throws Exception if the server is still unusable
+         */
+        void probe(String url) throws Exception;
+    }
+
+    /**
+     * Uses servers, ejecting failed ones for 30 seconds.
+     *
+     * @param urls the server URLs, such as ldap://ldap1.example.com:389
+     */
+    public ServerSet(final Collection<String> urls)
+    {
+        this(urls, DEFAULT_EJECT_MILLIS);
+    }
+
+    /**
+     * @param urls        the server URLs, such as ldap://ldap1.example.com:389
+     * @param ejectMillis how long a failed server is left alone
+     */
+    public ServerSet(final Collection<String> urls, final long ejectMillis)
+    {
+        this(null, urls, ejectMillis);
+    }
+
+    /**
+     * Uses a writable supplier and read only consumers.
+     *
+     * @param supplierUrl  the server that takes writes, or null if all of
+     *                     them do
+     * @param consumerUrls the servers that take reads
+     * @param ejectMillis  how long a failed server is left alone
+     */
+    public ServerSet(final String supplierUrl,
+        final Collection<String> consumerUrls, final long ejectMillis)
+    {
+        if (consumerUrls.isEmpty() && supplierUrl == null)
+        {
+            throw new IllegalArgumentException("no servers given");
+        }
+        final List<Server> list = new ArrayList<Server>(
+            consumerUrls.size() + 1);
+        if (supplierUrl != null)
+        {
+            supplier = new Server(supplierUrl);
+            list.add(supplier);
+        }
+        else
+        {
+            supplier = null;
+        }
+        for (final String url : consumerUrls)
+        {
+            list.add(new Server(url));
+        }
+        servers = Collections.unmodifiableList(list);
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * @param prober checks ejected servers in the background, or null to
+     *               just try them again once their ejection runs out
+     */
+    public void setProber(final Prober prober)
+    {
+        this.prober = prober;
+    }
+
+    /**
+     * @return the server that takes writes, or null if all of them do
+     */
+    public Server getSupplier()
+    {
+        return supplier;
+    }
+
+    /**
+     * @return the servers, in the order given, supplier first, for their
+     *         metrics
+     */
+    public List<Server> getServers()
+    {
+        return servers;
+    }
+
+    /**
+     * Chooses a server for an operation, counting it as outstanding there
+     * until {@link #release(Server, long)}.
+     *
+     * @param write   whether the operation changes the directory, or must
+     *                otherwise see the supplier
+     * @param exclude servers already tried by the operation
+     *
+     * @return the server, or null if all of them are excluded
+     */
+    public Server choose(final boolean write,
+        final Collection<Server> exclude)
+    {
+        if (supplier != null && write)
+        {
+            return exclude.contains(supplier) ? null : use(supplier);
+        }
+        final long now = System.currentTimeMillis();
+        final int size = servers.size();
+        final int start = write ? 0 :
+            (nextRead.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Server chosen = null;
+        Server fallback = null;
+        for (int index = 0; index < size; index++)
+        {
+            final Server server = servers.get((start + index) % size);
+            if (exclude.contains(server) || server == supplier)
+            {
+                continue;
+            }
+            if (server.isAvailable(now))
+            {
+                if (write)
+                {
+                    chosen = server;
+                    break;
+                }
+                if (chosen == null || server.outstanding.get() <
+                    chosen.outstanding.get())
+                {
+                    chosen = server;
+                }
+            }
+            else if (fallback == null ||
+                server.ejectedUntil < fallback.ejectedUntil)
+            {
+                fallback = server;
+            }
+        }
+        if (chosen == null && supplier != null && !exclude.contains(supplier))
+        {   // the consumers are all down, so the supplier takes the reads
+            if (supplier.isAvailable(now) || fallback == null ||
+                supplier.ejectedUntil < fallback.ejectedUntil)
+            {
+                chosen = supplier;
+            }
+        }
+        if (chosen == null)
+        {
+            chosen = fallback;
+        }
+        return chosen != null ? use(chosen) : null;
+    }
+
+    private static Server use(final Server server)
+    {
+        server.outstanding.incrementAndGet();
+        server.requests.incrementAndGet();
+        return server;
+    }
+
+    /**
+     * Ends an operation started with {@link #choose(boolean, Collection)}.
+     *
+     * @param server the server
+     * @param nanos  how long the operation took
+     */
+    public void release(final Server server, final long nanos)
+    {
+        server.outstanding.decrementAndGet();
+        server.latency.record(nanos);
+    }
+
+    /**
+     * Ejects a server that could not be reached.
+     *
+     * @param server the server
+     * @param cause  why
+     */
+    public void fail(final Server server, final Exception cause)
+    {
+        server.failures.incrementAndGet();
+        synchronized (server)
+        {
+            if (server.isAvailable(System.currentTimeMillis()))
+            {
+                logger.warn("ejecting " + server.url + ": " +
+                    cause.getMessage());
+                server.healthy = false;
+                server.backoff = 1;
+                eject(server);
+            }
+        }
+    }
+
+    private void eject(final Server server)
+    {
+        final long millis = ejectMillis * server.backoff;
+        server.ejectedUntil = System.currentTimeMillis() + millis;
+        server.awaitingProbe = prober != null;
+        if (server.awaitingProbe)
+        {
+            getProbes().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    probe(server);
+                }
+            }, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @SuppressWarnings({"CatchGenericClass"})
+    private void probe(final Server server)
+    {
+        final Prober current = prober;
+        try
+        {
+            if (current != null)
+            {
+                current.probe(server.url);
+            }
+            synchronized (server)
+            {
+                server.ejectedUntil = 0;
+                server.backoff = 1;
+                server.awaitingProbe = false;
+                server.healthy = true;
+            }
+            logger.info("reinstated " + server.url);
+        }
+        catch (final Exception e)
+        {
+            synchronized (server)
+            {
+                server.backoff = Math.min(MAX_BACKOFF, server.backoff * 2);
+                eject(server);
+            }
+            logger.debug("probe of " + server.url + " failed", e);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getProbes()
+    {
+        if (probes == null)
+        {
+            probes = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable,
+                        "ServerSet-prober");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return probes;
+    }
+
+    /**
+     * Stops probing ejected servers.
+     */
+    public synchronized void close()
+    {
+        if (probes != null)
+        {
+            probes.shutdownNow();
+            probes = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ServerSet" + servers;
+    }
+
+    /**
+     * One server, with its metrics.
+     */
+    public static final class Server
+    {
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final LatencyStatistics latency = new LatencyStatistics();
+        private volatile long ejectedUntil;
+        /**
+         * Cleared when the server is ejected, and only set again by a
+         * successful probe
+         */
+        private volatile boolean healthy = true;
+        /**
+         * Whether a probe, rather than time, decides when it is back
+         */
+        private volatile boolean awaitingProbe;
+        private int backoff = 1;
+
+        private Server(final String url)
+        {
+            this.url = url;
+        }
+
+        private boolean isAvailable(final long now)
+        {
+            return healthy || !awaitingProbe && ejectedUntil <= now;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        /**
+         * @return whether the server is currently in use
+         */
+        public boolean isHealthy()
+        {
+            return isAvailable(System.currentTimeMillis());
+        }
+
+        /**
+         * @return the operations currently using the server
+         */
+        public int getOutstanding()
+        {
+            return outstanding.get();
+        }
+
+        /**
+         * @return the operations sent to the server
+         */
+        public long getRequestCount()
+        {
+            return requests.get();
+        }
+
+        /**
+         * @return the times the server could not be reached
+         */
+        public long getFailureCount()
+        {
+            return failures.get();
+        }
+
+        /**
+         * @return how long operations on the server have taken
+         */
+        public LatencyStatistics getLatencyStatistics()
+        {
+            return latency;
+        }
+
+        @Override
+        public String toString()
+        {
+            return url + "{outstanding=" + outstanding + ", healthy=" +
+                isHealthy() + '}';
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls into one.  The first caller for a key
+ * does the work on its own thread; callers arriving with the same key while
+ * it is in flight wait for it, and are given a {@link #copy(Object) copy} of
+ * its result, or the same exception.  Nothing is remembered once the call
+ * completes, so this is not a cache.
+ * <p/>
+ * Each caller keeps its own {@link OperationContext}.  A waiting caller
+ * waits no longer than its own deadline, and stops if it is cancelled or
+ * interrupted.  If the first caller fails because its own context was
+ * cancelled or ran out of time, that failure is not passed on; the waiting
+ * callers start over, and one of them does the work instead.
+ * <p/>
+ * Created :  22/10/26 9:35 PM MST
+ */
+class SingleFlight<K, V>
+{
+    /**
+     * How often a waiting caller checks whether it has been cancelled
+     */
+    private static final long CHECK_MILLIS = 100;
+
+    private final ConcurrentMap<K, Flight<V>> inFlight =
+        new ConcurrentHashMap<K, Flight<V>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Does the call, or waits for the identical one in flight, with no
+     * operation context.
+     *
+     * @see #execute(Object, OperationContext, Callable)
+     */
+    V execute(final K key, final Callable<V> call)
+    {
+        return execute(key, null, call);
+    }
+
+    /**
+     * Does the call, or waits for the identical one in flight.
+     *
+     * @param key     identifies identical calls
+     * @param context the caller's operation context, or null
+     * @param call    the work to do
+     *
+     * @return the result
+     *
+     * @throws OperationCancelledException if the caller's context is
+     *                                     cancelled, or runs out of time,
+     *                                     while waiting
+     * @throws RuntimeException            whatever the call threw, or an
+     *                                     {@link LdapNamingException}
+     *                                     wrapping a checked exception, or
+     *                                     an interrupt while waiting
+     */
+    V execute(final K key, final OperationContext context,
+        final Callable<V> call)
+    {
+        while (true)
+        {
+            final Flight<V> flight = new Flight<V>(call, context);
+            final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null)
+            {
+                try
+                {
+                    flight.run();
+                }
+                finally
+                {
+                    inFlight.remove(key, flight);
+                }
+                return get(flight);
+            }
+
+            coalesced.incrementAndGet();
+            await(existing, context);
+            if (existing.isStopped())
+            {   // its caller gave up, which says nothing about this one
+                coalesced.decrementAndGet();
+                inFlight.remove(key, existing);
+                continue;
+            }
+            return copy(get(existing));
+        }
+    }
+    /**
+     * Stops later callers joining the calls in flight whose keys match, such
+     * as reads of an entry that has just been changed, so that they start
+     * their own.
+     *
+     * @param matcher decides which keys to forget
+     */
+    void forget(final KeyMatcher<K> matcher)
+    {
+        for (final Iterator<K> keys = inFlight.keySet().iterator();
+             keys.hasNext();)
+        {
+            if (matcher.matches(keys.next()))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * @return how many calls have been satisfied by another's result
+     */
+    long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Copies a shared result for a waiting caller, so that callers cannot
+     * see each other's changes to it.  Override for mutable results.
+     *
+     * @param value the result of the call in flight
+     *
+     * @return the value to give the waiting caller
+     */
+    protected V copy(final V value)
+    {
+        return value;
+    }
+
+    /**
+     * Waits for a flight to finish, within the caller's context.
+     */
+    private static void await(final Flight<?> flight,
+        final OperationContext context)
+    {
+        while (!flight.isDone())
+        {
+            try
+            {
+                if (context == null)
+                {
+                    flight.get();
+                }
+                else
+                {
+                    context.checkpoint();
+                    flight.get(Math.min(CHECK_MILLIS,
+                        Math.max(1, context.getRemainingMillis())),
+                        TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (final InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+                throw new LdapNamingException("interrupted", exception);
+            }
+            catch (final TimeoutException exception)
+            {   // the context is checked again on the next pass
+            }
+            catch (final ExecutionException exception)
+            {   // done; the caller is given it by get
+            }
+        }
+    }
+
+    private static <V> V get(final Flight<V> flight)
+    {
+        try
+        {
+            return flight.get();
+        }
+        catch (final InterruptedException exception)
+        {   // cannot happen, it is done
+            Thread.currentThread().interrupt();
+            throw new LdapNamingException("interrupted", exception);
+        }
+        catch (final ExecutionException exception)
+        {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new LdapNamingException(cause);
+        }
+    }
+
+    /**
+     * A call in flight, and the context of the caller doing it
+     */
+    private static class Flight<V> extends FutureTask<V>
+    {
+        private final OperationContext context;
+
+        Flight(final Callable<V> call, final OperationContext context)
+        {
+            super(call);
+            this.context = context;
+        }
+
+        /**
+         * @return true if the call failed because its caller's context was
+         *         cancelled or ran out of time
+         */
+        boolean isStopped()
+        {
+            try
+            {
+                get();
+                return false;
+            }
+            catch (final ExecutionException exception)
+            {
+                return exception.getCause() instanceof
+                    OperationCancelledException || context != null &&
+                    (context.isCancelled() || context.isExpired());
+            }
+            catch (final InterruptedException exception)
+            {   // cannot happen, it is done
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Selects keys to {@link #forget(KeyMatcher)}.
+     */
+    interface KeyMatcher<K>
+    {
+        boolean matches(K key);
+    }
+}
@@ -0,0 +1,1023 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.DirectoryOverloadedException;
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+import org.apache.log4j.Logger;
+
+import javax.naming.CommunicationException;
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Write behind queue for high volume, latency insensitive modifications, such
+ * as last seen timestamps.  When enabled on the {@link LdapManager}, {@link
+ * ILdapEntry#save()} no longer waits for the directory; the modifications are
+ * appended to a local journal file, queued in memory, and applied later by a
+ * background flusher.
+ * <p/>
+ * Modifications are coalesced per DN, so that many saves of the same entry
+ * between two flushes cost a single modify operation.  A REPLACE of an
+ * attribute discards any earlier queued modifications of that attribute.
+ * {@link ILdapEntry#INCREMENT_ATTRIBUTE Increments} of an attribute are
+ * summed, or folded in to a queued REPLACE of it, and are applied atomically
+ * with the other modifications when flushed, relative to the value the
+ * attribute has at that time.
+ * <p/>
+ * The journal is append only.  Every queued modification is written as an
+ * enqueue record, and a commit record is written once it has been applied to
+ * the directory.  On {@link #start()}, any enqueue records without a matching
+ * commit are replayed, which covers a crash of the JVM between a save and the
+ * next flush.  The journal is truncated whenever the queue drains completely.
+ * <p/>
+ * Queued modifications are always applied with the manager's own bind DN, so
+ * credentials are never written to the journal.
+ * <p/>
+ * Created :  18/10/26 9:30 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class WriteBehindQueue
+{
+    private static final Logger logger = Logger.getLogger(
+        WriteBehindQueue.class);
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_COMMIT = 2;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_BYTES = 2;
+
+    private final LdapManager manager;
+    private final File journalFile;
+
+    /**
+     * modifications waiting to be flushed, in the order their DN was first
+     * queued
+     */
+    private LinkedHashMap<LdapName, PendingEntry> pending;
+
+    /**
+     * only one flush at a time, so that modifications of a single DN are
+     * always applied in order
+     */
+    private final Object flushLock = new Object();
+
+    private final LatencyStatistics flushLatency = new LatencyStatistics();
+    private final AtomicLong flushedEntries = new AtomicLong();
+    private final AtomicLong failedEntries = new AtomicLong();
+
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+    private long nextSequence;
+    private int pendingItems;
+
+    private long flushInterval = 1000;
+    private int batchSize = 100;
+    private boolean syncJournal;
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Creates a write behind queue, journaling to the given file.  Call {@link
+     * #start()}, or hand it to {@link LdapManager#setWriteBehindQueue}, before
+     * use.
+     *
+     * @param manager     the manager used to apply the queued modifications
+     * @param journalFile the append only journal file; created if missing
+     */
+    public WriteBehindQueue(final LdapManager manager, final File journalFile)
+    {
+        this.manager = manager;
+        this.journalFile = journalFile;
+        pending = new LinkedHashMap<LdapName, PendingEntry>();
+    }
+
+    /**
+     * Replays any uncommitted journal records, opens the journal for
+     * appending, and starts the background flusher.
+     *
+     * @throws LdapNamingException if the journal cannot be read or opened
+     */
+    public synchronized void start()
+    {
+        if (flusher != null)
+        {
+            throw new IllegalStateException(
+                "write behind queue already started");
+        }
+
+        try
+        {
+            final List<JournalRecord> outstanding = readJournal();
+            openJournal(false);
+            for (final JournalRecord record : outstanding)
+            {   // already journaled, under their original sequence
+                queue(record.sequence, record.dn, record.items,
+                    record.increments);
+            }
+            if (!outstanding.isEmpty())
+            {
+                logger.info("recovered " + outstanding.size() +
+                    " uncommitted modifications from " + journalFile);
+            }
+        }
+        catch (final IOException exception)
+        {
+            throw new LdapNamingException("unable to open write behind " +
+                "journal " + journalFile, exception);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable runnable)
+                {
+                    final Thread thread = new Thread(runnable,
+                        "lpa-write-behind");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        flusher.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flush();
+                }
+                catch (final RuntimeException exception)
+                {
+                    logger.error("write behind flush failed", exception);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if {@link #start()} has been called, and the queue has not
+     *         been closed since
+     */
+    public synchronized boolean isStarted()
+    {
+        return flusher != null;
+    }
+
+    /**
+     * Stops the background flusher, flushes whatever can still be applied, and
+     * closes the journal.  Anything that could not be applied stays in the
+     * journal for the next {@link #start()}.
+     */
+    public void close()
+    {
+        final ScheduledExecutorService stopping;
+        synchronized (this)
+        {
+            stopping = flusher;
+            flusher = null;
+        }
+        if (stopping != null)
+        {
+            stopping.shutdown();
+            try
+            {
+                stopping.awaitTermination(flushInterval * 2,
+                    TimeUnit.MILLISECONDS);
+            }
+            catch (final InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int remaining = getQueueDepth();
+        while (remaining > 0)
+        {   // keep flushing until empty, or until a flush makes no progress
+            flush();
+            final int depth = getQueueDepth();
+            if (depth >= remaining)
+            {
+                logger.warn(depth + " entries left in write behind journal " +
+                    journalFile);
+                break;
+            }
+            remaining = depth;
+        }
+
+        synchronized (this)
+        {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Journals and queues the modifications of a single entry.
+     *
+     * @param dn    the entry to modify
+     * @param items the modifications, as they would be passed to {@link
+     *              DirContext#modifyAttributes(javax.naming.Name,
+     *              ModificationItem[])}
+     *
+     * @throws LdapNamingException if the journal cannot be written; nothing is
+     *                             queued in that case
+     */
+    public void enqueue(final LdapName dn, final ModificationItem[] items)
+    {
+        enqueue(dn, items, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * Journals and queues the modifications and increments of a single
+     * entry, to be applied together.
+     *
+     * @param dn         the entry to modify
+     * @param items      the modifications
+     * @param increments the amount to add to each single valued integer
+     *                   attribute, by attribute name; see {@link
+     *                   LdapManager#modifyAttributes(LdapName,
+     *                   ModificationItem[], Map, String, String, String)}
+     *
+     * @throws LdapNamingException if the journal cannot be written; nothing is
+     *                             queued in that case
+     */
+    public synchronized void enqueue(final LdapName dn,
+        final ModificationItem[] items, final Map<String, Long> increments)
+    {
+        if (journal == null)
+        {
+            throw new IllegalStateException("write behind queue not started");
+        }
+
+        final long sequence = nextSequence++;
+        try
+        {
+            writeEnqueue(sequence, dn, items, increments);
+        }
+        catch (final IOException exception)
+        {
+            throw new LdapNamingException("unable to journal modifications " +
+                "for " + dn, exception);
+        }
+        queue(sequence, dn, items, increments);
+    }
+
+    private void queue(final long sequence, final LdapName dn,
+        final ModificationItem[] items, final Map<String, Long> increments)
+    {
+        PendingEntry entry = pending.get(dn);
+        if (entry == null)
+        {
+            entry = new PendingEntry();
+            pending.put(dn, entry);
+        }
+        pendingItems -= entry.size();
+        entry.add(sequence, items, increments);
+        pendingItems += entry.size();
+    }
+
+    /**
+     * Applies up to {@link #getBatchSize()} queued entries to the directory.
+     * Called periodically by the background flusher, but may also be called
+     * directly.
+     * <p/>
+     * Entries that fail because the directory is unreachable, or because the
+     * write {@link ConcurrencyLimiter limiter} refused them or the operation
+     * was cancelled, are put back at the head of the queue and retried on the
+     * next flush.  Entries that the
+     * directory rejects for any other reason are logged and dropped, since
+     * retrying them can never succeed.
+     */
+    public void flush()
+    {
+        synchronized (flushLock)
+        {
+            final List<Map.Entry<LdapName, PendingEntry>> batch =
+                takeBatch();
+            if (batch.isEmpty())
+            {
+                return;
+            }
+
+            final long start = System.nanoTime();
+            int index = 0;
+            for (; index < batch.size(); index++)
+            {
+                final Map.Entry<LdapName, PendingEntry> entry =
+                    batch.get(index);
+                final PendingEntry pendingEntry = entry.getValue();
+                try
+                {
+                    manager.modifyAttributes(entry.getKey(),
+                        pendingEntry.toArray(), pendingEntry.increments,
+                        manager.getBindDN(), manager.getBindPassword(), null);
+                    flushedEntries.incrementAndGet();
+                }
+                catch (final LdapNamingException exception)
+                {
+                    if (isRetryable(exception))
+                    {
+                        logger.warn("directory unavailable or overloaded, " +
+                            "write behind flush postponed: " +
+                            exception.getMessage());
+                        break;
+                    }
+                    failedEntries.incrementAndGet();
+                    logger.error("dropping queued modifications for " +
+                        entry.getKey(), exception);
+                }
+                commit(pendingEntry.sequences);
+            }
+            flushLatency.record(System.nanoTime() - start);
+
+            synchronized (this)
+            {
+                if (index < batch.size())
+                {
+                    requeue(batch.subList(index, batch.size()));
+                }
+                else if (pending.isEmpty() && journal != null)
+                {   // everything applied, so the journal can start over
+                    try
+                    {
+                        closeJournal();
+                        openJournal(true);
+                    }
+                    catch (final IOException exception)
+                    {
+                        throw new LdapNamingException("unable to truncate " +
+                            "write behind journal " + journalFile, exception);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries (distinct DNs) waiting to be flushed
+     */
+    public synchronized int getQueueDepth()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of modification items waiting to be flushed, after
+     *         coalescing
+     */
+    public synchronized int getPendingModifications()
+    {
+        return pendingItems;
+    }
+
+    /**
+     * @return latency of each flush, covering all entries of the batch
+     */
+    public LatencyStatistics getFlushLatency()
+    {
+        return flushLatency;
+    }
+
+    /**
+     * @return the number of entries successfully applied to the directory
+     */
+    public long getFlushedEntries()
+    {
+        return flushedEntries.get();
+    }
+
+    /**
+     * @return the number of entries the directory rejected, and which were
+     *         dropped
+     */
+    public long getFailedEntries()
+    {
+        return failedEntries.get();
+    }
+
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval milliseconds between the end of one background
+     *                      flush and the start of the next; only takes effect
+     *                      on {@link #start()}
+     */
+    public void setFlushInterval(final long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize maximum number of entries applied per flush
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isSyncJournal()
+    {
+        return syncJournal;
+    }
+
+    /**
+     * @param syncJournal whether every journal record is forced to disk before
+     *                    {@link #enqueue} returns.  Safer, but much slower; by
+     *                    default records are only flushed to the operating
+     *                    system.
+     */
+    public void setSyncJournal(final boolean syncJournal)
+    {
+        this.syncJournal = syncJournal;
+    }
+
+    public File getJournalFile()
+    {
+        return journalFile;
+    }
+
+    private synchronized List<Map.Entry<LdapName, PendingEntry>> takeBatch()
+    {
+        final List<Map.Entry<LdapName, PendingEntry>> batch =
+            new ArrayList<Map.Entry<LdapName, PendingEntry>>(
+                Math.min(batchSize, pending.size()));
+        final Iterator<Map.Entry<LdapName, PendingEntry>> iterator =
+            pending.entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < batchSize)
+        {
+            final Map.Entry<LdapName, PendingEntry> entry = iterator.next();
+            batch.add(new AbstractMap.SimpleEntry<LdapName, PendingEntry>(
+                entry));
+            pendingItems -= entry.getValue().size();
+            iterator.remove();
+        }
+        return batch;
+    }
+
+    /**
+     * Puts unapplied entries back at the head of the queue, ahead of anything
+     * queued for the same DN while they were being flushed.
+     *
+     * @param entries the entries to put back
+     */
+    private void requeue(final List<Map.Entry<LdapName, PendingEntry>> entries)
+    {
+        final LinkedHashMap<LdapName, PendingEntry> requeued =
+            new LinkedHashMap<LdapName, PendingEntry>();
+        for (final Map.Entry<LdapName, PendingEntry> entry : entries)
+        {
+            requeued.put(entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<LdapName, PendingEntry> entry : pending.entrySet())
+        {
+            final PendingEntry older = requeued.get(entry.getKey());
+            if (older == null)
+            {
+                requeued.put(entry.getKey(), entry.getValue());
+            }
+            else
+            {
+                older.merge(entry.getValue());
+            }
+        }
+        pending = requeued;
+
+        pendingItems = 0;
+        for (final PendingEntry entry : pending.values())
+        {
+            pendingItems += entry.size();
+        }
+    }
+
+    private static boolean isRetryable(final Throwable exception)
+    {
+        Throwable cause = exception;
+        while (cause != null)
+        {
+            if (cause instanceof CommunicationException ||
+                cause instanceof ServiceUnavailableException ||
+                cause instanceof DirectoryOverloadedException ||
+                cause instanceof OperationCancelledException)
+            {
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    private synchronized void commit(final List<Long> sequences)
+    {
+        if (journal == null)
+        {
+            return;
+        }
+        try
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(RECORD_COMMIT);
+            record.writeInt(sequences.size());
+            for (final Long sequence : sequences)
+            {
+                record.writeLong(sequence);
+            }
+            writeRecord(bytes.toByteArray());
+        }
+        catch (final IOException exception)
+        {   // the worst case is that the entry is applied again on recovery
+            logger.error("unable to journal commit", exception);
+        }
+    }
+
+    /**
+     * The increments follow the modifications, so that journals written
+     * before increments were queued can still be read.
+     */
+    private void writeEnqueue(final long sequence, final LdapName dn,
+        final ModificationItem[] items, final Map<String, Long> increments)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(RECORD_ENQUEUE);
+        record.writeLong(sequence);
+        writeString(record, dn.toString());
+        record.writeInt(items.length);
+        for (final ModificationItem item : items)
+        {
+            final Attribute attribute = item.getAttribute();
+            record.writeInt(item.getModificationOp());
+            writeString(record, attribute.getID());
+            record.writeInt(attribute.size());
+            try
+            {
+                final NamingEnumeration values = attribute.getAll();
+                while (values.hasMore())
+                {
+                    writeValue(record, values.next());
+                }
+            }
+            catch (final NamingException exception)
+            {
+                throw new LdapNamingException(exception);
+            }
+        }
+        record.writeInt(increments.size());
+        for (final Map.Entry<String, Long> increment : increments.entrySet())
+        {
+            writeString(record, increment.getKey());
+            record.writeLong(increment.getValue());
+        }
+        writeRecord(bytes.toByteArray());
+    }
+
+    /**
+     * Each record is framed by its length and a checksum, so that a record
+     * torn by a crash is detected and ignored on recovery.
+     *
+     * @param record the serialized record
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    private void writeRecord(final byte[] record) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        journal.writeInt(record.length);
+        journal.write(record);
+        journal.writeLong(crc.getValue());
+        journal.flush();
+        if (syncJournal)
+        {
+            journalStream.getFD().sync();
+        }
+    }
+
+    private static void writeString(final DataOutputStream output,
+        final String value) throws IOException
+    {
+        final byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(final DataInputStream input)
+        throws IOException
+    {
+        final byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeValue(final DataOutputStream output,
+        final Object value) throws IOException
+    {
+        if (value == null)
+        {
+            output.writeByte(VALUE_NULL);
+        }
+        else if (value instanceof byte[])
+        {
+            final byte[] bytes = (byte[]) value;
+            output.writeByte(VALUE_BYTES);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+        else
+        {
+            output.writeByte(VALUE_STRING);
+            writeString(output, value.toString());
+        }
+    }
+
+    private static Object readValue(final DataInputStream input)
+        throws IOException
+    {
+        final byte type = input.readByte();
+        final Object value;
+        switch (type)
+        {
+            case VALUE_NULL:
+                value = null;
+                break;
+            case VALUE_BYTES:
+                final byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                value = bytes;
+                break;
+            case VALUE_STRING:
+                value = readString(input);
+                break;
+            default:
+                throw new IOException("unknown journal value type " + type);
+        }
+        return value;
+    }
+
+    /**
+     * Reads the journal, and returns the enqueue records that were never
+     * committed, in their original order.  Also moves the next sequence number
+     * past every sequence already in the journal.
+     *
+     * @return the outstanding records
+     *
+     * @throws IOException if the journal exists but cannot be read
+     */
+    private List<JournalRecord> readJournal() throws IOException
+    {
+        final LinkedHashMap<Long, JournalRecord> outstanding =
+            new LinkedHashMap<Long, JournalRecord>();
+        if (!journalFile.exists())
+        {
+            return new ArrayList<JournalRecord>(0);
+        }
+
+        final DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(journalFile)));
+        try
+        {
+            while (true)
+            {
+                final byte[] bytes;
+                try
+                {
+                    bytes = new byte[input.readInt()];
+                    input.readFully(bytes);
+                    final CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if (crc.getValue() != input.readLong())
+                    {
+                        logger.warn("corrupt record in " + journalFile +
+                            ", ignoring the rest of the journal");
+                        break;
+                    }
+                }
+                catch (final EOFException exception)
+                {   // end of the journal, or a record torn by a crash
+                    break;
+                }
+
+                final DataInputStream record = new DataInputStream(
+                    new ByteArrayInputStream(bytes));
+                final byte type = record.readByte();
+                if (type == RECORD_ENQUEUE)
+                {
+                    final long sequence = record.readLong();
+                    outstanding.put(sequence, readEnqueue(sequence, record));
+                    nextSequence = Math.max(nextSequence, sequence + 1);
+                }
+                else if (type == RECORD_COMMIT)
+                {
+                    final int count = record.readInt();
+                    for (int index = 0; index < count; index++)
+                    {
+                        outstanding.remove(record.readLong());
+                    }
+                }
+                else
+                {
+                    throw new IOException("unknown journal record type " +
+                        type);
+                }
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        return new ArrayList<JournalRecord>(outstanding.values());
+    }
+
+    private static JournalRecord readEnqueue(final long sequence,
+        final DataInputStream record) throws IOException
+    {
+        final LdapName dn;
+        try
+        {
+            dn = new LdapName(readString(record));
+        }
+        catch (final InvalidNameException exception)
+        {
+            throw new IOException("invalid dn in journal: " +
+                exception.getMessage());
+        }
+
+        final ModificationItem[] items =
+            new ModificationItem[record.readInt()];
+        for (int index = 0; index < items.length; index++)
+        {
+            final int operation = record.readInt();
+            final Attribute attribute = new BasicAttribute(readString(record));
+            final int valueCount = record.readInt();
+            for (int value = 0; value < valueCount; value++)
+            {
+                attribute.add(readValue(record));
+            }
+            items[index] = new ModificationItem(operation, attribute);
+        }
+        final Map<String, Long> increments =
+            new LinkedHashMap<String, Long>();
+        if (record.available() > 0)
+        {
+            final int count = record.readInt();
+            for (int index = 0; index < count; index++)
+            {
+                increments.put(readString(record), record.readLong());
+            }
+        }
+        return new JournalRecord(sequence, dn, items, increments);
+    }
+
+    private void openJournal(final boolean truncate) throws IOException
+    {
+        journalStream = new FileOutputStream(journalFile, !truncate);
+        journal = new DataOutputStream(new BufferedOutputStream(
+            journalStream));
+    }
+
+    private void closeJournal()
+    {
+        if (journal != null)
+        {
+            try
+            {
+                journal.close();
+            }
+            catch (final IOException exception)
+            {
+                logger.error("error closing journal " + journalFile,
+                    exception);
+            }
+            journal = null;
+            journalStream = null;
+        }
+    }
+
+    /**
+     * A single uncommitted journal record.
+     */
+    private static class JournalRecord
+    {
+        private final long sequence;
+        private final LdapName dn;
+        private final ModificationItem[] items;
+        private final Map<String, Long> increments;
+
+        private JournalRecord(final long sequence, final LdapName dn,
+            final ModificationItem[] items, final Map<String, Long> increments)
+        {
+            this.sequence = sequence;
+            this.dn = dn;
+            this.items = items;
+            this.increments = increments;
+        }
+    }
+
+    /**
+     * The coalesced modifications of a single DN.
+     */
+    private static class PendingEntry
+    {
+        private final List<ModificationItem> items =
+            new ArrayList<ModificationItem>();
+        private final Map<String, Long> increments =
+            new LinkedHashMap<String, Long>();
+        private final List<Long> sequences = new ArrayList<Long>();
+
+        private void add(final long sequence, final ModificationItem[] newItems,
+            final Map<String, Long> newIncrements)
+        {
+            sequences.add(sequence);
+            for (final ModificationItem item : newItems)
+            {
+                add(item);
+            }
+            for (final Map.Entry<String, Long> increment :
+                newIncrements.entrySet())
+            {
+                addIncrement(increment.getKey(), increment.getValue());
+            }
+        }
+
+        private void merge(final PendingEntry newer)
+        {
+            sequences.addAll(newer.sequences);
+            for (final ModificationItem item : newer.items)
+            {
+                add(item);
+            }
+            for (final Map.Entry<String, Long> increment :
+                newer.increments.entrySet())
+            {
+                addIncrement(increment.getKey(), increment.getValue());
+            }
+        }
+
+        /**
+         * @return the number of modifications and increments
+         */
+        private int size()
+        {
+            return items.size() + increments.size();
+        }
+
+        /**
+         * An increment of an attribute with a queued REPLACE of a single
+         * integer value changes that value instead; otherwise it is added to
+         * the other increments of the attribute.
+         *
+         * @param attrId the attribute
+         * @param delta  the amount to add
+         */
+        private void addIncrement(final String attrId, final long delta)
+        {
+            for (int index = items.size() - 1; index >= 0; index--)
+            {
+                final ModificationItem item = items.get(index);
+                final Attribute attribute = item.getAttribute();
+                if (attrId.equalsIgnoreCase(attribute.getID()))
+                {
+                    if (item.getModificationOp() ==
+                        DirContext.REPLACE_ATTRIBUTE && attribute.size() == 1)
+                    {
+                        try
+                        {
+                            final long value = Long.parseLong(String.valueOf(
+                                attribute.get()).trim());
+                            items.set(index, new ModificationItem(
+                                DirContext.REPLACE_ATTRIBUTE,
+                                new BasicAttribute(attribute.getID(),
+                                    String.valueOf(value + delta))));
+                            return;
+                        }
+                        catch (final NamingException exception)
+                        {
+                            throw new LdapNamingException(exception);
+                        }
+                        catch (final NumberFormatException exception)
+                        {   // left for the directory to reject
+                        }
+                    }
+                    break;
+                }
+            }
+            final Long pending = increments.get(attrId);
+            increments.put(attrId, pending == null ? delta : pending + delta);
+        }
+
+        /**
+         * A REPLACE makes every earlier modification of the same attribute
+         * irrelevant.  Otherwise, consecutive modifications of the same
+         * attribute with the same operation are folded in to one item.
+         *
+         * @param item the modification to coalesce
+         */
+        private void add(final ModificationItem item)
+        {
+            final String attrId = item.getAttribute().getID();
+            if (item.getModificationOp() == DirContext.REPLACE_ATTRIBUTE)
+            {   // including any increments queued before it
+                final Iterator<String> incremented =
+                    increments.keySet().iterator();
+                while (incremented.hasNext())
+                {
+                    if (attrId.equalsIgnoreCase(incremented.next()))
+                    {
+                        incremented.remove();
+                    }
+                }
+                final Iterator<ModificationItem> iterator = items.iterator();
+                while (iterator.hasNext())
+                {
+                    if (attrId.equalsIgnoreCase(
+                        iterator.next().getAttribute().getID()))
+                    {
+                        iterator.remove();
+                    }
+                }
+            }
+            else if (!items.isEmpty())
+            {
+                final ModificationItem last = items.get(items.size() - 1);
+                final Attribute lastAttribute = last.getAttribute();
+                if (last.getModificationOp() == item.getModificationOp() &&
+                    attrId.equalsIgnoreCase(lastAttribute.getID()) &&
+                    lastAttribute.size() > 0 && !lastAttribute.contains(null) &&
+                    item.getAttribute().size() > 0 &&
+                    !item.getAttribute().contains(null))
+                {
+                    final Attribute merged = (Attribute) lastAttribute.clone();
+                    try
+                    {
+                        final NamingEnumeration values =
+                            item.getAttribute().getAll();
+                        while (values.hasMore())
+                        {
+                            merged.add(values.next());
+                        }
+                    }
+                    catch (final NamingException exception)
+                    {
+                        throw new LdapNamingException(exception);
+                    }
+                    items.set(items.size() - 1, new ModificationItem(
+                        last.getModificationOp(), merged));
+                    return;
+                }
+            }
+            items.add(item);
+        }
+
+        private ModificationItem[] toArray()
+        {
+            return items.toArray(new ModificationItem[items.size()]);
+        }
+    }
+}
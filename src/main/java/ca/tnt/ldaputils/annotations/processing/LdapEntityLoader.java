@@ -54,6 +54,11 @@ public class LdapEntityLoader extends LdapEntityHandler
 {
     private static final Logger logger = Logger.getLogger(
         LdapEntityLoader.class);
+    /**
+     * The attribute option used for ranged retrieval of large attributes
+     */
+    private static final String RANGE_OPTION = ";range=";
+
     private boolean isDnSet;
     private Attributes attributes;
     private LdapName dn;
@@ -138,7 +143,15 @@ public class LdapEntityLoader extends LdapEntityHandler
         final NamingEnumeration attrValues =
             attr != null ? attr.getAll() : null;
         Object fieldValue = field.get(entity);
-        if (attr != null)
+        if (attr == null && fieldValue instanceof Collection)
+        {   // the server may have sent only the first range of a large one
+            final Attribute firstRange = getFirstRange(attrName);
+            if (firstRange != null)
+            {
+                loadRanges((Collection) fieldValue, attrName, firstRange);
+            }
+        }
+        else if (attr != null)
         {
             if (isMultiValued(fieldType))
             {   // assumed to accept list of ALL attribute values
@@ -240,6 +253,72 @@ public class LdapEntityLoader extends LdapEntityHandler
         return fieldValue;
     }
 
+    /**
+     * Finds the first range of an attribute, when the server has used ranged
+     * retrieval, as Active Directory does for attributes with more than 1500
+     * values or so.
+     *
+     * @param attrName the attribute name, without options
+     *
+     * @return the attribute with an ID of the form attrName;range=0-N, or null
+     *         if there is none
+     *
+     * @throws NamingException if the attribute IDs cannot be read
+     */
+    private Attribute getFirstRange(final String attrName)
+        throws NamingException
+    {
+        final String rangePrefix = attrName + RANGE_OPTION;
+        final NamingEnumeration<? extends Attribute> all = attributes.getAll();
+        while (all.hasMore())
+        {
+            final Attribute attribute = all.next();
+            if (attribute.getID().regionMatches(true, 0, rangePrefix, 0,
+                rangePrefix.length()))
+            {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Streams every range of the attribute in to the field's collection, one
+     * range at a time, so that the complete attribute is never held as a
+     * whole in addition to the collection.  Each range is added with a single
+     * addAll, which a compact collection such as {@link
+     * ca.tnt.ldaputils.impl.CompactDnSet} can do efficiently.
+     *
+     * @param fieldValue the collection to add the values to
+     * @param attrName   the attribute name, without options
+     * @param firstRange the first range, sent with the entry
+     *
+     * @throws NamingException if the values cannot be read
+     */
+    @SuppressWarnings({"unchecked"})
+    private void loadRanges(final Collection fieldValue, final String attrName,
+        final Attribute firstRange) throws NamingException
+    {
+        Attribute range = firstRange;
+        while (range != null)
+        {
+            fieldValue.addAll(Collections.list(range.getAll()));
+            final String id = range.getID();
+            final String end = id.substring(id.lastIndexOf('-') + 1);
+            if ("*".equals(end))
+            {
+                break;
+            }
+            if (manager == null)
+            {
+                throw new LpaAnnotationException("no manager to retrieve " +
+                    "the rest of " + attrName + " with");
+            }
+            range = manager.getAttributeRange(dn, attrName,
+                Integer.parseInt(end) + 1);
+        }
+    }
+
     /**
      * Loads all of the aggregates for the specific attribute values.  This is
      * done by injecting an Rdn escaped value from attrValues into the
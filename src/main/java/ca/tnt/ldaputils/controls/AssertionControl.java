@@ -0,0 +1,69 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The LDAP assertion control (RFC 4528).  The operation it is attached to is
+ * only performed if the target entry matches the assertion; otherwise the
+ * server fails it with the assertionFailed (122) result code.
+ * <p/>
+ * Only equality assertions are supported, which is all we need for optimistic
+ * concurrency on an entry version attribute such as entryCSN or
+ * modifyTimestamp.
+ * <p/>
+ * Created :  18/10/26 10:40 PM MST
+ */
+public class AssertionControl extends BasicControl
+{
+    private static final long serialVersionUID = 3412553710391854732L;
+
+    /**
+     * The assertion control OID
+     */
+    public static final String OID = "1.3.6.1.1.12";
+
+    /**
+     * The LDAP result code for a failed assertion
+     */
+    public static final int ASSERTION_FAILED = 122;
+
+    /**
+     * context specific, constructed, equalityMatch filter choice
+     */
+    private static final int EQUALITY_MATCH = 0xa3;
+
+    /**
+     * Creates a critical assertion control for the filter
+     * <code>(attribute=value)</code>.  It is always critical, as a server
+     * that silently ignored it would defeat the purpose.
+     *
+     * @param attribute the attribute description, such as entryCSN
+     * @param value     the value the attribute must have
+     */
+    public AssertionControl(final String attribute, final String value)
+    {
+        super(OID, true, BerEncoder.encodeConstructed(EQUALITY_MATCH,
+            BerEncoder.encodeString(BerEncoder.OCTET_STRING, attribute),
+            BerEncoder.encodeString(BerEncoder.OCTET_STRING, value)));
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Just enough of a BER decoder for the values of the response controls we
+ * read: definite lengths, and single byte tags.
+ * <p/>
+ * Created :  18/10/26 6:05 PM MST
+ */
+final class BerDecoder
+{
+    private final byte[] bytes;
+    private final int end;
+    private int position;
+
+    /**
+     * @param bytes the encoded elements
+     */
+    BerDecoder(final byte[] bytes)
+    {
+        this(bytes, 0, bytes.length);
+    }
+
+    private BerDecoder(final byte[] bytes, final int start, final int end)
+    {
+        this.bytes = bytes;
+        this.end = end;
+        position = start;
+    }
+
+    /**
+     * @return true if there is another element
+     */
+    boolean hasMore()
+    {
+        return position < end;
+    }
+
+    /**
+     * @return the tag of the next element, without reading it
+     *
+     * @throws IllegalArgumentException if there are no more elements
+     */
+    int peekTag()
+    {
+        check(position);
+        return bytes[position] & 0xff;
+    }
+
+    /**
+     * Reads a constructed element, such as a SEQUENCE.
+     *
+     * @param tag the expected tag
+     *
+     * @return a decoder of its contents
+     *
+     * @throws IllegalArgumentException if the element has another tag, or is
+     *                                  truncated
+     */
+    BerDecoder readConstructed(final int tag)
+    {
+        final int length = readHeader(tag);
+        final BerDecoder contents = new BerDecoder(bytes, position,
+            position + length);
+        position += length;
+        return contents;
+    }
+
+    /**
+     * Reads a UTF-8 OCTET STRING.
+     *
+     * @param tag the expected tag
+     *
+     * @return the string
+     *
+     * @throws IllegalArgumentException if the element has another tag, or is
+     *                                  truncated
+     */
+    String readString(final int tag)
+    {
+        final int length = readHeader(tag);
+        try
+        {
+            final String value = new String(bytes, position, length, "UTF-8");
+            position += length;
+            return value;
+        }
+        catch (final UnsupportedEncodingException exception)
+        {   // UTF-8 is always supported
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private int readHeader(final int tag)
+    {
+        if (peekTag() != tag)
+        {
+            throw new IllegalArgumentException("expected tag " +
+                Integer.toHexString(tag) + " but found " +
+                Integer.toHexString(peekTag()));
+        }
+        position++;
+        check(position);
+        int length = bytes[position++] & 0xff;
+        if (length > 0x7f)
+        {   // long form, the number of length bytes first
+            final int count = length & 0x7f;
+            if (count > 4)
+            {
+                throw new IllegalArgumentException("unsupported length");
+            }
+            length = 0;
+            for (int index = 0; index < count; index++)
+            {
+                check(position);
+                length = (length << 8) | (bytes[position++] & 0xff);
+            }
+        }
+        if (length < 0 || position + length > end)
+        {
+            throw new IllegalArgumentException("truncated element");
+        }
+        return length;
+    }
+
+    private void check(final int index)
+    {
+        if (index >= end)
+        {
+            throw new IllegalArgumentException("truncated element");
+        }
+    }
+}
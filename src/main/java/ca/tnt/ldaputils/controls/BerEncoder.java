@@ -0,0 +1,127 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Just enough of a BER encoder for the values of the request controls we
+ * send.  JNDI has its own, but it is not public API.
+ * <p/>
+ * Created :  18/10/26 10:31 PM MST
+ */
+final class BerEncoder
+{
+    /**
+     * universal OCTET STRING tag
+     */
+    static final int OCTET_STRING = 0x04;
+
+    /**
+     * universal constructed SEQUENCE tag
+     */
+    static final int SEQUENCE = 0x30;
+
+    private BerEncoder()
+    {
+    }
+
+    /**
+     * Encodes a tag, length and value.
+     *
+     * @param tag   the tag byte
+     * @param value the already encoded contents
+     *
+     * @return the encoded element
+     */
+    static byte[] encode(final int tag, final byte[] value)
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(
+            value.length + 6);
+        output.write(tag);
+        writeLength(output, value.length);
+        output.write(value, 0, value.length);
+        return output.toByteArray();
+    }
+
+    /**
+     * Encodes a UTF-8 OCTET STRING.
+     *
+     * @param tag   the tag byte; usually {@link #OCTET_STRING}, but may be
+     *              context specific
+     * @param value the string value
+     *
+     * @return the encoded element
+     */
+    static byte[] encodeString(final int tag, final String value)
+    {
+        try
+        {
+            return encode(tag, value.getBytes("UTF-8"));
+        }
+        catch (final UnsupportedEncodingException exception)
+        {   // UTF-8 is always supported
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Concatenates already encoded elements, and wraps them in the given
+     * constructed tag.
+     *
+     * @param tag      the constructed tag, such as {@link #SEQUENCE}
+     * @param elements the encoded elements
+     *
+     * @return the encoded element
+     */
+    static byte[] encodeConstructed(final int tag, final byte[]... elements)
+    {
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        for (final byte[] element : elements)
+        {
+            contents.write(element, 0, element.length);
+        }
+        return encode(tag, contents.toByteArray());
+    }
+
+    private static void writeLength(final ByteArrayOutputStream output,
+        final int length)
+    {
+        if (length < 0x80)
+        {   // short form
+            output.write(length);
+        }
+        else
+        {   // long form, the number of length bytes first
+            int bytes = 0;
+            for (int remaining = length; remaining > 0; remaining >>>= 8)
+            {
+                bytes++;
+            }
+            output.write(0x80 | bytes);
+            for (int index = bytes - 1; index >= 0; index--)
+            {
+                output.write((length >>> (index * 8)) & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * The permissive modify control, supported by Active Directory, OpenLDAP and
+ * others.  With it, adding a value that already exists, or removing one that
+ * does not, succeeds without doing anything, rather than failing the whole
+ * modify.
+ * <p/>
+ * Created :  20/10/26 9:05 PM MST
+ */
+public class PermissiveModifyControl extends BasicControl
+{
+    private static final long serialVersionUID = -4207733953618243017L;
+
+    /**
+     * The permissive modify control OID
+     */
+    public static final String OID = "1.2.840.113556.1.4.1413";
+
+    /**
+     * Creates a critical permissive modify control, which has no value.
+     */
+    public PermissiveModifyControl()
+    {
+        super(OID, true, null);
+    }
+}
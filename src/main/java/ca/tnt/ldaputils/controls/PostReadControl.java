@@ -0,0 +1,137 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * The LDAP post-read control (RFC 4527).  The server returns the given
+ * attributes of the entry as they are right after the operation, in the
+ * operation's own response, so no other change can come in between.
+ * <p/>
+ * Created :  18/10/26 6:20 PM MST
+ */
+public class PostReadControl extends BasicControl
+{
+    private static final long serialVersionUID = -6059318745263620861L;
+
+    /**
+     * The post-read control OID, for both the request and the response
+     */
+    public static final String OID = "1.3.6.1.1.13.2";
+
+    /**
+     * application, constructed, SearchResultEntry protocol op
+     */
+    private static final int SEARCH_RESULT_ENTRY = 0x64;
+
+    /**
+     * universal constructed SET tag
+     */
+    private static final int SET = 0x31;
+
+    /**
+     * Creates a post-read control for the attributes.  It is not critical, so
+     * a server that does not support it performs the operation anyway, and
+     * returns no response control.
+     *
+     * @param attributes the attribute descriptions to return
+     */
+    public PostReadControl(final String... attributes)
+    {
+        super(OID, false, encode(attributes));
+    }
+
+    private static byte[] encode(final String... attributes)
+    {
+        final byte[][] elements = new byte[attributes.length][];
+        for (int index = 0; index < attributes.length; index++)
+        {
+            elements[index] = BerEncoder.encodeString(BerEncoder.OCTET_STRING,
+                attributes[index]);
+        }
+        return BerEncoder.encodeConstructed(BerEncoder.SEQUENCE, elements);
+    }
+
+    /**
+     * Finds the post-read response among the response controls of an
+     * operation, and decodes the attributes it holds.
+     *
+     * @param responseControls the response controls, which may be null
+     *
+     * @return the attributes, or null if there is no post-read response
+     *
+     * @throws IllegalArgumentException if the response is not valid
+     */
+    public static Attributes getAttributes(final Control[] responseControls)
+    {
+        if (responseControls != null)
+        {
+            for (final Control control : responseControls)
+            {
+                if (OID.equals(control.getID()))
+                {
+                    return decode(control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the value of a post-read response control, which is the entry
+     * as a SearchResultEntry.
+     *
+     * @param value the encoded value
+     *
+     * @return the attributes of the entry
+     *
+     * @throws IllegalArgumentException if the value is not valid
+     */
+    public static Attributes decode(final byte[] value)
+    {
+        final BerDecoder entry = new BerDecoder(value).readConstructed(
+            SEARCH_RESULT_ENTRY);
+        entry.readString(BerEncoder.OCTET_STRING);   // the DN
+        final BerDecoder partialAttributes = entry.readConstructed(
+            BerEncoder.SEQUENCE);
+        final Attributes attributes = new BasicAttributes(true);
+        while (partialAttributes.hasMore())
+        {
+            final BerDecoder partialAttribute =
+                partialAttributes.readConstructed(BerEncoder.SEQUENCE);
+            final Attribute attribute = new BasicAttribute(
+                partialAttribute.readString(BerEncoder.OCTET_STRING));
+            final BerDecoder values = partialAttribute.readConstructed(SET);
+            while (values.hasMore())
+            {
+                attribute.add(values.readString(BerEncoder.OCTET_STRING));
+            }
+            attributes.put(attribute);
+        }
+        return attributes;
+    }
+}
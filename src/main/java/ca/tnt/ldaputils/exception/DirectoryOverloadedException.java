@@ -0,0 +1,37 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.exception;
+
+/**
+ * Thrown when an operation is refused because too many are already in
+ * flight toward the directory, and the queue for them is full, or the wait
+ * for a turn took too long.  Nothing was sent; back off and try again later,
+ * or report the directory as busy.
+ * <p/>
+ * Created :  26/10/26 7:20 PM MST
+ */
+public class DirectoryOverloadedException extends LdapNamingException
+{
+    public DirectoryOverloadedException(final String message)
+    {
+        super(message);
+    }
+}
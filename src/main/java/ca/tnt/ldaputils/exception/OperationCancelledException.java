@@ -0,0 +1,58 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.exception;
+
+/**
+ * Thrown when an operation run with an {@link
+ * ca.tnt.ldaputils.OperationContext} is stopped, either because it was
+ * cancelled, or because its deadline passed.  Whatever the operation had
+ * already written stays written.
+ * <p/>
+ * Created :  25/10/26 8:15 PM MST
+ */
+public class OperationCancelledException extends LdapNamingException
+{
+    private final String message;
+    private final boolean timedOut;
+
+    public OperationCancelledException(final String message,
+        final boolean timedOut, final Throwable cause)
+    {
+        super(message, cause);
+        this.message = message;
+        this.timedOut = timedOut;
+    }
+
+    @Override
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return true if the deadline passed, false if the operation was
+     *         cancelled
+     */
+    public boolean isTimedOut()
+    {
+        return timedOut;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.exception;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Thrown when a save is rejected because the entry was changed in LDAP after
+ * it was loaded.  Reload the entry, reapply your changes, and save again.
+ * <p/>
+ * Created :  18/10/26 10:48 PM MST
+ */
+public class StaleEntryException extends LdapNamingException
+{
+    private final LdapName dn;
+    private final String expectedVersion;
+
+    public StaleEntryException(final LdapName dn, final String expectedVersion,
+        final NamingException namingException)
+    {
+        super(namingException);
+        this.dn = dn;
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * For an entry whose version has not been known since its last save,
+     * because the server did not return the new one.
+     *
+     * @param dn the dn of the entry
+     */
+    public StaleEntryException(final LdapName dn)
+    {
+        super(dn + " must be reloaded before it is saved again, as its " +
+            "version since its last save is not known");
+        this.dn = dn;
+        expectedVersion = null;
+    }
+
+    @Override
+    public String getMessage()
+    {
+        if (expectedVersion == null)
+        {
+            return super.getMessage();
+        }
+        return dn + " was modified since it was loaded (version " +
+            expectedVersion + ')';
+    }
+
+    /**
+     * @return the dn of the stale entry
+     */
+    public LdapName getDn()
+    {
+        return dn;
+    }
+
+    /**
+     * @return the version the entry had when it was loaded, or null if it
+     *         was not known
+     */
+    public String getExpectedVersion()
+    {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.flow;
+
+/**
+ * A source of items that are only produced as a {@link Subscriber} asks for
+ * them.  This has the same contract as the Reactive Streams Publisher, and
+ * java.util.concurrent.Flow.Publisher, which is not available on the Java
+ * versions LPA supports; adapting to either is a one line delegation.
+ * <p/>
+ * Created :  24/10/26 7:30 PM MST
+ */
+public interface Publisher<T>
+{
+    /**
+     * Starts a new stream of items for subscriber.  {@link
+     * Subscriber#onSubscribe(Subscription)} is called before this returns.
+     *
+     * @param subscriber the subscriber
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,55 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.flow;
+
+/**
+ * Receives the items of a {@link Publisher}.  The methods are called one at a
+ * time, never concurrently, though not necessarily on the same thread.
+ * <p/>
+ * Created :  24/10/26 7:30 PM MST
+ */
+public interface Subscriber<T>
+{
+    /**
+     * Called once, before anything else.  Nothing is sent until {@link
+     * Subscription#request(long)} is called.
+     *
+     * @param subscription used to ask for items, or to cancel
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * @param item the next item asked for
+     */
+    void onNext(T item);
+
+    /**
+     * Called at most once, when the stream fails; nothing follows it.
+     *
+     * @param throwable the failure
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Called at most once, when there are no more items; nothing follows it.
+     */
+    void onComplete();
+}
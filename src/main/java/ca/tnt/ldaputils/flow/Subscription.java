@@ -0,0 +1,43 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.flow;
+
+/**
+ * The link between a {@link Publisher} and one {@link Subscriber}.
+ * <p/>
+ * Created :  24/10/26 7:30 PM MST
+ */
+public interface Subscription
+{
+    /**
+     * Asks for up to n more items.  Demand adds up; Long.MAX_VALUE means
+     * unbounded.
+     *
+     * @param n the number of items, which must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stops sending items, and releases whatever the stream holds.  Items
+     * already on their way may still arrive.
+     */
+    void cancel();
+}
@@ -0,0 +1,783 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.impl;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * A memory efficient SortedSet of DN strings, for groups with a very large
+ * number of members.
+ * <p/>
+ * Each DN is split in to its leaf RDN and its parent DN.  Parent DNs are
+ * stored once, and shared by all of their children, which in a typical group
+ * means the whole "ou=people,dc=example,dc=com" part of every member is only
+ * stored a handful of times.  Each member then costs a single byte array
+ * holding a parent number and the UTF-8 bytes of its leaf RDN, instead of a
+ * String and a TreeSet node.  Members are kept in a sorted array, so
+ * contains is a binary search, and iteration is in order, creating each DN
+ * String only as it is reached.
+ * <p/>
+ * DNs are normalized, by {@link #normalize(String)}, before they are stored or
+ * looked up, so "CN=A, DC=x" and "cn=a,dc=x" are the same member, and the
+ * set hands back DNs in their normalized, lower case form, rather than as
+ * they were added.  Normalized DNs are ordered by Unicode code point, which
+ * is the same as String order unless they have characters outside of the
+ * Basic Multilingual Plane.
+ * <p/>
+ * Adding in bulk, through {@link #addAll(Collection)}, sorts once at the end,
+ * so loading a large group is O(n log n).  Single adds and removes are O(n).
+ * Not thread safe.
+ * <p/>
+ * Created :  19/10/26 8:02 PM MST
+ */
+@SuppressWarnings({"PublicMethodNotExposedInInterface"})
+public class CompactDnSet extends AbstractSet<String>
+    implements SortedSet<String>
+{
+    /**
+     * Orders Strings by Unicode code point, which is the order of their UTF-8
+     * bytes.
+     */
+    public static final Comparator<String> CODE_POINT_ORDER =
+        new Comparator<String>()
+        {
+            @Override
+            public int compare(final String first, final String second)
+            {
+                final int length = Math.min(first.length(), second.length());
+                for (int index = 0; index < length; index++)
+                {
+                    final int firstCodePoint = first.codePointAt(index);
+                    final int secondCodePoint = second.codePointAt(index);
+                    if (firstCodePoint != secondCodePoint)
+                    {
+                        return firstCodePoint < secondCodePoint ? -1 : 1;
+                    }
+                }
+                return first.length() - second.length();
+            }
+        };
+
+    private static final int NO_PARENT = -1;
+    private static final int PARENT_BYTES = 4;
+
+    private final Map<String, Integer> parentNumbers =
+        new HashMap<String, Integer>();
+    private final List<String> parents = new ArrayList<String>();
+    private final List<byte[]> parentBytes = new ArrayList<byte[]>();
+
+    private final Comparator<byte[]> entryOrder = new Comparator<byte[]>()
+    {
+        @Override
+        public int compare(final byte[] first, final byte[] second)
+        {
+            return compareEntries(first, second);
+        }
+    };
+
+    private byte[][] entries = new byte[16][];
+    private int size;
+
+    /**
+     * Entries from size to unsortedEnd have been appended by addAll, and are
+     * not yet sorted in.  Only ever different from size within addAll.
+     */
+    private int unsortedEnd;
+
+    private int modCount;
+
+    public CompactDnSet()
+    {
+    }
+
+    public CompactDnSet(final Collection<String> dns)
+    {
+        addAll(dns);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean contains(final Object o)
+    {
+        return o instanceof String && indexOf((String) o) >= 0;
+    }
+
+    @Override
+    public boolean add(final String dn)
+    {
+        final int index = indexOf(dn);
+        if (index >= 0)
+        {
+            return false;
+        }
+        insert(-index - 1, encode(dn));
+        return true;
+    }
+
+    @Override
+    public boolean remove(final Object o)
+    {
+        if (!(o instanceof String))
+        {
+            return false;
+        }
+        final int index = indexOf((String) o);
+        if (index < 0)
+        {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Adds all of the DNs, sorting them in once at the end.
+     */
+    @Override
+    public boolean addAll(final Collection<? extends String> dns)
+    {
+        final int before = size;
+        ensureCapacity(size + dns.size());
+        for (final String dn : dns)
+        {
+            entries[unsortedEnd++] = encode(dn);
+        }
+        sort();
+        return size != before;
+    }
+
+    @Override
+    public void clear()
+    {
+        entries = new byte[16][];
+        size = 0;
+        unsortedEnd = 0;
+        parentNumbers.clear();
+        parents.clear();
+        parentBytes.clear();
+        modCount++;
+    }
+
+    @Override
+    public Iterator<String> iterator()
+    {
+        return new RangeIterator(0, size);
+    }
+
+    @Override
+    public Comparator<? super String> comparator()
+    {
+        return CODE_POINT_ORDER;
+    }
+
+    @Override
+    public SortedSet<String> subSet(final String fromElement,
+        final String toElement)
+    {
+        if (CODE_POINT_ORDER.compare(normalize(fromElement),
+            normalize(toElement)) > 0)
+        {
+            throw new IllegalArgumentException(
+                fromElement + " is after " + toElement);
+        }
+        return new SubSet(fromElement, toElement);
+    }
+
+    @Override
+    public SortedSet<String> headSet(final String toElement)
+    {
+        return new SubSet(null, toElement);
+    }
+
+    @Override
+    public SortedSet<String> tailSet(final String fromElement)
+    {
+        return new SubSet(fromElement, null);
+    }
+
+    @Override
+    public String first()
+    {
+        if (size == 0)
+        {
+            throw new NoSuchElementException();
+        }
+        return decode(entries[0]);
+    }
+
+    @Override
+    public String last()
+    {
+        if (size == 0)
+        {
+            throw new NoSuchElementException();
+        }
+        return decode(entries[size - 1]);
+    }
+
+    /**
+     * Puts a DN in the form it is stored in: attribute types and values in
+     * lower case, multi-valued RDNs in sorted order, no spaces around the
+     * separators, and values escaped as {@link Rdn#escapeValue(Object)} does.
+     * Strings that can not be parsed as a DN are left as they are.
+     *
+     * @param dn the DN
+     *
+     * @return the normalized DN
+     */
+    public static String normalize(final String dn)
+    {
+        final List<Rdn> rdns;
+        try
+        {
+            rdns = new LdapName(dn).getRdns();
+        }
+        catch (final NamingException exception)
+        {
+            return dn;
+        }
+
+        final StringBuilder normalized = new StringBuilder(dn.length());
+        for (int index = rdns.size() - 1; index >= 0; index--)
+        {
+            if (normalized.length() > 0)
+            {
+                normalized.append(',');
+            }
+            final List<String> pairs = new ArrayList<String>(1);
+            try
+            {
+                final NamingEnumeration<? extends Attribute> attributes =
+                    rdns.get(index).toAttributes().getAll();
+                while (attributes.hasMore())
+                {
+                    final Attribute attribute = attributes.next();
+                    final String type = attribute.getID().toLowerCase();
+                    final NamingEnumeration<?> values = attribute.getAll();
+                    while (values.hasMore())
+                    {
+                        pairs.add(type + '=' +
+                            Rdn.escapeValue(values.next()).toLowerCase());
+                    }
+                }
+            }
+            catch (final NamingException exception)
+            {   // never thrown by the BasicAttributes of an Rdn
+                return dn;
+            }
+            Collections.sort(pairs);
+            for (int pair = 0; pair < pairs.size(); pair++)
+            {
+                if (pair > 0)
+                {
+                    normalized.append('+');
+                }
+                normalized.append(pairs.get(pair));
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return the number of distinct parent DNs stored
+     */
+    public int getParentCount()
+    {
+        return parents.size();
+    }
+
+    /**
+     * Finds the position of the first entry at or after a DN.
+     *
+     * @param dn the DN, or null for the end of the set
+     *
+     * @return the index, between 0 and size
+     */
+    private int lowerBound(final String dn)
+    {
+        if (dn == null)
+        {
+            return size;
+        }
+        final int index = indexOf(dn);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Binary searches for a DN, without encoding it as an entry, so that
+     * looking up a DN whose parent is not stored does not store it.
+     *
+     * @param dn the DN
+     *
+     * @return the index of the DN, or (-(insertion point) - 1), as {@link
+     *         Arrays#binarySearch(Object[], Object)} does
+     */
+    private int indexOf(final String dn)
+    {
+        final byte[] dnBytes = utf8(normalize(dn));
+        int low = 0;
+        int high = size - 1;
+        while (low <= high)
+        {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compareToDn(entries[middle], dnBytes);
+            if (comparison < 0)
+            {
+                low = middle + 1;
+            }
+            else if (comparison > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insert(final int index, final byte[] entry)
+    {
+        ensureCapacity(size + 1);
+        System.arraycopy(entries, index, entries, index + 1, size - index);
+        entries[index] = entry;
+        size++;
+        unsortedEnd = size;
+        modCount++;
+    }
+
+    private void removeAt(final int index)
+    {
+        System.arraycopy(entries, index + 1, entries, index,
+            size - index - 1);
+        size--;
+        entries[size] = null;
+        unsortedEnd = size;
+        modCount++;
+    }
+
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity > entries.length)
+        {
+            final byte[][] grown = new byte[Math.max(capacity,
+                entries.length * 3 / 2 + 1)][];
+            System.arraycopy(entries, 0, grown, 0, unsortedEnd);
+            entries = grown;
+        }
+    }
+
+    /**
+     * Merges any bulk added entries in to the sorted ones, dropping
+     * duplicates.
+     */
+    private void sort()
+    {
+        Arrays.sort(entries, 0, unsortedEnd, entryOrder);
+        int distinct = 0;
+        for (int index = 0; index < unsortedEnd; index++)
+        {
+            if (distinct == 0 ||
+                compareEntries(entries[distinct - 1], entries[index]) != 0)
+            {
+                entries[distinct++] = entries[index];
+            }
+        }
+        Arrays.fill(entries, distinct, unsortedEnd, null);
+        size = distinct;
+        unsortedEnd = distinct;
+        modCount++;
+    }
+
+    /**
+     * Encodes a DN as a parent number followed by the UTF-8 leaf RDN, storing
+     * the parent if it is new.
+     *
+     * @param dn the DN
+     *
+     * @return the entry
+     */
+    private byte[] encode(final String name)
+    {
+        final String dn = normalize(name);
+        final int split = leafEnd(dn);
+        final int parentNumber;
+        if (split == dn.length())
+        {
+            parentNumber = NO_PARENT;
+        }
+        else
+        {
+            final String parent = dn.substring(split + 1);
+            final Integer existing = parentNumbers.get(parent);
+            if (existing != null)
+            {
+                parentNumber = existing;
+            }
+            else
+            {
+                parentNumber = parents.size();
+                parents.add(parent);
+                parentBytes.add(utf8(parent));
+                parentNumbers.put(parent, parentNumber);
+            }
+        }
+
+        final byte[] leaf = utf8(dn.substring(0, split));
+        final byte[] entry = new byte[PARENT_BYTES + leaf.length];
+        entry[0] = (byte) (parentNumber >>> 24);
+        entry[1] = (byte) (parentNumber >>> 16);
+        entry[2] = (byte) (parentNumber >>> 8);
+        entry[3] = (byte) parentNumber;
+        System.arraycopy(leaf, 0, entry, PARENT_BYTES, leaf.length);
+        return entry;
+    }
+
+    private String decode(final byte[] entry)
+    {
+        final int parentNumber = parentNumber(entry);
+        final String leaf;
+        try
+        {
+            leaf = new String(entry, PARENT_BYTES, entry.length - PARENT_BYTES,
+                "UTF-8");
+        }
+        catch (final UnsupportedEncodingException exception)
+        {   // UTF-8 is always supported
+            throw new IllegalStateException(exception);
+        }
+        return parentNumber == NO_PARENT ? leaf :
+            leaf + ',' + parents.get(parentNumber);
+    }
+
+    /**
+     * Compares two entries as if they were the complete UTF-8 DNs.
+     */
+    private int compareEntries(final byte[] first, final byte[] second)
+    {
+        final byte[] firstParent = parentBytes(first);
+        final byte[] secondParent = parentBytes(second);
+        final int firstLength = dnLength(first, firstParent);
+        final int secondLength = dnLength(second, secondParent);
+        final int length = Math.min(firstLength, secondLength);
+        for (int index = 0; index < length; index++)
+        {
+            final int firstByte = byteAt(first, firstParent, index);
+            final int secondByte = byteAt(second, secondParent, index);
+            if (firstByte != secondByte)
+            {
+                return firstByte - secondByte;
+            }
+        }
+        return firstLength - secondLength;
+    }
+
+    /**
+     * Compares an entry to a complete UTF-8 DN.
+     */
+    private int compareToDn(final byte[] entry, final byte[] dn)
+    {
+        final byte[] parent = parentBytes(entry);
+        final int entryLength = dnLength(entry, parent);
+        final int length = Math.min(entryLength, dn.length);
+        for (int index = 0; index < length; index++)
+        {
+            final int entryByte = byteAt(entry, parent, index);
+            final int dnByte = dn[index] & 0xff;
+            if (entryByte != dnByte)
+            {
+                return entryByte - dnByte;
+            }
+        }
+        return entryLength - dn.length;
+    }
+
+    private byte[] parentBytes(final byte[] entry)
+    {
+        final int parentNumber = parentNumber(entry);
+        return parentNumber == NO_PARENT ? null :
+            parentBytes.get(parentNumber);
+    }
+
+    private static int parentNumber(final byte[] entry)
+    {
+        return ((entry[0] & 0xff) << 24) | ((entry[1] & 0xff) << 16) |
+            ((entry[2] & 0xff) << 8) | (entry[3] & 0xff);
+    }
+
+    private static int dnLength(final byte[] entry, final byte[] parent)
+    {
+        final int leafLength = entry.length - PARENT_BYTES;
+        return parent == null ? leafLength : leafLength + 1 + parent.length;
+    }
+
+    /**
+     * @return the unsigned byte of the complete DN at index
+     */
+    private static int byteAt(final byte[] entry, final byte[] parent,
+        final int index)
+    {
+        final int leafLength = entry.length - PARENT_BYTES;
+        if (index < leafLength)
+        {
+            return entry[PARENT_BYTES + index] & 0xff;
+        }
+        if (index == leafLength)
+        {
+            return ',';
+        }
+        return parent[index - leafLength - 1] & 0xff;
+    }
+
+    /**
+     * @return the index of the comma ending the first RDN, or the length of
+     *         the DN if there is only one RDN
+     */
+    private static int leafEnd(final String dn)
+    {
+        for (int index = 0; index < dn.length(); index++)
+        {
+            final char character = dn.charAt(index);
+            if (character == '\\')
+            {   // escaped, so skip the next character
+                index++;
+            }
+            else if (character == ',')
+            {
+                return index;
+            }
+        }
+        return dn.length();
+    }
+
+    private static byte[] utf8(final String value)
+    {
+        try
+        {
+            return value.getBytes("UTF-8");
+        }
+        catch (final UnsupportedEncodingException exception)
+        {   // UTF-8 is always supported
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * Iterates over a range of indexes, decoding as it goes.
+     */
+    private class RangeIterator implements Iterator<String>
+    {
+        private int next;
+        private int end;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        RangeIterator(final int start, final int end)
+        {
+            next = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < end;
+        }
+
+        @Override
+        public String next()
+        {
+            if (expectedModCount != modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= end)
+            {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return decode(entries[last]);
+        }
+
+        @Override
+        public void remove()
+        {
+            if (last == -1)
+            {
+                throw new IllegalStateException();
+            }
+            if (expectedModCount != modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            end--;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    /**
+     * A view of the DNs from fromElement, inclusive, to toElement, exclusive.
+     * Null bounds are open.
+     */
+    private class SubSet extends AbstractSet<String>
+        implements SortedSet<String>
+    {
+        private final String fromElement;
+        private final String toElement;
+
+        SubSet(final String fromElement, final String toElement)
+        {
+            this.fromElement = fromElement == null ? null :
+                normalize(fromElement);
+            this.toElement = toElement == null ? null : normalize(toElement);
+        }
+
+        private int start()
+        {
+            return fromElement == null ? 0 : lowerBound(fromElement);
+        }
+
+        private int end()
+        {
+            return lowerBound(toElement);
+        }
+
+        private boolean inRange(final String name)
+        {
+            final String dn = normalize(name);
+            return (fromElement == null ||
+                CODE_POINT_ORDER.compare(dn, fromElement) >= 0) &&
+                (toElement == null ||
+                    CODE_POINT_ORDER.compare(dn, toElement) < 0);
+        }
+
+        @Override
+        public int size()
+        {
+            return Math.max(0, end() - start());
+        }
+
+        @Override
+        public boolean contains(final Object o)
+        {
+            return o instanceof String && inRange((String) o) &&
+                CompactDnSet.this.contains(o);
+        }
+
+        @Override
+        public boolean add(final String dn)
+        {
+            if (!inRange(dn))
+            {
+                throw new IllegalArgumentException(dn + " is out of range");
+            }
+            return CompactDnSet.this.add(dn);
+        }
+
+        @Override
+        public boolean remove(final Object o)
+        {
+            return o instanceof String && inRange((String) o) &&
+                CompactDnSet.this.remove(o);
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            return new RangeIterator(start(), Math.max(start(), end()));
+        }
+
+        @Override
+        public Comparator<? super String> comparator()
+        {
+            return CODE_POINT_ORDER;
+        }
+
+        @Override
+        public SortedSet<String> subSet(final String from, final String to)
+        {
+            if (!inRange(from) || (toElement != null &&
+                CODE_POINT_ORDER.compare(to, toElement) > 0))
+            {
+                throw new IllegalArgumentException("out of range");
+            }
+            return CompactDnSet.this.subSet(from, to);
+        }
+
+        @Override
+        public SortedSet<String> headSet(final String to)
+        {
+            if (toElement != null &&
+                CODE_POINT_ORDER.compare(to, toElement) > 0)
+            {
+                throw new IllegalArgumentException("out of range");
+            }
+            return new SubSet(fromElement, to);
+        }
+
+        @Override
+        public SortedSet<String> tailSet(final String from)
+        {
+            if (!inRange(from))
+            {
+                throw new IllegalArgumentException("out of range");
+            }
+            return new SubSet(from, toElement);
+        }
+
+        @Override
+        public String first()
+        {
+            final int start = start();
+            if (start >= end())
+            {
+                throw new NoSuchElementException();
+            }
+            return decode(entries[start]);
+        }
+
+        @Override
+        public String last()
+        {
+            final int end = end();
+            if (start() >= end)
+            {
+                throw new NoSuchElementException();
+            }
+            return decode(entries[end - 1]);
+        }
+    }
+}
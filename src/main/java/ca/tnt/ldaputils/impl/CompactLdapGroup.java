@@ -0,0 +1,41 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.impl;
+
+import ca.tnt.ldaputils.annotations.LdapEntity;
+
+/**
+ * An {@link LdapGroup} that keeps its members in a {@link CompactDnSet}, for
+ * groups with tens of thousands of members or more.  Load it in place of
+ * LdapGroup, with {@link ca.tnt.ldaputils.LdapManager#find(Class,
+ * javax.naming.ldap.LdapName)}.  Its members are normalized DNs, see {@link
+ * CompactDnSet#normalize(String)}, so they may not be spelled as stored.
+ * <p/>
+ * Created :  19/10/26 9:10 PM MST
+ */
+@LdapEntity
+public class CompactLdapGroup extends LdapGroup
+{
+    public CompactLdapGroup()
+    {
+        super(new CompactDnSet());
+    }
+}
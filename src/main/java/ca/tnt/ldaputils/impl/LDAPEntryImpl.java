@@ -61,6 +61,11 @@ public class LDAPEntryImpl implements ILdapEntry, Serializable
     protected List objectClasses;
     protected LinkedHashMap modificationItems;
 
+    /**
+     * Pending {@link #INCREMENT_ATTRIBUTE} deltas, by attribute name
+     */
+    protected Map<String, Long> increments = new LinkedHashMap<String, Long>();
+
     @Manager
     protected LdapManager manager;
     /**
@@ -284,6 +289,13 @@ public class LDAPEntryImpl implements ILdapEntry, Serializable
             case REMOVE_ATTRIBUTE:
                 mod_op = DirContext.REMOVE_ATTRIBUTE;
                 break;
+            case INCREMENT_ATTRIBUTE:
+                final Long pending = increments.get(attribute);
+                final long delta = Long.parseLong(String.valueOf(value).trim());
+                increments.put(attribute, pending == null ? delta :
+                    pending + delta);
+                modified = true;
+                return;
             default:
                 mod_op = DirContext.ADD_ATTRIBUTE;
         }
@@ -316,9 +328,7 @@ public class LDAPEntryImpl implements ILdapEntry, Serializable
     public void modifyBatchAttributes(final String bindDN,
         final String bindPassword)
     {   // BEGIN modifyBatchAttributes()
-        DirContext ldapContext = null;
-
-        if (modificationItems.size() == 0)
+        if (modificationItems.size() == 0 && increments.isEmpty())
         {
             throw new IllegalStateException("No modification items for batch");
         }
@@ -334,9 +344,13 @@ public class LDAPEntryImpl implements ILdapEntry, Serializable
                 modItems[index] = (ModificationItem) tempModItems[index];
             }
 
-            ldapContext = manager.getConnection(bindDN,
-                bindPassword);
-            ldapContext.modifyAttributes(getDn(), modItems);
+            // one modify, with the increments, as a write
+            final Attributes after = manager.modifyAttributes(getDn(),
+                modItems, increments, bindDN, bindPassword, null);
+            for (final String attribute : increments.keySet())
+            {
+                attributes.put(after.get(attribute));
+            }
 
             /**
              * Update the attributes in memory
@@ -358,20 +372,9 @@ public class LDAPEntryImpl implements ILdapEntry, Serializable
         }
         finally
         {
-            try
-            {
-                if (ldapContext != null)
-                {
-                    ldapContext.close();
-                }
-            }
-            catch (NamingException namingException)
-            {
-                manager.logNamingException(namingException);
-            }
-
             // recreate empty batch list
             modificationItems = new LinkedHashMap();
+            increments = new LinkedHashMap<String, Long>();
         }
     }   // END modifyBatchAttributes()
 
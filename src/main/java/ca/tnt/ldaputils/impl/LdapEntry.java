@@ -27,11 +27,14 @@ import ca.tnt.ldaputils.annotations.LdapAttribute;
 import ca.tnt.ldaputils.annotations.LdapEntity;
 import ca.tnt.ldaputils.annotations.Manager;
 import ca.tnt.ldaputils.exception.LdapNamingException;
+import ca.tnt.ldaputils.exception.StaleEntryException;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.CompareToBuilder;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.log4j.Logger;
 
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.*;
 import javax.naming.ldap.LdapName;
@@ -54,6 +57,20 @@ public class LdapEntry implements ILdapEntry, Comparable
 
     protected LinkedHashMap modificationItems;
 
+    /**
+     * Pending {@link #INCREMENT_ATTRIBUTE} deltas, by attribute name.  These
+     * cannot be expressed as a ModificationItem, so they are kept apart.
+     */
+    protected Map<String, Long> increments;
+
+    /**
+     * Set when a change of our own replaced the version this entry was loaded
+     * with, and the server did not tell us the new one.  A conditional save
+     * is then refused until the entry is reloaded, as reading the version
+     * again might pick up someone else's change.
+     */
+    private boolean versionUnknown;
+
     @Manager
     private LdapManager manager;
 
@@ -82,6 +99,7 @@ public class LdapEntry implements ILdapEntry, Comparable
     public LdapEntry()
     {
         modificationItems = new LinkedHashMap();
+        increments = new LinkedHashMap<String, Long>();
         objectClasses = new ArrayList<String>(5);
     }
 
@@ -213,13 +231,14 @@ public class LdapEntry implements ILdapEntry, Comparable
      * IllegalArgumentException, with an appropriate error message.
      *
      * @param operation one of ADD_ATTRIBUTE, REPLACE_ATTRIBUTE,
-     *                  REMOVE_ATTRIBUTE
+     *                  REMOVE_ATTRIBUTE, INCREMENT_ATTRIBUTE
      * @param attribute the name of the attribute
      * @param value     the value of the attribute
      *
      * @see #ADD_ATTRIBUTE ADD_ATTRIBUTE
      * @see #REPLACE_ATTRIBUTE REPLACE_ATTRIBUTE
      * @see #REMOVE_ATTRIBUTE REMOVE_ATTRIBUTE
+     * @see #INCREMENT_ATTRIBUTE INCREMENT_ATTRIBUTE
      */
     public void modifyBatchAttribute(final int operation,
         final String attribute, final Object value)
@@ -228,6 +247,16 @@ public class LdapEntry implements ILdapEntry, Comparable
         ModificationItem modItem;
         final int mod_op;
 
+        if (operation == INCREMENT_ATTRIBUTE)
+        {
+            final Long pending = increments.get(attribute);
+            final long delta = toLong(value);
+            increments.put(attribute, pending == null ? delta :
+                pending + delta);
+            modified = true;
+            return;
+        }
+
         switch (operation)
         {
             case ADD_ATTRIBUTE:
@@ -279,25 +308,72 @@ public class LdapEntry implements ILdapEntry, Comparable
     public void modifyBatchAttributes(final String bindDN,
         final String bindPassword)
     {   // BEGIN modifyBatchAttributes()
-        DirContext ldapContext = null;
-
-        if (modificationItems.size() == 0)
+        if (modificationItems.size() == 0 && increments.isEmpty())
         {
             throw new IllegalStateException("No modification items for batch");
         }
         try
         {
-            final Object[] tempModItems;
-            final ModificationItem[] modItems;
-            tempModItems = modificationItems.values().toArray();
-            modItems = new ModificationItem[tempModItems.length];
-            for (int index = 0; index < tempModItems.length; index++)
-            {   // convert to ModificationItem array
-                modItems[index] = (ModificationItem) tempModItems[index];
-            }
+            modifyAttributes(bindDN, bindPassword);
+        }
+        catch (LdapNamingException namingException)
+        {   // already wrapped, and may be a StaleEntryException
+            throw namingException;
+        }
+        catch (NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+        catch (Exception exception)
+        {
+            throw new LdapNamingException("error modifying attributes",
+                exception);
+        }
+        finally
+        {
+            // recreate empty batch list
+            modificationItems = new LinkedHashMap();
+            increments = new LinkedHashMap<String, Long>();
+        }
+    }   // END modifyBatchAttributes()
+
+    private void modifyAttributes(final String bindDN,
+        final String bindPassword) throws NamingException
+    {
+        final Object[] tempModItems;
+        final ModificationItem[] modItems;
+        tempModItems = modificationItems.values().toArray();
+        modItems = new ModificationItem[tempModItems.length];
+        for (int index = 0; index < tempModItems.length; index++)
+        {   // convert to ModificationItem array
+            modItems[index] = (ModificationItem) tempModItems[index];
+        }
 
-            ldapContext = manager.getConnection(bindDN, bindPassword);
-            ldapContext.modifyAttributes(getDn(), modItems);
+        if (manager.isWriteBehind() &&
+            StringUtils.equals(bindDN, manager.getBindDN()))
+        {   // the flusher applies them later, with the manager's own bind
+            // DN, so we cannot reload from LDAP; apply them in memory.
+            manager.getWriteBehindQueue().enqueue(getDn(), modItems,
+                increments);
+            applyModifications(modItems);
+            for (final Map.Entry<String, Long> increment :
+                increments.entrySet())
+            {   // only as good as the value we loaded
+                final String current = getStringValue(increment.getKey());
+                setIncrementedValue(increment.getKey(), (current != null ?
+                    toLong(current) : 0) + increment.getValue());
+            }
+        }
+        else
+        {
+            final String version = getVersion();
+            if (version == null && versionUnknown &&
+                manager.getVersionAttribute() != null)
+            {
+                throw new StaleEntryException(getDn());
+            }
+            final Attributes after = manager.modifyAttributes(getDn(),
+                modItems, increments, bindDN, bindPassword, version);
 
             /**
              * Update the attributes in memory
@@ -308,41 +384,224 @@ public class LdapEntry implements ILdapEntry, Comparable
                 attribute = modItem.getAttribute();
                 updateAttribute(attribute.getID());
             }
+            for (final String attribute : increments.keySet())
+            {
+                setIncrementedValue(attribute, toLong(getStringAttribute(
+                    after, attribute)));
+            }
+            if (version != null)
+            {   // so that the next save is conditional on our own change
+                setVersion(getStringAttribute(after,
+                    manager.getVersionAttribute()));
+            }
 //            manager.reloadAttributes(this);
         }
-        catch (NamingException namingException)
+    }
+
+    /**
+     * Atomically adds delta to an integer attribute right now, without
+     * disturbing any batch in progress.  See {@link LdapManager#increment(LdapName,
+     * String, long)}.
+     *
+     * @param attribute the name of the single valued integer attribute
+     * @param delta     the amount to add, which may be negative
+     *
+     * @return the new value of the attribute
+     */
+    public long incrementAttribute(final String attribute, final long delta)
+    {
+        final long newValue = manager.increment(getDn(), attribute, delta);
+        setIncrementedValue(attribute, newValue);
+        refreshVersion();
+        return newValue;
+    }
+
+    /**
+     * Forgets the version after a change of our own that did not tell us the
+     * new one, so that the next conditional save asks for a reload.
+     */
+    private void refreshVersion()
+    {
+        if (getVersion() != null)
         {
-            throw new LdapNamingException(namingException);
+            setVersion(null);
         }
-        catch (Exception exception)
+    }
+
+    /**
+     * Remembers the version an entry has after a change of our own.
+     *
+     * @param newVersion the new version, or null if it is not known
+     */
+    private void setVersion(final String newVersion)
+    {
+        final String versionAttribute = manager.getVersionAttribute();
+        if (newVersion != null)
         {
-            throw new LdapNamingException("error modifying attributes",
-                exception);
+            attributes.put(versionAttribute, newVersion);
         }
-        finally
+        else
         {
-            try
-            {
-                if (ldapContext != null)
-                {
-                    ldapContext.close();
-                }
-            }
-            catch (NamingException namingException)
+            attributes.remove(versionAttribute);
+        }
+        versionUnknown = newVersion == null;
+    }
+
+    private void setIncrementedValue(final String attribute,
+        final long newValue)
+    {
+        if (attributes == null)
+        {
+            attributes = new BasicAttributes(true);
+        }
+        attributes.put(attribute, String.valueOf(newValue));
+    }
+
+    private static long toLong(final Object value)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        try
+        {
+            return Long.parseLong(String.valueOf(value).trim());
+        }
+        catch (final NumberFormatException exception)
+        {
+            throw new IllegalArgumentException(
+                "increment must be a whole number: " + value, exception);
+        }
+    }
+
+    /**
+     * Applies modifications to the in memory attributes, the same way the
+     * directory would.  Used when the modifications have been queued rather
+     * than applied, so that we cannot reload them from LDAP.
+     *
+     * @param modItems the modifications
+     *
+     * @throws NamingException if any of the attribute values cannot be read
+     */
+    protected void applyModifications(final ModificationItem[] modItems)
+        throws NamingException
+    {
+        if (attributes == null)
+        {
+            attributes = new BasicAttributes(true);
+        }
+
+        for (final ModificationItem modItem : modItems)
+        {
+            final Attribute modAttribute = modItem.getAttribute();
+            final String attrId = modAttribute.getID();
+            final boolean noValues = modAttribute.size() == 0 ||
+                (modAttribute.size() == 1 && modAttribute.get() == null);
+            Attribute existing = attributes.get(attrId);
+
+            switch (modItem.getModificationOp())
             {
-                manager.logNamingException(namingException);
+                case DirContext.ADD_ATTRIBUTE:
+                    if (existing == null)
+                    {
+                        existing = new BasicAttribute(attrId);
+                        attributes.put(existing);
+                    }
+                    addValues(existing, modAttribute);
+                    break;
+                case DirContext.REPLACE_ATTRIBUTE:
+                    if (noValues)
+                    {
+                        attributes.remove(attrId);
+                    }
+                    else
+                    {
+                        attributes.put((Attribute) modAttribute.clone());
+                    }
+                    break;
+                case DirContext.REMOVE_ATTRIBUTE:
+                    if (existing != null)
+                    {
+                        if (noValues)
+                        {
+                            attributes.remove(attrId);
+                        }
+                        else
+                        {
+                            final NamingEnumeration values =
+                                modAttribute.getAll();
+                            while (values.hasMore())
+                            {
+                                existing.remove(values.next());
+                            }
+                            if (existing.size() == 0)
+                            {
+                                attributes.remove(attrId);
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        "unknown modification operation: " +
+                            modItem.getModificationOp());
             }
+        }
+    }
 
-            // recreate empty batch list
-            modificationItems = new LinkedHashMap();
+    private static void addValues(final Attribute destination,
+        final Attribute source) throws NamingException
+    {
+        final NamingEnumeration values = source.getAll();
+        while (values.hasMore())
+        {
+            destination.add(values.next());
         }
-    }   // END modifyBatchAttributes()
+    }
+
+    /**
+     * Gets the version of the entry as it was when loaded, or last saved.  See
+     * {@link LdapManager#setVersionAttribute(String)}.
+     *
+     * @return the value of the manager's version attribute, or null if there
+     *         is none
+     */
+    public String getVersion()
+    {
+        final String versionAttribute = manager.getVersionAttribute();
+        if (versionAttribute == null || attributes == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return getStringAttribute(attributes, versionAttribute);
+        }
+        catch (final NamingException namingException)
+        {
+            throw new LdapNamingException(namingException);
+        }
+    }
 
     /**
      * Because LDAP operations are expensive, we have a save method.  Saves any
      * changes made by setXXXX() methods, where XXXX is an attribute name.  Also
      * an alias for modifyBatchAttributes(), but will do nothing unless
      * modifyBatchAtribute() has been called
+     * <p/>
+     * If the manager has write behind enabled, the changes are only queued,
+     * and are applied to LDAP later; see {@link
+     * LdapManager#enableWriteBehind(java.io.File)}
+     * <p/>
+     * If the manager has a {@link LdapManager#setVersionAttribute(String)
+     * version attribute}, the save only succeeds if nobody else has modified
+     * the entry since it was loaded.  If the server cannot tell us the
+     * version our own save left, the entry must be reloaded before it can be
+     * saved again.
+     *
+     * @throws StaleEntryException if the entry was modified by someone else;
+     *                             reload it and try again
      */
     public void save()
     {
@@ -388,6 +647,15 @@ public class LdapEntry implements ILdapEntry, Comparable
         }
     }
 
+    /**
+     * @return the manager that loaded this entry, or null if it was created
+     *         directly
+     */
+    protected LdapManager getManager()
+    {
+        return manager;
+    }
+
     public Attributes getAttributes()
     {
         return attributes;
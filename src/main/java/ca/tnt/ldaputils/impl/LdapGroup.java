@@ -22,12 +22,14 @@ package ca.tnt.ldaputils.impl;
 
 import ca.tnt.ldaputils.ILdapEntry;
 import ca.tnt.ldaputils.LdapManager;
+import ca.tnt.ldaputils.LdapManagerRegistry;
 import ca.tnt.ldaputils.ILdapGroup;
 import ca.tnt.ldaputils.annotations.LdapAttribute;
 import ca.tnt.ldaputils.annotations.LdapEntity;
 import org.apache.commons.lang.builder.*;
 
 import javax.naming.InvalidNameException;
+import javax.naming.directory.Attributes;
 import javax.naming.ldap.LdapName;
 import java.io.Serializable;
 import java.util.*;
@@ -74,9 +76,20 @@ public class LdapGroup extends LdapEntry
     }*/
 
     public LdapGroup()
+    {
+        this(new TreeSet<String>());
+    }
+
+    /**
+     * For sub classes that store the members differently, such as {@link
+     * CompactLdapGroup}.
+     *
+     * @param members the empty set the members will be loaded in to
+     */
+    protected LdapGroup(final SortedSet<String> members)
     {
         super();
-        sortedMembers = new TreeSet<String>();
+        sortedMembers = members;
         businessCategories = new TreeSet<String>();
     }
 
@@ -100,22 +113,46 @@ public class LdapGroup extends LdapEntry
         }
     }*/
 
+    /**
+     * Loads the members of the group, with only the keyAttribute, cn and
+     * objectClass attributes.  Members are fetched in batches by {@link
+     * LdapManager#getAttributes(Collection, String[])}, using the manager this
+     * group was loaded with.  Members that no longer exist are left out.
+     *
+     * @param keyAttribute the attribute whose value is the map key
+     * @param objectType   not used
+     *
+     * @return the member {@link LdapEntry LdapEntries}, sorted by keyAttribute
+     *
+     * @throws InvalidNameException if a member value is not a valid DN
+     */
     public Map getMembers(final String keyAttribute, final int objectType)
         throws InvalidNameException
     {
-        final Iterator memberIt;
         final Map members;
+        final List<LdapName> memberNames;
 
-        final LdapManager manager = new LdapManager();
+        final LdapManager manager = getManager() != null ? getManager() :
+            LdapManagerRegistry.getDefault();
         members = new TreeMap();
-        memberIt = sortedMembers.iterator();
-        while (memberIt.hasNext())
+        memberNames = new ArrayList<LdapName>(sortedMembers.size());
+        for (final String member : sortedMembers)
+        {
+            memberNames.add(new LdapName(member));
+        }
+
+        final Map<LdapName, Attributes> memberAttributes =
+            manager.getAttributes(memberNames,
+                new String[]{keyAttribute, "cn", "objectClass"});
+        for (final LdapName memberName : memberNames)
         {
-            final String member;
-            member = (String) memberIt.next();
-            final ILdapEntry ldapEntry =
-                (ILdapEntry) manager.find(LdapEntry.class, new LdapName(
-                    member));
+            final Attributes attributes = memberAttributes.get(memberName);
+            if (attributes == null)
+            {
+                continue;
+            }
+            final ILdapEntry ldapEntry = (ILdapEntry) manager.find(
+                LdapEntry.class, memberName, attributes);
             if (ldapEntry != null)
             {
                 members.put(ldapEntry.getStringValue(keyAttribute), ldapEntry);
@@ -20,8 +20,13 @@
  */
 package ca.tnt.ldaputils;
 
+import ca.tnt.ldaputils.exception.LdapNamingException;
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+import ca.tnt.ldaputils.flow.Subscriber;
+import ca.tnt.ldaputils.flow.Subscription;
 import ca.tnt.ldaputils.impl.LDAPEntryImpl;
 import ca.tnt.ldaputils.impl.LdapEntry;
+import ca.tnt.ldaputils.impl.LdapGroup;
 import ca.tnt.ldaputils.impl.LdapOrganization;
 import ca.tnt.ldaputils.ldapimpl.*;
 import ca.tnt.ldaputils.proprietary.ILdapBusiness;
@@ -41,9 +46,26 @@ import org.junit.runner.RunWith;
 
 import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapName;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.Map;
 
 /**
@@ -240,6 +262,615 @@ public class AnnotationsTest extends AbstractLdapTestUnit
             sortedMap.size());
     }
 
+    @Test
+    public void testPolymorphicSearch() throws NamingException
+    {
+        final EntityRegistry registry = new EntityRegistry(LdapEntry.class,
+            LdapOrganization.class, LdapBusiness.class);
+        Assert.assertEquals("most specific first", LdapBusiness.class,
+            registry.getClasses().get(0));
+        Assert.assertEquals("anything else", LdapEntry.class,
+            registry.resolve(new BasicAttributes("objectClass",
+                "organizationalUnit")));
+
+        final Map found = manager.find(new LdapName("dc=example,dc=com"),
+            "o=*", "o", new String[]{"o"}, registry, LdapManager.SORTED_ORDER,
+            SearchControls.SUBTREE_SCOPE);
+        Assert.assertTrue("business",
+            found.get("Pulp Mill.") instanceof LdapBusiness);
+        Assert.assertEquals("organization", LdapOrganization.class,
+            found.get("missing-object-class").getClass());
+        Assert.assertEquals("organization", LdapOrganization.class,
+            found.get("example").getClass());
+
+        final Map businesses = manager.find(new LdapName("dc=example,dc=com"),
+            "o=*", "o", null, new EntityRegistry(LdapBusiness.class),
+            LdapManager.SORTED_ORDER, SearchControls.SUBTREE_SCOPE);
+        Assert.assertFalse("unsupported entries left out",
+            businesses.containsKey("missing-object-class"));
+        Assert.assertEquals("every business", found.size() - 2,
+            businesses.size());
+    }
+
+    @Test
+    public void testFindAll() throws InvalidNameException
+    {
+        final LdapName pulpMill = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final LdapName personX = new LdapName(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com");
+        final List<LdapName> missing = Arrays.asList(
+            new LdapName("o=missing-object-class,ou=businesses,dc=example," +
+                "dc=com"),
+            new LdapName("o=Nothing Here,ou=businesses,dc=example,dc=com"),
+            new LdapName("o=Nothing Here,ou=nowhere,dc=example,dc=com"),
+            new LdapName("cn=Hair Salons,ou=bus-categories,dc=example,dc=com"));
+        final List<LdapName> dns = new ArrayList<LdapName>(missing);
+        dns.add(1, personX);
+        dns.add(pulpMill);
+
+        final FoundEntities found = manager.findAll(LdapBusiness.class, dns);
+        Assert.assertEquals("in the order asked for", Arrays.asList(personX,
+            pulpMill), new ArrayList<LdapName>(found.keySet()));
+        Assert.assertEquals("loaded", "Pulp Mill.",
+            ((ILdapBusiness) found.get(pulpMill)).getOrganization());
+        Assert.assertEquals("missing", missing,
+            new ArrayList<LdapName>(found.getMissing()));
+        Assert.assertFalse("incomplete", found.isComplete());
+    }
+
+    @Test
+    public void testAsync() throws InvalidNameException, InterruptedException
+    {
+        final LdapFuture<Object> business = manager.findAsync(
+            LdapBusiness.class, new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com"));
+        final LdapFuture<Attributes> attributes = manager.getAttributesAsync(
+            new LdapName("o=Hair by Person X,ou=businesses,dc=example,dc=com"),
+            new String[]{"o"});
+        final LdapFuture<Object> missing = manager.findAsync(
+            LdapBusiness.class, new LdapName(
+            "o=Nothing Here,ou=businesses,dc=example,dc=com"));
+
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure =
+            new AtomicReference<Throwable>();
+        missing.addCallback(new LdapFuture.Callback<Object>()
+        {
+            @Override
+            public void succeeded(final Object result)
+            {
+                called.countDown();
+            }
+
+            @Override
+            public void failed(final Throwable cause)
+            {
+                failure.set(cause);
+                called.countDown();
+            }
+        });
+
+        Assert.assertEquals("found", "Pulp Mill.",
+            ((ILdapBusiness) business.join()).getOrganization());
+        Assert.assertEquals("attributes", 1, attributes.join().size());
+        Assert.assertTrue("callback called", called.await(10,
+            TimeUnit.SECONDS));
+        Assert.assertTrue("not found", failure.get() instanceof
+            LdapNamingException);
+        try
+        {
+            missing.join();
+            Assert.fail("should have thrown");
+        }
+        catch (final LdapNamingException exception)
+        {
+            Assert.assertSame("unwrapped", failure.get(), exception);
+        }
+
+        final LdapFuture.Transform<Object, String> organization =
+            new LdapFuture.Transform<Object, String>()
+            {
+                @Override
+                public String apply(final Object result)
+                {
+                    return ((ILdapBusiness) result).getOrganization();
+                }
+            };
+        Assert.assertEquals("transformed", "Pulp Mill.",
+            business.then(organization).join());
+        try
+        {
+            missing.then(organization).join();
+            Assert.fail("should have thrown");
+        }
+        catch (final LdapNamingException exception)
+        {
+            Assert.assertSame("failure passed on", failure.get(), exception);
+        }
+    }
+
+    @Test
+    public void testPublisher() throws InvalidNameException,
+        InterruptedException
+    {
+        final SearchPublisher publisher = manager.findPublisher(new LdapName(
+            "dc=example,dc=com"), "o=*", null, LdapBusiness.class,
+            SearchControls.SUBTREE_SCOPE, 2);
+
+        // one at a time, across three pages
+        final CollectingSubscriber all = new CollectingSubscriber(1);
+        publisher.subscribe(all);
+        Assert.assertTrue("completed", all.done.await(10, TimeUnit.SECONDS));
+        Assert.assertNull("no error", all.error);
+        Assert.assertEquals("every business", 5, all.items.size());
+        Assert.assertTrue("mapped",
+            all.items.get(0) instanceof ILdapBusiness);
+
+        // cancelled part way through the first page
+        final CollectingSubscriber some = new CollectingSubscriber(0);
+        publisher.subscribe(some);
+        // nothing is scheduled until the first request
+        Assert.assertTrue("nothing until requested", some.items.isEmpty());
+        some.subscription.request(1);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (some.items.isEmpty() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("requested item delivered", 1, some.items.size());
+        some.subscription.cancel();
+        Assert.assertFalse("never completed",
+            some.done.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("only what was requested", 1, some.items.size());
+
+        // the deadline of the context it was created in
+        final OperationContext context = new OperationContext(100);
+        final SearchPublisher late = manager.execute(context,
+            new Callable<SearchPublisher>()
+            {
+                @Override
+                public SearchPublisher call() throws InvalidNameException
+                {
+                    return manager.findPublisher(new LdapName(
+                        "dc=example,dc=com"), "o=*", null, LdapBusiness.class,
+                        SearchControls.SUBTREE_SCOPE, 2);
+                }
+            });
+        while (!context.isExpired())
+        {
+            Thread.sleep(10);
+        }
+        final CollectingSubscriber timedOut = new CollectingSubscriber(1);
+        late.subscribe(timedOut);
+        Assert.assertTrue("ended", timedOut.done.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue("out of time",
+            timedOut.error instanceof OperationCancelledException);
+        Assert.assertTrue("nothing delivered", timedOut.items.isEmpty());
+    }
+
+    /**
+     * Records what a publisher sends, requesting another batch after each
+     * item when batch is positive.
+     */
+    private static class CollectingSubscriber implements Subscriber<Object>
+    {
+        private final List<Object> items = new CopyOnWriteArrayList<Object>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final int batch;
+        private volatile Subscription subscription;
+        private volatile Throwable error;
+
+        private CollectingSubscriber(final int batch)
+        {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(final Subscription subscription)
+        {
+            this.subscription = subscription;
+            if (batch > 0)
+            {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(final Object item)
+        {
+            items.add(item);
+            if (batch > 0)
+            {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable)
+        {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testOperationContext() throws InvalidNameException,
+        InterruptedException
+    {
+        final LdapName pulpMill = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final ILdapBusiness business = (ILdapBusiness) manager.find(
+            LdapBusiness.class, pulpMill, new OperationContext(60000));
+        Assert.assertEquals("aggregates loaded within the deadline", 2,
+            business.getBusinessCategories().size());
+        Assert.assertEquals("search within the deadline", 4, manager.find(
+            new LdapName("dc=example,dc=com"), "o=*Hair*", "o", null,
+            LdapOrganization.class, LdapManager.SORTED_ORDER,
+            SearchControls.SUBTREE_SCOPE, new OperationContext(60000)).size());
+
+        final OperationContext expired = new OperationContext(1);
+        Thread.sleep(10);
+        try
+        {
+            manager.find(LdapBusiness.class, pulpMill, expired);
+            Assert.fail("should have timed out");
+        }
+        catch (final OperationCancelledException exception)
+        {
+            Assert.assertTrue("timed out", exception.isTimedOut());
+        }
+
+        final OperationContext context = new OperationContext();
+        try
+        {
+            manager.execute(context, new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    manager.find(LdapBusiness.class, pulpMill);
+                    context.cancel();
+                    return manager.find(LdapBusiness.class, pulpMill);
+                }
+            });
+            Assert.fail("should have been cancelled");
+        }
+        catch (final OperationCancelledException exception)
+        {
+            Assert.assertFalse("cancelled", exception.isTimedOut());
+        }
+    }
+
+    @Test
+    public void testLimiter() throws NamingException, InterruptedException
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 0, 0);
+        manager.setLimiters(limiter, limiter);
+        try
+        {
+            final ILdapBusiness business = (ILdapBusiness) manager.find(
+                LdapBusiness.class, new LdapName(
+                "o=Pulp Mill.,ou=businesses,dc=example,dc=com"));
+            Assert.assertEquals("nested loads share the slot", 2,
+                business.getBusinessCategories().size());
+            Assert.assertEquals("search", 4, manager.find(new LdapName(
+                "dc=example,dc=com"), "o=*Hair*", "o", null,
+                LdapOrganization.class, LdapManager.SORTED_ORDER,
+                SearchControls.SUBTREE_SCOPE).size());
+            Assert.assertEquals("released", 0, limiter.getInFlight());
+            Assert.assertEquals("nothing refused", 0,
+                limiter.getRejectedCount());
+            Assert.assertTrue("measured",
+                limiter.getLatencyStatistics().getCount() >= 2);
+
+            final LdapManager batch = manager.withPriority(Priority.BATCH);
+            Assert.assertEquals("batch view", Priority.BATCH,
+                batch.getPriority());
+            Assert.assertSame("already interactive", manager,
+                manager.withPriority(Priority.INTERACTIVE));
+            Assert.assertEquals("batch search", 4, batch.find(new LdapName(
+                "dc=example,dc=com"), "o=*Hair*", "o", null,
+                LdapOrganization.class, LdapManager.SORTED_ORDER,
+                SearchControls.SUBTREE_SCOPE).size());
+            Assert.assertEquals("batch waited nowhere", 0,
+                limiter.getQueued(Priority.BATCH));
+            Assert.assertEquals("batch released", 0, limiter.getInFlight());
+
+            final DirContext ldapContext = manager.getConnection(
+                manager.getBindDN(), manager.getBindPassword());
+            Assert.assertEquals("held by the caller's connection", 1,
+                limiter.getInFlight());
+            ldapContext.close();
+            ldapContext.close();
+            Assert.assertEquals("released once, on close", 0,
+                limiter.getInFlight());
+
+            final CollectingSubscriber streamed = new CollectingSubscriber(1);
+            manager.findPublisher(new LdapName("dc=example,dc=com"), "o=*",
+                null, LdapBusiness.class, SearchControls.SUBTREE_SCOPE, 2)
+                .subscribe(streamed);
+            Assert.assertTrue("streamed",
+                streamed.done.await(10, TimeUnit.SECONDS));
+            Assert.assertNull("aggregates mapped within the publisher's slot",
+                streamed.error);
+            Assert.assertEquals("every business", 5, streamed.items.size());
+            Assert.assertEquals("publisher released", 0,
+                limiter.getInFlight());
+        }
+        finally
+        {
+            manager.setLimiters(null, null);
+        }
+    }
+
+    @Test
+    public void testFailover() throws InvalidNameException, IOException
+    {
+        final ServerSocket socket = new ServerSocket(0);
+        final int unused = socket.getLocalPort();
+        socket.close();
+        final LdapManager view = manager.withCredentials(manager.getBindDN(),
+            manager.getBindPassword());
+        manager.setServers(Arrays.asList("ldap://localhost:" + unused,
+            "ldap://localhost:" + ldapServer.getPort()));
+        try
+        {
+            Assert.assertSame("views use the new servers",
+                manager.getServerSet(), view.getServerSet());
+            final ServerSet.Server dead =
+                manager.getServerSet().getServers().get(0);
+            final ServerSet.Server server =
+                manager.getServerSet().getServers().get(1);
+            for (int index = 0; index < 4; index++)
+            {
+                Assert.assertNotNull("found through the live server",
+                    manager.find(LdapOrganization.class, new LdapName(
+                        "o=Pulp Mill.,ou=businesses,dc=example,dc=com")));
+            }
+            Assert.assertFalse("dead server ejected", dead.isHealthy());
+            Assert.assertEquals("failed once", 1, dead.getFailureCount());
+            Assert.assertTrue("live server healthy", server.isHealthy());
+            Assert.assertEquals("released", 0, server.getOutstanding());
+            Assert.assertTrue("live server used",
+                server.getRequestCount() >= 4);
+        }
+        finally
+        {
+            manager.setServers(null);
+        }
+    }
+
+    @Test
+    public void testReadYourWrites() throws InvalidNameException
+    {
+        final String url = "ldap://localhost:" + ldapServer.getPort();
+        manager.setServers(url, Arrays.asList(url));
+        try
+        {
+            final ServerSet.Server supplier =
+                manager.getServerSet().getSupplier();
+            final ServerSet.Server consumer =
+                manager.getServerSet().getServers().get(1);
+            final LdapName pulpMill = new LdapName(
+                "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+            final LdapName salon = new LdapName(
+                "o=New Trends Hair Salon,ou=businesses,dc=example,dc=com");
+            Assert.assertNotNull("read", manager.find(LdapOrganization.class,
+                pulpMill));
+            Assert.assertEquals("read from the consumer", 0,
+                supplier.getRequestCount());
+
+            manager.modifyAttributes(pulpMill, new ModificationItem[]{
+                new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                    new BasicAttribute("description", "pulp"))},
+                new Control[0]);
+            Assert.assertEquals("written to the supplier", 1,
+                supplier.getRequestCount());
+            final long consumed = consumer.getRequestCount();
+            Assert.assertNotNull("read", manager.find(LdapOrganization.class,
+                pulpMill));
+            Assert.assertEquals("read pinned to the supplier", 2,
+                supplier.getRequestCount());
+            Assert.assertEquals("search pinned to the supplier", 1,
+                manager.count(new LdapName("dc=example,dc=com"), "o=Pulp*",
+                    SearchControls.SUBTREE_SCOPE));
+            Assert.assertEquals("search pinned", 3,
+                supplier.getRequestCount());
+            Assert.assertNotNull("read", manager.find(LdapOrganization.class,
+                salon));
+            Assert.assertEquals("other reads not pinned", 3,
+                supplier.getRequestCount());
+            Assert.assertTrue("other reads from the consumer",
+                consumer.getRequestCount() > consumed);
+
+            manager.setReadYourWritesMillis(0);
+            Assert.assertNotNull("read", manager.find(LdapOrganization.class,
+                pulpMill));
+            Assert.assertEquals("no longer pinned", 3,
+                supplier.getRequestCount());
+        }
+        finally
+        {
+            manager.setServers(null);
+        }
+    }
+
+    /**
+     * @return the operations outstanding on all of the servers
+     */
+    private static long getOutstanding(final ServerSet serverSet)
+    {
+        long outstanding = 0;
+        for (final ServerSet.Server server : serverSet.getServers())
+        {
+            outstanding += server.getOutstanding();
+        }
+        return outstanding;
+    }
+
+    @Test
+    public void testHedgedReads() throws InvalidNameException,
+        InterruptedException
+    {
+        final String url = "ldap://localhost:" + ldapServer.getPort();
+        manager.setServers(Arrays.asList(url, url));
+        final HedgePolicy policy = new HedgePolicy(1, 0, 0.5);
+        manager.setHedgePolicy(policy);
+        manager.setCoalescingReads(false);
+        try
+        {
+            final LdapName pulpMill = new LdapName(
+                "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+            for (int index = 0; index < 100; index++)
+            {
+                final LdapOrganization organization = (LdapOrganization)
+                    manager.find(LdapOrganization.class, pulpMill);
+                Assert.assertEquals("read", "Pulp Mill.",
+                    organization.getOrganization());
+            }
+            Assert.assertTrue("reads", policy.getReadCount() >= 100);
+            Assert.assertTrue("hedged " + policy, policy.getHedgeCount() > 0);
+            Assert.assertTrue("capped " + policy, policy.getHedgeRate() <= 0.5);
+            Assert.assertTrue("hedges won at most as often as made",
+                policy.getHedgeWinCount() <= policy.getHedgeCount());
+            // abandoned reads finish in the background
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (getOutstanding(manager.getServerSet()) > 0 &&
+                System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("losers released", 0,
+                getOutstanding(manager.getServerSet()));
+        }
+        finally
+        {
+            manager.setHedgePolicy(null);
+            manager.setServers(null);
+        }
+    }
+
+    @Test
+    public void testSuffixRouting() throws InvalidNameException,
+        InterruptedException
+    {
+        final LdapName base = new LdapName("dc=example,dc=com");
+        final LdapName categories = new LdapName(
+            "ou=bus-categories,dc=example,dc=com");
+        final Map expected = manager.find(base, "objectClass=groupOfNames",
+            "cn", null, LdapGroup.class, LdapManager.SORTED_ORDER,
+            SearchControls.SUBTREE_SCOPE);
+        final List<LdapName> expectedDns = manager.findDns(base,
+            "(objectClass=groupOfNames)", null, SearchControls.SUBTREE_SCOPE);
+        manager.addRoute(categories, null, Arrays.asList(
+            "ldap://localhost:" + ldapServer.getPort()));
+        try
+        {
+            final ServerSet.Server server =
+                manager.getRoutes().get(categories).getServers().get(0);
+            final ILdapBusiness business = (ILdapBusiness) manager.find(
+                LdapBusiness.class, new LdapName(
+                "o=Pulp Mill.,ou=businesses,dc=example,dc=com"));
+            Assert.assertEquals("categories", 2,
+                business.getBusinessCategories().size());
+            final long routed = server.getRequestCount();
+            Assert.assertTrue("categories from their route", routed > 0);
+
+            final Map found = manager.find(base, "objectClass=groupOfNames",
+                "cn", null, LdapGroup.class, LdapManager.SORTED_ORDER,
+                SearchControls.SUBTREE_SCOPE);
+            Assert.assertEquals("merged", expected.keySet(), found.keySet());
+            Assert.assertTrue("searched the route",
+                server.getRequestCount() > routed);
+
+            final long beforeDns = server.getRequestCount();
+            Assert.assertEquals("DNs merged, each once",
+                new HashSet<LdapName>(expectedDns),
+                new HashSet<LdapName>(manager.findDns(base,
+                    "(objectClass=groupOfNames)", null,
+                    SearchControls.SUBTREE_SCOPE)));
+            Assert.assertEquals("counted once each", expectedDns.size(),
+                manager.count(base, "(objectClass=groupOfNames)",
+                    SearchControls.SUBTREE_SCOPE));
+            Assert.assertEquals("attributes merged", expectedDns.size(),
+                manager.getAttributes(base.toString(),
+                    "(objectClass=groupOfNames)", new String[]{"cn"}).length);
+            Assert.assertTrue("exists", manager.exists(base,
+                "(objectClass=groupOfNames)"));
+            Assert.assertTrue("searched the route for each",
+                server.getRequestCount() >= beforeDns + 3);
+
+            final CollectingSubscriber published = new CollectingSubscriber(1);
+            manager.findPublisher(base, "objectClass=groupOfNames", null,
+                LdapGroup.class, SearchControls.SUBTREE_SCOPE, 2).subscribe(
+                published);
+            Assert.assertTrue("published", published.done.await(10,
+                TimeUnit.SECONDS));
+            Assert.assertNull("no error", published.error);
+            Assert.assertEquals("published once each", expectedDns.size(),
+                published.items.size());
+        }
+        finally
+        {
+            manager.removeRoute(categories);
+        }
+        Assert.assertTrue("removed", manager.getRoutes().isEmpty());
+    }
+
+    @Test
+    public void testMultiBaseFind() throws InvalidNameException
+    {
+        final LdapName base = new LdapName("dc=example,dc=com");
+        final LdapName businesses = new LdapName(
+            "ou=businesses,dc=example,dc=com");
+        final Map expected = manager.find(base, "o=*", "o", null,
+            LdapOrganization.class, LdapManager.SORTED_ORDER,
+            SearchControls.SUBTREE_SCOPE);
+
+        final Map overlapping = manager.find(Arrays.asList(businesses, base),
+            "o=*", "o", null, LdapOrganization.class,
+            LdapManager.SORTED_ORDER, SearchControls.SUBTREE_SCOPE);
+        Assert.assertEquals("merged", expected.keySet(),
+            overlapping.keySet());
+
+        final Map split = manager.find(Arrays.asList(base), "o=*", "o", null,
+            LdapOrganization.class, LdapManager.SORTED_ORDER,
+            SearchControls.SUBTREE_SCOPE, true);
+        Assert.assertEquals("split, with the base entry itself",
+            expected.keySet(), split.keySet());
+        Assert.assertTrue("base entry", split.containsKey("example"));
+
+        final Map ordered = manager.find(Arrays.asList(businesses),
+            "o=*Hair*", "o", null, LdapOrganization.class,
+            LdapManager.SEARCH_ORDER, SearchControls.SUBTREE_SCOPE, true);
+        Assert.assertEquals("search order", 4, ordered.size());
+    }
+
+    @Test
+    public void testExistsAndCount() throws InvalidNameException
+    {
+        final LdapName baseName = new LdapName("dc=example,dc=com");
+        Assert.assertTrue("exists", manager.exists(new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com")));
+        Assert.assertFalse("does not exist", manager.exists(new LdapName(
+            "o=Nothing Here,ou=businesses,dc=example,dc=com")));
+        Assert.assertTrue("filter matches", manager.exists(baseName,
+            "o=*Hair*"));
+        Assert.assertFalse("filter does not match", manager.exists(baseName,
+            "o=*Nothing Here*"));
+        Assert.assertEquals("number of hair salons in directory", 4,
+            manager.count(baseName, "o=*Hair*", SearchControls.SUBTREE_SCOPE));
+        Assert.assertEquals("nothing at base", 0, manager.count(baseName,
+            "o=*Hair*", SearchControls.OBJECT_SCOPE));
+    }
+
     /**
      * Tests using the ADD_ATTRIBUTE capability.
      */
@@ -283,6 +914,94 @@ public class AnnotationsTest extends AbstractLdapTestUnit
             new String[]{});
     }
 
+    /**
+     * Tests using the INCREMENT_ATTRIBUTE capability, including that an
+     * increment through a stale instance does not lose the other one.
+     */
+    @Test
+    public void testIncrement() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final LdapEntry ldapEntry = (LdapEntry) manager.find(
+            LdapBusiness.class, ldapName);
+        final LdapEntry staleEntry = (LdapEntry) manager.find(
+            LdapBusiness.class, ldapName);
+        ldapEntry.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE,
+            "postOfficeBox", 2);
+        ldapEntry.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE,
+            "postOfficeBox", "3");
+        ldapEntry.save();
+        Assert.assertEquals("in memory", "5",
+            ldapEntry.getStringValue("postOfficeBox"));
+
+        Assert.assertEquals("returned", 4,
+            staleEntry.incrementAttribute("postOfficeBox", -1));
+        final LdapEntry ldapEntry2 = (LdapEntry) manager.find(
+            LdapBusiness.class, ldapName);
+        Assert.assertEquals("stored", "4",
+            ldapEntry2.getStringValue("postOfficeBox"));
+
+        ldapEntry2.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "street", "Atomic Way");
+        ldapEntry2.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE, "o",
+            1);
+        try
+        {
+            ldapEntry2.save();
+            Assert.fail("o is not an integer");
+        }
+        catch (final LdapNamingException expected)
+        {
+            // nothing applied, as the increment is part of the same modify
+        }
+        Assert.assertFalse("street not applied without the increment",
+            "Atomic Way".equals(((LdapEntry) manager.find(LdapBusiness.class,
+                ldapName)).getStringValue("street")));
+
+        ldapEntry2.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "street", "Atomic Way");
+        ldapEntry2.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE,
+            "postOfficeBox", 1);
+        ldapEntry2.save();
+        final LdapEntry ldapEntry3 = (LdapEntry) manager.find(
+            LdapBusiness.class, ldapName);
+        Assert.assertEquals("street applied", "Atomic Way",
+            ldapEntry3.getStringValue("street"));
+        Assert.assertEquals("increment applied", "5",
+            ldapEntry3.getStringValue("postOfficeBox"));
+
+        final Map<String, Long> increments =
+            Collections.singletonMap("postOfficeBox", 1L);
+        try
+        {
+            manager.modifyAttributes(ldapName, new ModificationItem[]{
+                new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                    new BasicAttribute("POSTOFFICEBOX", "9"))}, increments,
+                manager.getBindDN(), manager.getBindPassword(), null);
+            Assert.fail("attribute names are case insensitive");
+        }
+        catch (final IllegalArgumentException expected)
+        {
+            // modified and incremented
+        }
+        try
+        {
+            manager.modifyAttributes(ldapName, new ModificationItem[]{
+                new ModificationItem(DirContext.ADD_ATTRIBUTE,
+                    new BasicAttribute("street", "Atomic Way"))}, increments,
+                manager.getBindDN(), manager.getBindPassword(), null);
+            Assert.fail("street already has that value");
+        }
+        catch (final LdapNamingException expected)
+        {
+            // not retried, as the incremented value did not change
+        }
+        Assert.assertEquals("increment not applied", "5",
+            ((LdapEntry) manager.find(LdapBusiness.class, ldapName))
+                .getStringValue("postOfficeBox"));
+    }
+
     /**
      * Tests to ensure that the system does in fact not find an entry for an
      * object that REQUIRES a certain objectClass.
@@ -0,0 +1,277 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.DirectoryOverloadedException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests limiting of operations in flight.
+ * <p/>
+ * Created :  26/10/26 8:40 PM MST
+ */
+@SuppressWarnings({"JavaDoc", "ClassWithoutConstructor"})
+public class ConcurrencyLimiterTest
+{
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public void testFastFail()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 0, 1000);
+        limiter.acquire(Long.MAX_VALUE);
+        limiter.acquire(Long.MAX_VALUE);
+        try
+        {
+            limiter.acquire(Long.MAX_VALUE);
+            Assert.fail("should have been refused");
+        }
+        catch (final DirectoryOverloadedException exception)
+        {
+            Assert.assertEquals("rejected", 1, limiter.getRejectedCount());
+        }
+        limiter.release(MILLISECOND);
+        limiter.acquire(Long.MAX_VALUE);
+        Assert.assertEquals("in flight", 2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testQueueTimeout()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10,
+            1000);
+        limiter.acquire(Long.MAX_VALUE);
+        final long start = System.currentTimeMillis();
+        try
+        {
+            limiter.acquire(50);
+            Assert.fail("should have timed out");
+        }
+        catch (final DirectoryOverloadedException exception)
+        {
+            Assert.assertTrue("bounded by the time left",
+                System.currentTimeMillis() - start < 1000);
+            Assert.assertEquals("nobody queued", 0, limiter.getQueued());
+        }
+    }
+
+    @Test
+    public void testQueued() throws InterruptedException
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10,
+            10000);
+        limiter.acquire(Long.MAX_VALUE);
+        final Thread waiter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                limiter.acquire(Long.MAX_VALUE);
+                limiter.release(MILLISECOND);
+            }
+        });
+        waiter.start();
+        while (limiter.getQueued() == 0)
+        {
+            Thread.sleep(10);
+        }
+        limiter.release(MILLISECOND);
+        waiter.join();
+        Assert.assertEquals("all released", 0, limiter.getInFlight());
+        Assert.assertTrue("waited", limiter.getQueueWaitStatistics()
+            .getMaxMillis() > 0);
+    }
+
+    @Test
+    public void testAdaptive()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 0, 0);
+        limiter.setAdaptive(2, 100);
+        for (int operation = 0; operation < 10; operation++)
+        {
+            limiter.acquire(Long.MAX_VALUE);
+            limiter.release(500 * MILLISECOND);
+        }
+        Assert.assertEquals("slow, so decreased", 8, limiter.getLimit());
+
+        for (int window = 0; window < 10; window++)
+        {
+            for (int operation = 0; operation < limiter.getLimit();
+                 operation++)
+            {
+                limiter.acquire(Long.MAX_VALUE);
+                limiter.release(500 * MILLISECOND);
+            }
+        }
+        Assert.assertEquals("never below the minimum", 2, limiter.getLimit());
+
+        for (int window = 0; window < 3; window++)
+        {
+            final int limit = limiter.getLimit();
+            for (int operation = 0; operation < limit; operation++)
+            {
+                limiter.acquire(Long.MAX_VALUE);
+            }
+            for (int operation = 0; operation < limit; operation++)
+            {
+                limiter.release(MILLISECOND);
+            }
+        }
+        Assert.assertEquals("fast and saturated, so increased", 5,
+            limiter.getLimit());
+    }
+
+    @Test
+    public void testReserve() throws InterruptedException
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10,
+            10000);
+        limiter.setReserve(1);
+        limiter.acquire(Priority.BATCH, Long.MAX_VALUE);
+        final Thread batch = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                limiter.acquire(Priority.BATCH, Long.MAX_VALUE);
+                limiter.release(MILLISECOND);
+            }
+        });
+        batch.start();
+        while (limiter.getQueued(Priority.BATCH) == 0)
+        {
+            Thread.sleep(10);
+        }
+
+        limiter.acquire(Priority.INTERACTIVE, 0);
+        Assert.assertEquals("reserved slot used", 2, limiter.getInFlight());
+        limiter.release(MILLISECOND);
+        Thread.sleep(100);
+        Assert.assertEquals("batch still kept out of the reserve", 1,
+            limiter.getQueued(Priority.BATCH));
+        limiter.release(MILLISECOND);
+        batch.join();
+        Assert.assertEquals("all released", 0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testInteractiveFirst() throws InterruptedException
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10,
+            10000);
+        limiter.acquire(Long.MAX_VALUE);
+        final List<Priority> order = new CopyOnWriteArrayList<Priority>();
+        final Thread batch = startWaiter(limiter, Priority.BATCH, order);
+        while (limiter.getQueued(Priority.BATCH) == 0)
+        {
+            Thread.sleep(10);
+        }
+        final Thread interactive = startWaiter(limiter, Priority.INTERACTIVE,
+            order);
+        while (limiter.getQueued(Priority.INTERACTIVE) == 0)
+        {
+            Thread.sleep(10);
+        }
+        limiter.release(MILLISECOND);
+        batch.join();
+        interactive.join();
+        Assert.assertEquals("interactive went first", Arrays.asList(
+            Priority.INTERACTIVE, Priority.BATCH), order);
+    }
+
+    @Test
+    public void testPriorityExecutor() throws InterruptedException
+    {
+        final PriorityExecutor executor = new PriorityExecutor(1,
+            Executors.defaultThreadFactory());
+        try
+        {
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (final InterruptedException exception)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final List<Priority> order = new CopyOnWriteArrayList<Priority>();
+            executor.execute(record(order, Priority.BATCH), Priority.BATCH);
+            executor.execute(record(order, Priority.INTERACTIVE),
+                Priority.INTERACTIVE);
+            release.countDown();
+            executor.shutdown();
+            Assert.assertTrue("finished", executor.awaitTermination(10,
+                TimeUnit.SECONDS));
+            Assert.assertEquals("interactive went first", Arrays.asList(
+                Priority.INTERACTIVE, Priority.BATCH), order);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Thread startWaiter(final ConcurrencyLimiter limiter,
+        final Priority priority, final List<Priority> order)
+    {
+        final Thread waiter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                limiter.acquire(priority, Long.MAX_VALUE);
+                order.add(priority);
+                limiter.release(MILLISECOND);
+            }
+        });
+        waiter.start();
+        return waiter;
+    }
+
+    private static Runnable record(final List<Priority> order,
+        final Priority priority)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                order.add(priority);
+            }
+        };
+    }
+}
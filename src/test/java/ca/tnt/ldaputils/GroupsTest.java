@@ -20,6 +20,9 @@
  */
 package ca.tnt.ldaputils;
 
+import ca.tnt.ldaputils.impl.CompactDnSet;
+import ca.tnt.ldaputils.impl.CompactLdapGroup;
+import ca.tnt.ldaputils.impl.LdapEntry;
 import ca.tnt.ldaputils.impl.LdapGroup;
 import org.apache.directory.server.annotations.CreateLdapServer;
 import org.apache.directory.server.annotations.CreateTransport;
@@ -35,7 +38,23 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.naming.ldap.LdapName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by IntelliJ IDEA.
@@ -119,4 +138,268 @@ public class GroupsTest extends AbstractLdapTestUnit
             Assert.fail("ldap group should have been loaded");
         }
     }
+
+    @Test
+    public void testIsMember() throws InvalidNameException
+    {
+        final LdapName groupName = new LdapName(
+            "cn=Hair Salons,ou=bus-categories,dc=example,dc=com");
+        Assert.assertTrue("member", manager.isMember(groupName, new LdapName(
+            "o=New Trends Hair Salon,ou=businesses,dc=example,dc=com")));
+        Assert.assertTrue("member, other case", manager.isMember(groupName,
+            new LdapName(
+                "O=new trends hair salon,OU=Businesses,DC=example,DC=com")));
+        Assert.assertFalse("not a member", manager.isMember(groupName,
+            new LdapName("o=Pulp Mill.,ou=businesses,dc=example,dc=com")));
+        Assert.assertTrue("compare", manager.compare(groupName, "cn",
+            "hair salons"));
+        Assert.assertFalse("no such attribute", manager.compare(groupName,
+            "description", "anything"));
+    }
+
+    @Test
+    public void testGetMembers() throws InvalidNameException
+    {
+        final LdapGroup ldapEntry = (LdapGroup) manager.find(LdapGroup.class,
+            new LdapName("cn=Hair Salons,ou=bus-categories,dc=example,dc=com"));
+        final Map members = ldapEntry.getMembers("o", 0);
+        Assert.assertEquals("members", Arrays.asList("Hair Clinic & " +
+            "Tanning Centre", "Hair by Person X", "New Trends Hair Salon",
+            "Unisex Hair Styling"), new ArrayList(members.keySet()));
+        final ILdapEntry member = (ILdapEntry) members.get("Hair by Person X");
+        Assert.assertEquals("dn", new LdapName(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com"),
+            member.getDn());
+        Assert.assertTrue("object classes",
+            member.getObjectClasses().contains("tntbusiness"));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    @Test
+    public void testCompactGroup() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "cn=Hair Salons,ou=bus-categories,dc=example,dc=com");
+        final LdapGroup group = (LdapGroup) manager.find(LdapGroup.class,
+            ldapName);
+        final LdapGroup compactGroup = (LdapGroup) manager.find(
+            CompactLdapGroup.class, ldapName);
+        final SortedSet<String> members = compactGroup.getMembers();
+        final List<String> normalized = new ArrayList<String>();
+        for (final Object member : group.getMembers())
+        {
+            normalized.add(CompactDnSet.normalize((String) member));
+        }
+        Collections.sort(normalized, CompactDnSet.CODE_POINT_ORDER);
+        Assert.assertEquals("same members, same order", normalized,
+            new ArrayList(members));
+        Assert.assertTrue("contains", members.contains(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com"));
+        Assert.assertTrue("contains, normalized", members.contains(
+            "O=hair BY person x, OU=Businesses, DC=example, DC=com"));
+        Assert.assertFalse("does not contain", members.contains(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com"));
+
+        final CompactDnSet set = new CompactDnSet(members);
+        Assert.assertEquals("parents stored once", 1, set.getParentCount());
+        Assert.assertTrue("add", set.add("cn=Escaped\\, Comma,dc=com"));
+        Assert.assertFalse("add again", set.add("cn=Escaped\\, Comma,dc=com"));
+        Assert.assertFalse("add, differently spelled",
+            set.add("CN=escaped\\, comma, DC=com"));
+        Assert.assertEquals("first", "cn=escaped\\, comma,dc=com", set.first());
+        Assert.assertEquals("head set", 2, set.headSet(
+            "o=Hair Clinic & Tanning Centre,ou=businesses,dc=example,dc=com")
+            .size());
+        Assert.assertTrue("remove", set.remove(
+            "o=Unisex Hair Styling,ou=businesses,dc=example,dc=com"));
+        Assert.assertEquals("size", 4, set.size());
+        Assert.assertEquals("last",
+            "o=new trends hair salon,ou=businesses,dc=example,dc=com",
+            set.last());
+    }
+
+    @Test
+    public void testMembershipIndex() throws NamingException,
+        InterruptedException
+    {
+        final LdapName pulpMill = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final LdapName hairSalons = new LdapName(
+            "cn=Hair Salons,ou=bus-categories,dc=example,dc=com");
+        final MembershipIndex index = manager.enableMembershipIndex(
+            new LdapName("ou=bus-categories,dc=example,dc=com"));
+        try
+        {
+            Assert.assertEquals("groups", new HashSet<LdapName>(Arrays.asList(
+                new LdapName("cn=Manufacturing,ou=bus-categories,dc=example,dc=com"),
+                new LdapName("cn=Pulp & Paper Products,ou=bus-categories," +
+                    "dc=example,dc=com"))), index.groupsOf(new LdapName(
+                "O=pulp mill.,ou=businesses,dc=example,dc=com")));
+
+            final LdapGroup group = (LdapGroup) manager.find(LdapGroup.class,
+                hairSalons);
+            group.addMember((ILdapEntry) manager.find(LdapEntry.class,
+                pulpMill));
+            group.save();
+            Assert.assertTrue("added through the manager",
+                index.groupsOf(pulpMill).contains(hairSalons));
+
+            index.startWatching();
+            // the persistent search is registered asynchronously, with no
+            // notice of when it is done, so the change is repeated until it
+            // is seen, or the deadline passes
+            final Attribute members = new BasicAttribute("member");
+            for (final Object member : group.getMembers())
+            {
+                if (!pulpMill.equals(new LdapName((String) member)))
+                {
+                    members.add(member);
+                }
+            }
+            final DirContext ldapContext = manager.getConnection(
+                manager.getBindDN(), manager.getBindPassword());
+            try
+            {
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (index.groupsOf(pulpMill).contains(hairSalons) &&
+                    System.currentTimeMillis() < deadline)
+                {
+                    ldapContext.modifyAttributes(hairSalons,
+                        new ModificationItem[]{new ModificationItem(
+                            DirContext.REPLACE_ATTRIBUTE, members)});
+                    Thread.sleep(100);
+                }
+            }
+            finally
+            {
+                ldapContext.close();
+            }
+            Assert.assertFalse("removed by another client",
+                index.groupsOf(pulpMill).contains(hairSalons));
+        }
+        finally
+        {
+            manager.disableMembershipIndex();
+        }
+    }
+
+    @Test
+    public void testNestedGroups() throws InvalidNameException
+    {
+        final LdapName hairSalons = new LdapName(
+            "cn=Hair Salons,ou=bus-categories,dc=example,dc=com");
+        final LdapName tanningSalons = new LdapName(
+            "cn=Tanning Salons,ou=bus-categories,dc=example,dc=com");
+        final LdapName categories = new LdapName(
+            "cn=categories,ou=bus-categories,dc=example,dc=com");
+        final LdapName hairAndTanning = new LdapName(
+            "o=Hair Clinic & Tanning Centre,ou=businesses,dc=example,dc=com");
+        final NestedGroupResolver resolver = new NestedGroupResolver(manager,
+            60000, new LdapName("ou=bus-categories,dc=example,dc=com"));
+        manager.addModificationListener(resolver);
+        try
+        {
+            Assert.assertEquals("not nested yet", Collections.singleton(
+                hairSalons), resolver.effectiveGroupsOf(new LdapName(
+                "o=Hair by Person X,ou=businesses,dc=example,dc=com")));
+            Assert.assertEquals("direct members", 4,
+                resolver.expandMembers(hairSalons).size());
+
+            // nest tanning salons in hair salons, and vice versa
+            final LdapGroup hairGroup = (LdapGroup) manager.find(
+                LdapGroup.class, hairSalons);
+            final LdapGroup tanningGroup = (LdapGroup) manager.find(
+                LdapGroup.class, tanningSalons);
+            hairGroup.addMember(tanningGroup);
+            hairGroup.save();
+            tanningGroup.addMember(hairGroup);
+            tanningGroup.save();
+
+            Assert.assertEquals("nested members", 4,
+                resolver.expandMembers(hairSalons).size());
+            Assert.assertEquals("nested groups, including the cycle",
+                new HashSet<LdapName>(Arrays.asList(hairSalons,
+                    tanningSalons)), resolver.expandGroups(hairSalons));
+            Assert.assertEquals("effective groups",
+                new HashSet<LdapName>(Arrays.asList(hairSalons,
+                    tanningSalons)), resolver.effectiveGroupsOf(new LdapName(
+                "o=Hair by Person X,ou=businesses,dc=example,dc=com")));
+            Assert.assertEquals("both directly", 2, resolver.effectiveGroupsOf(
+                hairAndTanning).size());
+            Assert.assertEquals("member of itself", Collections.singleton(
+                categories), resolver.expandGroups(categories));
+            Assert.assertTrue("no other members",
+                resolver.expandMembers(categories).isEmpty());
+
+            final NestedGroupResolver bounded = new NestedGroupResolver(
+                manager, 60000, 1,
+                new LdapName("ou=bus-categories,dc=example,dc=com"));
+            bounded.expandMembers(hairSalons);
+            bounded.expandMembers(tanningSalons);
+            bounded.expandMembers(categories);
+            bounded.effectiveGroupsOf(hairAndTanning);
+            Assert.assertEquals("one of each held", 2, bounded.getMemoSize());
+        }
+        finally
+        {
+            manager.removeModificationListener(resolver);
+        }
+    }
+
+    @Test
+    public void testBulkMembership() throws InvalidNameException,
+        InterruptedException, ExecutionException, TimeoutException
+    {
+        final LdapName hairSalons = new LdapName(
+            "cn=Hair Salons,ou=bus-categories,dc=example,dc=com");
+        final LdapName manufacturing = new LdapName(
+            "cn=Manufacturing,ou=bus-categories,dc=example,dc=com");
+        final LdapName pulpMill = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final LdapName personX = new LdapName(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com");
+        final LdapName unisex = new LdapName(
+            "o=Unisex Hair Styling,ou=businesses,dc=example,dc=com");
+        final LdapName newTrends = new LdapName(
+            "o=New Trends Hair Salon,ou=businesses,dc=example,dc=com");
+
+        final BulkMembershipUpdate update = new BulkMembershipUpdate(manager);
+        update.setChunkSize(1);
+        update.addMembers(hairSalons, Arrays.asList(pulpMill, personX));
+        update.removeMembers(hairSalons, Arrays.asList(unisex, new LdapName(
+            "o=missing-object-class,ou=businesses,dc=example,dc=com")));
+        update.addMembers(manufacturing, Arrays.asList(unisex, newTrends,
+            pulpMill));
+        final BulkMembershipUpdate.Result result = update.apply();
+
+        Assert.assertTrue("no failures", result.getFailures().isEmpty());
+        Assert.assertEquals("added", 3, result.getAdded());
+        Assert.assertEquals("removed", 1, result.getRemoved());
+        Assert.assertEquals("already done", 3, result.getSkipped());
+        Assert.assertTrue("added", manager.isMember(hairSalons, pulpMill));
+        Assert.assertTrue("still there", manager.isMember(hairSalons,
+            personX));
+        Assert.assertFalse("removed", manager.isMember(hairSalons, unisex));
+        Assert.assertTrue("other group", manager.isMember(manufacturing,
+            newTrends));
+        Assert.assertEquals("nothing left to apply", 0,
+            update.apply().getAdded());
+
+        // from one of the manager's own threads, as from saveAsync
+        update.removeMembers(hairSalons, Collections.singleton(pulpMill));
+        update.removeMembers(manufacturing, Collections.singleton(pulpMill));
+        final BulkMembershipUpdate.Result nested = manager.submit(
+            new Callable<BulkMembershipUpdate.Result>()
+            {
+                @Override
+                public BulkMembershipUpdate.Result call()
+                {
+                    return update.apply();
+                }
+            }).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("removed on the manager's thread", 2,
+            nested.getRemoved());
+        Assert.assertFalse("removed", manager.isMember(manufacturing,
+            pulpMill));
+    }
 }
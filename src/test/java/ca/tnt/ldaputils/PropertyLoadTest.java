@@ -20,6 +20,7 @@
  */
 package ca.tnt.ldaputils;
 
+import ca.tnt.ldaputils.exception.LdapNamingException;
 import ca.tnt.ldaputils.impl.LdapOrganization;
 import org.apache.directory.server.annotations.CreateLdapServer;
 import org.apache.directory.server.annotations.CreateTransport;
@@ -36,6 +37,11 @@ import org.junit.runner.RunWith;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
 import java.util.SortedMap;
 
 /**
@@ -93,5 +99,140 @@ public class PropertyLoadTest extends AbstractLdapTestUnit
             "Pulp Mill.", ldapEntry.getOrganization());
     }
 
+    @Test
+    public void testSharedManager() throws InvalidNameException
+    {
+        final LdapConfiguration configuration = LdapConfiguration.load();
+        Assert.assertEquals("same configuration", configuration,
+            manager.getConfiguration());
+        Assert.assertEquals("url", "ldap://localhost:8389",
+            configuration.getUrl());
+
+        final Properties properties = configuration.getProperties();
+        properties.setProperty("LDAP.managerpw", "changed");
+        Assert.assertEquals("configuration is a copy", "secret",
+            configuration.getProperty("LDAP.managerpw"));
+        Assert.assertFalse("other credentials", configuration.equals(
+            configuration.withCredentials("uid=someone,ou=system", "secret")));
+
+        final LdapManager shared = LdapManagerRegistry.getDefault();
+        Assert.assertSame("shared", shared, LdapManagerRegistry.getDefault());
+        Assert.assertSame("shared by configuration", shared,
+            LdapManagerRegistry.get(configuration));
 
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final LdapManager view = shared.withCredentials(
+            "uid=admin,ou=system", "wrong");
+        Assert.assertEquals("view bind DN", "uid=admin,ou=system",
+            view.getBindDN());
+        try
+        {
+            view.find(LdapOrganization.class, ldapName);
+            Assert.fail("wrong password should not bind");
+        }
+        catch (final RuntimeException expected)
+        {
+            // the view uses its own credentials
+        }
+        Assert.assertEquals("shared manager keeps its credentials", "secret",
+            shared.getBindPassword());
+        Assert.assertNotNull("shared manager still works",
+            shared.find(LdapOrganization.class, ldapName));
+        LdapManagerRegistry.remove(configuration);
+    }
+
+    @Test
+    public void testReload() throws InvalidNameException, IOException
+    {
+        final File file = File.createTempFile("ldap", ".properties");
+        file.deleteOnExit();
+        final Properties properties = LdapConfiguration.load()
+            .getProperties();
+        properties.setProperty("LDAP.servers", "ldap://localhost:8389");
+        properties.setProperty("LDAP.maxConcurrent", "4");
+        properties.setProperty("LDAP.managerpw", "wrong");
+        store(properties, file, 0);
+
+        final LdapManager reloading = new LdapManager(
+            LdapConfiguration.load(file));
+        final LdapManager batch = reloading.withPriority(Priority.BATCH);
+        final ServerSet servers = reloading.getServerSet();
+        final ConcurrencyLimiter limiter = reloading.getReadLimiter();
+        final ConfigurationWatcher watcher = reloading.watchConfiguration(
+            file, 60000);
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        try
+        {
+            batch.find(LdapOrganization.class, ldapName);
+            Assert.fail("wrong password should not bind");
+        }
+        catch (final RuntimeException expected)
+        {
+            // fixed by the reload
+        }
+
+        Assert.assertFalse("unchanged", watcher.check());
+        properties.setProperty("LDAP.managerpw", "secret");
+        store(properties, file, 2000);
+        Assert.assertTrue("reloaded", watcher.check());
+        Assert.assertEquals("reload count", 1, watcher.getReloadCount());
+        Assert.assertNotNull("manager uses new password",
+            reloading.find(LdapOrganization.class, ldapName));
+        Assert.assertNotNull("view uses new password",
+            batch.find(LdapOrganization.class, ldapName));
+        Assert.assertSame("servers kept", servers, reloading.getServerSet());
+        Assert.assertSame("limiter kept", limiter,
+            reloading.getReadLimiter());
+
+        properties.remove("LDAP.managerdn");
+        store(properties, file, 4000);
+        Assert.assertFalse("invalid file not loaded", watcher.check());
+        Assert.assertEquals("failure count", 1, watcher.getFailureCount());
+        Assert.assertEquals("previous configuration kept", "secret",
+            reloading.getConfiguration().getBindPassword());
+
+        final Properties badRoute = LdapConfiguration.load().getProperties();
+        badRoute.setProperty("LDAP.managerpw", "other");
+        badRoute.setProperty("LDAP.route.1.suffix", "not a dn");
+        try
+        {
+            reloading.reload(new LdapConfiguration(badRoute));
+            Assert.fail("invalid route suffix should not load");
+        }
+        catch (final LdapNamingException expected)
+        {
+            // nothing is changed
+        }
+        Assert.assertEquals("password not half reloaded", "secret",
+            reloading.getBindPassword());
+        Assert.assertEquals("view not half reloaded", "secret",
+            batch.getBindPassword());
+        Assert.assertSame("servers not replaced", servers,
+            reloading.getServerSet());
+        Assert.assertNotNull("still works",
+            reloading.find(LdapOrganization.class, ldapName));
+
+        reloading.stopWatchingConfiguration();
+        Assert.assertNull("stopped", reloading.getConfigurationWatcher());
+        reloading.getServerSet().close();
+    }
+
+    private static void store(final Properties properties, final File file,
+        final long laterMillis) throws IOException
+    {
+        final long lastModified = file.lastModified();
+        final OutputStream outputStream = new FileOutputStream(file);
+        try
+        {
+            properties.store(outputStream, null);
+        }
+        finally
+        {
+            outputStream.close();
+        }
+        // the file system may only keep the modification time in seconds
+        file.setLastModified(lastModified + laterMillis);
+    }
 }
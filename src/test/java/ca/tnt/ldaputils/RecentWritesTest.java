@@ -0,0 +1,59 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+/**
+ * Tests remembering recent changes.
+ * <p/>
+ * Created :  18/10/26 7:40 PM MST
+ */
+@SuppressWarnings({"JavaDoc", "ClassWithoutConstructor"})
+public class RecentWritesTest
+{
+    @Test
+    public void testCovers() throws InvalidNameException, InterruptedException
+    {
+        final RecentWrites recentWrites = new RecentWrites(100);
+        recentWrites.record(new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com"));
+        Assert.assertTrue("the entry", recentWrites.covers(new LdapName(
+            "O=pulp mill., ou=businesses, dc=example, dc=com")));
+        Assert.assertTrue("a subtree above it", recentWrites.covers(
+            new LdapName("dc=example,dc=com")));
+        Assert.assertFalse("a sibling", recentWrites.covers(new LdapName(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com")));
+        Assert.assertFalse("below it", recentWrites.covers(new LdapName(
+            "cn=x,o=Pulp Mill.,ou=businesses,dc=example,dc=com")));
+        Assert.assertFalse("null", recentWrites.covers(null));
+
+        Thread.sleep(150);
+        Assert.assertFalse("expired", recentWrites.covers(new LdapName(
+            "dc=example,dc=com")));
+        recentWrites.record(new LdapName("dc=com"));
+        Assert.assertEquals("old changes swept out", 2, recentWrites.size());
+    }
+}
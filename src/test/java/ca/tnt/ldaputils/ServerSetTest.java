@@ -0,0 +1,157 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests choosing among several servers.
+ * <p/>
+ * Created :  27/10/26 11:20 AM MST
+ */
+@SuppressWarnings({"JavaDoc", "ClassWithoutConstructor"})
+public class ServerSetTest
+{
+    private static final List<ServerSet.Server> NONE =
+        Collections.emptyList();
+
+    @Test
+    public void testLeastOutstanding()
+    {
+        final ServerSet serverSet = new ServerSet(Arrays.asList(
+            "ldap://one", "ldap://two", "ldap://three"));
+        final List<ServerSet.Server> servers = serverSet.getServers();
+        final List<ServerSet.Server> chosen = new ArrayList<ServerSet.Server>();
+        for (int index = 0; index < 3; index++)
+        {
+            chosen.add(serverSet.choose(false, NONE));
+        }
+        Assert.assertTrue("spread over all", chosen.containsAll(servers));
+
+        serverSet.release(servers.get(1), 0);
+        Assert.assertSame("least outstanding", servers.get(1),
+            serverSet.choose(false, NONE));
+        Assert.assertSame("writes go to the first", servers.get(0),
+            serverSet.choose(true, NONE));
+        Assert.assertEquals("outstanding", 2, servers.get(0).getOutstanding());
+    }
+
+    @Test
+    public void testSupplier()
+    {
+        final ServerSet serverSet = new ServerSet("ldap://supplier",
+            Arrays.asList("ldap://one", "ldap://two"), 1000);
+        final ServerSet.Server supplier = serverSet.getSupplier();
+        Assert.assertSame("writes to the supplier", supplier,
+            serverSet.choose(true, NONE));
+        for (int index = 0; index < 4; index++)
+        {
+            Assert.assertNotSame("reads to the consumers", supplier,
+                serverSet.choose(false, NONE));
+        }
+        Assert.assertNull("no failing over writes", serverSet.choose(true,
+            Collections.singletonList(supplier)));
+
+        serverSet.fail(serverSet.getServers().get(1), new Exception("down"));
+        serverSet.fail(serverSet.getServers().get(2), new Exception("down"));
+        Assert.assertSame("reads fall back to the supplier", supplier,
+            serverSet.choose(false, NONE));
+    }
+
+    @Test
+    public void testEjection() throws InterruptedException
+    {
+        final ServerSet serverSet = new ServerSet(Arrays.asList(
+            "ldap://one", "ldap://two"), 50);
+        final CountDownLatch probed = new CountDownLatch(1);
+        serverSet.setProber(new ServerSet.Prober()
+        {
+            @Override
+            public void probe(final String url)
+            {
+                probed.countDown();
+            }
+        });
+        try
+        {
+            final ServerSet.Server first = serverSet.getServers().get(0);
+            final ServerSet.Server second = serverSet.getServers().get(1);
+            serverSet.fail(first, new Exception("unreachable"));
+            Assert.assertFalse("ejected", first.isHealthy());
+            Assert.assertSame("writes fail over", second,
+                serverSet.choose(true, NONE));
+            Assert.assertSame("ejected servers are the last resort", first,
+                serverSet.choose(true, Collections.singletonList(second)));
+            Assert.assertNull("all tried", serverSet.choose(true,
+                serverSet.getServers()));
+
+            Assert.assertTrue("probed", probed.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            Assert.assertTrue("reinstated", first.isHealthy());
+            Assert.assertSame("writes back on the first", first,
+                serverSet.choose(true, NONE));
+        }
+        finally
+        {
+            serverSet.close();
+        }
+    }
+
+    @Test
+    public void testEjectedUntilProbed() throws InterruptedException
+    {
+        final ServerSet serverSet = new ServerSet(Arrays.asList(
+            "ldap://one", "ldap://two"), 20);
+        final CountDownLatch probes = new CountDownLatch(2);
+        serverSet.setProber(new ServerSet.Prober()
+        {
+            @Override
+            public void probe(final String url) throws Exception
+            {
+                probes.countDown();
+                throw new Exception("still down");
+            }
+        });
+        try
+        {
+            final ServerSet.Server first = serverSet.getServers().get(0);
+            final ServerSet.Server second = serverSet.getServers().get(1);
+            serverSet.fail(first, new Exception("unreachable"));
+            Assert.assertTrue("probed twice", probes.await(5,
+                TimeUnit.SECONDS));
+            Assert.assertFalse("still ejected", first.isHealthy());
+            Assert.assertSame("not used once its ejection runs out", second,
+                serverSet.choose(true, NONE));
+        }
+        finally
+        {
+            serverSet.close();
+        }
+    }
+}
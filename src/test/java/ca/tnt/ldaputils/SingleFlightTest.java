@@ -0,0 +1,270 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.exception.OperationCancelledException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests coalescing of identical concurrent calls.
+ * <p/>
+ * Created :  22/10/26 10:05 PM MST
+ */
+@SuppressWarnings({"JavaDoc", "ClassWithoutConstructor"})
+public class SingleFlightTest
+{
+    @Test
+    public void testCoalesce() throws InterruptedException
+    {
+        final SingleFlight<String, List<String>> singleFlight =
+            new SingleFlight<String, List<String>>()
+            {
+                @Override
+                protected List<String> copy(final List<String> value)
+                {
+                    return new ArrayList<String>(value);
+                }
+            };
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<List<String>> slow = new Callable<List<String>>()
+        {
+            @Override
+            public List<String> call() throws InterruptedException
+            {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return Collections.singletonList("result");
+            }
+        };
+
+        final AtomicReference<List<String>> leaderResult =
+            new AtomicReference<List<String>>();
+        final Thread leader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                leaderResult.set(singleFlight.execute("key", slow));
+            }
+        });
+        leader.start();
+        started.await();
+
+        final AtomicReference<List<String>> followerResult =
+            new AtomicReference<List<String>>();
+        final Thread follower = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                followerResult.set(singleFlight.execute("key", slow));
+            }
+        });
+        follower.start();
+        while (singleFlight.getCoalescedCount() == 0)
+        {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        Assert.assertEquals("one call", 1, calls.get());
+        Assert.assertEquals("same result", leaderResult.get(),
+            followerResult.get());
+        Assert.assertNotSame("copied", leaderResult.get(),
+            followerResult.get());
+
+        Assert.assertEquals("nothing remembered", "result",
+            singleFlight.execute("key", slow).get(0));
+        Assert.assertEquals("called again", 2, calls.get());
+    }
+
+    @Test
+    public void testException()
+    {
+        final SingleFlight<String, String> singleFlight =
+            new SingleFlight<String, String>();
+        try
+        {
+            singleFlight.execute("key", new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            Assert.fail("should have thrown");
+        }
+        catch (final IllegalStateException exception)
+        {
+            Assert.assertEquals("the same exception", "failed",
+                exception.getMessage());
+        }
+    }
+
+    @Test
+    public void testLeaderCancelled() throws InterruptedException
+    {
+        final SingleFlight<String, String> singleFlight =
+            new SingleFlight<String, String>();
+        final OperationContext leaderContext = new OperationContext();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> call = new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                if (calls.incrementAndGet() == 1)
+                {
+                    started.countDown();
+                    release.await();
+                    leaderContext.checkpoint();
+                }
+                return "result";
+            }
+        };
+
+        final AtomicReference<RuntimeException> leaderFailure =
+            new AtomicReference<RuntimeException>();
+        final Thread leader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    singleFlight.execute("key", leaderContext, call);
+                }
+                catch (final RuntimeException exception)
+                {
+                    leaderFailure.set(exception);
+                }
+            }
+        });
+        leader.start();
+        started.await();
+
+        final AtomicReference<String> followerResult =
+            new AtomicReference<String>();
+        final Thread follower = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                followerResult.set(singleFlight.execute("key",
+                    new OperationContext(10000), call));
+            }
+        });
+        follower.start();
+        while (singleFlight.getCoalescedCount() == 0)
+        {
+            Thread.sleep(10);
+        }
+        leaderContext.cancel();
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        Assert.assertTrue("leader cancelled", leaderFailure.get() instanceof
+            OperationCancelledException);
+        Assert.assertEquals("follower did its own call", "result",
+            followerResult.get());
+        Assert.assertEquals("called twice", 2, calls.get());
+    }
+
+    @Test
+    public void testWaiterDeadline() throws InterruptedException
+    {
+        final SingleFlight<String, String> singleFlight =
+            new SingleFlight<String, String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> slow = new Callable<String>()
+        {
+            @Override
+            public String call() throws InterruptedException
+            {
+                started.countDown();
+                release.await();
+                return "result";
+            }
+        };
+        final Thread leader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                singleFlight.execute("key", slow);
+            }
+        });
+        leader.start();
+        started.await();
+        try
+        {
+            try
+            {
+                singleFlight.execute("key", new OperationContext(200), slow);
+                Assert.fail("should have run out of time");
+            }
+            catch (final OperationCancelledException exception)
+            {
+                Assert.assertTrue("timed out", exception.isTimedOut());
+            }
+
+            Thread.currentThread().interrupt();
+            try
+            {
+                singleFlight.execute("key", new OperationContext(10000),
+                    slow);
+                Assert.fail("should have been interrupted");
+            }
+            catch (final OperationCancelledException exception)
+            {
+                Assert.fail("interrupt, not deadline");
+            }
+            catch (final RuntimeException exception)
+            {
+                Assert.assertTrue("interrupt kept", Thread.interrupted());
+            }
+        }
+        finally
+        {
+            release.countDown();
+            leader.join();
+        }
+    }
+}
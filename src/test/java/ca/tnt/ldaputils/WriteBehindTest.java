@@ -0,0 +1,240 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils;
+
+import ca.tnt.ldaputils.impl.LdapOrganization;
+import org.apache.directory.server.annotations.CreateLdapServer;
+import org.apache.directory.server.annotations.CreateTransport;
+import org.apache.directory.server.core.annotations.ApplyLdifFiles;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import javax.naming.InvalidNameException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapName;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Write behind mode, and recovery from its journal.
+ * <p/>
+ * Created :  18/10/26 10:05 PM MST
+ */
+@SuppressWarnings(
+    {"JavaDoc", "ClassWithoutConstructor", "PublicMethodNotExposedInInterface"})
+@RunWith(FrameworkRunner.class)
+@CreateLdapServer(
+    transports =
+        {
+            @CreateTransport(protocol = "LDAP")
+        })
+@CreateDS(allowAnonAccess = false, name = "example-partition",
+    partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif = "dn: dc=example,dc=com\n" +
+                        "objectclass: dcObject\n" +
+                        "objectclass: organization\n" +
+                        "o: Example\n" +
+                        "dc: example"))
+        })
+@ApplyLdifFiles({
+    "example.schema.ldif",
+    "add-domain.ldif",
+    "add-busgroups.ldif",
+    "add-businesses.ldif"})
+public class WriteBehindTest extends AbstractLdapTestUnit
+{
+    private LdapManager manager;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        manager = new LdapManager("localhost", "" + ldapServer.getPort(),
+            "uid=admin,ou=system", "secret");
+        journal = File.createTempFile("lpa-write-behind", ".journal");
+        journal.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        manager.disableWriteBehind();
+        journal.delete();
+    }
+
+    @Test
+    public void testQueuedSave() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final WriteBehindQueue queue = new WriteBehindQueue(manager, journal);
+        queue.setFlushInterval(60000);
+        manager.setWriteBehindQueue(queue);
+
+        final LdapOrganization organization = (LdapOrganization) manager.find(
+            LdapOrganization.class, ldapName);
+        organization.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "telephoneNumber", "(123) 555-0001");
+        organization.save();
+        organization.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "telephoneNumber", "(123) 555-0002");
+        organization.save();
+
+        Assert.assertEquals("saves of one entry are coalesced", 1,
+            queue.getQueueDepth());
+        Assert.assertEquals("replace supersedes the earlier replace", 1,
+            queue.getPendingModifications());
+        Assert.assertEquals("applied in memory", "(123) 555-0002",
+            organization.getStringValue("telephoneNumber"));
+        Assert.assertEquals("not yet in ldap", "(123) 555-5555",
+            reload(ldapName).getTelephoneNumber());
+
+        queue.flush();
+        Assert.assertEquals("queue drained", 0, queue.getQueueDepth());
+        Assert.assertEquals("flushed entries", 1, queue.getFlushedEntries());
+        Assert.assertEquals("applied to ldap", "(123) 555-0002",
+            reload(ldapName).getTelephoneNumber());
+    }
+
+    @Test
+    public void testQueuedIncrement() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final WriteBehindQueue queue = new WriteBehindQueue(manager, journal);
+        queue.setFlushInterval(60000);
+        manager.setWriteBehindQueue(queue);
+
+        final LdapOrganization organization = (LdapOrganization) manager.find(
+            LdapOrganization.class, ldapName);
+        organization.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE,
+            "postOfficeBox", 2);
+        organization.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "telephoneNumber", "(123) 555-0003");
+        organization.save();
+        organization.modifyBatchAttribute(ILdapEntry.INCREMENT_ATTRIBUTE,
+            "postOfficeBox", 3);
+        organization.save();
+
+        Assert.assertEquals("increments are queued too", 1,
+            queue.getQueueDepth());
+        Assert.assertEquals("increments of one attribute are summed", 2,
+            queue.getPendingModifications());
+        Assert.assertEquals("applied in memory", "5",
+            organization.getStringValue("postOfficeBox"));
+        Assert.assertNull("not yet in ldap",
+            reload(ldapName).getStringValue("postOfficeBox"));
+
+        queue.flush();
+        final LdapOrganization flushed = reload(ldapName);
+        Assert.assertEquals("incremented", "5",
+            flushed.getStringValue("postOfficeBox"));
+        Assert.assertEquals("with the other modifications", "(123) 555-0003",
+            flushed.getTelephoneNumber());
+    }
+
+    @Test
+    public void testOverloadedFlush() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "o=Pulp Mill.,ou=businesses,dc=example,dc=com");
+        final WriteBehindQueue queue = new WriteBehindQueue(manager, journal);
+        queue.setFlushInterval(60000);
+        manager.setWriteBehindQueue(queue);
+
+        final LdapOrganization organization = (LdapOrganization) manager.find(
+            LdapOrganization.class, ldapName);
+        organization.modifyBatchAttribute(ILdapEntry.REPLACE_ATTRIBUTE,
+            "telephoneNumber", "(123) 555-0004");
+        organization.save();
+
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 0, 0);
+        limiter.acquire(Long.MAX_VALUE);
+        manager.setLimiters(null, limiter);
+        queue.flush();
+        Assert.assertEquals("requeued while overloaded", 1,
+            queue.getQueueDepth());
+        Assert.assertEquals("not dropped", 0, queue.getFailedEntries());
+        Assert.assertEquals("not yet in ldap", "(123) 555-5555",
+            reload(ldapName).getTelephoneNumber());
+
+        limiter.release(0);
+        queue.flush();
+        Assert.assertEquals("queue drained", 0, queue.getQueueDepth());
+        Assert.assertEquals("applied to ldap", "(123) 555-0004",
+            reload(ldapName).getTelephoneNumber());
+        manager.setLimiters(null, null);
+    }
+
+    @Test
+    public void testJournalRecovery() throws InvalidNameException
+    {
+        final LdapName ldapName = new LdapName(
+            "o=Hair by Person X,ou=businesses,dc=example,dc=com");
+        final WriteBehindQueue crashed = new WriteBehindQueue(manager,
+            journal);
+        crashed.setFlushInterval(60000);
+        crashed.start();
+        try
+        {
+            crashed.enqueue(ldapName, new ModificationItem[]{
+                new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                    new BasicAttribute("street", "Journal Way"))});
+            // simulate a crash; the queue is abandoned without a flush
+
+            final WriteBehindQueue recovered = new WriteBehindQueue(manager,
+                journal);
+            recovered.setFlushInterval(60000);
+            recovered.start();
+            Assert.assertEquals("recovered from journal", 1,
+                recovered.getQueueDepth());
+            recovered.close();
+            Assert.assertEquals("applied on close", "Journal Way",
+                reload(ldapName).getStreet());
+        }
+        finally
+        {   // stop its flusher; its replace was already applied, so this is
+            // harmless
+            crashed.close();
+        }
+    }
+
+    private LdapOrganization reload(final LdapName ldapName)
+    {
+        return (LdapOrganization) manager.find(LdapOrganization.class,
+            ldapName);
+    }
+}
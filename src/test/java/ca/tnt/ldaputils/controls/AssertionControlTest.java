@@ -0,0 +1,74 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import ca.tnt.ldaputils.LdapManager;
+import junit.framework.Assert;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import javax.naming.NamingException;
+import java.util.Arrays;
+
+/**
+ * The embedded test server does not support the assertion control, so we only
+ * check the encoding here.
+ * <p/>
+ * Created :  18/10/26 11:20 PM MST
+ */
+@SuppressWarnings(
+    {"JavaDoc", "ClassWithoutConstructor", "PublicMethodNotExposedInInterface"})
+public class AssertionControlTest
+{
+    @Test
+    public void testEqualityEncoding()
+    {
+        final AssertionControl control = new AssertionControl("cn", "a");
+        Assert.assertEquals("oid", AssertionControl.OID, control.getID());
+        Assert.assertTrue("critical", control.isCritical());
+        Assert.assertTrue("value", Arrays.equals(new byte[]{
+            (byte) 0xa3, 0x07, 0x04, 0x02, 'c', 'n', 0x04, 0x01, 'a'},
+            control.getEncodedValue()));
+    }
+
+    @Test
+    public void testLongFormLength()
+    {
+        final byte[] value = new AssertionControl("description",
+            StringUtils.repeat("x", 300)).getEncodedValue();
+        // 13 for the attribute, 4 for the value header, 300 for the value
+        Assert.assertEquals("filter length form", (byte) 0x82, value[1]);
+        Assert.assertEquals("filter length", 317,
+            ((value[2] & 0xff) << 8) | (value[3] & 0xff));
+        Assert.assertEquals("total", 321, value.length);
+    }
+
+    @Test
+    public void testResultCode()
+    {
+        final NamingException exception = new NamingException(
+            "[LDAP: error code 122 - Assertion Failed]");
+        Assert.assertEquals("result code", AssertionControl.ASSERTION_FAILED,
+            LdapManager.getResultCode(exception));
+        Assert.assertEquals("no result code", -1,
+            LdapManager.getResultCode(new NamingException("other")));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * This file is part of the LDAP Persistence API (LPA).
+ *
+ * Copyright Trenton D. Adams <lpa at trentonadams daught ca>
+ *
+ * LPA is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * LPA is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with LPA.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the COPYING file for more information.
+ */
+package ca.tnt.ldaputils.controls;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import java.util.Arrays;
+
+/**
+ * The embedded test server does not support the post-read control, so we
+ * only check the encoding and decoding here.
+ * <p/>
+ * Created :  18/10/26 6:40 PM MST
+ */
+@SuppressWarnings(
+    {"JavaDoc", "ClassWithoutConstructor", "PublicMethodNotExposedInInterface"})
+public class PostReadControlTest
+{
+    @Test
+    public void testRequestEncoding()
+    {
+        final PostReadControl control = new PostReadControl("entryCSN");
+        Assert.assertEquals("oid", PostReadControl.OID, control.getID());
+        Assert.assertFalse("not critical", control.isCritical());
+        Assert.assertTrue("value", Arrays.equals(new byte[]{
+            0x30, 0x0a, 0x04, 0x08, 'e', 'n', 't', 'r', 'y', 'C', 'S', 'N'},
+            control.getEncodedValue()));
+    }
+
+    @Test
+    public void testResponseDecoding() throws NamingException
+    {
+        final byte[] entry = BerEncoder.encodeConstructed(0x64,
+            BerEncoder.encodeString(BerEncoder.OCTET_STRING, "cn=a,dc=x"),
+            BerEncoder.encodeConstructed(BerEncoder.SEQUENCE,
+                BerEncoder.encodeConstructed(BerEncoder.SEQUENCE,
+                    BerEncoder.encodeString(BerEncoder.OCTET_STRING,
+                        "entryCSN"),
+                    BerEncoder.encodeConstructed(0x31,
+                        BerEncoder.encodeString(BerEncoder.OCTET_STRING,
+                            "20261018#000001")))));
+        final Attributes attributes = PostReadControl.getAttributes(
+            new Control[]{new BasicControl("1.2.3"),
+                new BasicControl(PostReadControl.OID, false, entry)});
+        Assert.assertEquals("version", "20261018#000001",
+            attributes.get("entrycsn").get());
+        Assert.assertNull("no response", PostReadControl.getAttributes(null));
+    }
+
+    @Test
+    public void testTruncatedResponse()
+    {
+        try
+        {
+            PostReadControl.decode(new byte[]{0x64, 0x05, 0x04, 0x01});
+            Assert.fail("truncated value should be rejected");
+        }
+        catch (final IllegalArgumentException expected)
+        {
+            // the manager then treats the version as unknown
+        }
+    }
+}